@@ -0,0 +1,79 @@
+package org.opencds.cqf.ruler.utility;
+
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+
+public class Requests {
+
+	private Requests() {
+	}
+
+	/**
+	 * Returns whether a RequestDetails can be copied with
+	 * {@link #copyOf(RequestDetails)}.
+	 *
+	 * @param theRequestDetails the RequestDetails, may be null
+	 * @return true if the RequestDetails is null, a ServletRequestDetails or a
+	 *         SystemRequestDetails
+	 */
+	public static boolean isCopyable(RequestDetails theRequestDetails) {
+		return theRequestDetails == null || theRequestDetails.getClass() == ServletRequestDetails.class
+				|| theRequestDetails.getClass() == SystemRequestDetails.class;
+	}
+
+	/**
+	 * Copies a RequestDetails, so that work done for the request on another thread
+	 * has a RequestDetails of its own. RequestDetails are not thread-safe, and
+	 * interceptors invoked by the DAOs read and write their user data.
+	 * <p>
+	 * The copy has the same tenant, partition and servlet request, so it is
+	 * authorized the same way as the original, and a snapshot of its user data.
+	 * Changes made to the user data of the copy are not seen by the original. The
+	 * copy should be made on the thread handling the request, before the work is
+	 * handed off.
+	 *
+	 * @param theRequestDetails the RequestDetails to copy, may be null
+	 * @return the copy, or null if theRequestDetails is null
+	 * @throws IllegalArgumentException if the RequestDetails is not copyable
+	 */
+	public static RequestDetails copyOf(RequestDetails theRequestDetails) {
+		if (theRequestDetails == null) {
+			return null;
+		}
+
+		RequestDetails copy;
+		if (theRequestDetails.getClass() == ServletRequestDetails.class) {
+			ServletRequestDetails servletRequestDetails = (ServletRequestDetails) theRequestDetails;
+			ServletRequestDetails servletCopy = new ServletRequestDetails(
+					servletRequestDetails.getInterceptorBroadcaster());
+			servletCopy.setServer(servletRequestDetails.getServer());
+			servletCopy.setServletRequest(servletRequestDetails.getServletRequest());
+			servletCopy.setServletResponse(servletRequestDetails.getServletResponse());
+			copy = servletCopy;
+		} else if (theRequestDetails.getClass() == SystemRequestDetails.class) {
+			SystemRequestDetails systemCopy = new SystemRequestDetails();
+			systemCopy.setRequestPartitionId(((SystemRequestDetails) theRequestDetails).getRequestPartitionId());
+			copy = systemCopy;
+		} else {
+			throw new IllegalArgumentException(
+					"Unable to copy a RequestDetails of type " + theRequestDetails.getClass().getName());
+		}
+
+		copy.setTenantId(theRequestDetails.getTenantId());
+		copy.setRequestType(theRequestDetails.getRequestType());
+		copy.setRestOperationType(theRequestDetails.getRestOperationType());
+		copy.setResourceName(theRequestDetails.getResourceName());
+		copy.setId(theRequestDetails.getId());
+		copy.setOperation(theRequestDetails.getOperation());
+		copy.setCompartmentName(theRequestDetails.getCompartmentName());
+		copy.setParameters(theRequestDetails.getParameters());
+		copy.setCompleteUrl(theRequestDetails.getCompleteUrl());
+		copy.setFhirServerBase(theRequestDetails.getFhirServerBase());
+		copy.setRequestPath(theRequestDetails.getRequestPath());
+		copy.setRequestId(theRequestDetails.getRequestId());
+		copy.getUserData().putAll(theRequestDetails.getUserData());
+
+		return copy;
+	}
+}
@@ -47,13 +47,13 @@ import org.opencds.cqf.cql.evaluator.builder.terminology.FhirRestTerminologyProv
 import org.opencds.cqf.cql.evaluator.cql2elm.content.InMemoryLibraryContentProvider;
 import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
 import org.opencds.cqf.cql.evaluator.cql2elm.util.LibraryVersionSelector;
-import org.opencds.cqf.cql.evaluator.engine.retrieve.BundleRetrieveProvider;
 import org.opencds.cqf.cql.evaluator.engine.retrieve.PriorityRetrieveProvider;
 import org.opencds.cqf.cql.evaluator.expression.ExpressionEvaluator;
 import org.opencds.cqf.cql.evaluator.fhir.ClientFactory;
 import org.opencds.cqf.cql.evaluator.fhir.adapter.dstu3.AdapterFactory;
 import org.opencds.cqf.cql.evaluator.library.CqlFhirParametersConverter;
 import org.opencds.cqf.cql.evaluator.library.LibraryEvaluator;
+import org.opencds.cqf.ruler.cql.IndexedBundleRetrieveProvider;
 import org.opencds.cqf.ruler.cql.JpaFhirDalFactory;
 import org.opencds.cqf.ruler.cql.JpaFhirRetrieveProvider;
 import org.opencds.cqf.ruler.cql.JpaLibraryContentProviderFactory;
@@ -351,7 +351,8 @@ public class CqlExecutionProvider extends DaoRegistryOperationProvider {
 		}
 
 		if (data != null) {
-			BundleRetrieveProvider bundleRetriever = new BundleRetrieveProvider(getFhirContext(), data);
+			IndexedBundleRetrieveProvider bundleRetriever = new IndexedBundleRetrieveProvider(getFhirContext(),
+					myModelResolver, data);
 			bundleRetriever.setTerminologyProvider(terminologyProvider);
 			retrieveProviderList.add(bundleRetriever);
 		}
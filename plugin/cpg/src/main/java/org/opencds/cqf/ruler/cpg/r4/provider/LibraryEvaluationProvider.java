@@ -35,11 +35,11 @@ import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
 import org.opencds.cqf.cql.evaluator.cql2elm.content.fhir.BundleFhirLibraryContentProvider;
 import org.opencds.cqf.cql.evaluator.cql2elm.util.LibraryVersionSelector;
-import org.opencds.cqf.cql.evaluator.engine.retrieve.BundleRetrieveProvider;
 import org.opencds.cqf.cql.evaluator.engine.retrieve.PriorityRetrieveProvider;
 import org.opencds.cqf.cql.evaluator.fhir.adapter.AdapterFactory;
 import org.opencds.cqf.ruler.cpg.r4.util.FhirMeasureBundler;
 import org.opencds.cqf.ruler.cql.CqlProperties;
+import org.opencds.cqf.ruler.cql.IndexedBundleRetrieveProvider;
 import org.opencds.cqf.ruler.cql.JpaFhirRetrieveProvider;
 import org.opencds.cqf.ruler.cql.JpaLibraryContentProviderFactory;
 import org.opencds.cqf.ruler.cql.JpaTerminologyProviderFactory;
@@ -148,7 +148,8 @@ public class LibraryEvaluationProvider extends DaoRegistryOperationProvider {
 			retrieveProviderList.add(retriever);
 
 			if (additionalData != null) {
-				BundleRetrieveProvider bundleProvider = new BundleRetrieveProvider(getFhirContext(), additionalData);
+				IndexedBundleRetrieveProvider bundleProvider = new IndexedBundleRetrieveProvider(getFhirContext(),
+						myModelResolver, additionalData);
 				bundleProvider.setTerminologyProvider(terminologyProvider);
 				retrieveProviderList.add(bundleProvider);
 				PriorityRetrieveProvider priorityProvider = new PriorityRetrieveProvider(retrieveProviderList);
@@ -169,7 +170,8 @@ public class LibraryEvaluationProvider extends DaoRegistryOperationProvider {
 			retrieveProviderList.add(retriever);
 
 			if (additionalData != null) {
-				BundleRetrieveProvider bundleProvider = new BundleRetrieveProvider(getFhirContext(), additionalData);
+				IndexedBundleRetrieveProvider bundleProvider = new IndexedBundleRetrieveProvider(getFhirContext(),
+						myModelResolver, additionalData);
 				bundleProvider.setTerminologyProvider(terminologyProvider);
 				retrieveProviderList.add(bundleProvider);
 				PriorityRetrieveProvider priorityProvider = new PriorityRetrieveProvider(retrieveProviderList);
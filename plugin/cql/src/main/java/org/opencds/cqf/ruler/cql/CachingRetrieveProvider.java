@@ -0,0 +1,344 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * A RetrieveProvider that memoizes the results of another for the patient
+ * being evaluated. CQL libraries frequently repeat the same retrieve across
+ * definitions and included libraries, and each repeat would otherwise be a
+ * separate search.
+ * <p>
+ * Only Patient context retrieves are memoized. Results are keyed by every
+ * retrieve argument and are held in a {@link RetrieveCache} stored in the user
+ * data of the RequestDetails, so they are shared by all the data providers
+ * created for a request and discarded with it. The cache only holds the
+ * results of one patient at a time, and is cleared when a retrieve for another
+ * patient is made, so a population evaluation does not accumulate the data of
+ * the whole population.
+ * <p>
+ * Results are not materialized up front. They are recorded as they are
+ * iterated, and only cached once an iteration has reached their end, so
+ * streamed results are still loaded a page at a time and a consumer that stops
+ * early does not load the rest. Results with more resources than the cache can
+ * hold are not cached, and the least recently used results are evicted when the
+ * cache is full.
+ * <p>
+ * Hits and misses are counted by the cache of each request, and can also be
+ * counted across requests by a shared {@link Statistics}, which the server
+ * publishes as metrics.
+ */
+public class CachingRetrieveProvider implements RetrieveProvider {
+
+	static final String USER_DATA_KEY = CachingRetrieveProvider.class.getName() + ".cache";
+
+	static final int DEFAULT_MAXIMUM_ENTRIES = 256;
+	static final int DEFAULT_MAXIMUM_RESOURCES = 10000;
+
+	private static final String PATIENT_CONTEXT = "Patient";
+
+	private final RetrieveProvider myRetrieveProvider;
+	private final RetrieveCache myCache;
+	private final Statistics myStatistics;
+
+	/**
+	 * @param theRetrieveProvider the RetrieveProvider whose results are memoized
+	 * @param theRequestDetails   the request the results are scoped to. If null,
+	 *                            results are scoped to this RetrieveProvider.
+	 */
+	public CachingRetrieveProvider(RetrieveProvider theRetrieveProvider, RequestDetails theRequestDetails) {
+		this(theRetrieveProvider, theRequestDetails, DEFAULT_MAXIMUM_ENTRIES, DEFAULT_MAXIMUM_RESOURCES);
+	}
+
+	/**
+	 * @param theRetrieveProvider the RetrieveProvider whose results are memoized
+	 * @param theRequestDetails   the request the results are scoped to. If null,
+	 *                            results are scoped to this RetrieveProvider.
+	 * @param theMaximumEntries   the maximum number of retrieves cached for a
+	 *                            patient
+	 * @param theMaximumResources the maximum number of resources cached for a
+	 *                            patient
+	 */
+	public CachingRetrieveProvider(RetrieveProvider theRetrieveProvider, RequestDetails theRequestDetails,
+			int theMaximumEntries, int theMaximumResources) {
+		this(theRetrieveProvider, theRequestDetails, theMaximumEntries, theMaximumResources, null);
+	}
+
+	/**
+	 * @param theRetrieveProvider the RetrieveProvider whose results are memoized
+	 * @param theRequestDetails   the request the results are scoped to. If null,
+	 *                            results are scoped to this RetrieveProvider.
+	 * @param theMaximumEntries   the maximum number of retrieves cached for a
+	 *                            patient
+	 * @param theMaximumResources the maximum number of resources cached for a
+	 *                            patient
+	 * @param theStatistics       counts the hits and misses across requests, or
+	 *                            null
+	 */
+	public CachingRetrieveProvider(RetrieveProvider theRetrieveProvider, RequestDetails theRequestDetails,
+			int theMaximumEntries, int theMaximumResources, Statistics theStatistics) {
+		myRetrieveProvider = theRetrieveProvider;
+		myCache = theRequestDetails == null ? new RetrieveCache(theMaximumEntries, theMaximumResources)
+				: getCache(theRequestDetails, theMaximumEntries, theMaximumResources);
+		myStatistics = theStatistics;
+	}
+
+	/**
+	 * Returns the retrieve cache of a request, creating it with the default
+	 * bounds if needed.
+	 *
+	 * @param theRequestDetails the request
+	 * @return the cache
+	 */
+	public static RetrieveCache getCache(RequestDetails theRequestDetails) {
+		return getCache(theRequestDetails, DEFAULT_MAXIMUM_ENTRIES, DEFAULT_MAXIMUM_RESOURCES);
+	}
+
+	/**
+	 * Returns the retrieve cache of a request, if it has one.
+	 *
+	 * @param theRequestDetails the request
+	 * @return the cache, or null if no retrieves were cached for the request
+	 */
+	public static RetrieveCache findCache(RequestDetails theRequestDetails) {
+		Map<Object, Object> userData = theRequestDetails.getUserData();
+		synchronized (userData) {
+			return (RetrieveCache) userData.get(USER_DATA_KEY);
+		}
+	}
+
+	private static RetrieveCache getCache(RequestDetails theRequestDetails, int theMaximumEntries,
+			int theMaximumResources) {
+		Map<Object, Object> userData = theRequestDetails.getUserData();
+		synchronized (userData) {
+			return (RetrieveCache) userData.computeIfAbsent(USER_DATA_KEY,
+					x -> new RetrieveCache(theMaximumEntries, theMaximumResources));
+		}
+	}
+
+	public RetrieveCache getCache() {
+		return myCache;
+	}
+
+	public RetrieveProvider getRetrieveProvider() {
+		return myRetrieveProvider;
+	}
+
+	@Override
+	public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+			String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+			String dateLowPath, String dateHighPath, Interval dateRange) {
+		if (!PATIENT_CONTEXT.equals(context) || contextValue == null) {
+			Iterable<Object> results = myRetrieveProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath,
+					codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+			return results == null ? Collections.emptyList() : results;
+		}
+
+		String patient = contextValue.toString();
+		List<Object> key = Arrays.asList(contextPath, dataType, templateId, codePath, codesKey(codes), valueSet,
+				datePath, dateLowPath, dateHighPath, intervalKey(dateRange));
+
+		List<Object> cached = myCache.get(patient, key);
+		if (cached != null) {
+			myCache.myHits.incrementAndGet();
+			if (myStatistics != null) {
+				myStatistics.myHits.incrementAndGet();
+			}
+			return cached;
+		}
+
+		myCache.myMisses.incrementAndGet();
+		if (myStatistics != null) {
+			myStatistics.myMisses.incrementAndGet();
+		}
+		Iterable<Object> results = myRetrieveProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath,
+				codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+
+		if (results == null) {
+			return Collections.emptyList();
+		}
+
+		return () -> new RecordingIterator(results.iterator(), patient, key);
+	}
+
+	// Records the results as they are iterated, and caches them once the
+	// iteration reaches their end, unless there are too many to cache
+	private class RecordingIterator implements Iterator<Object> {
+		private final Iterator<Object> myIterator;
+		private final String myPatient;
+		private final List<Object> myKey;
+		private List<Object> myRecorded = new ArrayList<>();
+
+		RecordingIterator(Iterator<Object> theIterator, String thePatient, List<Object> theKey) {
+			myIterator = theIterator;
+			myPatient = thePatient;
+			myKey = theKey;
+		}
+
+		@Override
+		public boolean hasNext() {
+			boolean hasNext = myIterator.hasNext();
+			if (!hasNext && myRecorded != null) {
+				myCache.put(myPatient, myKey, Collections.unmodifiableList(myRecorded));
+				myRecorded = null;
+			}
+
+			return hasNext;
+		}
+
+		@Override
+		public Object next() {
+			Object next = myIterator.next();
+			if (myRecorded != null) {
+				if (myRecorded.size() < myCache.myMaximumResources) {
+					myRecorded.add(next);
+				} else {
+					myRecorded = null;
+				}
+			}
+
+			return next;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static List<Object> materialize(Iterable<Object> theResults) {
+		if (theResults == null) {
+			return Collections.emptyList();
+		}
+
+		List<Object> list;
+		if (theResults instanceof Collection) {
+			list = new ArrayList<>((Collection<Object>) theResults);
+		} else {
+			list = new ArrayList<>();
+			theResults.forEach(list::add);
+		}
+
+		return Collections.unmodifiableList(list);
+	}
+
+	static List<String> codesKey(Iterable<Code> theCodes) {
+		if (theCodes == null) {
+			return null;
+		}
+
+		List<String> key = new ArrayList<>();
+		for (Code code : theCodes) {
+			key.add(code == null ? null : code.getSystem() + "|" + code.getVersion() + "|" + code.getCode());
+		}
+
+		return key;
+	}
+
+	static List<Object> intervalKey(Interval theInterval) {
+		if (theInterval == null) {
+			return null;
+		}
+
+		return Arrays.asList(String.valueOf(theInterval.getLow()), theInterval.getLowClosed(),
+				String.valueOf(theInterval.getHigh()), theInterval.getHighClosed());
+	}
+
+	/**
+	 * The memoized retrieve results of a request for the patient being
+	 * evaluated, along with hit and miss counters.
+	 */
+	public static class RetrieveCache {
+		private final int myMaximumEntries;
+		private final int myMaximumResources;
+		private final AtomicLong myHits = new AtomicLong();
+		private final AtomicLong myMisses = new AtomicLong();
+
+		// Guarded by this
+		private final LinkedHashMap<List<Object>, List<Object>> myResults = new LinkedHashMap<>(16, 0.75f, true);
+		private String myPatient;
+		private int myResources;
+
+		RetrieveCache(int theMaximumEntries, int theMaximumResources) {
+			myMaximumEntries = theMaximumEntries;
+			myMaximumResources = theMaximumResources;
+		}
+
+		synchronized List<Object> get(String thePatient, List<Object> theKey) {
+			return thePatient.equals(myPatient) ? myResults.get(theKey) : null;
+		}
+
+		synchronized void put(String thePatient, List<Object> theKey, List<Object> theResults) {
+			if (theResults.size() > myMaximumResources) {
+				return;
+			}
+
+			if (!thePatient.equals(myPatient)) {
+				myResults.clear();
+				myResources = 0;
+				myPatient = thePatient;
+			}
+
+			List<Object> previous = myResults.put(theKey, theResults);
+			myResources += theResults.size() - (previous == null ? 0 : previous.size());
+
+			Iterator<List<Object>> eldest = myResults.values().iterator();
+			while (myResults.size() > myMaximumEntries || myResources > myMaximumResources) {
+				myResources -= eldest.next().size();
+				eldest.remove();
+			}
+		}
+
+		public long getHitCount() {
+			return myHits.get();
+		}
+
+		public long getMissCount() {
+			return myMisses.get();
+		}
+
+		public synchronized int size() {
+			return myResults.size();
+		}
+
+		public synchronized int getResourceCount() {
+			return myResources;
+		}
+
+		@Override
+		public String toString() {
+			return "RetrieveCache[hits=" + getHitCount() + ", misses=" + getMissCount() + ", size=" + size() + "]";
+		}
+	}
+
+	/**
+	 * The hits and misses of the retrieve caches of all requests, for
+	 * monitoring.
+	 */
+	public static class Statistics {
+		private final AtomicLong myHits = new AtomicLong();
+		private final AtomicLong myMisses = new AtomicLong();
+
+		public long getHitCount() {
+			return myHits.get();
+		}
+
+		public long getMissCount() {
+			return myMisses.get();
+		}
+
+		@Override
+		public String toString() {
+			return "Statistics[hits=" + getHitCount() + ", misses=" + getMissCount() + "]";
+		}
+	}
+}
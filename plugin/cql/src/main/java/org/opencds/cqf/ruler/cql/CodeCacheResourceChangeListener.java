@@ -1,8 +1,10 @@
 package org.opencds.cqf.ruler.cql;
 
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.Function;
 
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
@@ -25,9 +27,17 @@ public class CodeCacheResourceChangeListener implements IResourceChangeListener
 	private final Map<VersionedIdentifier, List<Code>> myGlobalCodeCache;
 	private final Function<IBaseResource, String> myUrlFunction;
 	private final Function<IBaseResource, String> myVersionFunction;
+	private final MappedValueSetExpansionStore myExpansionStore;
 
 	public CodeCacheResourceChangeListener(DaoRegistry theDaoRegistry,
 			Map<VersionedIdentifier, List<Code>> theGlobalCodeCache) {
+		this(theDaoRegistry, theGlobalCodeCache, null);
+	}
+
+	public CodeCacheResourceChangeListener(DaoRegistry theDaoRegistry,
+			Map<VersionedIdentifier, List<Code>> theGlobalCodeCache,
+			MappedValueSetExpansionStore theExpansionStore) {
+		this.myExpansionStore = theExpansionStore;
 		this.myValueSetDao = theDaoRegistry.getResourceDao("ValueSet");
 		this.myGlobalCodeCache = theGlobalCodeCache;
 		this.myUrlFunction = Reflections.getUrlFunction(myValueSetDao.getResourceType());
@@ -70,14 +80,30 @@ public class CodeCacheResourceChangeListener implements IResourceChangeListener
 			String url = this.myUrlFunction.apply(valueSet);
 			String version = this.myVersionFunction.apply(valueSet);
 
-			this.myGlobalCodeCache.remove(new VersionedIdentifier().withId(url)
-					.withVersion(version));
+			// Expansions are cached under the version the CQL refers to the ValueSet
+			// by, which is usually none, rather than the version of the resource, so
+			// every expansion of the url is removed
+			Set<VersionedIdentifier> identifiers = new HashSet<>();
+			identifiers.add(new VersionedIdentifier().withId(url));
+			identifiers.add(new VersionedIdentifier().withId(url).withVersion(version));
+			this.myGlobalCodeCache.keySet().removeIf(x -> {
+				if (!url.equals(x.getId())) {
+					return false;
+				}
+				identifiers.add(x);
+				return true;
+			});
+			if (this.myExpansionStore != null) {
+				identifiers.forEach(this.myExpansionStore::remove);
+			}
 		}
 		// This happens when a Library is deleted entirely so it's impossible to look up
 		// name and version.
 		catch (Exception e) {
 			ourLog.debug("Failed to locate resource {} to look up url and version. Clearing all codes from cache.",
 					theId.getValueAsString());
+			// Stored expansions are stamped with the ValueSet version, so there's no
+			// need to clear them here.
 			this.myGlobalCodeCache.clear();
 		}
 	}
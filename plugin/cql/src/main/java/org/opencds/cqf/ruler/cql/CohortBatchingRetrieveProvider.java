@@ -0,0 +1,377 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * A RetrieveProvider that loads the data of a cohort of patients in batches.
+ * When a population is evaluated one patient at a time, each patient would
+ * otherwise run its own search for every retrieve.
+ * <p>
+ * The patients of the cohort are split into consecutive batches. A retrieve
+ * made for a patient of a batch is run once for every patient of the batch,
+ * using an OR-list of the patients as the context parameter, and the results
+ * are grouped by patient. The retrieves of the other patients of the batch are
+ * then served from those groups. Retrieves for patients outside the cohort, or
+ * in any context other than Patient, are passed through.
+ * <p>
+ * The retrieves made for more than one patient of the cohort are its data
+ * requirements. They depend on the codes and date ranges the CQL evaluates to,
+ * so they are recorded as they are made rather than derived from the ELM, and
+ * a retrieve whose arguments differ for each patient is not recorded. When the
+ * first retrieve is made for a batch, every retrieve recorded so far is loaded
+ * for the batch up front, so the evaluation of its patients is not interleaved
+ * with its searches.
+ * <p>
+ * The cohort of a request, along with the batches loaded for it, is held in
+ * the user data of the RequestDetails, so it is shared by all the data
+ * providers created for the request. Only the most recently used batches are
+ * retained. Searches run outside of any lock, and concurrent retrieves of the
+ * same batch wait for a single search.
+ */
+public class CohortBatchingRetrieveProvider implements RetrieveProvider {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(CohortBatchingRetrieveProvider.class);
+
+	static final String USER_DATA_KEY = CohortBatchingRetrieveProvider.class.getName() + ".cohort";
+
+	private final JpaFhirRetrieveProvider myRetrieveProvider;
+	private final ModelResolver myModelResolver;
+	private final Cohort myCohort;
+	private final int myBatchSize;
+
+	/**
+	 * @param theRetrieveProvider the RetrieveProvider used to load the batches
+	 * @param theModelResolver    resolves the patient of each result
+	 * @param theCohort           the patients evaluated
+	 * @param theBatchSize        the number of patients loaded at a time
+	 */
+	public CohortBatchingRetrieveProvider(JpaFhirRetrieveProvider theRetrieveProvider, ModelResolver theModelResolver,
+			Cohort theCohort, int theBatchSize) {
+		if (theBatchSize <= 0) {
+			throw new IllegalArgumentException("theBatchSize must be greater than 0");
+		}
+
+		myRetrieveProvider = theRetrieveProvider;
+		myModelResolver = theModelResolver;
+		myCohort = theCohort;
+		myBatchSize = theBatchSize;
+	}
+
+	/**
+	 * Sets the patients that will be evaluated by a request, in the order they
+	 * are evaluated.
+	 *
+	 * @param theRequestDetails the request
+	 * @param thePatientIds     the ids of the patients
+	 * @return the cohort
+	 */
+	public static Cohort setCohort(RequestDetails theRequestDetails, List<String> thePatientIds) {
+		return setCohort(theRequestDetails, thePatientIds, Cohort.DEFAULT_RETAINED_BATCHES);
+	}
+
+	/**
+	 * Sets the patients that will be evaluated by a request, in the order they
+	 * are evaluated.
+	 *
+	 * @param theRequestDetails  the request
+	 * @param thePatientIds      the ids of the patients
+	 * @param theRetainedBatches the number of batches of data retained
+	 * @return the cohort
+	 */
+	public static Cohort setCohort(RequestDetails theRequestDetails, List<String> thePatientIds,
+			int theRetainedBatches) {
+		Cohort cohort = new Cohort(thePatientIds, theRetainedBatches);
+		Map<Object, Object> userData = theRequestDetails.getUserData();
+		synchronized (userData) {
+			userData.put(USER_DATA_KEY, cohort);
+		}
+		return cohort;
+	}
+
+	/**
+	 * Returns the cohort of a request.
+	 *
+	 * @param theRequestDetails the request
+	 * @return the cohort, or null if none was set
+	 */
+	public static Cohort getCohort(RequestDetails theRequestDetails) {
+		if (theRequestDetails == null) {
+			return null;
+		}
+
+		Map<Object, Object> userData = theRequestDetails.getUserData();
+		synchronized (userData) {
+			return (Cohort) userData.get(USER_DATA_KEY);
+		}
+	}
+
+	public Cohort getCohort() {
+		return myCohort;
+	}
+
+	@Override
+	public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+			String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+			String dateLowPath, String dateHighPath, Interval dateRange) {
+		String patientId = "Patient".equals(context) && contextPath != null && contextValue != null
+				? idPart(contextValue.toString())
+				: null;
+		Integer index = patientId == null ? null : myCohort.myIndexes.get(patientId);
+		if (index == null) {
+			return myRetrieveProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath,
+					codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+		}
+
+		int start = index - (index % myBatchSize);
+		int end = Math.min(start + myBatchSize, myCohort.myPatientIds.size());
+		List<String> patientIds = myCohort.myPatientIds.subList(start, end);
+		List<Object> key = Arrays.asList(contextPath, dataType, templateId, codePath,
+				CachingRetrieveProvider.codesKey(codes), valueSet, datePath, dateLowPath, dateHighPath,
+				CachingRetrieveProvider.intervalKey(dateRange));
+
+		Batch batch = myCohort.getBatch(start);
+		if (batch.myPrefetched.compareAndSet(false, true)) {
+			prefetch(batch, patientIds);
+		}
+
+		Map<String, List<Object>> byPatient = batch.myResults.get(key);
+		if (byPatient != null) {
+			myCohort.myHits.incrementAndGet();
+			if (!myCohort.myRequirements.containsKey(key)) {
+				myCohort.myRequirements.putIfAbsent(key, new Retrieve(context, contextPath, dataType, templateId,
+						codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange));
+			}
+		} else {
+			byPatient = load(batch, patientIds, key, new Retrieve(context, contextPath, dataType, templateId, codePath,
+					codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange));
+		}
+
+		if (byPatient == null) {
+			return myRetrieveProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath,
+					codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+		}
+
+		return byPatient.getOrDefault(patientId, Collections.emptyList());
+	}
+
+	// Loads the data requirements recorded so far for a batch
+	private void prefetch(Batch theBatch, List<String> thePatientIds) {
+		Map<List<Object>, Retrieve> requirements;
+		synchronized (myCohort.myRequirements) {
+			requirements = new LinkedHashMap<>(myCohort.myRequirements);
+		}
+
+		if (!requirements.isEmpty()) {
+			ourLog.debug("Prefetching {} retrieves for {} patients", requirements.size(), thePatientIds.size());
+		}
+
+		for (Map.Entry<List<Object>, Retrieve> requirement : requirements.entrySet()) {
+			load(theBatch, thePatientIds, requirement.getKey(), requirement.getValue());
+		}
+	}
+
+	// The search runs outside of any lock. Concurrent loads of the same retrieve
+	// for a batch wait for the one in flight.
+	private Map<String, List<Object>> load(Batch theBatch, List<String> thePatientIds, List<Object> theKey,
+			Retrieve theRetrieve) {
+		return myCohort.myInFlightLoads.execute(Arrays.asList(theBatch.myStart, theKey), () -> {
+			Map<String, List<Object>> byPatient = theBatch.myResults.get(theKey);
+			if (byPatient == null) {
+				byPatient = load(theRetrieve, thePatientIds);
+				if (byPatient != null) {
+					theBatch.myResults.put(theKey, byPatient);
+				}
+			}
+
+			return byPatient;
+		});
+	}
+
+	private Map<String, List<Object>> load(Retrieve theRetrieve, List<String> patientIds) {
+		Iterable<Object> results = myRetrieveProvider.retrieveForPatients(theRetrieve.myContext,
+				theRetrieve.myContextPath, patientIds, theRetrieve.myDataType, theRetrieve.myTemplateId,
+				theRetrieve.myCodePath, theRetrieve.myCodes, theRetrieve.myValueSet, theRetrieve.myDatePath,
+				theRetrieve.myDateLowPath, theRetrieve.myDateHighPath, theRetrieve.myDateRange);
+		if (results == null) {
+			// Null values are not stored, so the retrieve is passed through
+			return null;
+		}
+
+		myCohort.myBatchedQueries.incrementAndGet();
+		ourLog.debug("Loaded {} for {} patients", theRetrieve.myDataType, patientIds.size());
+
+		Map<String, List<Object>> byPatient = new HashMap<>();
+		for (Object result : results) {
+			for (String patientId : patientIdsOf(result, theRetrieve.myContext, theRetrieve.myContextPath,
+					theRetrieve.myDataType)) {
+				byPatient.computeIfAbsent(patientId, x -> new ArrayList<>()).add(result);
+			}
+		}
+
+		return byPatient;
+	}
+
+	private List<String> patientIdsOf(Object theResult, String context, String contextPath, String dataType) {
+		if (context.equals(dataType)) {
+			return Collections.singletonList(((IBaseResource) theResult).getIdElement().getIdPart());
+		}
+
+		List<String> patientIds = new ArrayList<>();
+		addPatientIds(myModelResolver.resolvePath(theResult, contextPath), context, patientIds);
+		return patientIds;
+	}
+
+	private static void addPatientIds(Object theValue, String context, List<String> thePatientIds) {
+		if (theValue instanceof Iterable) {
+			for (Object value : (Iterable<?>) theValue) {
+				addPatientIds(value, context, thePatientIds);
+			}
+		} else if (theValue instanceof IBaseReference) {
+			IIdType reference = ((IBaseReference) theValue).getReferenceElement();
+			if (reference != null && reference.hasIdPart()
+					&& (!reference.hasResourceType() || context.equals(reference.getResourceType()))) {
+				thePatientIds.add(reference.getIdPart());
+			}
+		} else if (theValue instanceof IPrimitiveType) {
+			String value = ((IPrimitiveType<?>) theValue).getValueAsString();
+			if (value != null) {
+				thePatientIds.add(idPart(value));
+			}
+		} else if (theValue instanceof String) {
+			thePatientIds.add(idPart((String) theValue));
+		}
+	}
+
+	private static String idPart(String theId) {
+		int slash = theId.lastIndexOf('/');
+		return slash < 0 ? theId : theId.substring(slash + 1);
+	}
+
+	// The arguments of a retrieve, other than its patient
+	private static class Retrieve {
+		private final String myContext;
+		private final String myContextPath;
+		private final String myDataType;
+		private final String myTemplateId;
+		private final String myCodePath;
+		private final Iterable<Code> myCodes;
+		private final String myValueSet;
+		private final String myDatePath;
+		private final String myDateLowPath;
+		private final String myDateHighPath;
+		private final Interval myDateRange;
+
+		@SuppressWarnings("squid:S00107") // warning for greater than 7 parameters
+		Retrieve(String theContext, String theContextPath, String theDataType, String theTemplateId,
+				String theCodePath, Iterable<Code> theCodes, String theValueSet, String theDatePath,
+				String theDateLowPath, String theDateHighPath, Interval theDateRange) {
+			myContext = theContext;
+			myContextPath = theContextPath;
+			myDataType = theDataType;
+			myTemplateId = theTemplateId;
+			myCodePath = theCodePath;
+			myCodes = theCodes;
+			myValueSet = theValueSet;
+			myDatePath = theDatePath;
+			myDateLowPath = theDateLowPath;
+			myDateHighPath = theDateHighPath;
+			myDateRange = theDateRange;
+		}
+	}
+
+	// The data loaded for a batch of patients, keyed by retrieve
+	private static class Batch {
+		private final int myStart;
+		private final Map<List<Object>, Map<String, List<Object>>> myResults = new ConcurrentHashMap<>();
+		private final AtomicBoolean myPrefetched = new AtomicBoolean();
+
+		Batch(int theStart) {
+			myStart = theStart;
+		}
+	}
+
+	/**
+	 * The patients evaluated by a request and the batches of data loaded for
+	 * them, along with counters of the batched queries run and of the retrieves
+	 * served from batches already loaded.
+	 */
+	public static class Cohort {
+		static final int DEFAULT_RETAINED_BATCHES = 4;
+
+		private final List<String> myPatientIds;
+		private final Map<String, Integer> myIndexes = new HashMap<>();
+		private final Map<Integer, Batch> myBatches;
+		private final Map<List<Object>, Retrieve> myRequirements = Collections.synchronizedMap(new LinkedHashMap<>());
+		private final SingleFlight<List<Object>, Map<String, List<Object>>> myInFlightLoads = new SingleFlight<>();
+		private final AtomicLong myBatchedQueries = new AtomicLong();
+		private final AtomicLong myHits = new AtomicLong();
+
+		Cohort(List<String> thePatientIds) {
+			this(thePatientIds, DEFAULT_RETAINED_BATCHES);
+		}
+
+		Cohort(List<String> thePatientIds, int theRetainedBatches) {
+			if (theRetainedBatches <= 0) {
+				throw new IllegalArgumentException("theRetainedBatches must be greater than 0");
+			}
+
+			myBatches = new LinkedHashMap<Integer, Batch>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Integer, Batch> eldest) {
+					return size() > theRetainedBatches;
+				}
+			};
+			myPatientIds = new ArrayList<>();
+			for (String patientId : thePatientIds) {
+				String idPart = idPart(patientId);
+				if (myIndexes.putIfAbsent(idPart, myPatientIds.size()) == null) {
+					myPatientIds.add(idPart);
+				}
+			}
+		}
+
+		private synchronized Batch getBatch(int theStart) {
+			return myBatches.computeIfAbsent(theStart, Batch::new);
+		}
+
+		public List<String> getPatientIds() {
+			return Collections.unmodifiableList(myPatientIds);
+		}
+
+		public long getBatchedQueryCount() {
+			return myBatchedQueries.get();
+		}
+
+		public long getHitCount() {
+			return myHits.get();
+		}
+
+		@Override
+		public String toString() {
+			return "Cohort[patients=" + myPatientIds.size() + ", batchedQueries=" + getBatchedQueryCount() + ", hits="
+					+ getHitCount() + "]";
+		}
+	}
+}
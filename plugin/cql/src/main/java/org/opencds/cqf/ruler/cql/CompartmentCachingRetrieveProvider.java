@@ -0,0 +1,65 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * A RetrieveProvider that serves Patient context retrieves from a
+ * {@link PatientCompartmentCache} shared by all requests, loading them from
+ * another RetrieveProvider on a miss. Retrieves in any other context are passed
+ * through.
+ * <p>
+ * Results are only shared between requests with the same scope: the same
+ * tenant, the same partition and the same authenticated principal and
+ * authorities, so that a request is never served resources loaded with another
+ * caller's permissions.
+ */
+public class CompartmentCachingRetrieveProvider implements RetrieveProvider {
+
+	private final RetrieveProvider myRetrieveProvider;
+	private final PatientCompartmentCache myCache;
+	private final String myScope;
+
+	/**
+	 * @param theRetrieveProvider the RetrieveProvider whose results are cached
+	 * @param theCache            the cache
+	 * @param theRequestDetails   the request the retrieves are made for, may be
+	 *                            null
+	 */
+	public CompartmentCachingRetrieveProvider(RetrieveProvider theRetrieveProvider, PatientCompartmentCache theCache,
+			RequestDetails theRequestDetails) {
+		myRetrieveProvider = theRetrieveProvider;
+		myCache = theCache;
+		myScope = RequestScopes.scopeOf(theRequestDetails);
+	}
+
+	public RetrieveProvider getRetrieveProvider() {
+		return myRetrieveProvider;
+	}
+
+	@Override
+	public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+			String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+			String dateLowPath, String dateHighPath, Interval dateRange) {
+		if (!"Patient".equals(context) || contextPath == null || contextValue == null) {
+			return myRetrieveProvider.retrieve(context, contextPath, contextValue, dataType, templateId, codePath,
+					codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+		}
+
+		String patientId = contextValue.toString();
+		patientId = patientId.substring(patientId.lastIndexOf('/') + 1);
+		List<Object> key = Arrays.asList(myScope, contextPath, templateId, codePath,
+				CachingRetrieveProvider.codesKey(codes), valueSet, datePath, dateLowPath, dateHighPath, CachingRetrieveProvider.intervalKey(dateRange));
+
+		return myCache.get(patientId, dataType, valueSet, key,
+				() -> CachingRetrieveProvider.materialize(myRetrieveProvider.retrieve(context, contextPath,
+						contextValue, dataType, templateId, codePath, codes, valueSet, datePath, dateLowPath,
+						dateHighPath, dateRange)));
+	}
+}
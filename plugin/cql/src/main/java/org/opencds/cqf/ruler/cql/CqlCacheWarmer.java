@@ -0,0 +1,200 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ValueSetDef;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
+import org.opencds.cqf.ruler.utility.Libraries;
+import org.opencds.cqf.ruler.utility.Reflections;
+import org.opencds.cqf.ruler.utility.Searches;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
+
+/**
+ * Pre-warms the ELM, model and value set caches at startup so the first
+ * evaluation after a deploy does not pay the full translation and expansion
+ * cost. This runs as an ApplicationRunner, so Spring Boot only reports the
+ * application as ready to accept traffic once warm-up has completed.
+ */
+public class CqlCacheWarmer implements ApplicationRunner {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(CqlCacheWarmer.class);
+
+	private static final int LIBRARY_PAGE_SIZE = 100;
+
+	private final FhirContext myFhirContext;
+	private final DaoRegistry myDaoRegistry;
+	private final ModelManager myModelManager;
+	private final LibraryLoaderFactory myLibraryLoaderFactory;
+	private final JpaLibraryContentProviderFactory myLibraryContentProviderFactory;
+	private final JpaTerminologyProviderFactory myTerminologyProviderFactory;
+	private final CqlProperties.WarmUpProperties myProperties;
+
+	public CqlCacheWarmer(FhirContext theFhirContext, DaoRegistry theDaoRegistry, ModelManager theModelManager,
+			LibraryLoaderFactory theLibraryLoaderFactory,
+			JpaLibraryContentProviderFactory theLibraryContentProviderFactory,
+			JpaTerminologyProviderFactory theTerminologyProviderFactory, CqlProperties.WarmUpProperties theProperties) {
+		myFhirContext = theFhirContext;
+		myDaoRegistry = theDaoRegistry;
+		myModelManager = theModelManager;
+		myLibraryLoaderFactory = theLibraryLoaderFactory;
+		myLibraryContentProviderFactory = theLibraryContentProviderFactory;
+		myTerminologyProviderFactory = theTerminologyProviderFactory;
+		myProperties = theProperties;
+	}
+
+	@Override
+	public void run(ApplicationArguments theArgs) {
+		long start = System.currentTimeMillis();
+		warmModels();
+
+		List<VersionedIdentifier> identifiers = getLibraryIdentifiers();
+		ourLog.info("Warming CQL caches for {} libraries on {} threads", identifiers.size(),
+				myProperties.getThreads());
+
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, myProperties.getThreads()),
+				new CqlForkJoinWorkerThreadFactory(), null, false);
+		try {
+			List<CompletableFuture<Library>> libraries = new ArrayList<>();
+			for (VersionedIdentifier identifier : identifiers) {
+				libraries.add(CompletableFuture.supplyAsync(() -> translate(identifier), pool));
+			}
+
+			Map<String, ValueSetInfo> valueSets = new LinkedHashMap<>();
+			for (CompletableFuture<Library> library : libraries) {
+				for (ValueSetInfo valueSet : getValueSets(library.join())) {
+					valueSets.putIfAbsent(valueSet.getId() + "|" + valueSet.getVersion(), valueSet);
+				}
+			}
+
+			if (myProperties.isExpandValueSets() && canExpand()) {
+				JpaTerminologyProvider terminologyProvider = myTerminologyProviderFactory
+						.create(new SystemRequestDetails());
+				List<CompletableFuture<Void>> expansions = new ArrayList<>();
+				for (ValueSetInfo valueSet : valueSets.values()) {
+					expansions.add(CompletableFuture.runAsync(() -> expand(terminologyProvider, valueSet), pool));
+				}
+				expansions.forEach(CompletableFuture::join);
+			}
+
+			ourLog.info("Warmed CQL caches with {} libraries and {} value sets in {} ms", identifiers.size(),
+					valueSets.size(), System.currentTimeMillis() - start);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	protected void warmModels() {
+		String version = getFhirModelVersion();
+		if (version == null) {
+			return;
+		}
+
+		try {
+			myModelManager.resolveModel(new org.hl7.elm.r1.VersionedIdentifier().withId("FHIR").withVersion(version));
+		} catch (Exception e) {
+			ourLog.warn("Unable to load FHIR {} ModelInfo during warm-up", version, e);
+		}
+	}
+
+	/**
+	 * Returns the identifiers of the Libraries with CQL content to warm up. The
+	 * Libraries are loaded a page at a time.
+	 *
+	 * @return the identifiers of the Libraries
+	 */
+	protected List<VersionedIdentifier> getLibraryIdentifiers() {
+		IFhirResourceDao<?> libraryDao = myDaoRegistry.getResourceDao("Library");
+		Function<IBaseResource, String> nameFunction = Reflections.getNameFunction(libraryDao.getResourceType());
+		List<String> names = myProperties.getLibraries();
+
+		List<VersionedIdentifier> identifiers = new ArrayList<>();
+		PagedResourceIterable.forEachResource(libraryDao, Searches.all(), new SystemRequestDetails(),
+				LIBRARY_PAGE_SIZE, library -> {
+					String name = nameFunction.apply(library);
+					if (name == null || (names != null && !names.isEmpty() && !names.contains(name))) {
+						return;
+					}
+
+					if (Libraries.getContent(library, "text/cql") == null) {
+						return;
+					}
+
+					identifiers.add(new VersionedIdentifier().withId(name).withVersion(Libraries.getVersion(library)));
+				});
+
+		return identifiers;
+	}
+
+	protected Library translate(VersionedIdentifier theIdentifier) {
+		List<LibraryContentProvider> contentProviders = new ArrayList<>();
+		contentProviders.add(myLibraryContentProviderFactory.create(new SystemRequestDetails()));
+		LibraryLoader libraryLoader = myLibraryLoaderFactory.create(contentProviders);
+		try {
+			return libraryLoader.load(theIdentifier);
+		} catch (Exception e) {
+			ourLog.warn("Unable to translate library {}|{} during warm-up", theIdentifier.getId(),
+					theIdentifier.getVersion(), e);
+			return null;
+		}
+	}
+
+	protected void expand(JpaTerminologyProvider theTerminologyProvider, ValueSetInfo theValueSet) {
+		try {
+			theTerminologyProvider.expand(theValueSet);
+		} catch (Exception e) {
+			ourLog.debug("Unable to expand ValueSet {} during warm-up", theValueSet.getId(), e);
+		}
+	}
+
+	private List<ValueSetInfo> getValueSets(Library theLibrary) {
+		List<ValueSetInfo> valueSets = new ArrayList<>();
+		if (theLibrary == null || theLibrary.getValueSets() == null) {
+			return valueSets;
+		}
+
+		for (ValueSetDef valueSetDef : theLibrary.getValueSets().getDef()) {
+			valueSets.add(new ValueSetInfo().withId(valueSetDef.getId()).withVersion(valueSetDef.getVersion()));
+		}
+
+		return valueSets;
+	}
+
+	// The JpaTerminologyProvider reads expansions as R4 ValueSets
+	private boolean canExpand() {
+		return myFhirContext.getVersion().getVersion() == FhirVersionEnum.R4;
+	}
+
+	private String getFhirModelVersion() {
+		switch (myFhirContext.getVersion().getVersion()) {
+			case DSTU2:
+				return "1.0.2";
+			case DSTU3:
+				return "3.0.0";
+			case R4:
+				return "4.0.1";
+			default:
+				return null;
+		}
+	}
+}
@@ -1,10 +1,18 @@
 package org.opencds.cqf.ruler.cql;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
 import org.cqframework.cql.cql2elm.LibraryManager;
@@ -13,11 +21,13 @@ import org.hl7.fhir.instance.model.api.IBaseBundle;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.ICompositeType;
 import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
 import org.opencds.cqf.cql.engine.fhir.model.Dstu2FhirModelResolver;
 import org.opencds.cqf.cql.engine.fhir.model.Dstu3FhirModelResolver;
 import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
 import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.evaluator.CqlOptions;
 import org.opencds.cqf.cql.evaluator.builder.Constants;
@@ -31,12 +41,14 @@ import org.opencds.cqf.cql.evaluator.cql2elm.util.LibraryVersionSelector;
 import org.opencds.cqf.cql.evaluator.engine.execution.CacheAwareLibraryLoaderDecorator;
 import org.opencds.cqf.cql.evaluator.engine.execution.TranslatingLibraryLoader;
 import org.opencds.cqf.cql.evaluator.engine.model.CachingModelResolverDecorator;
-import org.opencds.cqf.cql.evaluator.engine.retrieve.BundleRetrieveProvider;
 import org.opencds.cqf.cql.evaluator.fhir.adapter.AdapterFactory;
 import org.opencds.cqf.cql.evaluator.spring.fhir.adapter.AdapterConfiguration;
 import org.opencds.cqf.ruler.cql.dstu2.PreExpandedTermReadSvcDstu2;
 import org.opencds.cqf.ruler.cql.dstu3.PreExpandedTermReadSvcDstu3;
 import org.opencds.cqf.ruler.cql.interceptor.CqlExceptionHandlingInterceptor;
+import org.opencds.cqf.ruler.cql.interceptor.ElmAttachmentInterceptor;
+import org.opencds.cqf.ruler.cql.interceptor.PatientCompartmentCacheInterceptor;
+import org.opencds.cqf.ruler.cql.interceptor.RetrieveCacheReportingInterceptor;
 import org.opencds.cqf.ruler.cql.r4.PreExpandedTermReadSvcR4;
 import org.opencds.cqf.ruler.cql.r5.PreExpandedTermReadSvcR5;
 import org.opencds.cqf.ruler.external.annotations.OnDSTU2Condition;
@@ -45,6 +57,11 @@ import org.opencds.cqf.ruler.external.annotations.OnR4Condition;
 import org.opencds.cqf.ruler.external.annotations.OnR5Condition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
@@ -52,22 +69,32 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 import org.springframework.context.annotation.Primary;
 import org.springframework.security.concurrent.DelegatingSecurityContextExecutor;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
 import org.springframework.security.core.context.SecurityContextHolder;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.context.support.IValidationSupport;
 import ca.uhn.fhir.cql.common.provider.CqlProviderFactory;
 import ca.uhn.fhir.cql.common.provider.CqlProviderLoader;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDaoValueSet;
 import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.jpa.term.api.ITermReadSvc;
 import ca.uhn.fhir.jpa.term.api.ITermReadSvcDstu3;
 import ca.uhn.fhir.jpa.term.api.ITermReadSvcR4;
 import ca.uhn.fhir.jpa.term.api.ITermReadSvcR5;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 @Configuration
 @ConditionalOnProperty(prefix = "hapi.fhir.cql", name = "enabled", havingValue = "true", matchIfMissing = true)
 @Import(AdapterConfiguration.class)
@@ -90,6 +117,11 @@ public class CqlConfig {
 		return new CqlExceptionHandlingInterceptor();
 	}
 
+	@Bean
+	public RetrieveCacheReportingInterceptor retrieveCacheReportingInterceptor() {
+		return new RetrieveCacheReportingInterceptor();
+	}
+
 	@Bean
 	public CqlTranslatorOptions cqlTranslatorOptions(FhirContext fhirContext, CqlProperties cqlProperties) {
 		CqlTranslatorOptions options = cqlProperties.getOptions().getCqlTranslatorOptions();
@@ -129,13 +161,26 @@ public class CqlConfig {
 	}
 
 	@Bean
-	JpaFhirDalFactory jpaFhirDalFactory(DaoRegistry daoRegistry) {
-		return rd -> new JpaFhirDal(daoRegistry, rd);
+	JpaFhirDalFactory jpaFhirDalFactory(DaoRegistry daoRegistry, CqlProperties cqlProperties) {
+		int pageSize = cqlProperties.getRetrieve().getPageSize();
+		return rd -> new JpaFhirDal(daoRegistry, rd, pageSize);
+	}
+
+	@Bean
+	public CachingRetrieveProvider.Statistics retrieveCacheStatistics() {
+		return new CachingRetrieveProvider.Statistics();
 	}
 
 	@Bean
 	JpaDataProviderFactory jpaDataProviderFactory(ModelResolver modelResolver, DaoRegistry daoRegistry,
-			SearchParameterResolver searchParameterResolver) {
+			SearchParameterResolver searchParameterResolver, CqlProperties cqlProperties,
+			CachingRetrieveProvider.Statistics retrieveCacheStatistics,
+			ObjectProvider<PatientCompartmentCache> patientCompartmentCache,
+			@Qualifier("cqlRetrieveQueryExecutor") ObjectProvider<ExecutorService> cqlRetrieveQueryExecutor) {
+		CqlProperties.RetrieveProperties retrieve = cqlProperties.getRetrieve();
+		PatientCompartmentCache compartmentCache = patientCompartmentCache.getIfAvailable();
+		Executor queryExecutor = cqlRetrieveQueryExecutor.getIfAvailable();
+		Set<String> unsupportedValueSets = ConcurrentHashMap.newKeySet();
 		return (rd, t) -> {
 			JpaFhirRetrieveProvider provider = new JpaFhirRetrieveProvider(daoRegistry, searchParameterResolver, rd);
 			if (t != null) {
@@ -144,10 +189,38 @@ public class CqlConfig {
 				provider.setMaxCodesPerQuery(2048);
 				provider.setModelResolver(modelResolver);
 			}
-			return new CompositeDataProvider(modelResolver, provider);
+			provider.setQueryExecutor(queryExecutor);
+			provider.setMaxConcurrentQueries(retrieve.getMaxConcurrentQueries());
+			provider.setPageSize(retrieve.getPageSize());
+			provider.setValueSetPushdown(retrieve.isValueSetPushdown());
+			provider.setUnsupportedValueSets(unsupportedValueSets);
+			CohortBatchingRetrieveProvider.Cohort cohort = CohortBatchingRetrieveProvider.getCohort(rd);
+			if (cohort != null && retrieve.getCohortBatchSize() > 0) {
+				return new CompositeDataProvider(modelResolver,
+						new CohortBatchingRetrieveProvider(provider, modelResolver, cohort, retrieve.getCohortBatchSize()));
+			}
+			RetrieveProvider retrieveProvider = compartmentCache != null
+					? new CompartmentCachingRetrieveProvider(provider, compartmentCache, rd)
+					: provider;
+			if (retrieve.isCacheResults()) {
+				retrieveProvider = new CachingRetrieveProvider(retrieveProvider, rd, retrieve.getCacheMaximumEntries(),
+						retrieve.getCacheMaximumResources(), retrieveCacheStatistics);
+			}
+			return new CompositeDataProvider(modelResolver, retrieveProvider);
 		};
 	}
 
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.cql.compartment_cache", name = "enabled", havingValue = "true")
+	public PatientCompartmentCache patientCompartmentCache(CqlProperties cqlProperties, FhirContext fhirContext,
+			IInterceptorService interceptorService) {
+		CqlProperties.CompartmentCacheProperties compartmentCache = cqlProperties.getCompartmentCache();
+		PatientCompartmentCache cache = new PatientCompartmentCache(compartmentCache.getMaximumResources(),
+				compartmentCache.getExpireAfterWrite());
+		interceptorService.registerInterceptor(new PatientCompartmentCacheInterceptor(fhirContext, cache));
+		return cache;
+	}
+
 	@Bean
 	DataProviderFactory dataProviderFactory(FhirContext fhirContext, ModelResolver modelResolver) {
 		return new DataProviderFactory() {
@@ -160,7 +233,7 @@ public class CqlConfig {
 			@Override
 			public DataProviderComponents create(IBaseBundle dataBundle) {
 				return new DataProviderComponents(Constants.FHIR_MODEL_URI, modelResolver,
-						new BundleRetrieveProvider(fhirContext, dataBundle));
+						new IndexedBundleRetrieveProvider(fhirContext, modelResolver, dataBundle));
 			}
 		};
 
@@ -182,28 +255,86 @@ public class CqlConfig {
 	@Bean
 	public JpaTerminologyProviderFactory jpaTerminologyProviderFactory(ITermReadSvc theTerminologySvc,
 			IValidationSupport theValidationSupport,
-			Map<org.cqframework.cql.elm.execution.VersionedIdentifier, List<Code>> globalCodeCache) {
+			Map<org.cqframework.cql.elm.execution.VersionedIdentifier, List<Code>> globalCodeCache,
+			ObjectProvider<MappedValueSetExpansionStore> expansionStore) {
+		MappedValueSetExpansionStore store = expansionStore.getIfAvailable();
+		SingleFlight<org.cqframework.cql.elm.execution.VersionedIdentifier, List<Code>> inFlightExpansions = new SingleFlight<>();
 		return rd -> new JpaTerminologyProvider(theTerminologySvc, theValidationSupport, globalCodeCache,
-				rd);
+				rd, store, inFlightExpansions);
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.cql.expansion_store", name = "enabled", havingValue = "true")
+	public MappedValueSetExpansionStore mappedValueSetExpansionStore(CqlProperties cqlProperties) {
+		CqlProperties.ExpansionStoreProperties expansionStore = cqlProperties.getExpansionStore();
+		MappedValueSetExpansionStore store = new MappedValueSetExpansionStore(
+				Paths.get(expansionStore.getDirectory()), expansionStore.getThreshold());
+		store.deleteTemporaryFiles();
+		return store;
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.cql.library_cache", name = "index_content", havingValue = "true")
+	public LibraryContentIndex libraryContentIndex(CqlProperties cqlProperties, DaoRegistry daoRegistry,
+			IInterceptorService interceptorService) {
+		LibraryContentIndex index = new LibraryContentIndex(daoRegistry,
+				cqlProperties.getLibraryCache().getIndexMaximumWeight());
+		interceptorService.registerInterceptor(index);
+		return index;
+	}
+
+	@Bean
+	JpaLibraryContentProviderFactory jpaLibraryContentProviderFactory(DaoRegistry daoRegistry,
+			Map<org.cqframework.cql.elm.execution.VersionedIdentifier, org.cqframework.cql.elm.execution.Library> globalLibraryCache,
+			CqlTranslatorOptions cqlTranslatorOptions, CqlProperties cqlProperties,
+			ObjectProvider<LibraryContentIndex> libraryContentIndex) {
+		ElmLibraryCache libraryCache = globalLibraryCache instanceof ElmLibraryCache
+				? (ElmLibraryCache) globalLibraryCache
+				: null;
+		CqlTranslatorOptions elmTranslatorOptions = cqlProperties.useLibraryElm() ? cqlTranslatorOptions : null;
+		LibraryContentIndex contentIndex = libraryContentIndex.getIfAvailable();
+		return rd -> new JpaLibraryContentProvider(daoRegistry, rd, libraryCache, elmTranslatorOptions, contentIndex);
 	}
 
 	@Bean
-	JpaLibraryContentProviderFactory jpaLibraryContentProviderFactory(DaoRegistry daoRegistry) {
-		return rd -> new JpaLibraryContentProvider(daoRegistry, rd);
+	@ConditionalOnProperty(prefix = "hapi.fhir.cql.elm_store", name = "enabled", havingValue = "true")
+	public PersistentElmStore persistentElmStore(CqlProperties cqlProperties) {
+		return new PersistentElmStore(Paths.get(cqlProperties.getElmStore().getDirectory()));
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.cql.elm_store", name = "attach_elm", havingValue = "true")
+	public ElmAttachmentInterceptor elmAttachmentInterceptor(FhirContext fhirContext, DaoRegistry daoRegistry,
+			ModelManager modelManager, CqlTranslatorOptions cqlTranslatorOptions,
+			IInterceptorService interceptorService) {
+		ElmAttachmentInterceptor interceptor = new ElmAttachmentInterceptor(fhirContext, daoRegistry, modelManager,
+				cqlTranslatorOptions);
+		interceptorService.registerInterceptor(interceptor);
+		return interceptor;
 	}
 
 	@Bean
 	LibraryLoaderFactory libraryLoaderFactory(
 			Map<org.cqframework.cql.elm.execution.VersionedIdentifier, org.cqframework.cql.elm.execution.Library> globalLibraryCache,
-			ModelManager modelManager, CqlTranslatorOptions cqlTranslatorOptions, CqlProperties cqlProperties) {
+			ModelManager modelManager, CqlTranslatorOptions cqlTranslatorOptions, CqlProperties cqlProperties,
+			ObjectProvider<PersistentElmStore> persistentElmStore, Executor cqlExecutor) {
+		PersistentElmStore elmStore = persistentElmStore.getIfAvailable();
+		boolean parallelTranslation = cqlProperties.getLibraryCache().isParallelTranslation();
 		return lcp -> {
 
 			if (cqlProperties.getOptions().useEmbeddedLibraries()) {
 				lcp.add(new EmbeddedFhirLibraryContentProvider());
 			}
 
-			return new CacheAwareLibraryLoaderDecorator(
-					new TranslatingLibraryLoader(modelManager, lcp, cqlTranslatorOptions), globalLibraryCache) {
+			ParallelLibraryTranslator parallelTranslator = parallelTranslation
+					? new ParallelLibraryTranslator(modelManager, lcp, cqlTranslatorOptions, cqlExecutor)
+					: null;
+			TranslatingLibraryLoader translatingLibraryLoader = globalLibraryCache instanceof ElmLibraryCache
+					? new InstrumentedTranslatingLibraryLoader(modelManager, lcp, cqlTranslatorOptions,
+							(ElmLibraryCache) globalLibraryCache, elmStore, parallelTranslator)
+					: new TranslatingLibraryLoader(modelManager, lcp, cqlTranslatorOptions);
+
+			return new CacheAwareLibraryLoaderDecorator(translatingLibraryLoader, globalLibraryCache) {
 				// TODO: This is due to a bug with the ELM annotations which prevent options
 				// from matching the way they should
 				@Override
@@ -214,10 +345,11 @@ public class CqlConfig {
 		};
 	}
 
-	// TODO: Use something like caffeine caching for this so that growth is limited.
 	@Bean
-	public Map<org.cqframework.cql.elm.execution.VersionedIdentifier, org.cqframework.cql.elm.execution.Library> globalLibraryCache() {
-		return new ConcurrentHashMap<>();
+	public Map<org.cqframework.cql.elm.execution.VersionedIdentifier, org.cqframework.cql.elm.execution.Library> globalLibraryCache(
+			CqlProperties cqlProperties) {
+		CqlProperties.LibraryCacheProperties libraryCache = cqlProperties.getLibraryCache();
+		return new ElmLibraryCache(libraryCache.getMaximumWeight(), libraryCache.getExpireAfterAccess());
 	}
 
 	@Bean
@@ -234,19 +366,49 @@ public class CqlConfig {
 	@Primary
 	public ElmCacheResourceChangeListener elmCacheResourceChangeListener(
 			IResourceChangeListenerRegistry resourceChangeListenerRegistry, DaoRegistry daoRegistry,
-			Map<org.cqframework.cql.elm.execution.VersionedIdentifier, org.cqframework.cql.elm.execution.Library> globalLibraryCache) {
-		ElmCacheResourceChangeListener listener = new ElmCacheResourceChangeListener(daoRegistry, globalLibraryCache);
+			Map<org.cqframework.cql.elm.execution.VersionedIdentifier, org.cqframework.cql.elm.execution.Library> globalLibraryCache,
+			LibraryLoaderFactory libraryLoaderFactory, JpaLibraryContentProviderFactory jpaLibraryContentProviderFactory,
+			Executor cqlExecutor, CqlProperties cqlProperties) {
+		Consumer<Set<org.cqframework.cql.elm.execution.VersionedIdentifier>> invalidationHandler = null;
+		if (cqlProperties.getLibraryCache().isRetranslateOnChange()) {
+			invalidationHandler = identifiers -> cqlExecutor.execute(() -> {
+				List<LibraryContentProvider> contentProviders = new ArrayList<>();
+				contentProviders.add(jpaLibraryContentProviderFactory.create(new SystemRequestDetails()));
+				LibraryLoader libraryLoader = libraryLoaderFactory.create(contentProviders);
+				for (org.cqframework.cql.elm.execution.VersionedIdentifier identifier : identifiers) {
+					try {
+						libraryLoader.load(identifier);
+					} catch (Exception e) {
+						ourLog.debug("Unable to re-translate library {}|{}", identifier.getId(), identifier.getVersion(), e);
+					}
+				}
+			});
+		}
+
+		ElmCacheResourceChangeListener listener = new ElmCacheResourceChangeListener(daoRegistry, globalLibraryCache,
+				invalidationHandler);
 		resourceChangeListenerRegistry.registerResourceResourceChangeListener("Library",
 				SearchParameterMap.newSynchronous(), listener, 1000);
 		return listener;
 	}
 
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.cql.warm_up", name = "enabled", havingValue = "true")
+	public CqlCacheWarmer cqlCacheWarmer(FhirContext fhirContext, DaoRegistry daoRegistry, ModelManager modelManager,
+			LibraryLoaderFactory libraryLoaderFactory, JpaLibraryContentProviderFactory jpaLibraryContentProviderFactory,
+			JpaTerminologyProviderFactory jpaTerminologyProviderFactory, CqlProperties cqlProperties) {
+		return new CqlCacheWarmer(fhirContext, daoRegistry, modelManager, libraryLoaderFactory,
+				jpaLibraryContentProviderFactory, jpaTerminologyProviderFactory, cqlProperties.getWarmUp());
+	}
+
 	@Bean
 	@Primary
 	public CodeCacheResourceChangeListener codeCacheResourceChangeListener(
 			IResourceChangeListenerRegistry resourceChangeListenerRegistry, DaoRegistry daoRegistry,
-			Map<org.cqframework.cql.elm.execution.VersionedIdentifier, List<Code>> globalCodeCache) {
-		CodeCacheResourceChangeListener listener = new CodeCacheResourceChangeListener(daoRegistry, globalCodeCache);
+			Map<org.cqframework.cql.elm.execution.VersionedIdentifier, List<Code>> globalCodeCache,
+			ObjectProvider<MappedValueSetExpansionStore> expansionStore) {
+		CodeCacheResourceChangeListener listener = new CodeCacheResourceChangeListener(daoRegistry, globalCodeCache,
+				expansionStore.getIfAvailable());
 		resourceChangeListenerRegistry.registerResourceResourceChangeListener("ValueSet",
 				SearchParameterMap.newSynchronous(), listener, 1000);
 		return listener;
@@ -332,6 +494,20 @@ public class CqlConfig {
 		return new PreExpandedTermReadSvcR5();
 	}
 
+	// Queries run with the security context of the thread that submitted them.
+	// When the queue is full the caller runs the query itself.
+	@Bean(name = "cqlRetrieveQueryExecutor", destroyMethod = "shutdown")
+	@ConditionalOnExpression("${hapi.fhir.cql.retrieve.query_threads:0} > 0")
+	public ExecutorService cqlRetrieveQueryExecutor(CqlProperties cqlProperties) {
+		int threads = cqlProperties.getRetrieve().getQueryThreads();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(threads * 16),
+				new ThreadFactoryBuilder().setNameFormat("cql-retrieve-%d").setDaemon(true).build(),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		return new DelegatingSecurityContextExecutorService(executor);
+	}
+
 	@Bean(name = "cqlExecutor")
 	public Executor cqlExecutor() {
 		CqlForkJoinWorkerThreadFactory factory = new CqlForkJoinWorkerThreadFactory();
@@ -341,4 +517,61 @@ public class CqlConfig {
 		return new DelegatingSecurityContextExecutor(myCommonPool,
 				SecurityContextHolder.getContext());
 	}
+
+	// Exposes the estimated heap used by each cached ValueSet expansion as the
+	// cqlvaluesets actuator endpoint when the actuator is on the classpath. Kept
+	// in its own class so that nothing else here refers to the actuator.
+	@Configuration
+	@ConditionalOnClass(name = "org.springframework.boot.actuate.endpoint.annotation.Endpoint")
+	static class CqlCacheEndpointConfig {
+
+		@Bean
+		ValueSetExpansionEndpoint valueSetExpansionEndpoint(
+				@Qualifier("globalCodeCache") Map<org.cqframework.cql.elm.execution.VersionedIdentifier, List<Code>> globalCodeCache) {
+			return new ValueSetExpansionEndpoint(globalCodeCache);
+		}
+	}
+
+	// Publishes the statistics of the patient compartment cache, the hits and
+	// misses of the retrieve caches and the estimated heap used by the cached
+	// ValueSet expansions with the server's other metrics when Micrometer is on
+	// the classpath. Kept in its own class so that nothing else
+	// here refers to Micrometer.
+	@Configuration
+	@ConditionalOnClass(name = "io.micrometer.core.instrument.MeterRegistry")
+	static class CqlCacheMetricsConfig {
+
+		@Bean
+		SmartInitializingSingleton patientCompartmentCacheMetrics(ObjectProvider<MeterRegistry> meterRegistry,
+				ObjectProvider<PatientCompartmentCache> patientCompartmentCache) {
+			return () -> meterRegistry.ifAvailable(registry -> patientCompartmentCache.ifAvailable(
+					cache -> CaffeineCacheMetrics.monitor(registry, cache.getNativeCache(), "cql.compartment")));
+		}
+
+		@Bean
+		SmartInitializingSingleton retrieveCacheMetrics(ObjectProvider<MeterRegistry> meterRegistry,
+				CachingRetrieveProvider.Statistics retrieveCacheStatistics) {
+			return () -> meterRegistry.ifAvailable(registry -> {
+				FunctionCounter.builder("cql.retrieve.cache", retrieveCacheStatistics,
+						CachingRetrieveProvider.Statistics::getHitCount).tag("result", "hit")
+						.description("The number of retrieves served from the retrieve cache of a request")
+						.register(registry);
+				FunctionCounter.builder("cql.retrieve.cache", retrieveCacheStatistics,
+						CachingRetrieveProvider.Statistics::getMissCount).tag("result", "miss")
+						.description("The number of retrieves not found in the retrieve cache of a request")
+						.register(registry);
+			});
+		}
+
+		@Bean
+		SmartInitializingSingleton valueSetExpansionMetrics(ObjectProvider<MeterRegistry> meterRegistry,
+				@Qualifier("globalCodeCache") Map<org.cqframework.cql.elm.execution.VersionedIdentifier, List<Code>> globalCodeCache) {
+			return () -> meterRegistry.ifAvailable(registry -> Gauge.builder("cql.valueset.expansions.size",
+					globalCodeCache,
+					ValueSetExpansion::totalEstimatedSizeInBytes)
+					.baseUnit("bytes")
+					.description("The estimated heap used by the cached ValueSet expansions")
+					.register(registry));
+		}
+	}
 }
@@ -1,5 +1,9 @@
 package org.opencds.cqf.ruler.cql;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
 import org.opencds.cqf.cql.evaluator.CqlOptions;
 import org.opencds.cqf.cql.evaluator.engine.CqlEngineOptions;
@@ -10,10 +14,18 @@ public class CqlProperties {
 
 	private boolean enabled = true;
 	private boolean useEmbeddedLibraries = true;
+	private boolean useLibraryElm = true;
 
 	private CqlEngineOptions cqlEngineOptions = CqlEngineOptions.defaultOptions();
 	private CqlTranslatorOptions cqlTranslatorOptions = CqlTranslatorOptions.defaultOptions();
 
+	private LibraryCacheProperties libraryCache = new LibraryCacheProperties();
+	private ExpansionStoreProperties expansionStore = new ExpansionStoreProperties();
+	private ElmStoreProperties elmStore = new ElmStoreProperties();
+	private RetrieveProperties retrieve = new RetrieveProperties();
+	private CompartmentCacheProperties compartmentCache = new CompartmentCacheProperties();
+	private WarmUpProperties warmUp = new WarmUpProperties();
+
 	public boolean isEnabled() {
 		return enabled;
 	}
@@ -30,6 +42,18 @@ public class CqlProperties {
 		this.useEmbeddedLibraries = useEmbeddedLibraries;
 	}
 
+	/**
+	 * @return true if ELM attached to Libraries is used instead of translating the
+	 *         CQL, when it was translated with the configured translator options
+	 */
+	public boolean useLibraryElm() {
+		return this.useLibraryElm;
+	}
+
+	public void setUseLibraryElm(boolean useLibraryElm) {
+		this.useLibraryElm = useLibraryElm;
+	}
+
 	public CqlEngineOptions getEngine() {
 		return this.cqlEngineOptions;
 	}
@@ -46,6 +70,54 @@ public class CqlProperties {
 		this.cqlTranslatorOptions = translator;
 	}
 
+	public LibraryCacheProperties getLibraryCache() {
+		return this.libraryCache;
+	}
+
+	public void setLibraryCache(LibraryCacheProperties libraryCache) {
+		this.libraryCache = libraryCache;
+	}
+
+	public ExpansionStoreProperties getExpansionStore() {
+		return this.expansionStore;
+	}
+
+	public void setExpansionStore(ExpansionStoreProperties expansionStore) {
+		this.expansionStore = expansionStore;
+	}
+
+	public ElmStoreProperties getElmStore() {
+		return this.elmStore;
+	}
+
+	public void setElmStore(ElmStoreProperties elmStore) {
+		this.elmStore = elmStore;
+	}
+
+	public RetrieveProperties getRetrieve() {
+		return this.retrieve;
+	}
+
+	public void setRetrieve(RetrieveProperties retrieve) {
+		this.retrieve = retrieve;
+	}
+
+	public CompartmentCacheProperties getCompartmentCache() {
+		return this.compartmentCache;
+	}
+
+	public void setCompartmentCache(CompartmentCacheProperties compartmentCache) {
+		this.compartmentCache = compartmentCache;
+	}
+
+	public WarmUpProperties getWarmUp() {
+		return this.warmUp;
+	}
+
+	public void setWarmUp(WarmUpProperties warmUp) {
+		this.warmUp = warmUp;
+	}
+
 	public CqlOptions getOptions() {
 		CqlOptions cqlOptions = new CqlOptions();
 		cqlOptions.setUseEmbeddedLibraries(this.useEmbeddedLibraries());
@@ -53,4 +125,410 @@ public class CqlProperties {
 		cqlOptions.setCqlTranslatorOptions(this.getTranslator());
 		return cqlOptions;
 	}
+
+	public static class LibraryCacheProperties {
+		/**
+		 * The maximum total weight of the translated libraries held in the cache.
+		 * Each library weighs one plus the number of definitions, value sets and codes
+		 * it declares. A value of zero or less disables size-based eviction.
+		 */
+		private long maximumWeight = 100000;
+
+		/**
+		 * Libraries which have not been accessed for this long are evicted from the
+		 * cache. A null or zero value disables time-based eviction.
+		 */
+		private Duration expireAfterAccess = Duration.ofHours(12);
+
+		/**
+		 * If true, libraries evicted because they (or a library they include) changed
+		 * are re-translated in the background so the next evaluation finds them
+		 * cached.
+		 */
+		private boolean retranslateOnChange = false;
+
+		/**
+		 * If true, Libraries are resolved by name and version from an in-memory index
+		 * of their content, partitioned by tenant, partition and caller, rather than
+		 * searched for on each translation. Writes of a Library invalidate it before
+		 * they commit.
+		 */
+		private boolean indexContent = false;
+
+		/**
+		 * The maximum total size, in bytes, of the Library content held by the index.
+		 */
+		private long indexMaximumWeight = 50000000;
+
+		/**
+		 * If true, the independent includes of a library are translated concurrently
+		 * on the CQL executor when the library is translated.
+		 */
+		private boolean parallelTranslation = false;
+
+		public long getMaximumWeight() {
+			return this.maximumWeight;
+		}
+
+		public void setMaximumWeight(long maximumWeight) {
+			this.maximumWeight = maximumWeight;
+		}
+
+		public Duration getExpireAfterAccess() {
+			return this.expireAfterAccess;
+		}
+
+		public void setExpireAfterAccess(Duration expireAfterAccess) {
+			this.expireAfterAccess = expireAfterAccess;
+		}
+
+		public boolean isRetranslateOnChange() {
+			return this.retranslateOnChange;
+		}
+
+		public void setRetranslateOnChange(boolean retranslateOnChange) {
+			this.retranslateOnChange = retranslateOnChange;
+		}
+
+		public boolean isIndexContent() {
+			return this.indexContent;
+		}
+
+		public void setIndexContent(boolean indexContent) {
+			this.indexContent = indexContent;
+		}
+
+		public long getIndexMaximumWeight() {
+			return this.indexMaximumWeight;
+		}
+
+		public void setIndexMaximumWeight(long indexMaximumWeight) {
+			this.indexMaximumWeight = indexMaximumWeight;
+		}
+
+		public boolean isParallelTranslation() {
+			return this.parallelTranslation;
+		}
+
+		public void setParallelTranslation(boolean parallelTranslation) {
+			this.parallelTranslation = parallelTranslation;
+		}
+	}
+
+	public static class ExpansionStoreProperties {
+		/**
+		 * If true, large value set expansions are stored in memory-mapped files
+		 * rather than on the heap.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * The directory in which expansions are stored. This should be on local disk
+		 * and should persist across restarts.
+		 */
+		private String directory = System.getProperty("java.io.tmpdir") + "/cqf-ruler/expansions";
+
+		/**
+		 * The minimum number of codes an expansion must have to be stored on disk.
+		 */
+		private int threshold = 50000;
+
+		public boolean isEnabled() {
+			return this.enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public String getDirectory() {
+			return this.directory;
+		}
+
+		public void setDirectory(String directory) {
+			this.directory = directory;
+		}
+
+		public int getThreshold() {
+			return this.threshold;
+		}
+
+		public void setThreshold(int threshold) {
+			this.threshold = threshold;
+		}
+	}
+
+	public static class ElmStoreProperties {
+		/**
+		 * If true, translated ELM is persisted to local disk and read back on a cache
+		 * miss rather than translating the CQL again.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * The directory in which ELM is stored. This should be on local disk and
+		 * should persist across restarts.
+		 */
+		private String directory = System.getProperty("java.io.tmpdir") + "/cqf-ruler/elm";
+
+		/**
+		 * If true, ELM is translated and attached to Library resources as they are
+		 * created or updated.
+		 */
+		private boolean attachElm = false;
+
+		public boolean isEnabled() {
+			return this.enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public String getDirectory() {
+			return this.directory;
+		}
+
+		public void setDirectory(String directory) {
+			this.directory = directory;
+		}
+
+		public boolean isAttachElm() {
+			return this.attachElm;
+		}
+
+		public void setAttachElm(boolean attachElm) {
+			this.attachElm = attachElm;
+		}
+	}
+
+	public static class RetrieveProperties {
+		/**
+		 * The number of threads shared by all requests for running the queries of a
+		 * retrieve concurrently. If 0, queries run sequentially on the thread
+		 * evaluating the CQL.
+		 */
+		private int queryThreads = 0;
+
+		/**
+		 * The maximum number of queries a single retrieve runs concurrently.
+		 */
+		private int maxConcurrentQueries = 4;
+
+		/**
+		 * If greater than 0, retrieve and search results are loaded lazily in pages
+		 * of this size as they are iterated, rather than all at once.
+		 */
+		private int pageSize = 0;
+
+		/**
+		 * If true, the results of Patient context retrieves are memoized for the
+		 * patient being evaluated so that repeated retrieves do not search again.
+		 */
+		private boolean cacheResults = false;
+
+		/**
+		 * The maximum number of retrieves memoized for a patient.
+		 */
+		private int cacheMaximumEntries = 256;
+
+		/**
+		 * The maximum number of resources memoized for a patient. Retrieves with
+		 * more results are not memoized.
+		 */
+		private int cacheMaximumResources = 10000;
+
+		/**
+		 * If true, value set filters are searched with the :in modifier using the
+		 * server's expansion of the value set, rather than expanding the value set
+		 * and searching for its codes. Retrieves fall back to expansion for value
+		 * sets the server can not search.
+		 */
+		private boolean valueSetPushdown = false;
+
+		/**
+		 * If greater than 0, population evaluations load the data of this many
+		 * patients at a time, with one search per retrieve for all of them, rather
+		 * than searching for each patient separately.
+		 */
+		private int cohortBatchSize = 0;
+
+		/**
+		 * The number of batches of patient data a population evaluation retains.
+		 * Patients evaluated concurrently may be in different batches.
+		 */
+		private int cohortRetainedBatches = 4;
+
+		public int getQueryThreads() {
+			return this.queryThreads;
+		}
+
+		public void setQueryThreads(int queryThreads) {
+			this.queryThreads = queryThreads;
+		}
+
+		public int getMaxConcurrentQueries() {
+			return this.maxConcurrentQueries;
+		}
+
+		public void setMaxConcurrentQueries(int maxConcurrentQueries) {
+			this.maxConcurrentQueries = maxConcurrentQueries;
+		}
+
+		public int getPageSize() {
+			return this.pageSize;
+		}
+
+		public void setPageSize(int pageSize) {
+			this.pageSize = pageSize;
+		}
+
+		public boolean isCacheResults() {
+			return this.cacheResults;
+		}
+
+		public void setCacheResults(boolean cacheResults) {
+			this.cacheResults = cacheResults;
+		}
+
+		public int getCacheMaximumEntries() {
+			return this.cacheMaximumEntries;
+		}
+
+		public void setCacheMaximumEntries(int cacheMaximumEntries) {
+			this.cacheMaximumEntries = cacheMaximumEntries;
+		}
+
+		public int getCacheMaximumResources() {
+			return this.cacheMaximumResources;
+		}
+
+		public void setCacheMaximumResources(int cacheMaximumResources) {
+			this.cacheMaximumResources = cacheMaximumResources;
+		}
+
+		public boolean isValueSetPushdown() {
+			return this.valueSetPushdown;
+		}
+
+		public void setValueSetPushdown(boolean valueSetPushdown) {
+			this.valueSetPushdown = valueSetPushdown;
+		}
+
+		public int getCohortBatchSize() {
+			return this.cohortBatchSize;
+		}
+
+		public void setCohortBatchSize(int cohortBatchSize) {
+			this.cohortBatchSize = cohortBatchSize;
+		}
+
+		public int getCohortRetainedBatches() {
+			return this.cohortRetainedBatches;
+		}
+
+		public void setCohortRetainedBatches(int cohortRetainedBatches) {
+			this.cohortRetainedBatches = cohortRetainedBatches;
+		}
+	}
+
+	public static class CompartmentCacheProperties {
+		/**
+		 * If true, the results of Patient context retrieves are cached across
+		 * requests, and invalidated when a resource in the patient's compartment is
+		 * written.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * The maximum number of resources held by the cache.
+		 */
+		private long maximumResources = 100000;
+
+		/**
+		 * The maximum time results are cached. This bounds the staleness of results
+		 * when resources are written by another server sharing the database.
+		 */
+		private Duration expireAfterWrite = Duration.ofMinutes(10);
+
+		public boolean isEnabled() {
+			return this.enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public long getMaximumResources() {
+			return this.maximumResources;
+		}
+
+		public void setMaximumResources(long maximumResources) {
+			this.maximumResources = maximumResources;
+		}
+
+		public Duration getExpireAfterWrite() {
+			return this.expireAfterWrite;
+		}
+
+		public void setExpireAfterWrite(Duration expireAfterWrite) {
+			this.expireAfterWrite = expireAfterWrite;
+		}
+	}
+
+	public static class WarmUpProperties {
+		/**
+		 * If true, Libraries are translated and the value sets they reference are
+		 * expanded at startup, before the server reports that it is ready.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * The names of the Libraries to warm up. If empty, all Libraries with CQL
+		 * content are warmed up.
+		 */
+		private List<String> libraries = new ArrayList<>();
+
+		/**
+		 * The number of threads used for warm-up.
+		 */
+		private int threads = 4;
+
+		/**
+		 * If true, the value sets referenced by the warmed-up Libraries are expanded.
+		 */
+		private boolean expandValueSets = true;
+
+		public boolean isEnabled() {
+			return this.enabled;
+		}
+
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public List<String> getLibraries() {
+			return this.libraries;
+		}
+
+		public void setLibraries(List<String> libraries) {
+			this.libraries = libraries;
+		}
+
+		public int getThreads() {
+			return this.threads;
+		}
+
+		public void setThreads(int threads) {
+			this.threads = threads;
+		}
+
+		public boolean isExpandValueSets() {
+			return this.expandValueSets;
+		}
+
+		public void setExpandValueSets(boolean expandValueSets) {
+			this.expandValueSets = expandValueSets;
+		}
+	}
 }
@@ -1,8 +1,11 @@
 package org.opencds.cqf.ruler.cql;
 
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 import org.cqframework.cql.elm.execution.Library;
@@ -25,9 +28,24 @@ public class ElmCacheResourceChangeListener implements IResourceChangeListener {
 	private final Map<VersionedIdentifier, Library> myGlobalLibraryCache;
 	private final Function<IBaseResource, String> myNameFunction;
 	private final Function<IBaseResource, String> myVersionFunction;
+	private final Consumer<Set<VersionedIdentifier>> myInvalidationHandler;
 
 	public ElmCacheResourceChangeListener(DaoRegistry theDaoRegistry,
 			Map<VersionedIdentifier, Library> theGlobalLibraryCache) {
+		this(theDaoRegistry, theGlobalLibraryCache, null);
+	}
+
+	/**
+	 * @param theDaoRegistry         the DaoRegistry used to read changed Libraries
+	 * @param theGlobalLibraryCache  the cache of translated ELM
+	 * @param theInvalidationHandler if not null, called with the identifiers
+	 *                               evicted from the cache by each change (e.g. to
+	 *                               re-translate them in the background)
+	 */
+	public ElmCacheResourceChangeListener(DaoRegistry theDaoRegistry,
+			Map<VersionedIdentifier, Library> theGlobalLibraryCache,
+			Consumer<Set<VersionedIdentifier>> theInvalidationHandler) {
+		this.myInvalidationHandler = theInvalidationHandler;
 		this.myLibraryDao = theDaoRegistry.getResourceDao("Library");
 		this.myGlobalLibraryCache = theGlobalLibraryCache;
 		this.myNameFunction = Reflections.getNameFunction(myLibraryDao.getResourceType());
@@ -45,44 +63,69 @@ public class ElmCacheResourceChangeListener implements IResourceChangeListener {
 			return;
 		}
 
-		this.invalidateCacheByIds(theResourceChangeEvent.getDeletedResourceIds());
-		this.invalidateCacheByIds(theResourceChangeEvent.getUpdatedResourceIds());
+		Set<VersionedIdentifier> invalidated = new LinkedHashSet<>();
+		this.invalidateCacheByIds(theResourceChangeEvent.getDeletedResourceIds(), invalidated);
+		this.invalidateCacheByIds(theResourceChangeEvent.getUpdatedResourceIds(), invalidated);
+
+		if (this.myInvalidationHandler != null && !invalidated.isEmpty()) {
+			this.myInvalidationHandler.accept(invalidated);
+		}
 	}
 
-	private void invalidateCacheByIds(List<IIdType> theIds) {
+	private void invalidateCacheByIds(List<IIdType> theIds, Set<VersionedIdentifier> theInvalidated) {
 		if (theIds == null) {
 			return;
 		}
 
 		for (IIdType id : theIds) {
-			this.invalidateCacheById(id);
+			this.invalidateCacheById(id, theInvalidated);
 		}
 	}
 
-	private void invalidateCacheById(IIdType theId) {
+	private void invalidateCacheById(IIdType theId, Set<VersionedIdentifier> theInvalidated) {
 		if (!theId.getResourceType().equals("Library")) {
 			return;
 		}
 
+		// If the cache tracks which name|version entries came from which resource,
+		// evict exactly those without needing to read the (possibly deleted)
+		// resource.
+		if (this.myGlobalLibraryCache instanceof ElmLibraryCache) {
+			ElmLibraryCache libraryCache = (ElmLibraryCache) this.myGlobalLibraryCache;
+			Set<VersionedIdentifier> invalidated = libraryCache
+					.invalidateByResourceId(theId.toUnqualifiedVersionless().getValue());
+			ourLog.debug("Invalidated {} cached libraries for resource {}", invalidated.size(),
+					theId.getValueAsString());
+			theInvalidated.addAll(invalidated);
+		}
+
 		try {
 			IBaseResource library = this.myLibraryDao.read(theId);
 
 			String name = this.myNameFunction.apply(library);
 			String version = this.myVersionFunction.apply(library);
 
-			this.myGlobalLibraryCache.remove(new VersionedIdentifier().withId(name)
-					.withVersion(version));
+			VersionedIdentifier identifier = new VersionedIdentifier().withId(name)
+					.withVersion(version);
+			if (this.myGlobalLibraryCache instanceof ElmLibraryCache) {
+				theInvalidated.addAll(((ElmLibraryCache) this.myGlobalLibraryCache).invalidate(identifier));
+			} else if (this.myGlobalLibraryCache.remove(identifier) != null) {
+				theInvalidated.add(identifier);
+			}
 		}
 		// This happens when a Library is deleted entirely so it's impossible to look up
 		// name and version.
 		catch (Exception e) {
-			// TODO: This needs to be smarter... the issue is that ELM is cached with
-			// library name and version as the key since
+			// The ElmLibraryCache has already evicted everything that was resolved from
+			// this resource, so there's nothing left to do.
+			if (this.myGlobalLibraryCache instanceof ElmLibraryCache) {
+				return;
+			}
+
+			// Otherwise, ELM is cached with library name and version as the key since
 			// that's the access path the CQL engine uses, but change notifications occur
-			// with the resource Id, which is not
-			// necessarily tied to the resource name. In any event, if a unknown resource is
-			// deleted, clear all libraries as a workaround.
-			// One option is to maintain a cache with multiple indices.
+			// with the resource Id, which is not necessarily tied to the resource name.
+			// If a unknown resource is deleted, clear all libraries as a workaround.
 			ourLog.debug("Failed to locate resource {} to look up name and version. Clearing all libraries from cache.",
 					theId.getValueAsString());
 			this.myGlobalLibraryCache.clear();
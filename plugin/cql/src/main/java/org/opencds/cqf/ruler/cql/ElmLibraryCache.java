@@ -0,0 +1,286 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.github.benmanes.caffeine.cache.stats.ConcurrentStatsCounter;
+import com.github.benmanes.caffeine.cache.stats.StatsCounter;
+
+/**
+ * A bounded, instrumented cache of translated ELM libraries. This is exposed as
+ * a {@link Map} so that it can be used anywhere the global library cache is
+ * expected (e.g. the CacheAwareLibraryLoaderDecorator). Entries are weighed by
+ * the number of definitions they contain and evicted by total weight and by
+ * time since last access.
+ * <p>
+ * In addition to the name|version key used by the CQL engine, the cache keeps
+ * a secondary index from the FHIR resource id of a Library to the
+ * name|version entries it was translated into, and a
+ * {@link LibraryDependencyGraph} of includes. This allows change
+ * notifications, which are keyed by resource id, to evict exactly the affected
+ * entries and everything compiled against them. The index and the graph are
+ * pruned as entries are removed from the cache, whether explicitly or by
+ * eviction.
+ */
+public class ElmLibraryCache extends AbstractMap<VersionedIdentifier, Library> {
+
+	private final Cache<VersionedIdentifier, Library> myCache;
+	private final StatsCounter myStatsCounter;
+	private final Map<String, Set<VersionedIdentifier>> myResourceIdIndex = new ConcurrentHashMap<>();
+	private final LibraryDependencyGraph myDependencyGraph = new LibraryDependencyGraph();
+	private final SingleFlight<VersionedIdentifier, Library> myInFlightLoads = new SingleFlight<>();
+
+	public ElmLibraryCache(long theMaximumWeight, Duration theExpireAfterAccess) {
+		myStatsCounter = new ConcurrentStatsCounter();
+
+		// The removal listener runs on the thread that removed the entry, so the
+		// index and graph are pruned before an entry with the same key can be
+		// added again
+		Caffeine<VersionedIdentifier, Library> builder = Caffeine.newBuilder()
+				.recordStats(() -> myStatsCounter)
+				.executor(Runnable::run)
+				.removalListener((VersionedIdentifier k, Library v, RemovalCause c) -> onRemoval(k, c));
+		if (theMaximumWeight > 0) {
+			builder.maximumWeight(theMaximumWeight)
+					.weigher((VersionedIdentifier k, Library v) -> weigh(v));
+		}
+
+		if (theExpireAfterAccess != null && !theExpireAfterAccess.isZero()) {
+			builder.expireAfterAccess(theExpireAfterAccess);
+		}
+
+		myCache = builder.build();
+	}
+
+	/**
+	 * Returns a point-in-time snapshot of the hit, miss, eviction and load
+	 * statistics for this cache.
+	 *
+	 * @return the cache statistics
+	 */
+	public CacheStats getStats() {
+		return myCache.stats();
+	}
+
+	/**
+	 * Records the time taken to produce a Library that was not found in the
+	 * cache (i.e. the translation time).
+	 *
+	 * @param theLoadTimeNanos the time spent loading, in nanoseconds
+	 * @param theSuccess       whether or not the load produced a Library
+	 */
+	public void recordLoad(long theLoadTimeNanos, boolean theSuccess) {
+		if (theSuccess) {
+			myStatsCounter.recordLoadSuccess(theLoadTimeNanos);
+		} else {
+			myStatsCounter.recordLoadFailure(theLoadTimeNanos);
+		}
+	}
+
+	/**
+	 * Performs any pending maintenance operations (such as evictions) needed by
+	 * the cache.
+	 */
+	public void cleanUp() {
+		myCache.cleanUp();
+	}
+
+	/**
+	 * Loads a library that was not found in the cache. Concurrent loads of the same
+	 * identifier share a single invocation of the loader, and a load that starts
+	 * after another has already cached the library returns the cached library.
+	 *
+	 * @param theIdentifier the identifier of the library to load
+	 * @param theLoader     loads (i.e. translates) the library
+	 * @return the library
+	 */
+	public Library load(VersionedIdentifier theIdentifier, Function<VersionedIdentifier, Library> theLoader) {
+		return myInFlightLoads.execute(theIdentifier, () -> {
+			Library cached = myCache.asMap().get(theIdentifier);
+			return cached != null ? cached : theLoader.apply(theIdentifier);
+		});
+	}
+
+	/**
+	 * Returns the graph of includes between the libraries in this cache. Edges are
+	 * added by the library loader as libraries are translated.
+	 *
+	 * @return the dependency graph
+	 */
+	public LibraryDependencyGraph getDependencyGraph() {
+		return myDependencyGraph;
+	}
+
+	/**
+	 * Associates a Library resource id with a name|version that was resolved from
+	 * it.
+	 *
+	 * @param theResourceId the unqualified, versionless id of the Library (e.g.
+	 *                      Library/123)
+	 * @param theIdentifier the name|version used to load the Library
+	 */
+	public void indexResourceId(String theResourceId, VersionedIdentifier theIdentifier) {
+		if (theResourceId == null || theIdentifier == null) {
+			return;
+		}
+
+		myResourceIdIndex.compute(theResourceId, (id, identifiers) -> {
+			Set<VersionedIdentifier> indexed = identifiers != null ? identifiers : ConcurrentHashMap.newKeySet();
+			indexed.add(theIdentifier);
+			return indexed;
+		});
+	}
+
+	// Removes an identifier that is no longer cached from the resource id index,
+	// and the edges to the libraries it includes from the dependency graph
+	private void onRemoval(VersionedIdentifier theIdentifier, RemovalCause theCause) {
+		if (theIdentifier == null || theCause == RemovalCause.REPLACED) {
+			return;
+		}
+
+		for (String resourceId : myResourceIdIndex.keySet()) {
+			myResourceIdIndex.computeIfPresent(resourceId, (id, identifiers) -> {
+				identifiers.remove(theIdentifier);
+				return identifiers.isEmpty() ? null : identifiers;
+			});
+		}
+
+		myDependencyGraph.removeDependent(theIdentifier);
+	}
+
+	/**
+	 * Returns the number of Library resource ids in the secondary index.
+	 *
+	 * @return the number of indexed resource ids
+	 */
+	public int getIndexedResourceIdCount() {
+		return myResourceIdIndex.size();
+	}
+
+	/**
+	 * Evicts all the entries that were resolved from the given Library resource id,
+	 * along with the entries of the libraries that directly or indirectly include
+	 * them.
+	 *
+	 * @param theResourceId the unqualified, versionless id of the Library (e.g.
+	 *                      Library/123)
+	 * @return the identifiers that were evicted
+	 */
+	public Set<VersionedIdentifier> invalidateByResourceId(String theResourceId) {
+		Set<VersionedIdentifier> identifiers = theResourceId == null ? null : myResourceIdIndex.remove(theResourceId);
+		if (identifiers == null) {
+			return Collections.emptySet();
+		}
+
+		Set<VersionedIdentifier> invalidated = new HashSet<>();
+		for (VersionedIdentifier identifier : identifiers) {
+			invalidated.addAll(invalidate(identifier));
+		}
+
+		return invalidated;
+	}
+
+	/**
+	 * Evicts the entry for the given name|version, along with the entries of the
+	 * libraries that directly or indirectly include it.
+	 *
+	 * @param theIdentifier the name|version to evict
+	 * @return the identifiers that were evicted
+	 */
+	public Set<VersionedIdentifier> invalidate(VersionedIdentifier theIdentifier) {
+		Set<VersionedIdentifier> invalidated = new HashSet<>();
+		if (theIdentifier == null) {
+			return invalidated;
+		}
+
+		if (remove(theIdentifier) != null) {
+			invalidated.add(theIdentifier);
+		}
+
+		myDependencyGraph.removeDependent(theIdentifier);
+		for (VersionedIdentifier dependent : myDependencyGraph.getTransitiveDependents(theIdentifier)) {
+			if (remove(dependent) != null) {
+				invalidated.add(dependent);
+			}
+
+			myDependencyGraph.removeDependent(dependent);
+		}
+
+		return invalidated;
+	}
+
+	@Override
+	public Library get(Object theKey) {
+		if (!(theKey instanceof VersionedIdentifier)) {
+			return null;
+		}
+
+		return myCache.getIfPresent((VersionedIdentifier) theKey);
+	}
+
+	@Override
+	public boolean containsKey(Object theKey) {
+		return myCache.asMap().containsKey(theKey);
+	}
+
+	@Override
+	public Library put(VersionedIdentifier theKey, Library theValue) {
+		return myCache.asMap().put(theKey, theValue);
+	}
+
+	@Override
+	public Library remove(Object theKey) {
+		return myCache.asMap().remove(theKey);
+	}
+
+	@Override
+	public void clear() {
+		myCache.invalidateAll();
+		myResourceIdIndex.clear();
+		myDependencyGraph.clear();
+	}
+
+	@Override
+	public int size() {
+		return (int) Math.min(Integer.MAX_VALUE, myCache.estimatedSize());
+	}
+
+	@Override
+	public Set<Map.Entry<VersionedIdentifier, Library>> entrySet() {
+		return myCache.asMap().entrySet();
+	}
+
+	protected static int weigh(Library theLibrary) {
+		int weight = 1;
+		if (theLibrary == null) {
+			return weight;
+		}
+
+		if (theLibrary.getStatements() != null) {
+			weight += theLibrary.getStatements().getDef().size();
+		}
+
+		if (theLibrary.getValueSets() != null) {
+			weight += theLibrary.getValueSets().getDef().size();
+		}
+
+		if (theLibrary.getCodes() != null) {
+			weight += theLibrary.getCodes().getDef().size();
+		}
+
+		return weight;
+	}
+}
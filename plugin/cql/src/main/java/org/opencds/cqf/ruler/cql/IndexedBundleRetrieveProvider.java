@@ -0,0 +1,422 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.Year;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseDatatype;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.cql.engine.model.ModelResolver;
+import org.opencds.cqf.cql.engine.retrieve.TerminologyAwareRetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+import org.opencds.cqf.cql.engine.runtime.Precision;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.opencds.cqf.cql.evaluator.engine.util.CodeUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.BundleUtil;
+
+/**
+ * A RetrieveProvider for the resources of a Bundle (e.g. the additionalData of
+ * an operation) that indexes the Bundle rather than scanning every resource on
+ * every retrieve. Resources are indexed by type when the provider is created,
+ * and, the first time each path is used, by the context, code and date values
+ * found at the path. Each retrieve is then a lookup in the index of each of its
+ * filters. Results are returned in Bundle order.
+ * <p>
+ * The context and code filters match those of the cql-evaluator's
+ * BundleRetrieveProvider. A date filter only excludes resources whose date is
+ * known to fall outside of the date range; resources whose date can not be
+ * determined are kept.
+ */
+public class IndexedBundleRetrieveProvider extends TerminologyAwareRetrieveProvider {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(IndexedBundleRetrieveProvider.class);
+
+	private final ModelResolver myModelResolver;
+	private final CodeUtil myCodeUtil;
+
+	private final Map<String, List<IBaseResource>> myResourcesByType = new HashMap<>();
+	private final Map<List<String>, Map<String, List<IBaseResource>>> myContextIndexes = new ConcurrentHashMap<>();
+	private final Map<List<String>, Map<String, List<IBaseResource>>> myCodeIndexes = new ConcurrentHashMap<>();
+	private final Map<List<String>, DateIndex> myDateIndexes = new ConcurrentHashMap<>();
+
+	/**
+	 * @param theFhirContext    the FhirContext of the Bundle
+	 * @param theModelResolver  resolves the paths of retrieves against resources
+	 * @param theBundle         the Bundle
+	 */
+	public IndexedBundleRetrieveProvider(FhirContext theFhirContext, ModelResolver theModelResolver,
+			IBaseBundle theBundle) {
+		myModelResolver = theModelResolver;
+		myCodeUtil = new CodeUtil(theFhirContext);
+
+		for (IBaseResource resource : BundleUtil.toListOfResources(theFhirContext, theBundle)) {
+			myResourcesByType.computeIfAbsent(theFhirContext.getResourceType(resource), x -> new ArrayList<>())
+					.add(resource);
+		}
+	}
+
+	@Override
+	public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+			String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+			String dateLowPath, String dateHighPath, Interval dateRange) {
+		List<IBaseResource> resources = myResourcesByType.getOrDefault(dataType, Collections.emptyList());
+
+		if (context != null && contextPath != null && contextValue != null && !resources.isEmpty()) {
+			resources = contextIndex(dataType, contextPath).getOrDefault(idPart(contextValue.toString()),
+					Collections.emptyList());
+		}
+
+		if (codePath != null && (codes != null || valueSet != null) && !resources.isEmpty()) {
+			Iterable<Code> filterCodes = valueSet != null ? expand(valueSet) : codes;
+			if (filterCodes != null) {
+				resources = retain(resources, codeMatches(dataType, codePath, filterCodes));
+			}
+		}
+
+		if (dateRange != null && (datePath != null || dateLowPath != null || dateHighPath != null)
+				&& !resources.isEmpty()) {
+			Set<IBaseResource> excluded = dateIndex(dataType, datePath, dateLowPath, dateHighPath)
+					.outside(dateRange);
+			if (excluded != null) {
+				resources = exclude(resources, excluded);
+			}
+		}
+
+		return new ArrayList<>(resources);
+	}
+
+	private Iterable<Code> expand(String valueSet) {
+		if (terminologyProvider == null) {
+			return null;
+		}
+
+		String id = valueSet.startsWith("urn:oid:") ? valueSet.replace("urn:oid:", "") : valueSet;
+		return terminologyProvider.expand(new ValueSetInfo().withId(id));
+	}
+
+	private Map<String, List<IBaseResource>> contextIndex(String dataType, String contextPath) {
+		return myContextIndexes.computeIfAbsent(Arrays.asList(dataType, contextPath), x -> {
+			Map<String, List<IBaseResource>> index = new HashMap<>();
+			for (IBaseResource resource : myResourcesByType.getOrDefault(dataType, Collections.emptyList())) {
+				for (String id : contextIds(myModelResolver.resolvePath(resource, contextPath))) {
+					addOnce(index.computeIfAbsent(id, y -> new ArrayList<>()), resource);
+				}
+			}
+			return index;
+		});
+	}
+
+	private static List<String> contextIds(Object theValue) {
+		List<String> ids = new ArrayList<>();
+		if (theValue instanceof Iterable) {
+			for (Object value : (Iterable<?>) theValue) {
+				ids.addAll(contextIds(value));
+			}
+		} else if (theValue instanceof IIdType) {
+			if (((IIdType) theValue).hasIdPart()) {
+				ids.add(((IIdType) theValue).getIdPart());
+			}
+		} else if (theValue instanceof IBaseReference) {
+			IIdType reference = ((IBaseReference) theValue).getReferenceElement();
+			if (reference != null && reference.hasIdPart()) {
+				ids.add(reference.getIdPart());
+			}
+		} else if (theValue instanceof IPrimitiveType) {
+			String value = ((IPrimitiveType<?>) theValue).getValueAsString();
+			if (value != null) {
+				ids.add(idPart(value));
+			}
+		} else if (theValue instanceof String) {
+			ids.add(idPart((String) theValue));
+		}
+
+		return ids;
+	}
+
+	private static String idPart(String theId) {
+		return theId.substring(theId.lastIndexOf('/') + 1);
+	}
+
+	// Codes without a system match any code with the same value, as in the
+	// evaluator's code matching
+	private Set<IBaseResource> codeMatches(String dataType, String codePath, Iterable<Code> theCodes) {
+		Map<String, List<IBaseResource>> index = myCodeIndexes.computeIfAbsent(Arrays.asList(dataType, codePath), x -> {
+			Map<String, List<IBaseResource>> codeIndex = new HashMap<>();
+			for (IBaseResource resource : myResourcesByType.getOrDefault(dataType, Collections.emptyList())) {
+				for (String key : codeKeys(myModelResolver.resolvePath(resource, codePath))) {
+					addOnce(codeIndex.computeIfAbsent(key, y -> new ArrayList<>()), resource);
+				}
+			}
+			return codeIndex;
+		});
+
+		Set<IBaseResource> matches = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (Code code : theCodes) {
+			if (code == null || code.getCode() == null) {
+				continue;
+			}
+
+			matches.addAll(index.getOrDefault(codeKey(code.getSystem(), code.getCode()), Collections.emptyList()));
+			matches.addAll(index.getOrDefault(codeKey(null, code.getCode()), Collections.emptyList()));
+		}
+
+		return matches;
+	}
+
+	private List<String> codeKeys(Object theValue) {
+		List<String> keys = new ArrayList<>();
+		if (theValue == null) {
+			return keys;
+		}
+
+		if (theValue instanceof IPrimitiveType) {
+			String value = ((IPrimitiveType<?>) theValue).getValueAsString();
+			if (value != null) {
+				keys.add(codeKey(null, value));
+			}
+			return keys;
+		}
+
+		for (Code code : myCodeUtil.getElmCodesFromObject(theValue)) {
+			if (code.getCode() != null) {
+				keys.add(codeKey(code.getSystem(), code.getCode()));
+			}
+		}
+
+		return keys;
+	}
+
+	private static String codeKey(String theSystem, String theCode) {
+		return theSystem == null ? "|" + theCode : theSystem + "|" + theCode;
+	}
+
+	private DateIndex dateIndex(String dataType, String datePath, String dateLowPath, String dateHighPath) {
+		return myDateIndexes.computeIfAbsent(Arrays.asList(dataType, datePath, dateLowPath, dateHighPath), x -> {
+			DateIndex index = new DateIndex();
+			for (IBaseResource resource : myResourcesByType.getOrDefault(dataType, Collections.emptyList())) {
+				long[] range;
+				try {
+					range = datePath != null
+							? range(myModelResolver.resolvePath(resource, datePath))
+							: range(dateLowPath, dateHighPath, resource);
+				} catch (RuntimeException e) {
+					ourLog.debug("Unable to resolve the date of {}", resource.getIdElement(), e);
+					range = null;
+				}
+
+				if (range != null) {
+					index.add(resource, range[0], range[1]);
+				}
+			}
+			return index;
+		});
+	}
+
+	private long[] range(String dateLowPath, String dateHighPath, IBaseResource theResource) {
+		long[] low = dateLowPath == null ? null : range(myModelResolver.resolvePath(theResource, dateLowPath));
+		long[] high = dateHighPath == null ? null : range(myModelResolver.resolvePath(theResource, dateHighPath));
+		if (low == null && high == null) {
+			return null;
+		}
+
+		return new long[] { low == null ? Long.MIN_VALUE : low[0], high == null ? Long.MAX_VALUE : high[1] };
+	}
+
+	// The instants a date, dateTime or Period covers, from the start of its first
+	// unit of precision to the end of its last, or null if not known
+	private long[] range(Object theValue) {
+		if (theValue instanceof IPrimitiveType && ((IPrimitiveType<?>) theValue).getValue() instanceof java.util.Date) {
+			return precisionRange((IPrimitiveType<?>) theValue);
+		}
+
+		if (theValue instanceof IBaseDatatype && "Period".equals(((IBaseDatatype) theValue).fhirType())) {
+			long[] start = range(myModelResolver.resolvePath(theValue, "start"));
+			long[] end = range(myModelResolver.resolvePath(theValue, "end"));
+			if (start == null && end == null) {
+				return null;
+			}
+
+			return new long[] { start == null ? Long.MIN_VALUE : start[0], end == null ? Long.MAX_VALUE : end[1] };
+		}
+
+		return null;
+	}
+
+	// The precision of a date or dateTime is that of its string value, e.g.
+	// 2020-01 covers all of January 2020. A date has no offset, and the CQL engine
+	// gives it the offset of the evaluation when it is compared with a dateTime,
+	// so it is indexed as covering its span in any offset and is only excluded
+	// from a range it can not overlap in any of them.
+	private static long[] precisionRange(IPrimitiveType<?> theValue) {
+		String value = theValue.getValueAsString();
+		LocalDate start;
+		LocalDate end;
+		switch (value == null ? 0 : value.length()) {
+			case 4:
+				start = Year.parse(value).atDay(1);
+				end = start.plusYears(1);
+				break;
+			case 7:
+				start = YearMonth.parse(value).atDay(1);
+				end = start.plusMonths(1);
+				break;
+			case 10:
+				start = LocalDate.parse(value);
+				end = start.plusDays(1);
+				break;
+			default:
+				long instant = ((java.util.Date) theValue.getValue()).getTime();
+				return new long[] { instant, instant };
+		}
+
+		return new long[] { epochMilli(start, ZoneOffset.MAX), epochMilli(end, ZoneOffset.MIN) - 1 };
+	}
+
+	private static long epochMilli(LocalDate theDate, ZoneOffset theOffset) {
+		return theDate.atStartOfDay().toInstant(theOffset).toEpochMilli();
+	}
+
+	// The instants a bound of a date range covers, in the offset of the bound, or
+	// null if not known
+	private static long[] boundRange(Object theBound) {
+		if (!(theBound instanceof DateTime)) {
+			return null;
+		}
+
+		DateTime dateTime = (DateTime) theBound;
+		OffsetDateTime start = dateTime.getDateTime();
+		Precision precision = dateTime.getPrecision();
+		ChronoUnit unit;
+		switch (precision == null ? Precision.MILLISECOND : precision) {
+			case YEAR:
+				unit = ChronoUnit.YEARS;
+				break;
+			case MONTH:
+				unit = ChronoUnit.MONTHS;
+				break;
+			case WEEK:
+				unit = ChronoUnit.WEEKS;
+				break;
+			case DAY:
+				unit = ChronoUnit.DAYS;
+				break;
+			case HOUR:
+				unit = ChronoUnit.HOURS;
+				break;
+			case MINUTE:
+				unit = ChronoUnit.MINUTES;
+				break;
+			case SECOND:
+				unit = ChronoUnit.SECONDS;
+				break;
+			default:
+				long instant = start.toInstant().toEpochMilli();
+				return new long[] { instant, instant };
+		}
+
+		return new long[] { start.toInstant().toEpochMilli(), start.plus(1, unit).toInstant().toEpochMilli() - 1 };
+	}
+
+	// Resources are indexed in Bundle order, so a resource with several values
+	// for the same key is the last one indexed
+	private static void addOnce(List<IBaseResource> theIndexed, IBaseResource theResource) {
+		if (theIndexed.isEmpty() || theIndexed.get(theIndexed.size() - 1) != theResource) {
+			theIndexed.add(theResource);
+		}
+	}
+
+	private static List<IBaseResource> retain(List<IBaseResource> theResources, Set<IBaseResource> theRetained) {
+		List<IBaseResource> retained = new ArrayList<>();
+		for (IBaseResource resource : theResources) {
+			if (theRetained.contains(resource)) {
+				retained.add(resource);
+			}
+		}
+		return retained;
+	}
+
+	private static List<IBaseResource> exclude(List<IBaseResource> theResources, Set<IBaseResource> theExcluded) {
+		if (theExcluded.isEmpty()) {
+			return theResources;
+		}
+
+		List<IBaseResource> retained = new ArrayList<>();
+		for (IBaseResource resource : theResources) {
+			if (!theExcluded.contains(resource)) {
+				retained.add(resource);
+			}
+		}
+		return retained;
+	}
+
+	/**
+	 * The resources of a type with a known date, ordered by the start and by the
+	 * end of their dates.
+	 */
+	private static class DateIndex {
+		private final NavigableMap<Long, List<IBaseResource>> myByStart = new TreeMap<>();
+		private final NavigableMap<Long, List<IBaseResource>> myByEnd = new TreeMap<>();
+
+		void add(IBaseResource theResource, long theStart, long theEnd) {
+			myByStart.computeIfAbsent(theStart, x -> new ArrayList<>()).add(theResource);
+			myByEnd.computeIfAbsent(theEnd, x -> new ArrayList<>()).add(theResource);
+		}
+
+		// The resources that start after the end of the range or end before its
+		// start, or null if the range is not understood
+		Set<IBaseResource> outside(Interval theDateRange) {
+			long low = Long.MIN_VALUE;
+			long high = Long.MAX_VALUE;
+			if (theDateRange.getLow() != null) {
+				long[] bound = boundRange(theDateRange.getLow());
+				if (bound == null) {
+					ourLog.debug("Unable to index date range bound {}", theDateRange.getLow());
+					return null;
+				}
+				low = bound[0];
+			}
+
+			if (theDateRange.getHigh() != null) {
+				long[] bound = boundRange(theDateRange.getHigh());
+				if (bound == null) {
+					ourLog.debug("Unable to index date range bound {}", theDateRange.getHigh());
+					return null;
+				}
+				high = bound[1];
+			}
+
+			Set<IBaseResource> outside = Collections.newSetFromMap(new IdentityHashMap<>());
+			if (high < Long.MAX_VALUE) {
+				myByStart.tailMap(high, false).values().forEach(outside::addAll);
+			}
+			if (low > Long.MIN_VALUE) {
+				myByEnd.headMap(low, false).values().forEach(outside::addAll);
+			}
+			return outside;
+		}
+	}
+}
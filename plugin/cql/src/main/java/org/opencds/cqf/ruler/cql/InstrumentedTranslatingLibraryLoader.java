@@ -0,0 +1,312 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
+import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentType;
+import org.opencds.cqf.cql.evaluator.engine.execution.TranslatingLibraryLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A TranslatingLibraryLoader that reports to an {@link ElmLibraryCache}. The
+ * time spent translating each library is recorded in the cache statistics, and
+ * the includes of each translated library are recorded in the cache's
+ * {@link LibraryDependencyGraph}. Concurrent requests for the same library are
+ * coalesced so that it is only translated once.
+ * <p>
+ * Libraries missing from the cache for which the content providers serve ELM
+ * are loaded by the TranslatingLibraryLoader, which reads that ELM with the
+ * engine's readers. Otherwise, if a {@link PersistentElmStore} is configured,
+ * they are read from the store before they are translated, and translated
+ * libraries are written to it. The loader never writes to the
+ * Library resources it reads; ELM is attached to them as they are stored, by
+ * the ElmAttachmentInterceptor. The content of each library is read from the
+ * providers once per loader, however often it is needed while loading.
+ * <p>
+ * If a {@link ParallelLibraryTranslator} is configured, a library is translated
+ * together with its includes, independent includes concurrently, and the
+ * translated includes are cached as well.
+ */
+public class InstrumentedTranslatingLibraryLoader extends TranslatingLibraryLoader {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(InstrumentedTranslatingLibraryLoader.class);
+
+	private final ElmLibraryCache myLibraryCache;
+	private final List<LibraryContentProvider> myLibraryContentProviders;
+	private final CqlTranslatorOptions myCqlTranslatorOptions;
+	private final PersistentElmStore myElmStore;
+	private final ParallelLibraryTranslator myParallelTranslator;
+
+	public InstrumentedTranslatingLibraryLoader(ModelManager theModelManager,
+			List<LibraryContentProvider> theLibraryContentProviders, CqlTranslatorOptions theCqlTranslatorOptions,
+			ElmLibraryCache theLibraryCache) {
+		this(theModelManager, theLibraryContentProviders, theCqlTranslatorOptions, theLibraryCache, null);
+	}
+
+	/**
+	 * @param theModelManager            the ModelManager used for translation
+	 * @param theLibraryContentProviders the sources of library content
+	 * @param theCqlTranslatorOptions    the translator options
+	 * @param theLibraryCache            the cache of translated libraries
+	 * @param theElmStore                if not null, the store in which translated
+	 *                                   libraries are persisted
+	 */
+	public InstrumentedTranslatingLibraryLoader(ModelManager theModelManager,
+			List<LibraryContentProvider> theLibraryContentProviders, CqlTranslatorOptions theCqlTranslatorOptions,
+			ElmLibraryCache theLibraryCache, PersistentElmStore theElmStore) {
+		this(theModelManager, theLibraryContentProviders, theCqlTranslatorOptions, theLibraryCache, theElmStore,
+				null);
+	}
+
+	/**
+	 * @param theModelManager            the ModelManager used for translation
+	 * @param theLibraryContentProviders the sources of library content
+	 * @param theCqlTranslatorOptions    the translator options
+	 * @param theLibraryCache            the cache of translated libraries
+	 * @param theElmStore                if not null, the store in which translated
+	 *                                   libraries are persisted
+	 * @param theParallelTranslator      if not null, translates libraries together
+	 *                                   with their includes
+	 */
+	public InstrumentedTranslatingLibraryLoader(ModelManager theModelManager,
+			List<LibraryContentProvider> theLibraryContentProviders, CqlTranslatorOptions theCqlTranslatorOptions,
+			ElmLibraryCache theLibraryCache, PersistentElmStore theElmStore,
+			ParallelLibraryTranslator theParallelTranslator) {
+		this(theModelManager, resolveOnce(theLibraryContentProviders), theCqlTranslatorOptions, theLibraryCache,
+				theElmStore, theParallelTranslator, true);
+	}
+
+	// The TranslatingLibraryLoader and this loader share the providers, so the
+	// wrapped providers are created before calling super. theResolved only
+	// distinguishes this constructor from the public one.
+	private InstrumentedTranslatingLibraryLoader(ModelManager theModelManager,
+			List<LibraryContentProvider> theLibraryContentProviders, CqlTranslatorOptions theCqlTranslatorOptions,
+			ElmLibraryCache theLibraryCache, PersistentElmStore theElmStore,
+			ParallelLibraryTranslator theParallelTranslator, boolean theResolved) {
+		super(theModelManager, theLibraryContentProviders, theCqlTranslatorOptions);
+		myLibraryCache = theLibraryCache;
+		myLibraryContentProviders = theLibraryContentProviders;
+		myCqlTranslatorOptions = theCqlTranslatorOptions;
+		myElmStore = theElmStore;
+		myParallelTranslator = theParallelTranslator;
+	}
+
+	@Override
+	public Library load(VersionedIdentifier theLibraryIdentifier) {
+		return myLibraryCache.load(theLibraryIdentifier, this::loadUncached);
+	}
+
+	protected Library loadUncached(VersionedIdentifier theLibraryIdentifier) {
+		long start = System.nanoTime();
+		Library library = null;
+		try {
+			if (hasElmContent(theLibraryIdentifier)) {
+				library = super.load(theLibraryIdentifier);
+			} else {
+				library = myElmStore != null ? loadFromStore(theLibraryIdentifier) : translateCql(theLibraryIdentifier);
+			}
+			myLibraryCache.getDependencyGraph().addIncludes(theLibraryIdentifier, library);
+			return library;
+		} finally {
+			myLibraryCache.recordLoad(System.nanoTime() - start, library != null);
+		}
+	}
+
+	/**
+	 * Tests whether the content providers serve ELM for a library, e.g. ELM
+	 * attached to a Library resource. Providers only serve ELM that was translated
+	 * with the configured options. The content read here is kept, so loading the
+	 * library afterwards does not read it again.
+	 *
+	 * @param theLibraryIdentifier the identifier of the library
+	 * @return true if ELM is available as JSON or XML
+	 */
+	protected boolean hasElmContent(VersionedIdentifier theLibraryIdentifier) {
+		org.hl7.elm.r1.VersionedIdentifier identifier = toElmIdentifier(theLibraryIdentifier);
+		for (LibraryContentProvider provider : myLibraryContentProviders) {
+			for (LibraryContentType contentType : new LibraryContentType[] { LibraryContentType.JSON,
+					LibraryContentType.XML }) {
+				try (InputStream content = provider.getLibraryContent(identifier, contentType)) {
+					if (content != null) {
+						return true;
+					}
+				} catch (IOException e) {
+					ourLog.debug("Unable to read ELM for library {}", theLibraryIdentifier.getId(), e);
+				}
+			}
+		}
+
+		return false;
+	}
+
+	protected Library loadFromStore(VersionedIdentifier theLibraryIdentifier) {
+		byte[] cql = getCqlContent(theLibraryIdentifier);
+		if (cql == null) {
+			return translateCql(theLibraryIdentifier);
+		}
+
+		String key = PersistentElmStore.keyFor(theLibraryIdentifier, cql, myCqlTranslatorOptions);
+		Library library = myElmStore.get(key, this::getContentHash);
+		if (library != null) {
+			return library;
+		}
+
+		library = translateCql(theLibraryIdentifier);
+		if (library == null) {
+			return null;
+		}
+
+		myElmStore.put(key, library, getIncludeHashes(library));
+		return library;
+	}
+
+	/**
+	 * Translates the CQL of a library, with its includes if a
+	 * ParallelLibraryTranslator is configured. The translated includes are added
+	 * to the cache unless they are already cached, through the cache's coalesced
+	 * loads so that they do not race a concurrent load of the same include.
+	 *
+	 * @param theLibraryIdentifier the identifier of the library
+	 * @return the library
+	 */
+	protected Library translateCql(VersionedIdentifier theLibraryIdentifier) {
+		if (myParallelTranslator == null) {
+			return super.load(theLibraryIdentifier);
+		}
+
+		Map<VersionedIdentifier, Library> libraries = myParallelTranslator.translate(theLibraryIdentifier,
+				this::getCqlContent);
+		if (libraries == null) {
+			return super.load(theLibraryIdentifier);
+		}
+
+		for (Map.Entry<VersionedIdentifier, Library> entry : libraries.entrySet()) {
+			if (!entry.getKey().equals(theLibraryIdentifier)) {
+				myLibraryCache.load(entry.getKey(), identifier -> {
+					myLibraryCache.getDependencyGraph().addIncludes(identifier, entry.getValue());
+					myLibraryCache.put(identifier, entry.getValue());
+					return entry.getValue();
+				});
+			}
+		}
+
+		return libraries.get(theLibraryIdentifier);
+	}
+
+	// The hashes of the CQL of every library the library includes, directly or
+	// indirectly, so that the stored ELM is stale if any of them changes
+	private Map<VersionedIdentifier, String> getIncludeHashes(Library theLibrary) {
+		Map<VersionedIdentifier, String> hashes = new LinkedHashMap<>();
+		if (theLibrary.getIncludes() == null) {
+			return hashes;
+		}
+
+		Deque<VersionedIdentifier> pending = new ArrayDeque<>();
+		for (IncludeDef include : theLibrary.getIncludes().getDef()) {
+			pending.add(new VersionedIdentifier().withId(include.getPath()).withVersion(include.getVersion()));
+		}
+
+		while (!pending.isEmpty()) {
+			VersionedIdentifier identifier = pending.poll();
+			if (hashes.containsKey(identifier)) {
+				continue;
+			}
+
+			byte[] cql = getCqlContent(identifier);
+			hashes.put(identifier, cql == null ? "" : PersistentElmStore.hash(cql));
+			if (cql != null) {
+				pending.addAll(ParallelLibraryTranslator.parseIncludes(cql));
+			}
+		}
+
+		return hashes;
+	}
+
+	private String getContentHash(VersionedIdentifier theLibraryIdentifier) {
+		byte[] cql = getCqlContent(theLibraryIdentifier);
+		return cql == null ? "" : PersistentElmStore.hash(cql);
+	}
+
+	private byte[] getCqlContent(VersionedIdentifier theLibraryIdentifier) {
+		org.hl7.elm.r1.VersionedIdentifier identifier = toElmIdentifier(theLibraryIdentifier);
+		for (LibraryContentProvider provider : myLibraryContentProviders) {
+			try (InputStream content = provider.getLibraryContent(identifier, LibraryContentType.CQL)) {
+				if (content != null) {
+					return IOUtils.toByteArray(content);
+				}
+			} catch (IOException e) {
+				ourLog.debug("Unable to read CQL for library {}", theLibraryIdentifier.getId(), e);
+			}
+		}
+
+		return null;
+	}
+
+	// Wraps the content providers so that the content of each library is only
+	// read once by a loader, however many times it is asked for
+	private static List<LibraryContentProvider> resolveOnce(List<LibraryContentProvider> theProviders) {
+		List<LibraryContentProvider> providers = new ArrayList<>(theProviders.size());
+		for (LibraryContentProvider provider : theProviders) {
+			providers.add(new ResolvedContentProvider(provider));
+		}
+		return providers;
+	}
+
+	private static org.hl7.elm.r1.VersionedIdentifier toElmIdentifier(VersionedIdentifier theLibraryIdentifier) {
+		return new org.hl7.elm.r1.VersionedIdentifier().withId(theLibraryIdentifier.getId())
+				.withVersion(theLibraryIdentifier.getVersion());
+	}
+
+	/**
+	 * A LibraryContentProvider that keeps the content it reads, including the
+	 * absence of content. A loader is created for each request, so the content is
+	 * kept for the request.
+	 */
+	private static class ResolvedContentProvider implements LibraryContentProvider {
+		private static final byte[] NO_CONTENT = new byte[0];
+
+		private final LibraryContentProvider myProvider;
+		private final Map<List<Object>, byte[]> myContent = new ConcurrentHashMap<>();
+
+		ResolvedContentProvider(LibraryContentProvider theProvider) {
+			myProvider = theProvider;
+		}
+
+		@Override
+		public InputStream getLibraryContent(org.hl7.elm.r1.VersionedIdentifier libraryIdentifier,
+				LibraryContentType libraryContentType) {
+			byte[] content = myContent.computeIfAbsent(
+					Arrays.asList(libraryIdentifier.getId(), libraryIdentifier.getVersion(), libraryContentType),
+					x -> read(libraryIdentifier, libraryContentType));
+			return content == NO_CONTENT ? null : new ByteArrayInputStream(content);
+		}
+
+		private byte[] read(org.hl7.elm.r1.VersionedIdentifier libraryIdentifier,
+				LibraryContentType libraryContentType) {
+			try (InputStream content = myProvider.getLibraryContent(libraryIdentifier, libraryContentType)) {
+				return content == null ? NO_CONTENT : IOUtils.toByteArray(content);
+			} catch (IOException e) {
+				ourLog.debug("Unable to read {} content for library {}", libraryContentType, libraryIdentifier.getId(),
+						e);
+				return NO_CONTENT;
+			}
+		}
+	}
+}
@@ -14,14 +14,26 @@ public class JpaFhirDal implements FhirDal {
 
 	protected final DaoRegistry daoRegistry;
 	protected final RequestDetails requestDetails;
+	protected final int pageSize;
 
 	public JpaFhirDal(DaoRegistry daoRegistry) {
 		this(daoRegistry, null);
 	}
 
 	public JpaFhirDal(DaoRegistry daoRegistry, RequestDetails requestDetails) {
+		this(daoRegistry, requestDetails, 0);
+	}
+
+	/**
+	 * @param daoRegistry    the DaoRegistry used to access resources
+	 * @param requestDetails the RequestDetails of the current request
+	 * @param pageSize       if greater than 0, search results are loaded lazily
+	 *                       in pages of this size
+	 */
+	public JpaFhirDal(DaoRegistry daoRegistry, RequestDetails requestDetails, int pageSize) {
 		this.daoRegistry = daoRegistry;
 		this.requestDetails = requestDetails;
+		this.pageSize = pageSize;
 	}
 
 	@Override
@@ -48,13 +60,21 @@ public class JpaFhirDal implements FhirDal {
 	// TODO: the search interfaces need some work
 	@Override
 	public Iterable<IBaseResource> search(String theResourceType) {
-		return this.daoRegistry.getResourceDao(theResourceType).search(SearchParameterMap.newSynchronous())
-				.getAllResources();
+		return search(theResourceType, SearchParameterMap.newSynchronous());
 	}
 
 	@Override
 	public Iterable<IBaseResource> searchByUrl(String theResourceType, String theUrl) {
-		return this.daoRegistry.getResourceDao(theResourceType)
-				.search(SearchParameterMap.newSynchronous().add("url", new UriParam(theUrl))).getAllResources();
+		return search(theResourceType, SearchParameterMap.newSynchronous().add("url", new UriParam(theUrl)));
+	}
+
+	protected Iterable<IBaseResource> search(String theResourceType, SearchParameterMap theSearchParameterMap) {
+		if (pageSize <= 0) {
+			return this.daoRegistry.getResourceDao(theResourceType).search(theSearchParameterMap, requestDetails)
+					.getAllResources();
+		}
+
+		return PagedResourceIterable.forSearch(this.daoRegistry.getResourceDao(theResourceType),
+				theSearchParameterMap, requestDetails, pageSize);
 	}
 }
@@ -1,25 +1,43 @@
 package org.opencds.cqf.ruler.cql;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
+import org.apache.commons.lang3.tuple.Pair;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.cql.engine.fhir.retrieve.SearchParamFhirRetrieveProvider;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.opencds.cqf.ruler.behavior.DaoRegistryUser;
+import org.opencds.cqf.ruler.utility.Requests;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ca.uhn.fhir.context.RuntimeSearchParam;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
 
 /**
  * This class provides an implementation of the cql-engine's RetrieveProvider
@@ -30,9 +48,25 @@ public class JpaFhirRetrieveProvider extends SearchParamFhirRetrieveProvider imp
 
 	private static final Logger logger = LoggerFactory.getLogger(JpaFhirRetrieveProvider.class);
 
+	private static final MethodHandle HAPI_MAP_PUT = resolveHapiMapPut();
+
 	private final DaoRegistry myDaoRegistry;
 	private final RequestDetails myRequestDetails;
 
+	private final SearchParameterResolver mySearchParameterResolver;
+
+	private Executor myQueryExecutor;
+	private int myMaxConcurrentQueries = 1;
+	private int myPageSize = 0;
+	private boolean myValueSetPushdown = false;
+	private Set<String> myUnsupportedValueSets = ConcurrentHashMap.newKeySet();
+
+	// The filters added to the queries of the retrieve in progress on this
+	// thread, e.g. the :in filter of a pushed down value set, keyed by parameter
+	// name
+	private final ThreadLocal<Map<String, List<IQueryParameterType>>> myAdditionalFilters = ThreadLocal
+			.withInitial(LinkedHashMap::new);
+
 	public JpaFhirRetrieveProvider(DaoRegistry theDaoRegistry, SearchParameterResolver theSearchParameterResolver) {
 		this(theDaoRegistry, theSearchParameterResolver, null);
 	}
@@ -42,6 +76,166 @@ public class JpaFhirRetrieveProvider extends SearchParamFhirRetrieveProvider imp
 		super(searchParameterResolver);
 		this.myDaoRegistry = registry;
 		this.myRequestDetails = requestDetails;
+		this.mySearchParameterResolver = searchParameterResolver;
+	}
+
+	/**
+	 * Sets the executor used to run the queries of a single retrieve
+	 * concurrently, e.g. when the codes of a large value set are split across
+	 * several queries. If not set, queries run sequentially on the calling
+	 * thread.
+	 *
+	 * @param queryExecutor the executor
+	 */
+	public void setQueryExecutor(Executor queryExecutor) {
+		this.myQueryExecutor = queryExecutor;
+	}
+
+	public Executor getQueryExecutor() {
+		return this.myQueryExecutor;
+	}
+
+	/**
+	 * Sets the maximum number of queries run concurrently for a single retrieve,
+	 * including the one run on the calling thread. This bounds the number of
+	 * database connections a single evaluation can hold at once.
+	 *
+	 * @param maxConcurrentQueries the maximum number of concurrent queries
+	 */
+	public void setMaxConcurrentQueries(int maxConcurrentQueries) {
+		this.myMaxConcurrentQueries = maxConcurrentQueries;
+	}
+
+	public int getMaxConcurrentQueries() {
+		return this.myMaxConcurrentQueries;
+	}
+
+	/**
+	 * Sets the page size used to stream the results of a retrieve. If greater
+	 * than 0, results are loaded lazily a page at a time as CQL iterates them,
+	 * rather than all at once. Retrieves whose queries run concurrently are not
+	 * streamed.
+	 *
+	 * @param pageSize the page size, or 0 to load all results at once
+	 */
+	public void setPageSize(int pageSize) {
+		this.myPageSize = pageSize;
+	}
+
+	public int getPageSize() {
+		return this.myPageSize;
+	}
+
+	/**
+	 * Sets whether value set filters are pushed down to the database as a
+	 * <code>code:in=[value set url]</code> search, using the server's expansion of
+	 * the value set, rather than expanding the value set and searching for each of
+	 * its codes. A retrieve falls back to expansion if the pushed down search
+	 * fails, and the value set is then always expanded.
+	 *
+	 * @param valueSetPushdown whether to push down value set filters
+	 */
+	public void setValueSetPushdown(boolean valueSetPushdown) {
+		this.myValueSetPushdown = valueSetPushdown;
+	}
+
+	public boolean isValueSetPushdown() {
+		return this.myValueSetPushdown;
+	}
+
+	/**
+	 * Sets the set in which value sets that can not be pushed down are recorded.
+	 * This is typically shared by all the providers of a server, so that a value
+	 * set is only tried once.
+	 *
+	 * @param unsupportedValueSets the urls of value sets that can not be pushed
+	 *                             down
+	 */
+	public void setUnsupportedValueSets(Set<String> unsupportedValueSets) {
+		this.myUnsupportedValueSets = unsupportedValueSets;
+	}
+
+	@Override
+	public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+			String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+			String dateLowPath, String dateHighPath, Interval dateRange) {
+		String parameterName = myValueSetPushdown && valueSet != null && codes == null
+				&& !myUnsupportedValueSets.contains(valueSet) ? getTokenParameterName(dataType, codePath) : null;
+		if (parameterName == null) {
+			return super.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+					datePath, dateLowPath, dateHighPath, dateRange);
+		}
+
+		myAdditionalFilters.get().put(parameterName,
+				Collections.singletonList(new TokenParam(valueSet).setModifier(TokenParamModifier.IN)));
+		try {
+			return super.retrieve(context, contextPath, contextValue, dataType, templateId, null, null, null, datePath,
+					dateLowPath, dateHighPath, dateRange);
+		} catch (RuntimeException e) {
+			logger.info("Unable to push down ValueSet {}, expanding it instead: {}", valueSet, e.getMessage());
+			myUnsupportedValueSets.add(valueSet);
+		} finally {
+			myAdditionalFilters.get().remove(parameterName);
+		}
+
+		return super.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+				datePath, dateLowPath, dateHighPath, dateRange);
+	}
+
+	/**
+	 * Retrieves the data of several patients at once, with a single search whose
+	 * context parameter is an OR-list of the patients, e.g.
+	 * <code>subject=Patient/1,Patient/2</code>. The results are not grouped by
+	 * patient and are fully materialized.
+	 *
+	 * @param context     the context, which must be Patient
+	 * @param contextPath the path to the patient in the data type
+	 * @param patientIds  the ids of the patients
+	 * @return the data of all the patients, or null if the data type can not be
+	 *         searched by the context path
+	 */
+	@SuppressWarnings("squid:S00107") // warning for greater than 7 parameters
+	public Iterable<Object> retrieveForPatients(String context, String contextPath, List<String> patientIds,
+			String dataType, String templateId, String codePath, Iterable<Code> codes, String valueSet,
+			String datePath, String dateLowPath, String dateHighPath, Interval dateRange) {
+		if (!"Patient".equals(context) || contextPath == null || mySearchParameterResolver == null
+				|| patientIds.isEmpty()) {
+			return null;
+		}
+
+		String parameterName = null;
+		List<IQueryParameterType> patients = new ArrayList<>();
+		for (String patientId : patientIds) {
+			Pair<String, IQueryParameterType> parameter = mySearchParameterResolver.createSearchParameter(context,
+					dataType, contextPath, patientId);
+			if (parameter == null || parameter.getValue() == null
+					|| (parameterName != null && !parameterName.equals(parameter.getKey()))) {
+				return null;
+			}
+			parameterName = parameter.getKey();
+			patients.add(parameter.getValue());
+		}
+
+		myAdditionalFilters.get().put(parameterName, patients);
+		try {
+			return retrieve(context, contextPath, null, dataType, templateId, codePath, codes, valueSet, datePath,
+					dateLowPath, dateHighPath, dateRange);
+		} finally {
+			myAdditionalFilters.get().remove(parameterName);
+		}
+	}
+
+	private String getTokenParameterName(String dataType, String codePath) {
+		if (codePath == null || mySearchParameterResolver == null) {
+			return null;
+		}
+
+		RuntimeSearchParam searchParam = mySearchParameterResolver.getSearchParameterDefinition(dataType, codePath);
+		if (searchParam == null || searchParam.getParamType() != RestSearchParameterTypeEnum.TOKEN) {
+			return null;
+		}
+
+		return searchParam.getName();
 	}
 
 	@Override
@@ -50,41 +244,209 @@ public class JpaFhirRetrieveProvider extends SearchParamFhirRetrieveProvider imp
 			return Collections.emptyList();
 		}
 
-		List<Object> objects = new ArrayList<>();
+		// Additional filters are run eagerly so that a failed pushdown can fall
+		// back to expansion
+		Map<String, List<IQueryParameterType>> additionalFilters = myAdditionalFilters.get();
+		for (Map.Entry<String, List<IQueryParameterType>> filter : additionalFilters.entrySet()) {
+			for (SearchParameterMap map : queries) {
+				map.put(filter.getKey(), Collections.singletonList(filter.getValue()));
+			}
+		}
+
+		boolean concurrent = queries.size() > 1 && myQueryExecutor != null && myMaxConcurrentQueries > 1
+				&& Requests.isCopyable(myRequestDetails);
+		if (myPageSize > 0 && !concurrent && additionalFilters.isEmpty()) {
+			return streamQueries(dataType, queries);
+		}
+
+		if (queries.size() == 1) {
+			return new ArrayList<>(executeQuery(dataType, queries.get(0), myRequestDetails));
+		}
+
+		List<List<IBaseResource>> results = concurrent
+				? executeConcurrently(dataType, queries)
+				: executeSequentially(dataType, queries);
+
+		// Chunked code filters can overlap (e.g. a resource with codes in two
+		// chunks), so merge the results keeping the first occurrence of each id.
+		Map<Object, Object> objects = new LinkedHashMap<>();
+		for (List<IBaseResource> result : results) {
+			for (IBaseResource resource : result) {
+				objects.putIfAbsent(distinctKey(resource), resource);
+			}
+		}
+
+		return new ArrayList<>(objects.values());
+	}
+
+	// Each query is only run once iteration reaches it, and its results are
+	// loaded a page at a time and only once, however often they are iterated.
+	// Results are de-duplicated by id as they are iterated.
+	private Iterable<Object> streamQueries(String dataType, List<SearchParameterMap> queries) {
+		List<Iterable<IBaseResource>> results = new ArrayList<>(queries.size());
+		for (SearchParameterMap map : queries) {
+			results.add(executeQueryLazily(dataType, map));
+		}
+
+		return () -> new Iterator<Object>() {
+			private final Set<Object> mySeen = new HashSet<>();
+			private int myNextQuery;
+			private Iterator<IBaseResource> myCurrent = Collections.emptyIterator();
+			private IBaseResource myNext;
+
+			@Override
+			public boolean hasNext() {
+				while (myNext == null) {
+					if (myCurrent.hasNext()) {
+						IBaseResource resource = myCurrent.next();
+						if (queries.size() == 1 || mySeen.add(distinctKey(resource))) {
+							myNext = resource;
+						}
+					} else if (myNextQuery < results.size()) {
+						myCurrent = results.get(myNextQuery++).iterator();
+					} else {
+						return false;
+					}
+				}
+
+				return true;
+			}
+
+			@Override
+			public Object next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+
+				IBaseResource next = myNext;
+				myNext = null;
+				return next;
+			}
+		};
+	}
+
+	/**
+	 * Returns the results of a query, which is run once they are iterated and
+	 * loaded a page at a time.
+	 *
+	 * @param dataType the resource type
+	 * @param map      the query
+	 * @return the results
+	 */
+	protected Iterable<IBaseResource> executeQueryLazily(String dataType, SearchParameterMap map) {
+		return PagedResourceIterable.forSearch(getDaoRegistry().getResourceDao(dataType),
+				toHapiSearchParameterMap(map), myRequestDetails, myPageSize);
+	}
+
+	private static Object distinctKey(IBaseResource resource) {
+		String id = resource.getIdElement().toUnqualifiedVersionless().getValue();
+		return id != null ? id : resource;
+	}
+
+	private List<List<IBaseResource>> executeSequentially(String dataType, List<SearchParameterMap> queries) {
+		List<List<IBaseResource>> results = new ArrayList<>();
 		for (SearchParameterMap map : queries) {
-			objects.addAll(executeQuery(dataType, map));
+			results.add(executeQuery(dataType, map, myRequestDetails));
+		}
+
+		return results;
+	}
+
+	// Queries are split into lanes that each run sequentially, so at most
+	// myMaxConcurrentQueries queries are in flight without blocking executor
+	// threads. The first lane runs on the calling thread, the others each with a
+	// copy of the RequestDetails made on the calling thread.
+	@SuppressWarnings("unchecked")
+	private List<List<IBaseResource>> executeConcurrently(String dataType, List<SearchParameterMap> queries) {
+		int lanes = Math.min(myMaxConcurrentQueries, queries.size());
+		List<IBaseResource>[] results = new List[queries.size()];
+
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (int lane = 1; lane < lanes; lane++) {
+			int start = lane;
+			RequestDetails requestDetails = Requests.copyOf(myRequestDetails);
+			futures.add(CompletableFuture.runAsync(
+					() -> executeLane(dataType, queries, start, lanes, results, requestDetails), myQueryExecutor));
 		}
 
-		return objects;
+		executeLane(dataType, queries, 0, lanes, results, myRequestDetails);
+
+		try {
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+
+		return Arrays.asList(results);
+	}
+
+	private void executeLane(String dataType, List<SearchParameterMap> queries, int start, int step,
+			List<IBaseResource>[] results, RequestDetails requestDetails) {
+		for (int i = start; i < queries.size(); i += step) {
+			results[i] = executeQuery(dataType, queries.get(i), requestDetails);
+		}
 	}
 
 	protected List<IBaseResource> executeQuery(String dataType, SearchParameterMap map) {
+		return executeQuery(dataType, map, myRequestDetails);
+	}
+
+	// Queries run on other threads are given the RequestDetails explicitly, as
+	// the request they run for is not bound to those threads
+	protected List<IBaseResource> executeQuery(String dataType, SearchParameterMap map,
+			RequestDetails requestDetails) {
+		ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap = toHapiSearchParameterMap(map);
+
+		IBundleProvider bundleProvider = search(getClass(dataType), hapiMap, requestDetails);
+		if (bundleProvider.isEmpty()) {
+			return new ArrayList<>();
+		}
+
+		return bundleProvider.getAllResources();
+	}
+
+	/**
+	 * Converts the engine's SearchParameterMap to a synchronous HAPI
+	 * SearchParameterMap. This runs for every retrieve, so the put method used
+	 * for the conversion is resolved once rather than on each call.
+	 *
+	 * @param map the engine's SearchParameterMap
+	 * @return the HAPI SearchParameterMap
+	 */
+	static ca.uhn.fhir.jpa.searchparam.SearchParameterMap toHapiSearchParameterMap(SearchParameterMap map) {
 		// TODO: Once HAPI breaks this out from the server dependencies
 		// we can include it on its own.
 		ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap = ca.uhn.fhir.jpa.searchparam.SearchParameterMap
 				.newSynchronous();
-		try {
-
-			Method[] methods = hapiMap.getClass().getDeclaredMethods();
-			List<Method> methodList = Arrays.asList(methods);
-			List<Method> puts = methodList.stream().filter(x -> x.getName().equals("put")).collect(Collectors.toList());
-			Method method = puts.get(0);
-			method.setAccessible(true);
+		if (HAPI_MAP_PUT == null) {
+			logger.warn("Unable to convert search parameter map, SearchParameterMap.put is unavailable");
+			return hapiMap;
+		}
 
+		try {
 			for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
-				method.invoke(hapiMap, entry.getKey(), entry.getValue());
+				HAPI_MAP_PUT.invoke(hapiMap, entry.getKey(), entry.getValue());
 			}
-
-		} catch (Exception e) {
+		} catch (Throwable e) {
 			logger.warn("Error converting search parameter map", e);
 		}
 
-		IBundleProvider bundleProvider = search(getClass(dataType), hapiMap, myRequestDetails);
-		if (bundleProvider.isEmpty()) {
-			return new ArrayList<>();
-		}
+		return hapiMap;
+	}
 
-		return bundleProvider.getAllResources();
+	private static MethodHandle resolveHapiMapPut() {
+		try {
+			Method method = ca.uhn.fhir.jpa.searchparam.SearchParameterMap.class.getDeclaredMethod("put", String.class,
+					List.class);
+			method.setAccessible(true);
+			return MethodHandles.lookup().unreflect(method);
+		} catch (NoSuchMethodException | IllegalAccessException | RuntimeException e) {
+			logger.error("Unable to resolve SearchParameterMap.put", e);
+			return null;
+		}
 	}
 
 	@Override
@@ -1,32 +1,116 @@
 package org.opencds.cqf.ruler.cql;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseExtension;
+import org.hl7.fhir.instance.model.api.IBaseHasExtensions;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
 import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentType;
 import org.opencds.cqf.ruler.behavior.DaoRegistryUser;
 import org.opencds.cqf.ruler.utility.Libraries;
 import org.opencds.cqf.ruler.utility.Searches;
 import org.opencds.cqf.ruler.utility.Versions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
 
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.util.FhirTerser;
 
 public class JpaLibraryContentProvider
 		implements LibraryContentProvider, DaoRegistryUser {
+	/**
+	 * The extension of an ELM attachment that records the SHA-256 hash, in hex, of
+	 * the CQL the ELM was translated from. It is added to the ELM this server
+	 * attaches to Libraries.
+	 */
+	public static final String CQL_HASH_EXTENSION = "http://opencds.org/fhir/cqf-ruler/StructureDefinition/elm-cql-hash";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(JpaLibraryContentProvider.class);
+
 	protected final DaoRegistry daoRegistry;
 	protected final RequestDetails requestDetails;
+	protected final ElmLibraryCache libraryCache;
+	protected final CqlTranslatorOptions cqlTranslatorOptions;
+	protected final LibraryContentIndex libraryContentIndex;
 
 	public JpaLibraryContentProvider(DaoRegistry daoRegistry) {
 		this(daoRegistry, null);
 	}
 
 	public JpaLibraryContentProvider(DaoRegistry daoRegistry, RequestDetails requestDetails) {
+		this(daoRegistry, requestDetails, null);
+	}
+
+	/**
+	 * @param daoRegistry    the DaoRegistry used to search for Libraries
+	 * @param requestDetails the RequestDetails of the current request
+	 * @param libraryCache   if not null, the resource ids of resolved Libraries are
+	 *                       indexed in this cache so that change notifications can
+	 *                       evict the corresponding ELM
+	 */
+	public JpaLibraryContentProvider(DaoRegistry daoRegistry, RequestDetails requestDetails,
+			ElmLibraryCache libraryCache) {
+		this(daoRegistry, requestDetails, libraryCache, null);
+	}
+
+	/**
+	 * @param daoRegistry          the DaoRegistry used to search for Libraries
+	 * @param requestDetails       the RequestDetails of the current request
+	 * @param libraryCache         if not null, the resource ids of resolved
+	 *                             Libraries are indexed in this cache so that
+	 *                             change notifications can evict the corresponding
+	 *                             ELM
+	 * @param cqlTranslatorOptions if not null, ELM attached to Libraries is served
+	 *                             when it was translated with these options
+	 */
+	public JpaLibraryContentProvider(DaoRegistry daoRegistry, RequestDetails requestDetails,
+			ElmLibraryCache libraryCache, CqlTranslatorOptions cqlTranslatorOptions) {
+		this(daoRegistry, requestDetails, libraryCache, cqlTranslatorOptions, null);
+	}
+
+	/**
+	 * @param daoRegistry          the DaoRegistry used to search for Libraries
+	 * @param requestDetails       the RequestDetails of the current request
+	 * @param libraryCache         if not null, the resource ids of resolved
+	 *                             Libraries are indexed in this cache so that
+	 *                             change notifications can evict the corresponding
+	 *                             ELM
+	 * @param cqlTranslatorOptions if not null, ELM attached to Libraries is served
+	 *                             when it was translated with these options
+	 * @param libraryContentIndex  if not null, Libraries are resolved from this
+	 *                             index rather than searched for
+	 */
+	public JpaLibraryContentProvider(DaoRegistry daoRegistry, RequestDetails requestDetails,
+			ElmLibraryCache libraryCache, CqlTranslatorOptions cqlTranslatorOptions,
+			LibraryContentIndex libraryContentIndex) {
 		this.daoRegistry = daoRegistry;
 		this.requestDetails = requestDetails;
+		this.libraryCache = libraryCache;
+		this.cqlTranslatorOptions = cqlTranslatorOptions;
+		this.libraryContentIndex = libraryContentIndex;
 	}
 
 	@Override
@@ -37,26 +121,294 @@ public class JpaLibraryContentProvider
 	@Override
 	public InputStream getLibraryContent(org.hl7.elm.r1.VersionedIdentifier libraryIdentifier,
 			LibraryContentType libraryContentType) {
-		// TODO: Support loading ELM - For now consider that the LibraryLoader has some
-		// caching built in
-		if (libraryContentType != LibraryContentType.CQL) {
+		String contentType = getMimeType(libraryContentType);
+		if (contentType == null || (libraryContentType != LibraryContentType.CQL && cqlTranslatorOptions == null)) {
 			return null;
 		}
 
 		String name = libraryIdentifier.getId();
 		String version = libraryIdentifier.getVersion();
-		List<IBaseResource> libraries = search(getClass("Library"), Searches.byName(name), requestDetails).getAllResources();
-		IBaseResource library = Versions.selectByVersion(libraries, version,
-				Libraries::getVersion);
+		if (libraryContentIndex != null) {
+			return getIndexedContent(name, version, libraryContentType, contentType);
+		}
 
+		IBaseResource library = selectLibrary(name, version);
 		if (library == null) {
 			return null;
 		}
-		byte[] content = Libraries.getContent(library, "text/cql");
+
+		indexResourceId(library, name, version);
+
+		byte[] content = Libraries.getContent(library, contentType);
 		if (content == null) {
 			return null;
 		}
 
+		if (libraryContentType != LibraryContentType.CQL
+				&& (!elmMatchesCql(library, contentType) || !translatorOptionsMatch(content))) {
+			return null;
+		}
+
 		return new ByteArrayInputStream(content);
 	}
+
+	/**
+	 * Returns the hash of the CQL of the Library a name and version resolve to.
+	 * When the Libraries are indexed, the hash the index computed when it loaded
+	 * the Library is returned without a search.
+	 *
+	 * @param libraryIdentifier the name and version of the Library
+	 * @return the SHA-256 hash of the CQL, as hex, or null if there is no Library
+	 *         with CQL for the name
+	 */
+	public String getContentHash(org.hl7.elm.r1.VersionedIdentifier libraryIdentifier) {
+		String name = libraryIdentifier.getId();
+		String version = libraryIdentifier.getVersion();
+		if (libraryContentIndex != null) {
+			LibraryContentIndex.Entry entry = libraryContentIndex.get(name, version, requestDetails);
+			return entry == null ? null : entry.getContentHash();
+		}
+
+		IBaseResource library = selectLibrary(name, version);
+		byte[] cql = library == null ? null : Libraries.getContent(library, "text/cql");
+		return cql == null ? null : PersistentElmStore.hash(cql);
+	}
+
+	// The content of a Library from the LibraryContentIndex, which only holds
+	// ELM translated from the current CQL
+	private InputStream getIndexedContent(String name, String version, LibraryContentType libraryContentType,
+			String contentType) {
+		LibraryContentIndex.Entry entry = libraryContentIndex.get(name, version, requestDetails);
+		if (entry == null) {
+			return null;
+		}
+
+		indexResourceId(entry.getResourceId(), entry.getVersion(), name, version);
+
+		byte[] content = entry.getContent(contentType);
+		if (content == null || (libraryContentType != LibraryContentType.CQL && !translatorOptionsMatch(content))) {
+			return null;
+		}
+
+		return new ByteArrayInputStream(content);
+	}
+
+	/**
+	 * Selects the Library with a name that best matches a version.
+	 *
+	 * @param name    the name of the Library
+	 * @param version the version of the Library, or null for the latest
+	 * @return the Library, or null if there is none with the name
+	 */
+	protected IBaseResource selectLibrary(String name, String version) {
+		List<IBaseResource> libraries = search(getClass("Library"), Searches.byName(name), requestDetails)
+				.getAllResources();
+		return Versions.selectByVersion(libraries, version, Libraries::getVersion);
+	}
+
+	/**
+	 * Tests whether ELM was translated with the configured translator options, as
+	 * recorded by the translator in the CqlToElmInfo annotation. ELM without the
+	 * annotation is assumed not to match.
+	 *
+	 * @param elm the ELM, as XML or JSON
+	 * @return true if the ELM was translated with the configured options
+	 */
+	protected boolean translatorOptionsMatch(byte[] elm) {
+		String translatorOptions = readTranslatorOptions(elm);
+		if (translatorOptions == null) {
+			return false;
+		}
+
+		Set<String> options = new HashSet<>();
+		for (String option : translatorOptions.split(",")) {
+			if (!option.trim().isEmpty()) {
+				options.add(option.trim());
+			}
+		}
+
+		Set<String> expected = new HashSet<>();
+		if (cqlTranslatorOptions.getOptions() != null) {
+			for (CqlTranslator.Options option : cqlTranslatorOptions.getOptions()) {
+				expected.add(option.name());
+			}
+		}
+
+		return options.equals(expected);
+	}
+
+	// The translatorOptions of the annotations of ELM, or null if there are none
+	private static String readTranslatorOptions(byte[] elm) {
+		try {
+			return isXml(elm) ? readXmlTranslatorOptions(elm) : readJsonTranslatorOptions(elm);
+		} catch (Exception e) {
+			ourLog.debug("Unable to read the translator options of ELM", e);
+			return null;
+		}
+	}
+
+	private static boolean isXml(byte[] elm) {
+		int start = 0;
+		while (start < elm.length && Character.isWhitespace(elm[start])) {
+			start++;
+		}
+
+		return start < elm.length && elm[start] == '<';
+	}
+
+	private static XMLStreamReader createXmlReader(byte[] elm) throws XMLStreamException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		return factory.createXMLStreamReader(new ByteArrayInputStream(elm));
+	}
+
+	private static String readXmlTranslatorOptions(byte[] elm) throws XMLStreamException {
+		XMLStreamReader reader = createXmlReader(elm);
+		try {
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT && "annotation".equals(reader.getLocalName())) {
+					String options = reader.getAttributeValue(null, "translatorOptions");
+					if (options != null) {
+						return options;
+					}
+				}
+			}
+
+			return null;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String readJsonTranslatorOptions(byte[] elm) throws IOException {
+		try (JsonParser parser = new JsonFactory().createParser(elm)) {
+			while (parser.nextToken() != null) {
+				if (parser.getCurrentToken() == JsonToken.FIELD_NAME
+						&& "translatorOptions".equals(parser.getCurrentName()) && isInAnnotation(parser)
+						&& parser.nextToken() == JsonToken.VALUE_STRING) {
+					return parser.getText();
+				}
+			}
+
+			return null;
+		}
+	}
+
+	private static boolean isInAnnotation(JsonParser parser) {
+		for (JsonStreamContext context = parser.getParsingContext(); context != null; context = context
+				.getParent()) {
+			if ("annotation".equals(context.getCurrentName())) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Tests whether the ELM attached to a Library was translated from the CQL
+	 * attached to it.
+	 *
+	 * @param library     the Library
+	 * @param contentType the content type of the ELM
+	 * @return true if the ELM was translated from the current CQL
+	 * @see #elmMatchesCql(byte[], byte[], String)
+	 */
+	protected static boolean elmMatchesCql(IBaseResource library, String contentType) {
+		IBase attachment = getAttachment(library, contentType);
+		return attachment != null && elmMatchesCql(Libraries.getContent(library, "text/cql"),
+				Libraries.getContent(library, contentType), getCqlHash(attachment));
+	}
+
+	/**
+	 * Tests whether ELM was translated from CQL. The hash of the CQL recorded in
+	 * the {@link #CQL_HASH_EXTENSION} of the ELM attachment is compared with the
+	 * hash of the CQL. ELM without a recorded hash, such as ELM published with a
+	 * Library, may have been attached before the CQL was last edited, so it only
+	 * matches if there is no CQL, in which case it is the only content.
+	 *
+	 * @param cql     the CQL, or null if there is none
+	 * @param elm     the ELM, as XML or JSON
+	 * @param cqlHash the hash recorded in the ELM attachment, or null if there is
+	 *                none
+	 * @return true if the ELM was translated from the CQL
+	 */
+	static boolean elmMatchesCql(byte[] cql, byte[] elm, String cqlHash) {
+		if (cql == null) {
+			return true;
+		}
+
+		return cqlHash != null && PersistentElmStore.hash(cql).equals(cqlHash);
+	}
+
+	/**
+	 * Returns the first attachment of a Library with a content type.
+	 *
+	 * @param library     the Library
+	 * @param contentType the content type
+	 * @return the attachment, or null if there is none
+	 */
+	public static IBase getAttachment(IBaseResource library, String contentType) {
+		FhirTerser terser = FhirContext.forCached(library.getStructureFhirVersionEnum()).newTerser();
+		for (IBase attachment : terser.getValues(library, "content")) {
+			if (contentType.equals(terser.getSinglePrimitiveValueOrNull(attachment, "contentType"))) {
+				return attachment;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the hash of the CQL an ELM attachment was translated from.
+	 *
+	 * @param attachment the ELM attachment
+	 * @return the hash, or null if it is not recorded
+	 */
+	public static String getCqlHash(IBase attachment) {
+		if (!(attachment instanceof IBaseHasExtensions)) {
+			return null;
+		}
+
+		for (IBaseExtension<?, ?> extension : ((IBaseHasExtensions) attachment).getExtension()) {
+			if (CQL_HASH_EXTENSION.equals(extension.getUrl()) && extension.getValue() instanceof IPrimitiveType) {
+				return ((IPrimitiveType<?>) extension.getValue()).getValueAsString();
+			}
+		}
+
+		return null;
+	}
+
+	protected String getMimeType(LibraryContentType libraryContentType) {
+		switch (libraryContentType) {
+			case CQL:
+				return "text/cql";
+			case XML:
+				return "application/elm+xml";
+			case JSON:
+				return "application/elm+json";
+			default:
+				return null;
+		}
+	}
+
+	protected void indexResourceId(IBaseResource library, String name, String requestedVersion) {
+		indexResourceId(library.getIdElement().toUnqualifiedVersionless().getValue(), Libraries.getVersion(library),
+				name, requestedVersion);
+	}
+
+	protected void indexResourceId(String resourceId, String version, String name, String requestedVersion) {
+		if (libraryCache == null) {
+			return;
+		}
+
+		libraryCache.indexResourceId(resourceId,
+				new VersionedIdentifier().withId(name).withVersion(requestedVersion));
+
+		if (version != null && !version.equals(requestedVersion)) {
+			libraryCache.indexResourceId(resourceId, new VersionedIdentifier().withId(name).withVersion(version));
+		}
+	}
 }
@@ -2,7 +2,7 @@ package org.opencds.cqf.ruler.cql;
 
 import static com.google.common.base.Preconditions.checkState;
 
-import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
@@ -12,6 +12,8 @@ import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import ca.uhn.fhir.context.support.IValidationSupport;
 import ca.uhn.fhir.context.support.IValidationSupport.LookupCodeResult;
@@ -28,10 +30,14 @@ import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
  */
 public class JpaTerminologyProvider implements TerminologyProvider {
 
+	private static final Logger ourLog = LoggerFactory.getLogger(JpaTerminologyProvider.class);
+
 	private final ITermReadSvc myTerminologySvc;
 	private final IValidationSupport myValidationSupport;
 	private final RequestDetails myRequestDetails;
 	private final Map<VersionedIdentifier, List<Code>> myGlobalCodeCache;
+	private final MappedValueSetExpansionStore myExpansionStore;
+	private final SingleFlight<VersionedIdentifier, List<Code>> myInFlightExpansions;
 
 	public JpaTerminologyProvider(ITermReadSvc theTerminologySvc, IValidationSupport theValidationSupport,
 			Map<VersionedIdentifier, List<Code>> theGlobalCodeCache) {
@@ -41,15 +47,42 @@ public class JpaTerminologyProvider implements TerminologyProvider {
 	public JpaTerminologyProvider(ITermReadSvc theTerminologySvc, IValidationSupport theValidationSupport,
 			Map<VersionedIdentifier, List<Code>> theGlobalCodeCache,
 			RequestDetails theRequestDetails) {
+		this(theTerminologySvc, theValidationSupport, theGlobalCodeCache, theRequestDetails, null, null);
+	}
+
+	/**
+	 * @param theTerminologySvc    the terminology service used to expand value sets
+	 * @param theValidationSupport the validation support used to look up codes
+	 * @param theGlobalCodeCache   the cache of value set expansions
+	 * @param theRequestDetails    the RequestDetails of the current request
+	 * @param theExpansionStore    if not null, expansions large enough to be stored
+	 *                             are served from memory-mapped files instead of
+	 *                             the heap
+	 * @param theInFlightExpansions coordinates concurrent expansions of the same
+	 *                             value set. This should be shared by all
+	 *                             providers using the same code cache. If null,
+	 *                             expansions are not coordinated.
+	 */
+	public JpaTerminologyProvider(ITermReadSvc theTerminologySvc, IValidationSupport theValidationSupport,
+			Map<VersionedIdentifier, List<Code>> theGlobalCodeCache,
+			RequestDetails theRequestDetails, MappedValueSetExpansionStore theExpansionStore,
+			SingleFlight<VersionedIdentifier, List<Code>> theInFlightExpansions) {
 		myTerminologySvc = theTerminologySvc;
 		myValidationSupport = theValidationSupport;
 		myGlobalCodeCache = theGlobalCodeCache;
 		myRequestDetails = theRequestDetails;
+		myExpansionStore = theExpansionStore;
+		myInFlightExpansions = theInFlightExpansions;
 	}
 
 	@Override
 	public boolean in(Code code, ValueSetInfo valueSet) throws ResourceNotFoundException {
-		for (Code c : expand(valueSet)) {
+		Iterable<Code> expansion = expand(valueSet);
+		if (expansion instanceof ValueSetMembership) {
+			return ((ValueSetMembership) expansion).contains(code.getSystem(), code.getCode());
+		}
+
+		for (Code c : expansion) {
 			if (c == null)
 				continue;
 			if (c.getCode().equals(code.getCode()) && c.getSystem().equals(code.getSystem())) {
@@ -77,7 +110,6 @@ public class JpaTerminologyProvider implements TerminologyProvider {
 	public Iterable<Code> expand(ValueSetInfo valueSet) throws ResourceNotFoundException {
 		// This could possibly be refactored into a single call to the underlying HAPI
 		// Terminology service. Need to think through that..,
-		IBaseResource vs;
 		if (hasUrlId(valueSet) && (hasVersion(valueSet) || hasVersionedCodeSystem(valueSet))) {
 			throw new UnsupportedOperationException(String.format(
 					"Could not expand value set %s; version and code system bindings are not supported at this time.",
@@ -86,17 +118,42 @@ public class JpaTerminologyProvider implements TerminologyProvider {
 
 		VersionedIdentifier vsId = new VersionedIdentifier().withId(valueSet.getId()).withVersion(valueSet.getVersion());
 
-		if (this.myGlobalCodeCache.containsKey(vsId)) {
-			return this.myGlobalCodeCache.get(vsId);
+		List<Code> cached = this.myGlobalCodeCache.get(vsId);
+		if (cached != null) {
+			return cached;
+		}
+
+		if (this.myInFlightExpansions == null) {
+			return expandAndCache(vsId);
+		}
+
+		return this.myInFlightExpansions.execute(vsId, () -> {
+			List<Code> codes = this.myGlobalCodeCache.get(vsId);
+			return codes != null ? codes : expandAndCache(vsId);
+		});
+	}
+
+	protected List<Code> expandAndCache(VersionedIdentifier vsId) {
+		String stamp = this.myExpansionStore != null ? getStamp(vsId.getId()) : null;
+		if (stamp != null) {
+			List<Code> stored = this.myExpansionStore.get(vsId, stamp);
+			if (stored != null) {
+				this.myGlobalCodeCache.put(vsId, stored);
+				return stored;
+			}
 		}
 
 		ValueSetExpansionOptions valueSetExpansionOptions = new ValueSetExpansionOptions();
 		valueSetExpansionOptions.setFailOnMissingCodeSystem(false);
 		valueSetExpansionOptions.setCount(Integer.MAX_VALUE);
 
-		vs = myTerminologySvc.expandValueSet(valueSetExpansionOptions, valueSet.getId());
+		IBaseResource vs = myTerminologySvc.expandValueSet(valueSetExpansionOptions, vsId.getId());
 
 		List<Code> codes = getCodes((org.hl7.fhir.r4.model.ValueSet) vs);
+		if (stamp != null && codes instanceof ValueSetExpansion && this.myExpansionStore.shouldStore(codes.size())) {
+			codes = this.myExpansionStore.put(vsId, stamp, (ValueSetExpansion) codes);
+		}
+
 		this.myGlobalCodeCache.put(vsId, codes);
 		return codes;
 	}
@@ -112,16 +169,43 @@ public class JpaTerminologyProvider implements TerminologyProvider {
 		return code;
 	}
 
+	/**
+	 * Returns a value identifying the current version of a ValueSet, used to tell
+	 * whether a stored expansion is stale.
+	 *
+	 * @param theUrl the url of the ValueSet
+	 * @return the version id and last updated time of the ValueSet, or null if it
+	 *         could not be found
+	 */
+	protected String getStamp(String theUrl) {
+		try {
+			IBaseResource valueSet = myValidationSupport.fetchValueSet(theUrl);
+			if (valueSet == null) {
+				return null;
+			}
+
+			Date lastUpdated = valueSet.getMeta().getLastUpdated();
+			return valueSet.getIdElement().getVersionIdPart() + "|"
+					+ (lastUpdated == null ? "" : lastUpdated.getTime());
+		} catch (Exception e) {
+			ourLog.debug("Unable to look up ValueSet {} to stamp its expansion", theUrl, e);
+			return null;
+		}
+	}
+
 	protected List<Code> getCodes(org.hl7.fhir.r4.model.ValueSet theValueSet) {
 		checkState(theValueSet.hasExpansion(),
 				"ValueSet {} did not have an expansion. Unable to get codes unexpanded ValueSet.", theValueSet.getUrl());
-		List<Code> codes = new ArrayList<>();
+		ValueSetExpansion.Builder builder = ValueSetExpansion.builder();
 
 		for (org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionContainsComponent vse : theValueSet.getExpansion()
 				.getContains()) {
-			codes.add(new Code().withCode(vse.getCode()).withSystem(vse.getSystem()));
+			builder.add(vse.getSystem(), vse.getCode());
 		}
 
-		return codes;
+		ValueSetExpansion expansion = builder.build();
+		ourLog.debug("Cached {} codes for ValueSet {} in approximately {} bytes", expansion.size(),
+				theValueSet.getUrl(), expansion.getEstimatedSizeInBytes());
+		return expansion;
 	}
 }
@@ -0,0 +1,329 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.ruler.behavior.DaoRegistryUser;
+import org.opencds.cqf.ruler.utility.Libraries;
+import org.opencds.cqf.ruler.utility.Reflections;
+import org.opencds.cqf.ruler.utility.Searches;
+import org.opencds.cqf.ruler.utility.Versions;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * A bounded in-memory index of the content of the Library resources on the
+ * server by name, used by the {@link JpaLibraryContentProvider} to resolve the
+ * includes of a library without searching for them on every translation. Each
+ * name is loaded with a single search the first time it is resolved, and only
+ * the CQL and ELM of the Libraries found, with the hash of the CQL, are kept.
+ * <p>
+ * The index is partitioned by the scope of the requests it is loaded for (see
+ * {@link RequestScopes}), so that a request is only served Libraries it was
+ * allowed to search for. It is registered with the JPA interceptor service and
+ * invalidates the names of a Library before a write of the Library commits, and
+ * again after, so that a translation never sees a Library that was replaced.
+ */
+@Interceptor
+public class LibraryContentIndex implements DaoRegistryUser {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(LibraryContentIndex.class);
+
+	private static final String LIBRARY = "Library";
+	private static final String CQL_CONTENT_TYPE = "text/cql";
+	private static final String[] ELM_CONTENT_TYPES = { "application/elm+xml", "application/elm+json" };
+
+	private final DaoRegistry myDaoRegistry;
+	private final Cache<Key, List<Entry>> myEntries;
+	private final SingleFlight<Key, List<Entry>> myInFlightLoads = new SingleFlight<>();
+
+	// Incremented by each write of a Library, so that a name loaded concurrently
+	// with a write is not indexed
+	private final AtomicLong myGeneration = new AtomicLong();
+
+	/**
+	 * @param theDaoRegistry   the DaoRegistry used to search for Libraries
+	 * @param theMaximumWeight the maximum total size, in bytes, of the content
+	 *                         held by the index
+	 */
+	public LibraryContentIndex(DaoRegistry theDaoRegistry, long theMaximumWeight) {
+		myDaoRegistry = theDaoRegistry;
+		myEntries = Caffeine.newBuilder().maximumWeight(theMaximumWeight)
+				.weigher((Key k, List<Entry> v) -> weigh(v)).build();
+	}
+
+	@Override
+	public DaoRegistry getDaoRegistry() {
+		return myDaoRegistry;
+	}
+
+	/**
+	 * Returns the Library with a name that best matches a version, as selected by
+	 * {@link Versions#selectByVersion}, loading the Libraries with the name if they
+	 * are not yet indexed for the scope of the request.
+	 *
+	 * @param theName           the name of the Library
+	 * @param theVersion        the version of the Library, or null for the latest
+	 * @param theRequestDetails the RequestDetails used to search for the Libraries
+	 * @return the Library, or null if there is none with the name
+	 */
+	public Entry get(String theName, String theVersion, RequestDetails theRequestDetails) {
+		Key key = new Key(RequestScopes.scopeOf(theRequestDetails), theName);
+		List<Entry> entries = myEntries.getIfPresent(key);
+		if (entries == null) {
+			entries = myInFlightLoads.execute(key, () -> load(key, theRequestDetails));
+		}
+
+		return select(entries, theVersion);
+	}
+
+	/**
+	 * @param theName the name of a Library
+	 * @return true if the Libraries with the name are indexed for any scope
+	 */
+	public boolean isIndexed(String theName) {
+		return myEntries.asMap().keySet().stream().anyMatch(key -> key.myName.equals(theName));
+	}
+
+	public long size() {
+		return myEntries.estimatedSize();
+	}
+
+	/**
+	 * Removes all Libraries from the index.
+	 */
+	public void clear() {
+		myGeneration.incrementAndGet();
+		myEntries.invalidateAll();
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		invalidate(theResource, null);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		// A Library that was renamed is removed under both names
+		invalidate(theOldResource, theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		invalidate(theResource, null);
+	}
+
+	private void invalidate(IBaseResource theResource, IBaseResource theOtherResource) {
+		Set<String> names = new HashSet<>();
+		for (IBaseResource resource : new IBaseResource[] { theResource, theOtherResource }) {
+			if (resource == null || !LIBRARY.equals(resource.fhirType())) {
+				continue;
+			}
+
+			String name = Reflections.getNameFunction(resource.getClass()).apply(resource);
+			if (name == null) {
+				ourLog.debug("A Library without a name was written, clearing the index");
+				clear();
+				afterCommit(this::clear);
+				return;
+			}
+			names.add(name);
+		}
+
+		if (names.isEmpty()) {
+			return;
+		}
+
+		Runnable invalidation = () -> {
+			myGeneration.incrementAndGet();
+			myEntries.asMap().keySet().removeIf(key -> names.contains(key.myName));
+		};
+		invalidation.run();
+		afterCommit(invalidation);
+	}
+
+	private static void afterCommit(Runnable theInvalidation) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return;
+		}
+
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+			@Override
+			public void afterCommit() {
+				theInvalidation.run();
+			}
+		});
+	}
+
+	private List<Entry> load(Key theKey, RequestDetails theRequestDetails) {
+		long generation = myGeneration.get();
+		List<IBaseResource> libraries = searchByName(theKey.myName, theRequestDetails);
+
+		List<Entry> entries = new ArrayList<>(libraries.size());
+		for (IBaseResource library : libraries) {
+			entries.add(new Entry(library));
+		}
+		entries = Collections.unmodifiableList(entries);
+
+		myEntries.put(theKey, entries);
+		if (myGeneration.get() != generation) {
+			myEntries.invalidate(theKey);
+		}
+
+		return entries;
+	}
+
+	// The entry with a version, or the latest version if there is none, as
+	// selected by Versions.selectByVersion
+	private static Entry select(List<Entry> theEntries, String theVersion) {
+		Entry match = null;
+		Entry latest = null;
+		for (Entry entry : theEntries) {
+			if (Objects.equals(theVersion, entry.getVersion())) {
+				match = entry;
+			}
+
+			if (latest == null || Versions.compareVersions(entry.getVersion(), latest.getVersion()) >= 0) {
+				latest = entry;
+			}
+		}
+
+		return theVersion == null || match == null ? latest : match;
+	}
+
+	private static int weigh(List<Entry> theEntries) {
+		long weight = 1;
+		for (Entry entry : theEntries) {
+			weight += entry.getWeight();
+		}
+
+		return (int) Math.min(weight, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Searches for the Libraries with a name.
+	 *
+	 * @param theName           the name
+	 * @param theRequestDetails the RequestDetails of the search
+	 * @return the Libraries
+	 */
+	protected List<IBaseResource> searchByName(String theName, RequestDetails theRequestDetails) {
+		return search(getClass(LIBRARY), Searches.byName(theName), theRequestDetails).getAllResources();
+	}
+
+	private static final class Key {
+		private final String myScope;
+		private final String myName;
+
+		Key(String theScope, String theName) {
+			myScope = theScope;
+			myName = theName;
+		}
+
+		@Override
+		public boolean equals(Object theOther) {
+			if (this == theOther) {
+				return true;
+			}
+			if (!(theOther instanceof Key)) {
+				return false;
+			}
+
+			Key other = (Key) theOther;
+			return myScope.equals(other.myScope) && myName.equals(other.myName);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * myScope.hashCode() + myName.hashCode();
+		}
+	}
+
+	/**
+	 * The content of a Library in the index: its CQL, the hash of its CQL, and the
+	 * ELM attached to it.
+	 */
+	public static final class Entry {
+		private final String myResourceId;
+		private final String myVersion;
+		private final String myContentHash;
+		private final Map<String, byte[]> myContent = new HashMap<>();
+
+		Entry(IBaseResource theLibrary) {
+			myResourceId = theLibrary.getIdElement().toUnqualifiedVersionless().getValue();
+			myVersion = Libraries.getVersion(theLibrary);
+
+			byte[] cql = Libraries.getContent(theLibrary, CQL_CONTENT_TYPE);
+			myContentHash = cql == null ? null : PersistentElmStore.hash(cql);
+			if (cql != null) {
+				myContent.put(CQL_CONTENT_TYPE, cql);
+			}
+
+			for (String contentType : ELM_CONTENT_TYPES) {
+				byte[] elm = Libraries.getContent(theLibrary, contentType);
+				if (elm != null) {
+					IBase attachment = JpaLibraryContentProvider.getAttachment(theLibrary, contentType);
+					if (JpaLibraryContentProvider.elmMatchesCql(cql, elm,
+							JpaLibraryContentProvider.getCqlHash(attachment))) {
+						myContent.put(contentType, elm);
+					}
+				}
+			}
+		}
+
+		public String getResourceId() {
+			return myResourceId;
+		}
+
+		public String getVersion() {
+			return myVersion;
+		}
+
+		/**
+		 * @return the SHA-256 hash of the CQL content of the Library, as hex, or null
+		 *         if it has no CQL content
+		 */
+		public String getContentHash() {
+			return myContentHash;
+		}
+
+		/**
+		 * Returns the content of the Library with a content type. ELM is only
+		 * returned if it was translated from the CQL of the Library, as tested by
+		 * {@link JpaLibraryContentProvider#elmMatchesCql(byte[], byte[], String)}.
+		 *
+		 * @param theContentType the content type
+		 * @return the content, or null if there is none
+		 */
+		public byte[] getContent(String theContentType) {
+			return myContent.get(theContentType);
+		}
+
+		int getWeight() {
+			int weight = 1;
+			for (byte[] content : myContent.values()) {
+				weight += content.length;
+			}
+
+			return weight;
+		}
+	}
+}
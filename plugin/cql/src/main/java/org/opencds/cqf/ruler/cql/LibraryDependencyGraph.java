@@ -0,0 +1,103 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+
+/**
+ * A reverse-dependency graph of CQL library includes. Edges are recorded as
+ * libraries are translated, and are keyed by the name of the included library
+ * since an include without a version resolves to whichever version is current.
+ */
+public class LibraryDependencyGraph {
+
+	private final Map<String, Set<VersionedIdentifier>> myDependents = new ConcurrentHashMap<>();
+
+	/**
+	 * Records that the given library depends on each of the libraries it includes.
+	 *
+	 * @param theIdentifier the identifier the library was loaded with
+	 * @param theLibrary    the translated library
+	 */
+	public void addIncludes(VersionedIdentifier theIdentifier, Library theLibrary) {
+		if (theIdentifier == null || theLibrary == null || theLibrary.getIncludes() == null) {
+			return;
+		}
+
+		for (IncludeDef include : theLibrary.getIncludes().getDef()) {
+			if (include.getPath() == null) {
+				continue;
+			}
+
+			myDependents.compute(include.getPath(), (path, dependents) -> {
+				Set<VersionedIdentifier> added = dependents != null ? dependents : ConcurrentHashMap.newKeySet();
+				added.add(theIdentifier);
+				return added;
+			});
+		}
+	}
+
+	/**
+	 * Returns the libraries that directly include the given library.
+	 *
+	 * @param theIdentifier the identifier of the included library
+	 * @return the direct dependents
+	 */
+	public Set<VersionedIdentifier> getDependents(VersionedIdentifier theIdentifier) {
+		if (theIdentifier == null) {
+			return Collections.emptySet();
+		}
+
+		Set<VersionedIdentifier> dependents = myDependents.get(theIdentifier.getId());
+		return dependents == null ? Collections.emptySet() : Collections.unmodifiableSet(dependents);
+	}
+
+	/**
+	 * Returns every library that directly or indirectly includes the given
+	 * library, nearest dependents first.
+	 *
+	 * @param theIdentifier the identifier of the included library
+	 * @return the transitive dependents
+	 */
+	public Set<VersionedIdentifier> getTransitiveDependents(VersionedIdentifier theIdentifier) {
+		Set<VersionedIdentifier> visited = new LinkedHashSet<>();
+		Deque<VersionedIdentifier> queue = new ArrayDeque<>(getDependents(theIdentifier));
+		while (!queue.isEmpty()) {
+			VersionedIdentifier current = queue.poll();
+			if (visited.add(current)) {
+				queue.addAll(getDependents(current));
+			}
+		}
+
+		visited.remove(theIdentifier);
+		return visited;
+	}
+
+	/**
+	 * Removes the edges recorded for the given library as a dependent. Called
+	 * when the library is invalidated or evicted from the cache, since its
+	 * includes may change when it is translated again.
+	 *
+	 * @param theIdentifier the identifier of the dependent library
+	 */
+	public void removeDependent(VersionedIdentifier theIdentifier) {
+		for (String path : myDependents.keySet()) {
+			myDependents.computeIfPresent(path, (p, dependents) -> {
+				dependents.remove(theIdentifier);
+				return dependents.isEmpty() ? null : dependents;
+			});
+		}
+	}
+
+	public void clear() {
+		myDependents.clear();
+	}
+}
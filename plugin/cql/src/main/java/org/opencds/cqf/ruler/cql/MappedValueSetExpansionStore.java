@@ -0,0 +1,404 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists large value set expansions to memory-mapped files on local disk so
+ * that they are held outside the Java heap and survive restarts. Each file is
+ * stamped with the version of the ValueSet resource it was expanded from, so a
+ * stale file is ignored (and replaced) if the ValueSet changed while the
+ * server was down.
+ * <p>
+ * File layout (big-endian): magic, stamp, code system dictionary, code count,
+ * system index per code, byte offset per code, membership table, UTF-8 code
+ * data.
+ */
+public class MappedValueSetExpansionStore {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(MappedValueSetExpansionStore.class);
+
+	private static final int MAGIC = 0x56534531;
+	private static final String EXTENSION = ".vse";
+	private static final String TEMPORARY_PREFIX = "expansion";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	private final Path myDirectory;
+	private final int myThreshold;
+
+	/**
+	 * @param theDirectory the directory in which expansions are stored
+	 * @param theThreshold the minimum number of codes an expansion must have to
+	 *                     be stored
+	 */
+	public MappedValueSetExpansionStore(Path theDirectory, int theThreshold) {
+		myDirectory = theDirectory;
+		myThreshold = theThreshold;
+	}
+
+	/**
+	 * Tests whether an expansion is large enough to be stored.
+	 *
+	 * @param theSize the number of codes in the expansion
+	 * @return true if the expansion should be stored
+	 */
+	public boolean shouldStore(int theSize) {
+		return theSize >= myThreshold;
+	}
+
+	/**
+	 * Returns the stored expansion of a value set, if present and stamped with
+	 * the given stamp.
+	 *
+	 * @param theIdentifier the value set url and version
+	 * @param theStamp      the current version of the ValueSet resource
+	 * @return the mapped expansion, or null if there is no current expansion
+	 */
+	public MappedValueSetExpansion get(VersionedIdentifier theIdentifier, String theStamp) {
+		Path file = pathFor(theIdentifier);
+		if (!Files.exists(file)) {
+			return null;
+		}
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			MappedValueSetExpansion expansion = new MappedValueSetExpansion(buffer);
+			if (!Objects.equals(expansion.getStamp(), theStamp == null ? "" : theStamp)) {
+				ourLog.debug("Stored expansion for ValueSet {} is stale", theIdentifier.getId());
+				return null;
+			}
+
+			return expansion;
+		} catch (IOException | RuntimeException e) {
+			ourLog.warn("Unable to read stored expansion for ValueSet {}", theIdentifier.getId(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes an expansion to disk and returns a mapped view of it.
+	 *
+	 * @param theIdentifier the value set url and version
+	 * @param theStamp      the current version of the ValueSet resource
+	 * @param theExpansion  the expansion to store
+	 * @return the mapped expansion, or the original expansion if it could not be
+	 *         stored
+	 */
+	public List<Code> put(VersionedIdentifier theIdentifier, String theStamp,
+			ValueSetExpansion theExpansion) {
+		Path file = pathFor(theIdentifier);
+		Path temp = null;
+		try {
+			Files.createDirectories(myDirectory);
+			temp = Files.createTempFile(myDirectory, TEMPORARY_PREFIX, TEMPORARY_SUFFIX);
+			try (OutputStream stream = Files.newOutputStream(temp)) {
+				write(new DataOutputStream(new BufferedOutputStream(stream)), theStamp, theExpansion);
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			ourLog.warn("Unable to store expansion for ValueSet {}", theIdentifier.getId(), e);
+			deleteQuietly(temp);
+			return theExpansion;
+		}
+
+		MappedValueSetExpansion mapped = get(theIdentifier, theStamp);
+		return mapped != null ? mapped : theExpansion;
+	}
+
+	/**
+	 * Deletes the stored expansion of a value set.
+	 *
+	 * @param theIdentifier the value set url and version
+	 */
+	public void remove(VersionedIdentifier theIdentifier) {
+		try {
+			Files.deleteIfExists(pathFor(theIdentifier));
+		} catch (IOException e) {
+			ourLog.warn("Unable to delete stored expansion for ValueSet {}", theIdentifier.getId(), e);
+		}
+	}
+
+	/**
+	 * Deletes all stored expansions.
+	 */
+	public void clear() {
+		if (!Files.isDirectory(myDirectory)) {
+			return;
+		}
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(myDirectory, "*" + EXTENSION)) {
+			for (Path file : files) {
+				Files.deleteIfExists(file);
+			}
+		} catch (IOException e) {
+			ourLog.warn("Unable to clear stored expansions in {}", myDirectory, e);
+		}
+	}
+
+	/**
+	 * Deletes the temporary files of expansions that were being written when the
+	 * server stopped. Only call this before the store is used, as it would also
+	 * delete the files of writes in progress.
+	 */
+	public void deleteTemporaryFiles() {
+		if (!Files.isDirectory(myDirectory)) {
+			return;
+		}
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(myDirectory,
+				TEMPORARY_PREFIX + "*" + TEMPORARY_SUFFIX)) {
+			for (Path file : files) {
+				deleteQuietly(file);
+			}
+		} catch (IOException e) {
+			ourLog.warn("Unable to delete temporary files in {}", myDirectory, e);
+		}
+	}
+
+	private static void deleteQuietly(Path theFile) {
+		if (theFile == null) {
+			return;
+		}
+
+		try {
+			Files.deleteIfExists(theFile);
+		} catch (IOException e) {
+			ourLog.debug("Unable to delete {}", theFile, e);
+		}
+	}
+
+	protected Path pathFor(VersionedIdentifier theIdentifier) {
+		String key = theIdentifier.getId() + "|" + (theIdentifier.getVersion() == null ? "" : theIdentifier.getVersion());
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (byte b : digest) {
+				name.append(String.format("%02x", b));
+			}
+			return myDirectory.resolve(name.append(EXTENSION).toString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void write(DataOutputStream theStream, String theStamp, ValueSetExpansion theExpansion)
+			throws IOException {
+		int size = theExpansion.size();
+
+		Map<String, Integer> systems = new LinkedHashMap<>();
+		int[] systemIndexes = new int[size];
+		int[] offsets = new int[size + 1];
+		ByteArrayOutputStream codeData = new ByteArrayOutputStream();
+		for (int i = 0; i < size; i++) {
+			String system = theExpansion.getSystem(i);
+			systemIndexes[i] = system == null ? -1 : systems.computeIfAbsent(system, x -> systems.size());
+			byte[] code = theExpansion.getCode(i).getBytes(StandardCharsets.UTF_8);
+			codeData.write(code);
+			offsets[i + 1] = codeData.size();
+		}
+
+		byte[] data = codeData.toByteArray();
+		int[] table = new int[MappedValueSetExpansion.tableSize(size)];
+		for (int i = 0; i < size; i++) {
+			int slot = MappedValueSetExpansion.hash(systemIndexes[i], data, offsets[i], offsets[i + 1])
+					& (table.length - 1);
+			while (table[slot] != 0) {
+				slot = (slot + 1) & (table.length - 1);
+			}
+			table[slot] = i + 1;
+		}
+
+		theStream.writeInt(MAGIC);
+		theStream.writeUTF(theStamp == null ? "" : theStamp);
+		theStream.writeInt(systems.size());
+		for (String system : systems.keySet()) {
+			byte[] bytes = system.getBytes(StandardCharsets.UTF_8);
+			theStream.writeInt(bytes.length);
+			theStream.write(bytes);
+		}
+		theStream.writeInt(size);
+		for (int systemIndex : systemIndexes) {
+			theStream.writeInt(systemIndex);
+		}
+		for (int offset : offsets) {
+			theStream.writeInt(offset);
+		}
+		theStream.writeInt(table.length);
+		for (int slot : table) {
+			theStream.writeInt(slot);
+		}
+		theStream.write(data);
+		theStream.flush();
+	}
+
+	/**
+	 * A read-only value set expansion served from a memory-mapped file. Only the
+	 * code system dictionary and the section offsets are held on the heap.
+	 */
+	public static class MappedValueSetExpansion extends AbstractList<Code> implements ValueSetMembership {
+
+		private final ByteBuffer myBuffer;
+		private final String myStamp;
+		private final String[] mySystems;
+		private final int mySize;
+		private final int mySystemIndexesStart;
+		private final int myOffsetsStart;
+		private final int myTableSize;
+		private final int myTableStart;
+		private final int myDataStart;
+
+		MappedValueSetExpansion(ByteBuffer theBuffer) {
+			myBuffer = theBuffer;
+			if (theBuffer.getInt() != MAGIC) {
+				throw new IllegalStateException("Not a stored value set expansion");
+			}
+
+			byte[] stamp = new byte[theBuffer.getShort() & 0xFFFF];
+			theBuffer.get(stamp);
+			myStamp = new String(stamp, StandardCharsets.UTF_8);
+
+			mySystems = new String[theBuffer.getInt()];
+			for (int i = 0; i < mySystems.length; i++) {
+				byte[] system = new byte[theBuffer.getInt()];
+				theBuffer.get(system);
+				mySystems[i] = new String(system, StandardCharsets.UTF_8);
+			}
+
+			mySize = theBuffer.getInt();
+			mySystemIndexesStart = theBuffer.position();
+			myOffsetsStart = mySystemIndexesStart + mySize * 4;
+			myTableSize = theBuffer.getInt(myOffsetsStart + (mySize + 1) * 4);
+			myTableStart = myOffsetsStart + (mySize + 1) * 4 + 4;
+			myDataStart = myTableStart + myTableSize * 4;
+		}
+
+		public String getStamp() {
+			return myStamp;
+		}
+
+		@Override
+		public boolean contains(String theSystem, String theCode) {
+			if (theCode == null || mySize == 0) {
+				return false;
+			}
+
+			int systemIndex = systemIndexOf(theSystem);
+			if (systemIndex == Integer.MIN_VALUE) {
+				return false;
+			}
+
+			byte[] code = theCode.getBytes(StandardCharsets.UTF_8);
+			int slot = hash(systemIndex, code, 0, code.length) & (myTableSize - 1);
+			int position;
+			while ((position = myBuffer.getInt(myTableStart + slot * 4)) != 0) {
+				if (matches(position - 1, systemIndex, code)) {
+					return true;
+				}
+				slot = (slot + 1) & (myTableSize - 1);
+			}
+
+			return false;
+		}
+
+		@Override
+		public Code get(int theIndex) {
+			if (theIndex < 0 || theIndex >= mySize) {
+				throw new IndexOutOfBoundsException("Index: " + theIndex + ", Size: " + mySize);
+			}
+
+			int systemIndex = myBuffer.getInt(mySystemIndexesStart + theIndex * 4);
+			int start = offset(theIndex);
+			byte[] code = new byte[offset(theIndex + 1) - start];
+			for (int i = 0; i < code.length; i++) {
+				code[i] = myBuffer.get(myDataStart + start + i);
+			}
+
+			return new Code().withSystem(systemIndex < 0 ? null : mySystems[systemIndex])
+					.withCode(new String(code, StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public int size() {
+			return mySize;
+		}
+
+		private int offset(int theIndex) {
+			return myBuffer.getInt(myOffsetsStart + theIndex * 4);
+		}
+
+		private int systemIndexOf(String theSystem) {
+			if (theSystem == null) {
+				return -1;
+			}
+
+			for (int i = 0; i < mySystems.length; i++) {
+				if (mySystems[i].equals(theSystem)) {
+					return i;
+				}
+			}
+
+			return Integer.MIN_VALUE;
+		}
+
+		private boolean matches(int thePosition, int theSystemIndex, byte[] theCode) {
+			if (myBuffer.getInt(mySystemIndexesStart + thePosition * 4) != theSystemIndex) {
+				return false;
+			}
+
+			int start = offset(thePosition);
+			if (offset(thePosition + 1) - start != theCode.length) {
+				return false;
+			}
+
+			for (int i = 0; i < theCode.length; i++) {
+				if (myBuffer.get(myDataStart + start + i) != theCode[i]) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		static int hash(int theSystemIndex, byte[] theData, int theStart, int theEnd) {
+			int hash = theSystemIndex;
+			for (int i = theStart; i < theEnd; i++) {
+				hash = 31 * hash + theData[i];
+			}
+
+			return hash ^ (hash >>> 16);
+		}
+
+		static int tableSize(int theSize) {
+			int size = 2;
+			while (size < theSize * 2) {
+				size <<= 1;
+			}
+
+			return size;
+		}
+	}
+}
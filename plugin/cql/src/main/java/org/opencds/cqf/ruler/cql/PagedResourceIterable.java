@@ -0,0 +1,196 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * A lazy view of the results of a search. Resources are loaded one page at a
+ * time as they are iterated, so a consumer that stops early (e.g. CQL that only
+ * takes the First of a retrieve) never loads the rest of the results. Each page
+ * is loaded once: the pages loaded so far are retained and shared by the
+ * iterators of the Iterable, so iterating the results again does not run the
+ * search again.
+ * <p>
+ * Searches of the JPA server are paged with synchronous _count and _offset
+ * queries, see {@link #forSearch}, so that they are neither written to nor
+ * served from the JPA search cache.
+ * <p>
+ * This has costs to weigh against the page size. Each page is a query sorted by
+ * _id that the database skips _offset rows of, so a full pass over N resources
+ * reads about N²/(2 × page size) rows; the JPA server can not page on an _id
+ * cursor, as _id does not support comparisons. And since the loaded pages are
+ * retained, a full pass holds as many resources as loading all the results at
+ * once would. The paging pays off when consumers stop early. For a single full
+ * pass over large results, use {@link #forEachResource}, which does not retain
+ * pages, with a large page size.
+ */
+public class PagedResourceIterable implements Iterable<IBaseResource> {
+
+	/**
+	 * Loads a page of the results of a search.
+	 */
+	@FunctionalInterface
+	public interface PageLoader {
+		/**
+		 * @param theOffset the index of the first resource of the page
+		 * @param theCount  the number of resources in a full page
+		 * @return the resources of the page, fewer than theCount if it is the last
+		 *         page
+		 */
+		List<IBaseResource> load(int theOffset, int theCount);
+	}
+
+	private final PageLoader myPageLoader;
+	private final int myPageSize;
+	private final List<IBaseResource> myLoaded = new ArrayList<>();
+	private boolean myExhausted;
+
+	/**
+	 * @param theBundleProvider the results of a search
+	 * @param thePageSize       the number of resources loaded at a time
+	 */
+	public PagedResourceIterable(IBundleProvider theBundleProvider, int thePageSize) {
+		this(bundleProviderPages(theBundleProvider), thePageSize);
+	}
+
+	/**
+	 * @param thePageLoader loads the pages of a search
+	 * @param thePageSize   the number of resources loaded at a time
+	 */
+	public PagedResourceIterable(PageLoader thePageLoader, int thePageSize) {
+		if (thePageSize <= 0) {
+			throw new IllegalArgumentException("thePageSize must be greater than 0");
+		}
+
+		myPageLoader = thePageLoader;
+		myPageSize = thePageSize;
+	}
+
+	/**
+	 * Returns a lazy view of the results of a search of the JPA server. The search
+	 * is not run until the results are iterated.
+	 *
+	 * @param theDao            the DAO of the resource type
+	 * @param theMap            the search, which is owned by the returned Iterable
+	 * @param theRequestDetails the RequestDetails of the current request
+	 * @param thePageSize       the number of resources loaded at a time
+	 * @return the results
+	 */
+	public static PagedResourceIterable forSearch(IFhirResourceDao<?> theDao, SearchParameterMap theMap,
+			RequestDetails theRequestDetails, int thePageSize) {
+		return new PagedResourceIterable(searchPages(theDao, theMap, theRequestDetails), thePageSize);
+	}
+
+	/**
+	 * Runs a search of the JPA server a page at a time, as {@link #forSearch}
+	 * does, and passes each resource to a consumer. Pages are not retained, so
+	 * this suits a single pass over large results.
+	 *
+	 * @param theDao            the DAO of the resource type
+	 * @param theMap            the search
+	 * @param theRequestDetails the RequestDetails of the current request
+	 * @param thePageSize       the number of resources loaded at a time
+	 * @param theConsumer       receives each resource
+	 */
+	public static void forEachResource(IFhirResourceDao<?> theDao, SearchParameterMap theMap,
+			RequestDetails theRequestDetails, int thePageSize, Consumer<IBaseResource> theConsumer) {
+		PageLoader pages = searchPages(theDao, theMap, theRequestDetails);
+		List<IBaseResource> page;
+		int offset = 0;
+		do {
+			page = pages.load(offset, thePageSize);
+			page.forEach(theConsumer);
+			offset += thePageSize;
+		} while (page.size() >= thePageSize);
+	}
+
+	// Each page is a synchronous query, sorted so that the pages do not overlap
+	private static PageLoader searchPages(IFhirResourceDao<?> theDao, SearchParameterMap theMap,
+			RequestDetails theRequestDetails) {
+		theMap.setLoadSynchronous(true);
+		if (theMap.getSort() == null) {
+			theMap.setSort(new SortSpec("_id"));
+		}
+
+		return (offset, count) -> {
+			List<IBaseResource> page;
+			synchronized (theMap) {
+				theMap.setOffset(offset);
+				theMap.setCount(count);
+				page = theDao.search(theMap, theRequestDetails).getAllResources();
+			}
+			return page == null ? Collections.emptyList() : page;
+		};
+	}
+
+	private static PageLoader bundleProviderPages(IBundleProvider theBundleProvider) {
+		return (offset, count) -> {
+			Integer size = theBundleProvider.size();
+			int to = size == null ? offset + count : Math.min(offset + count, size);
+			if (offset >= to) {
+				return Collections.emptyList();
+			}
+
+			List<IBaseResource> page = theBundleProvider.getResources(offset, to);
+			return page == null ? Collections.emptyList() : page;
+		};
+	}
+
+	@Override
+	public Iterator<IBaseResource> iterator() {
+		return new PagedIterator();
+	}
+
+	// Whether the resource at an index exists, loading pages until it is loaded
+	// or there are no more
+	private synchronized boolean load(int theIndex) {
+		while (theIndex >= myLoaded.size()) {
+			if (myExhausted) {
+				return false;
+			}
+
+			List<IBaseResource> page = myPageLoader.load(myLoaded.size(), myPageSize);
+			myLoaded.addAll(page);
+			// A short page means there are no more results
+			if (page.size() < myPageSize) {
+				myExhausted = true;
+			}
+		}
+
+		return true;
+	}
+
+	private synchronized IBaseResource get(int theIndex) {
+		return myLoaded.get(theIndex);
+	}
+
+	private class PagedIterator implements Iterator<IBaseResource> {
+		private int myIndex;
+
+		@Override
+		public boolean hasNext() {
+			return load(myIndex);
+		}
+
+		@Override
+		public IBaseResource next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+
+			return get(myIndex++);
+		}
+	}
+}
@@ -0,0 +1,343 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorException;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.cql2elm.model.TranslatedLibrary;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.CqlLibraryReader;
+import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
+import org.opencds.cqf.ruler.cql.utility.Translators;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Translates a CQL library together with the libraries it includes, translating
+ * independent includes concurrently. The include graph is resolved up front
+ * from the include declarations in the CQL of each library. Each library is
+ * then translated once, on the executor, as soon as the libraries it includes
+ * have been translated, with their translations handed to its LibraryManager so
+ * that they are not translated again. The time to translate a library is then
+ * bounded by the depth of its include graph rather than by the number of
+ * libraries in it.
+ * <p>
+ * The libraries of the graph are identified by name and by the version
+ * declared in their CQL, so that each version of an include is translated
+ * separately. A LibraryManager holds one translation of each name, so a
+ * library that includes, directly or indirectly, two versions of the same
+ * library is not translated this way.
+ */
+public class ParallelLibraryTranslator {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ParallelLibraryTranslator.class);
+
+	private static final Pattern COMMENT = Pattern.compile("//[^\\r\\n]*|/\\*.*?\\*/", Pattern.DOTALL);
+	private static final Pattern LIBRARY = Pattern.compile(
+			"^\\s*library\\s+(?:\"([^\"]+)\"|([A-Za-z_][A-Za-z0-9_.]*))(?:\\s+version\\s+'([^']*)')?",
+			Pattern.MULTILINE);
+	private static final Pattern INCLUDE = Pattern.compile(
+			"^\\s*include\\s+(?:\"([^\"]+)\"|([A-Za-z_][A-Za-z0-9_.]*))(?:\\s+version\\s+'([^']*)')?",
+			Pattern.MULTILINE);
+
+	private final ModelManager myModelManager;
+	private final List<LibraryContentProvider> myLibraryContentProviders;
+	private final CqlTranslatorOptions myCqlTranslatorOptions;
+	private final Executor myExecutor;
+
+	/**
+	 * @param theModelManager            the ModelManager used for translation
+	 * @param theLibraryContentProviders the sources of library content, used to
+	 *                                   resolve any include that is not part of the
+	 *                                   resolved graph
+	 * @param theCqlTranslatorOptions    the translator options
+	 * @param theExecutor                the executor libraries are translated on
+	 */
+	public ParallelLibraryTranslator(ModelManager theModelManager,
+			List<LibraryContentProvider> theLibraryContentProviders, CqlTranslatorOptions theCqlTranslatorOptions,
+			Executor theExecutor) {
+		myModelManager = theModelManager;
+		myLibraryContentProviders = theLibraryContentProviders;
+		myCqlTranslatorOptions = theCqlTranslatorOptions;
+		myExecutor = theExecutor;
+	}
+
+	/**
+	 * Translates a library and the libraries it includes.
+	 *
+	 * @param theLibraryIdentifier the identifier of the library
+	 * @param theCqlContent        returns the CQL of a library, or null if it has
+	 *                             none
+	 * @return the translated libraries, keyed by each identifier they are
+	 *         included with and starting with the requested library, or null if
+	 *         the library has no includes or its include graph can not be
+	 *         translated this way (in which case it should be translated as
+	 *         usual)
+	 */
+	public Map<VersionedIdentifier, Library> translate(VersionedIdentifier theLibraryIdentifier,
+			Function<VersionedIdentifier, byte[]> theCqlContent) {
+		Map<VersionedIdentifier, Node> graph = new LinkedHashMap<>();
+		Node root = resolveGraph(theLibraryIdentifier, theCqlContent, graph);
+		if (root == null || graph.size() < 2) {
+			return null;
+		}
+
+		List<Node> order = topologicalOrder(graph);
+		if (order == null) {
+			ourLog.debug("The includes of library {} are cyclic", theLibraryIdentifier.getId());
+			return null;
+		}
+
+		for (Node node : order) {
+			if (node.myTransitiveIncludes == null) {
+				ourLog.debug("Library {} includes more than one version of a library",
+						theLibraryIdentifier.getId());
+				return null;
+			}
+		}
+
+		for (Node node : order) {
+			CompletableFuture<?>[] includes = new CompletableFuture<?>[node.myIncludes.size()];
+			for (int i = 0; i < includes.length; i++) {
+				includes[i] = graph.get(node.myIncludes.get(i)).myFuture;
+			}
+
+			node.myFuture = CompletableFuture.allOf(includes).thenRunAsync(() -> translate(node, graph), myExecutor);
+		}
+
+		try {
+			root.myFuture.join();
+		} catch (CompletionException e) {
+			ourLog.debug("Unable to translate the includes of library {} in parallel",
+					theLibraryIdentifier.getId(), e.getCause());
+			return null;
+		}
+
+		Map<VersionedIdentifier, Library> libraries = new LinkedHashMap<>();
+		libraries.put(theLibraryIdentifier, root.myLibrary);
+		for (Map.Entry<VersionedIdentifier, Node> entry : graph.entrySet()) {
+			libraries.putIfAbsent(entry.getKey(), entry.getValue().myLibrary);
+			for (VersionedIdentifier identifier : entry.getValue().myIdentifiers) {
+				libraries.putIfAbsent(identifier, entry.getValue().myLibrary);
+			}
+		}
+
+		return libraries;
+	}
+
+	private void translate(Node theNode, Map<VersionedIdentifier, Node> theGraph) {
+		LibraryManager libraryManager = new LibraryManager(myModelManager);
+		for (LibraryContentProvider provider : myLibraryContentProviders) {
+			libraryManager.getLibrarySourceLoader().registerProvider(provider);
+		}
+
+		for (VersionedIdentifier include : theNode.myTransitiveIncludes) {
+			libraryManager.getTranslatedLibraries().put(include.getId(), theGraph.get(include).myTranslatedLibrary);
+		}
+
+		CqlTranslator translator = Translators.getTranslator(new ByteArrayInputStream(theNode.myCql),
+				libraryManager, myModelManager, myCqlTranslatorOptions);
+		if (!translator.getErrors().isEmpty()) {
+			throw new CqlTranslatorException(Translators.errorsToString(translator.getErrors()));
+		}
+
+		try {
+			theNode.myTranslatedLibrary = translator.getTranslatedLibrary();
+			theNode.myLibrary = CqlLibraryReader
+					.read(new ByteArrayInputStream(translator.toXml().getBytes(StandardCharsets.UTF_8)));
+		} catch (Exception e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	// Adds the libraries reachable from a library to the graph, keyed by name and
+	// declared version, and returns the node of the library, or null if the CQL
+	// of any of them is not available
+	private static Node resolveGraph(VersionedIdentifier theLibraryIdentifier,
+			Function<VersionedIdentifier, byte[]> theCqlContent, Map<VersionedIdentifier, Node> theGraph) {
+		Map<VersionedIdentifier, VersionedIdentifier> resolved = new LinkedHashMap<>();
+		List<VersionedIdentifier> pending = new ArrayList<>();
+		pending.add(theLibraryIdentifier);
+		while (!pending.isEmpty()) {
+			VersionedIdentifier identifier = pending.remove(pending.size() - 1);
+			if (resolved.containsKey(identifier)) {
+				continue;
+			}
+
+			byte[] cql = theCqlContent.apply(identifier);
+			if (cql == null) {
+				return null;
+			}
+
+			VersionedIdentifier declared = declaredIdentifier(identifier, cql);
+			resolved.put(identifier, declared);
+			Node node = theGraph.get(declared);
+			if (node != null) {
+				node.myIdentifiers.add(identifier);
+				continue;
+			}
+
+			node = new Node(cql);
+			node.myIdentifiers.add(identifier);
+			theGraph.put(declared, node);
+			node.myRequestedIncludes.addAll(parseIncludes(cql));
+			pending.addAll(node.myRequestedIncludes);
+		}
+
+		for (Node node : theGraph.values()) {
+			for (VersionedIdentifier include : node.myRequestedIncludes) {
+				node.myIncludes.add(resolved.get(include));
+			}
+		}
+
+		return theGraph.get(resolved.get(theLibraryIdentifier));
+	}
+
+	/**
+	 * Returns the identifier of a library with the version declared in its CQL,
+	 * so that an include without a version, or one resolved to another version,
+	 * is identified by the version it resolved to.
+	 *
+	 * @param theLibraryIdentifier the identifier the library was requested with
+	 * @param theCql               the CQL of the library
+	 * @return the identifier
+	 */
+	static VersionedIdentifier declaredIdentifier(VersionedIdentifier theLibraryIdentifier, byte[] theCql) {
+		VersionedIdentifier declared = parseLibraryIdentifier(theCql);
+		String version = declared != null && declared.getVersion() != null ? declared.getVersion()
+				: theLibraryIdentifier.getVersion();
+		return new VersionedIdentifier().withId(theLibraryIdentifier.getId()).withVersion(version);
+	}
+
+	/**
+	 * Parses the library declaration of a library.
+	 *
+	 * @param theCql the CQL of the library
+	 * @return the declared name and version of the library, or null if it has no
+	 *         library declaration
+	 */
+	static VersionedIdentifier parseLibraryIdentifier(byte[] theCql) {
+		String cql = COMMENT.matcher(new String(theCql, StandardCharsets.UTF_8)).replaceAll("");
+		Matcher matcher = LIBRARY.matcher(cql);
+		if (!matcher.find()) {
+			return null;
+		}
+
+		String name = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+		// A qualified name is the namespace and name of the library
+		name = name.substring(name.lastIndexOf('.') + 1);
+		return new VersionedIdentifier().withId(name).withVersion(matcher.group(3));
+	}
+
+	/**
+	 * Parses the include declarations of a library.
+	 *
+	 * @param theCql the CQL of the library
+	 * @return the identifiers of the included libraries
+	 */
+	static List<VersionedIdentifier> parseIncludes(byte[] theCql) {
+		String cql = COMMENT.matcher(new String(theCql, StandardCharsets.UTF_8)).replaceAll("");
+		List<VersionedIdentifier> includes = new ArrayList<>();
+		Matcher matcher = INCLUDE.matcher(cql);
+		while (matcher.find()) {
+			String name = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+			// A qualified name is the namespace and name of the library
+			name = name.substring(name.lastIndexOf('.') + 1);
+			includes.add(new VersionedIdentifier().withId(name).withVersion(matcher.group(3)));
+		}
+
+		return includes;
+	}
+
+	// The libraries ordered so that each follows those it includes, or null if
+	// the includes are cyclic
+	private static List<Node> topologicalOrder(Map<VersionedIdentifier, Node> theGraph) {
+		List<Node> order = new ArrayList<>();
+		Set<VersionedIdentifier> visited = new LinkedHashSet<>();
+		Set<VersionedIdentifier> visiting = new LinkedHashSet<>();
+		for (VersionedIdentifier identifier : theGraph.keySet()) {
+			if (!visit(identifier, theGraph, visited, visiting, order)) {
+				return null;
+			}
+		}
+
+		return order;
+	}
+
+	private static boolean visit(VersionedIdentifier theIdentifier, Map<VersionedIdentifier, Node> theGraph,
+			Set<VersionedIdentifier> theVisited, Set<VersionedIdentifier> theVisiting, List<Node> theOrder) {
+		if (theVisited.contains(theIdentifier)) {
+			return true;
+		}
+
+		if (!theVisiting.add(theIdentifier)) {
+			return false;
+		}
+
+		Node node = theGraph.get(theIdentifier);
+		for (VersionedIdentifier include : node.myIncludes) {
+			if (!visit(include, theGraph, theVisited, theVisiting, theOrder)) {
+				return false;
+			}
+		}
+
+		theVisiting.remove(theIdentifier);
+		theVisited.add(theIdentifier);
+		node.myTransitiveIncludes = transitiveIncludes(node, theGraph);
+		theOrder.add(node);
+		return true;
+	}
+
+	// The libraries a library includes, directly or indirectly, or null if they
+	// include more than one version of a library
+	private static Set<VersionedIdentifier> transitiveIncludes(Node theNode,
+			Map<VersionedIdentifier, Node> theGraph) {
+		Set<VersionedIdentifier> includes = new LinkedHashSet<>();
+		Set<String> names = new HashSet<>();
+		List<VersionedIdentifier> pending = new ArrayList<>(theNode.myIncludes);
+		while (!pending.isEmpty()) {
+			VersionedIdentifier include = pending.remove(pending.size() - 1);
+			if (includes.add(include)) {
+				if (!names.add(include.getId())) {
+					return null;
+				}
+				pending.addAll(theGraph.get(include).myIncludes);
+			}
+		}
+
+		return includes;
+	}
+
+	private static final class Node {
+		private final byte[] myCql;
+		private final List<VersionedIdentifier> myRequestedIncludes = new ArrayList<>();
+		private final List<VersionedIdentifier> myIncludes = new ArrayList<>();
+		private final Set<VersionedIdentifier> myIdentifiers = new LinkedHashSet<>();
+		private Set<VersionedIdentifier> myTransitiveIncludes;
+		private volatile CompletableFuture<Void> myFuture;
+		private volatile TranslatedLibrary myTranslatedLibrary;
+		private volatile Library myLibrary;
+
+		Node(byte[] theCql) {
+			myCql = theCql;
+		}
+	}
+}
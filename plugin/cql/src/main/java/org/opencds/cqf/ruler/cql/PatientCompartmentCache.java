@@ -0,0 +1,258 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * A bounded, instrumented cache of the results of Patient context retrieves,
+ * shared by all requests. Patients that are evaluated repeatedly (e.g. by CDS
+ * Hooks or $care-gaps) are then served from memory rather than searching their
+ * compartment again.
+ * <p>
+ * Each entry holds the results of one retrieve for one patient and resource
+ * type, and is weighed by the number of resources it holds. Entries are
+ * grouped by patient and resource type so that a write to a resource in a
+ * patient's compartment invalidates exactly the entries of that patient and
+ * type (see {@link PatientCompartmentCacheInterceptor}). Entries of retrieves
+ * filtered by a value set are also indexed by the url of the value set, so
+ * that they are invalidated when the ValueSet changes.
+ * <p>
+ * The cached resources are never handed out. Each call returns an unmodifiable
+ * list of copies, so that a caller modifying the resources it retrieved does
+ * not change the results served to other requests.
+ */
+public class PatientCompartmentCache {
+
+	private static final int VERSION_STRIPES = 1024;
+
+	private final Cache<Key, List<Object>> myCache;
+	private final Map<String, Set<Key>> myCompartmentIndex = new ConcurrentHashMap<>();
+	private final Map<String, Set<Key>> myValueSetIndex = new ConcurrentHashMap<>();
+
+	// Incremented for a patient and resource type, or a value set, each time
+	// they are invalidated, so that results loaded concurrently with a write are
+	// not cached
+	private final AtomicLongArray myVersions = new AtomicLongArray(VERSION_STRIPES);
+
+	public PatientCompartmentCache(long theMaximumResources, Duration theExpireAfterWrite) {
+		Caffeine<Object, Object> builder = Caffeine.newBuilder().recordStats()
+				.maximumWeight(theMaximumResources)
+				.weigher((Key k, List<Object> v) -> v.size() + 1)
+				.executor(Runnable::run)
+				.removalListener((Key k, List<Object> v, RemovalCause c) -> {
+					if (k != null && c != RemovalCause.REPLACED) {
+						unindex(k);
+					}
+				});
+
+		if (theExpireAfterWrite != null && !theExpireAfterWrite.isZero()) {
+			builder.expireAfterWrite(theExpireAfterWrite);
+		}
+
+		myCache = builder.build();
+	}
+
+	/**
+	 * Returns the results of a retrieve for a patient, loading and caching them
+	 * if needed. Results are not cached if the patient's compartment is
+	 * invalidated for the resource type, or the value set is invalidated, while
+	 * they are being loaded.
+	 *
+	 * @param thePatientId    the id of the patient
+	 * @param theResourceType the resource type retrieved
+	 * @param theValueSet     the url of the value set the retrieve is filtered
+	 *                        by, or null if none
+	 * @param theRetrieveKey  the other arguments of the retrieve, along with the
+	 *                        scope of the request the results may be shared with
+	 * @param theLoader       loads the results
+	 * @return copies of the results
+	 */
+	public List<Object> get(String thePatientId, String theResourceType, String theValueSet,
+			List<Object> theRetrieveKey, Supplier<List<Object>> theLoader) {
+		String valueSet = theValueSet == null ? null : valueSetKey(theValueSet);
+		Key key = new Key(compartmentKey(thePatientId, theResourceType), valueSet, theRetrieveKey);
+		List<Object> cached = myCache.getIfPresent(key);
+		if (cached != null) {
+			return copyOf(cached);
+		}
+
+		int stripe = stripe(key.myCompartment);
+		long version = myVersions.get(stripe);
+		int valueSetStripe = valueSet == null ? -1 : stripe(valueSet);
+		long valueSetVersion = valueSet == null ? 0 : myVersions.get(valueSetStripe);
+		List<Object> results = Collections.unmodifiableList(new ArrayList<>(theLoader.get()));
+
+		myCompartmentIndex.computeIfAbsent(key.myCompartment, x -> ConcurrentHashMap.newKeySet()).add(key);
+		if (valueSet != null) {
+			myValueSetIndex.computeIfAbsent(valueSet, x -> ConcurrentHashMap.newKeySet()).add(key);
+		}
+		myCache.put(key, results);
+		if (myVersions.get(stripe) != version
+				|| (valueSet != null && myVersions.get(valueSetStripe) != valueSetVersion)) {
+			myCache.invalidate(key);
+		}
+
+		return copyOf(results);
+	}
+
+	/**
+	 * Invalidates the cached results of a patient for a resource type.
+	 *
+	 * @param thePatientId    the id of the patient
+	 * @param theResourceType the resource type
+	 */
+	public void invalidate(String thePatientId, String theResourceType) {
+		String compartment = compartmentKey(thePatientId, theResourceType);
+		myVersions.incrementAndGet(stripe(compartment));
+
+		Set<Key> keys = myCompartmentIndex.remove(compartment);
+		if (keys != null) {
+			myCache.invalidateAll(keys);
+		}
+	}
+
+	/**
+	 * Invalidates the cached results of the retrieves filtered by a value set.
+	 *
+	 * @param theValueSet the url of the value set, with or without a version
+	 */
+	public void invalidateValueSet(String theValueSet) {
+		String valueSet = valueSetKey(theValueSet);
+		myVersions.incrementAndGet(stripe(valueSet));
+
+		Set<Key> keys = myValueSetIndex.remove(valueSet);
+		if (keys != null) {
+			myCache.invalidateAll(keys);
+		}
+	}
+
+	/**
+	 * Invalidates all cached results.
+	 */
+	public void invalidateAll() {
+		for (int i = 0; i < VERSION_STRIPES; i++) {
+			myVersions.incrementAndGet(i);
+		}
+
+		myCache.invalidateAll();
+		myCompartmentIndex.clear();
+		myValueSetIndex.clear();
+	}
+
+	/**
+	 * Returns a point-in-time snapshot of the hit, miss and eviction statistics
+	 * for this cache.
+	 *
+	 * @return the cache statistics
+	 */
+	public CacheStats getStats() {
+		return myCache.stats();
+	}
+
+	public long size() {
+		return myCache.estimatedSize();
+	}
+
+	// The underlying cache, for binding its statistics to a metrics registry
+	Cache<?, ?> getNativeCache() {
+		return myCache;
+	}
+
+	// A key that was cached again since it was removed stays indexed
+	private void unindex(Key theKey) {
+		unindex(myCompartmentIndex, theKey.myCompartment, theKey);
+		if (theKey.myValueSet != null) {
+			unindex(myValueSetIndex, theKey.myValueSet, theKey);
+		}
+	}
+
+	private void unindex(Map<String, Set<Key>> theIndex, String theIndexKey, Key theKey) {
+		theIndex.computeIfPresent(theIndexKey, (k, v) -> {
+			if (!myCache.asMap().containsKey(theKey)) {
+				v.remove(theKey);
+			}
+			return v.isEmpty() ? null : v;
+		});
+	}
+
+	// Deep copies of the resources of a result, which are otherwise mutable
+	private static List<Object> copyOf(List<Object> theResults) {
+		List<Object> copies = new ArrayList<>(theResults.size());
+		for (Object result : theResults) {
+			copies.add(result instanceof IBaseResource ? copyOf((IBaseResource) result) : result);
+		}
+
+		return Collections.unmodifiableList(copies);
+	}
+
+	private static IBaseResource copyOf(IBaseResource theResource) {
+		FhirContext fhirContext = FhirContext.forCached(theResource.getStructureFhirVersionEnum());
+		IBaseResource copy = fhirContext.getResourceDefinition(theResource).newInstance();
+		fhirContext.newTerser().cloneInto(theResource, copy, false);
+		return copy;
+	}
+
+	private static String compartmentKey(String thePatientId, String theResourceType) {
+		return thePatientId + "|" + theResourceType;
+	}
+
+	// The url of a value set without its version, so that a change to any
+	// version invalidates retrieves of every version
+	private static String valueSetKey(String theValueSet) {
+		int bar = theValueSet.indexOf('|');
+		return "ValueSet|" + (bar < 0 ? theValueSet : theValueSet.substring(0, bar));
+	}
+
+	private static int stripe(String theCompartment) {
+		return (theCompartment.hashCode() & Integer.MAX_VALUE) % VERSION_STRIPES;
+	}
+
+	private static final class Key {
+		private final String myCompartment;
+		private final String myValueSet;
+		private final List<Object> myRetrieveKey;
+
+		Key(String theCompartment, String theValueSet, List<Object> theRetrieveKey) {
+			myCompartment = theCompartment;
+			myValueSet = theValueSet;
+			myRetrieveKey = theRetrieveKey;
+		}
+
+		@Override
+		public boolean equals(Object theOther) {
+			if (this == theOther) {
+				return true;
+			}
+
+			if (!(theOther instanceof Key)) {
+				return false;
+			}
+
+			Key other = (Key) theOther;
+			return myCompartment.equals(other.myCompartment) && Objects.equals(myValueSet, other.myValueSet)
+					&& myRetrieveKey.equals(other.myRetrieveKey);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(myCompartment, myValueSet, myRetrieveKey);
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.ObjectFactory;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.CqlLibraryReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persists translated ELM libraries to local disk so that a restart does not
+ * have to translate every Library again. Entries are keyed by library name,
+ * version, a hash of the CQL source and the translator options, so an entry is
+ * never returned for CQL or options other than those it was translated from.
+ * <p>
+ * Each entry also records the content hashes of all the libraries it includes,
+ * directly or through other includes, at the time it was translated. An entry
+ * is ignored if any of those libraries has since changed, since the ELM of a
+ * library is resolved against the signatures of its includes, which depend on
+ * their own includes in turn.
+ * <p>
+ * File layout (big-endian): magic, include count, include name, version and
+ * content hash for each include, then the ELM as XML.
+ */
+public class PersistentElmStore {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(PersistentElmStore.class);
+
+	private static final int MAGIC = 0x454c4d31;
+	private static final String EXTENSION = ".elm";
+
+	private static volatile JAXBContext ourJaxbContext;
+
+	private final Path myDirectory;
+
+	/**
+	 * @param theDirectory the directory in which ELM is stored
+	 */
+	public PersistentElmStore(Path theDirectory) {
+		myDirectory = theDirectory;
+	}
+
+	/**
+	 * Computes the key of a library translated from the given CQL with the given
+	 * options.
+	 *
+	 * @param theIdentifier the name and version of the library
+	 * @param theCql        the CQL source of the library
+	 * @param theOptions    the translator options
+	 * @return the key
+	 */
+	public static String keyFor(VersionedIdentifier theIdentifier, byte[] theCql, CqlTranslatorOptions theOptions) {
+		return hash(theIdentifier.getId() + "|" + (theIdentifier.getVersion() == null ? "" : theIdentifier.getVersion())
+				+ "|" + hash(theCql) + "|" + optionsKey(theOptions));
+	}
+
+	/**
+	 * Returns the stored ELM for the given key, if present and if none of the
+	 * libraries it includes has changed.
+	 *
+	 * @param theKey             the key of the library
+	 * @param theIncludeHashFunc computes the current content hash of an included
+	 *                           library, or null if it can not be found
+	 * @return the library, or null if there is no current ELM
+	 */
+	public Library get(String theKey, Function<VersionedIdentifier, String> theIncludeHashFunc) {
+		Path file = pathFor(theKey);
+		if (!Files.exists(file)) {
+			return null;
+		}
+
+		try (DataInputStream stream = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (stream.readInt() != MAGIC) {
+				return null;
+			}
+
+			int includeCount = stream.readInt();
+			for (int i = 0; i < includeCount; i++) {
+				VersionedIdentifier include = new VersionedIdentifier().withId(stream.readUTF());
+				String version = stream.readUTF();
+				include.setVersion(version.isEmpty() ? null : version);
+				String includeHash = stream.readUTF();
+				if (!Objects.equals(includeHash, theIncludeHashFunc.apply(include))) {
+					ourLog.debug("Stored ELM {} is stale, included library {} has changed", theKey, include.getId());
+					return null;
+				}
+			}
+
+			return deserialize(stream);
+		} catch (IOException | JAXBException | RuntimeException e) {
+			ourLog.warn("Unable to read stored ELM {}", theKey, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a library to disk.
+	 *
+	 * @param theKey           the key of the library
+	 * @param theLibrary       the translated library
+	 * @param theIncludeHashes the current content hash of each library it
+	 *                         includes, directly or transitively
+	 * @return the ELM of the library as XML, or null if it could not be
+	 *         serialized
+	 */
+	public byte[] put(String theKey, Library theLibrary, Map<VersionedIdentifier, String> theIncludeHashes) {
+		byte[] elm;
+		try {
+			elm = serialize(theLibrary);
+		} catch (JAXBException e) {
+			ourLog.warn("Unable to serialize ELM {}", theKey, e);
+			return null;
+		}
+
+		Path temp = null;
+		try {
+			Files.createDirectories(myDirectory);
+			temp = Files.createTempFile(myDirectory, "elm", ".tmp");
+			try (OutputStream output = Files.newOutputStream(temp);
+					DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(output))) {
+				stream.writeInt(MAGIC);
+				stream.writeInt(theIncludeHashes.size());
+				for (Map.Entry<VersionedIdentifier, String> include : theIncludeHashes.entrySet()) {
+					stream.writeUTF(include.getKey().getId());
+					stream.writeUTF(include.getKey().getVersion() == null ? "" : include.getKey().getVersion());
+					stream.writeUTF(include.getValue() == null ? "" : include.getValue());
+				}
+				stream.write(elm);
+			}
+			Files.move(temp, pathFor(theKey), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			ourLog.warn("Unable to store ELM {}", theKey, e);
+			deleteQuietly(temp);
+		}
+
+		return elm;
+	}
+
+	/**
+	 * Deletes all stored ELM.
+	 */
+	public void clear() {
+		if (!Files.isDirectory(myDirectory)) {
+			return;
+		}
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(myDirectory, "*" + EXTENSION)) {
+			for (Path file : files) {
+				Files.deleteIfExists(file);
+			}
+		} catch (IOException e) {
+			ourLog.warn("Unable to clear stored ELM in {}", myDirectory, e);
+		}
+	}
+
+	/**
+	 * Serializes a library to ELM XML.
+	 *
+	 * @param theLibrary the library
+	 * @return the ELM XML
+	 * @throws JAXBException if the library can not be serialized
+	 */
+	public static byte[] serialize(Library theLibrary) throws JAXBException {
+		Marshaller marshaller = getJaxbContext().createMarshaller();
+		marshaller.setProperty(Marshaller.JAXB_ENCODING, StandardCharsets.UTF_8.name());
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		marshaller.marshal(new ObjectFactory().createLibrary(theLibrary), output);
+		return output.toByteArray();
+	}
+
+	/**
+	 * Deserializes a library from ELM XML with the engine's CqlLibraryReader, so
+	 * that its elements are the engine's evaluators.
+	 *
+	 * @param theElm the ELM XML
+	 * @return the library
+	 * @throws IOException   if the ELM can not be read
+	 * @throws JAXBException if the ELM can not be deserialized
+	 */
+	public static Library deserialize(InputStream theElm) throws IOException, JAXBException {
+		return CqlLibraryReader.read(theElm);
+	}
+
+	/**
+	 * Deserializes a library from ELM XML with the engine's CqlLibraryReader, so
+	 * that its elements are the engine's evaluators.
+	 *
+	 * @param theElm the ELM XML
+	 * @return the library
+	 * @throws IOException   if the ELM can not be read
+	 * @throws JAXBException if the ELM can not be deserialized
+	 */
+	public static Library deserialize(byte[] theElm) throws IOException, JAXBException {
+		return deserialize(new ByteArrayInputStream(theElm));
+	}
+
+	/**
+	 * Computes the content hash used to key and validate stored ELM.
+	 *
+	 * @param theContent the content
+	 * @return the SHA-256 hash of the content, as hex
+	 */
+	public static String hash(byte[] theContent) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(theContent);
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hash(String theContent) {
+		return hash(theContent.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String optionsKey(CqlTranslatorOptions theOptions) {
+		if (theOptions == null) {
+			return "";
+		}
+
+		Map<String, Object> key = new LinkedHashMap<>();
+		key.put("options", theOptions.getOptions() == null ? null : new TreeSet<>(theOptions.getOptions().stream()
+				.map(Enum::name).collect(Collectors.toList())));
+		key.put("compatibilityLevel", theOptions.getCompatibilityLevel());
+		key.put("signatureLevel", theOptions.getSignatureLevel());
+		key.put("analyzeDataRequirements", theOptions.getAnalyzeDataRequirements());
+		key.put("collapseDataRequirements", theOptions.getCollapseDataRequirements());
+		return key.toString();
+	}
+
+	private static JAXBContext getJaxbContext() throws JAXBException {
+		if (ourJaxbContext == null) {
+			synchronized (PersistentElmStore.class) {
+				if (ourJaxbContext == null) {
+					ourJaxbContext = JAXBContext.newInstance(ObjectFactory.class,
+							org.hl7.cql_annotations.r1.ObjectFactory.class);
+				}
+			}
+		}
+
+		return ourJaxbContext;
+	}
+
+	private static void deleteQuietly(Path theFile) {
+		if (theFile == null) {
+			return;
+		}
+
+		try {
+			Files.deleteIfExists(theFile);
+		} catch (IOException e) {
+			ourLog.debug("Unable to delete {}", theFile, e);
+		}
+	}
+
+	protected Path pathFor(String theKey) {
+		return myDirectory.resolve(theKey + EXTENSION);
+	}
+}
@@ -0,0 +1,41 @@
+package org.opencds.cqf.ruler.cql;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+final class RequestScopes {
+
+	private RequestScopes() {
+	}
+
+	/**
+	 * Returns the scope of a request, which resources loaded for the request may
+	 * only be shared within: its tenant, its partition and the authenticated
+	 * principal and authorities. Requests with the same scope are authorized the
+	 * same way. The caller's credentials are not part of the scope, so a
+	 * principal keeps its scope when its token is refreshed, and no credential is
+	 * kept in the caches keyed by it.
+	 *
+	 * @param theRequestDetails the RequestDetails, may be null
+	 * @return the scope
+	 */
+	static String scopeOf(RequestDetails theRequestDetails) {
+		StringBuilder scope = new StringBuilder();
+		if (theRequestDetails != null) {
+			scope.append(theRequestDetails.getTenantId());
+			if (theRequestDetails instanceof SystemRequestDetails) {
+				scope.append('|').append(((SystemRequestDetails) theRequestDetails).getRequestPartitionId());
+			}
+		}
+
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		if (authentication != null) {
+			scope.append('|').append(authentication.getName()).append('|').append(authentication.getAuthorities());
+		}
+
+		return scope.toString();
+	}
+}
@@ -0,0 +1,94 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Coordinates concurrent loads of the same key so that only one computation is
+ * in flight at a time. Callers that arrive while a key is being loaded wait for
+ * and share the result of the in-flight computation instead of repeating it.
+ * <p>
+ * A load of a key by the thread that is already loading it, such as a library
+ * whose translation loads an include through the same key, runs directly
+ * rather than waiting for itself.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class SingleFlight<K, V> {
+
+	private static class InFlight<V> {
+		private final CompletableFuture<V> myFuture = new CompletableFuture<>();
+		private final Thread myOwner = Thread.currentThread();
+	}
+
+	private final ConcurrentMap<K, InFlight<V>> myInFlight = new ConcurrentHashMap<>();
+
+	/**
+	 * Runs the loader for the given key, unless a load of the same key is already
+	 * in flight on another thread, in which case waits for and returns that load's
+	 * result.
+	 *
+	 * @param theKey    the key to load
+	 * @param theLoader computes the value for the key
+	 * @return the loaded value
+	 */
+	public V execute(K theKey, Supplier<V> theLoader) {
+		InFlight<V> inFlight = new InFlight<>();
+		InFlight<V> existing = myInFlight.putIfAbsent(theKey, inFlight);
+		if (existing != null) {
+			if (existing.myOwner == Thread.currentThread()) {
+				return theLoader.get();
+			}
+
+			onWait(theKey);
+			return await(existing.myFuture);
+		}
+
+		try {
+			V value = theLoader.get();
+			inFlight.myFuture.complete(value);
+			return value;
+		} catch (RuntimeException | Error e) {
+			inFlight.myFuture.completeExceptionally(e);
+			throw e;
+		} finally {
+			myInFlight.remove(theKey, inFlight);
+		}
+	}
+
+	/**
+	 * @return the number of keys currently being loaded
+	 */
+	public int inFlightCount() {
+		return myInFlight.size();
+	}
+
+	/**
+	 * Called when a caller is about to wait for the in-flight load of a key.
+	 *
+	 * @param theKey the key being loaded
+	 */
+	protected void onWait(K theKey) {
+		// Nothing by default
+	}
+
+	private V await(CompletableFuture<V> theFuture) {
+		try {
+			return theFuture.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+/**
+ * The cached expansion of a ValueSet. This is the ordered list of codes
+ * returned by expand(), along with an index keyed on system and code so that
+ * membership tests do not need to walk the entire expansion.
+ * <p>
+ * To keep large expansions compact the codes are not stored as Code objects.
+ * Code system urls are dictionary-encoded, the codes themselves are packed into
+ * a single String with an array of offsets, and the membership index is an
+ * open-addressed table of positions. Code objects are materialized only when
+ * callers iterate the expansion.
+ */
+public class ValueSetExpansion extends AbstractList<Code> implements ValueSetMembership {
+
+	private final String[] mySystems;
+	private final int[] mySystemIndexes;
+	private final String myCodeData;
+	private final int[] myCodeOffsets;
+	private final int[] myIndex;
+
+	public ValueSetExpansion(List<Code> theCodes) {
+		this(fromCodes(theCodes));
+	}
+
+	private ValueSetExpansion(Builder theBuilder) {
+		int size = theBuilder.mySystemIndexes.size();
+		mySystems = theBuilder.mySystems.keySet().toArray(new String[0]);
+		mySystemIndexes = new int[size];
+		myCodeOffsets = new int[size + 1];
+		for (int i = 0; i < size; i++) {
+			mySystemIndexes[i] = theBuilder.mySystemIndexes.get(i);
+			myCodeOffsets[i + 1] = theBuilder.myCodeOffsets.get(i);
+		}
+		myCodeData = theBuilder.myCodeData.toString();
+
+		myIndex = new int[tableSize(size)];
+		for (int i = 0; i < size; i++) {
+			int slot = hash(mySystemIndexes[i], myCodeData, myCodeOffsets[i], myCodeOffsets[i + 1])
+					& (myIndex.length - 1);
+			while (myIndex[slot] != 0) {
+				if (matches(myIndex[slot] - 1, mySystemIndexes[i], myCodeData, myCodeOffsets[i],
+						myCodeOffsets[i + 1])) {
+					break;
+				}
+				slot = (slot + 1) & (myIndex.length - 1);
+			}
+
+			if (myIndex[slot] == 0) {
+				myIndex[slot] = i + 1;
+			}
+		}
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	@Override
+	public boolean contains(String theSystem, String theCode) {
+		if (theCode == null || size() == 0) {
+			return false;
+		}
+
+		int systemIndex = systemIndexOf(theSystem);
+		if (systemIndex == Integer.MIN_VALUE) {
+			return false;
+		}
+
+		int slot = hash(systemIndex, theCode, 0, theCode.length()) & (myIndex.length - 1);
+		while (myIndex[slot] != 0) {
+			if (matches(myIndex[slot] - 1, systemIndex, theCode, 0, theCode.length())) {
+				return true;
+			}
+			slot = (slot + 1) & (myIndex.length - 1);
+		}
+
+		return false;
+	}
+
+	@Override
+	public Code get(int theIndex) {
+		if (theIndex < 0 || theIndex >= size()) {
+			throw new IndexOutOfBoundsException("Index: " + theIndex + ", Size: " + size());
+		}
+
+		return new Code().withSystem(getSystem(theIndex)).withCode(getCode(theIndex));
+	}
+
+	@Override
+	public int size() {
+		return mySystemIndexes.length;
+	}
+
+	/**
+	 * Returns the system of the code at the given position without materializing a
+	 * Code.
+	 *
+	 * @param theIndex the position in the expansion
+	 * @return the code system url
+	 */
+	public String getSystem(int theIndex) {
+		int systemIndex = mySystemIndexes[theIndex];
+		return systemIndex < 0 ? null : mySystems[systemIndex];
+	}
+
+	/**
+	 * Returns the code at the given position without materializing a Code.
+	 *
+	 * @param theIndex the position in the expansion
+	 * @return the code
+	 */
+	public String getCode(int theIndex) {
+		return myCodeData.substring(myCodeOffsets[theIndex], myCodeOffsets[theIndex + 1]);
+	}
+
+	/**
+	 * Returns an estimate of the heap used by this expansion, in bytes. Assumes a
+	 * 64-bit JVM with compressed oops and two bytes per character.
+	 *
+	 * @return the estimated size in bytes
+	 */
+	public long getEstimatedSizeInBytes() {
+		long bytes = 16 + 5 * 4L;
+		bytes += arrayBytes(mySystems.length, 4);
+		for (String system : mySystems) {
+			bytes += stringBytes(system);
+		}
+		bytes += arrayBytes(mySystemIndexes.length, 4);
+		bytes += stringBytes(myCodeData);
+		bytes += arrayBytes(myCodeOffsets.length, 4);
+		bytes += arrayBytes(myIndex.length, 4);
+		return bytes;
+	}
+
+	/**
+	 * Reports the estimated heap used by each ValueSetExpansion in the given code
+	 * cache, largest first.
+	 *
+	 * @param theCodeCache the code cache
+	 * @return the estimated size in bytes, keyed by value set identifier
+	 */
+	public static Map<VersionedIdentifier, Long> memoryReport(Map<VersionedIdentifier, List<Code>> theCodeCache) {
+		List<Map.Entry<VersionedIdentifier, Long>> sizes = new ArrayList<>();
+		for (Map.Entry<VersionedIdentifier, List<Code>> entry : theCodeCache.entrySet()) {
+			if (entry.getValue() instanceof ValueSetExpansion) {
+				sizes.add(new AbstractMap.SimpleEntry<>(entry.getKey(),
+						((ValueSetExpansion) entry.getValue()).getEstimatedSizeInBytes()));
+			}
+		}
+
+		sizes.sort(Map.Entry.<VersionedIdentifier, Long>comparingByValue().reversed());
+		Map<VersionedIdentifier, Long> report = new LinkedHashMap<>();
+		for (Map.Entry<VersionedIdentifier, Long> entry : sizes) {
+			report.put(entry.getKey(), entry.getValue());
+		}
+
+		return report;
+	}
+
+	/**
+	 * Returns the estimated heap used by all the ValueSetExpansions in the given
+	 * code cache.
+	 *
+	 * @param theCodeCache the code cache
+	 * @return the estimated size in bytes
+	 */
+	public static long totalEstimatedSizeInBytes(Map<VersionedIdentifier, List<Code>> theCodeCache) {
+		long bytes = 0;
+		for (List<Code> codes : theCodeCache.values()) {
+			if (codes instanceof ValueSetExpansion) {
+				bytes += ((ValueSetExpansion) codes).getEstimatedSizeInBytes();
+			}
+		}
+
+		return bytes;
+	}
+
+	private int systemIndexOf(String theSystem) {
+		if (theSystem == null) {
+			return -1;
+		}
+
+		for (int i = 0; i < mySystems.length; i++) {
+			if (mySystems[i].equals(theSystem)) {
+				return i;
+			}
+		}
+
+		return Integer.MIN_VALUE;
+	}
+
+	private boolean matches(int thePosition, int theSystemIndex, String theData, int theStart, int theEnd) {
+		int start = myCodeOffsets[thePosition];
+		int length = myCodeOffsets[thePosition + 1] - start;
+		return mySystemIndexes[thePosition] == theSystemIndex && length == theEnd - theStart
+				&& myCodeData.regionMatches(start, theData, theStart, length);
+	}
+
+	private static int hash(int theSystemIndex, String theData, int theStart, int theEnd) {
+		int hash = theSystemIndex;
+		for (int i = theStart; i < theEnd; i++) {
+			hash = 31 * hash + theData.charAt(i);
+		}
+
+		return hash ^ (hash >>> 16);
+	}
+
+	private static int tableSize(int theSize) {
+		int size = 2;
+		while (size < theSize * 2) {
+			size <<= 1;
+		}
+
+		return size;
+	}
+
+	private static long arrayBytes(int theLength, int theElementSize) {
+		return align(16 + (long) theLength * theElementSize);
+	}
+
+	private static long stringBytes(String theString) {
+		return align(24) + arrayBytes(theString.length(), 2);
+	}
+
+	private static long align(long theBytes) {
+		return (theBytes + 7) & ~7L;
+	}
+
+	private static Builder fromCodes(List<Code> theCodes) {
+		Builder builder = new Builder();
+		for (Code code : theCodes) {
+			if (code != null) {
+				builder.add(code.getSystem(), code.getCode());
+			}
+		}
+
+		return builder;
+	}
+
+	/**
+	 * Accumulates codes for a ValueSetExpansion without materializing Code
+	 * objects.
+	 */
+	public static class Builder {
+		private final Map<String, Integer> mySystems = new LinkedHashMap<>();
+		private final IntList mySystemIndexes = new IntList();
+		private final IntList myCodeOffsets = new IntList();
+		private final StringBuilder myCodeData = new StringBuilder();
+
+		private Builder() {
+		}
+
+		public Builder add(String theSystem, String theCode) {
+			if (theCode == null) {
+				return this;
+			}
+
+			mySystemIndexes.add(theSystem == null ? -1 : mySystems.computeIfAbsent(theSystem, x -> mySystems.size()));
+			myCodeData.append(theCode);
+			myCodeOffsets.add(myCodeData.length());
+			return this;
+		}
+
+		public ValueSetExpansion build() {
+			return new ValueSetExpansion(this);
+		}
+	}
+
+	private static class IntList {
+		private int[] myValues = new int[16];
+		private int mySize;
+
+		void add(int theValue) {
+			if (mySize == myValues.length) {
+				myValues = Arrays.copyOf(myValues, mySize * 2);
+			}
+			myValues[mySize++] = theValue;
+		}
+
+		int get(int theIndex) {
+			return myValues[theIndex];
+		}
+
+		int size() {
+			return mySize;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package org.opencds.cqf.ruler.cql;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+
+/**
+ * An actuator endpoint reporting the estimated heap used by each ValueSet
+ * expansion in the global code cache, largest first, keyed by the url and
+ * version of the ValueSet. The endpoint is only reachable over HTTP when it is
+ * included in management.endpoints.web.exposure.
+ *
+ * @see ValueSetExpansion#memoryReport(Map)
+ */
+@Endpoint(id = "cqlvaluesets")
+public class ValueSetExpansionEndpoint {
+
+	private final Map<VersionedIdentifier, List<Code>> myCodeCache;
+
+	public ValueSetExpansionEndpoint(Map<VersionedIdentifier, List<Code>> theCodeCache) {
+		myCodeCache = theCodeCache;
+	}
+
+	@ReadOperation
+	public Map<String, Long> memoryReport() {
+		Map<String, Long> report = new LinkedHashMap<>();
+		ValueSetExpansion.memoryReport(myCodeCache).forEach((identifier, bytes) -> report.put(
+				identifier.getVersion() == null ? identifier.getId() : identifier.getId() + "|" + identifier.getVersion(),
+				bytes));
+		return report;
+	}
+}
@@ -0,0 +1,16 @@
+package org.opencds.cqf.ruler.cql;
+
+/**
+ * Implemented by cached value set expansions that can answer membership tests
+ * without iterating every code.
+ */
+public interface ValueSetMembership {
+	/**
+	 * Tests whether the expansion contains a code with the given system and code.
+	 *
+	 * @param theSystem the code system url
+	 * @param theCode   the code
+	 * @return true if the code is a member of the expansion
+	 */
+	boolean contains(String theSystem, String theCode);
+}
@@ -0,0 +1,144 @@
+package org.opencds.cqf.ruler.cql.interceptor;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseExtension;
+import org.hl7.fhir.instance.model.api.IBaseHasExtensions;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.ruler.cql.JpaLibraryContentProvider;
+import org.opencds.cqf.ruler.cql.PersistentElmStore;
+import org.opencds.cqf.ruler.cql.utility.Translators;
+import org.opencds.cqf.ruler.utility.Libraries;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * Attaches translated ELM to Library resources as they are written, so that
+ * evaluations can use the ELM instead of translating the CQL.
+ * <p>
+ * The ELM is added to the resource before it is stored, within the write that
+ * created or updated it and with that write's permissions, rather than by a
+ * separate write from the evaluation path. The hash of the CQL is recorded on
+ * the ELM attachment, and ELM translated from other CQL, such as the ELM of a
+ * Library whose CQL was edited, is replaced. A Library whose CQL can not be
+ * translated, for example because an include is not yet stored, is stored
+ * without ELM and translated on evaluation as usual.
+ * <p>
+ * This is registered with the JPA interceptor service, which broadcasts the
+ * storage pointcuts, rather than with the RestfulServer.
+ */
+@Interceptor
+public class ElmAttachmentInterceptor {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ElmAttachmentInterceptor.class);
+
+	private static final String CQL_CONTENT_TYPE = "text/cql";
+	private static final String ELM_CONTENT_TYPE = "application/elm+xml";
+
+	private final FhirContext myFhirContext;
+	private final DaoRegistry myDaoRegistry;
+	private final ModelManager myModelManager;
+	private final CqlTranslatorOptions myCqlTranslatorOptions;
+
+	public ElmAttachmentInterceptor(FhirContext theFhirContext, DaoRegistry theDaoRegistry,
+			ModelManager theModelManager, CqlTranslatorOptions theCqlTranslatorOptions) {
+		myFhirContext = theFhirContext;
+		myDaoRegistry = theDaoRegistry;
+		myModelManager = theModelManager;
+		myCqlTranslatorOptions = theCqlTranslatorOptions;
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource, RequestDetails theRequestDetails) {
+		attachElm(theResource, theRequestDetails);
+	}
+
+	@Hook(Pointcut.STORAGE_PRESTORAGE_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource,
+			RequestDetails theRequestDetails) {
+		attachElm(theNewResource, theRequestDetails);
+	}
+
+	protected void attachElm(IBaseResource theResource, RequestDetails theRequestDetails) {
+		if (theResource == null || !"Library".equals(myFhirContext.getResourceType(theResource))) {
+			return;
+		}
+
+		byte[] cql = Libraries.getContent(theResource, CQL_CONTENT_TYPE);
+		if (cql == null) {
+			return;
+		}
+
+		String cqlHash = PersistentElmStore.hash(cql);
+		IBase existing = JpaLibraryContentProvider.getAttachment(theResource, ELM_CONTENT_TYPE);
+		if (existing != null && cqlHash.equals(JpaLibraryContentProvider.getCqlHash(existing))) {
+			return;
+		}
+
+		removeElm(theResource);
+		byte[] elm = translate(cql, theRequestDetails);
+		if (elm == null) {
+			return;
+		}
+
+		FhirTerser terser = myFhirContext.newTerser();
+		IBase attachment = terser.addElement(theResource, "content");
+		terser.setElement(attachment, "contentType", ELM_CONTENT_TYPE);
+		terser.setElement(attachment, "data", Base64.getEncoder().encodeToString(elm));
+		IBaseExtension<?, ?> extension = ((IBaseHasExtensions) attachment).addExtension();
+		extension.setUrl(JpaLibraryContentProvider.CQL_HASH_EXTENSION);
+		extension.setValue(newString(cqlHash));
+	}
+
+	// Removes the ELM that was not translated from the current CQL
+	@SuppressWarnings("unchecked")
+	private void removeElm(IBaseResource theResource) {
+		List<IBase> contents = (List<IBase>) myFhirContext.getResourceDefinition(theResource)
+				.getChildByName("content").getAccessor().getValues(theResource);
+		FhirTerser terser = myFhirContext.newTerser();
+		contents.removeIf(
+				content -> ELM_CONTENT_TYPE.equals(terser.getSinglePrimitiveValueOrNull(content, "contentType")));
+	}
+
+	private IPrimitiveType<?> newString(String theValue) {
+		return (IPrimitiveType<?>) myFhirContext.getElementDefinition("string").newInstance(theValue);
+	}
+
+	// The ELM XML of the CQL, or null if it can not be translated
+	private byte[] translate(byte[] theCql, RequestDetails theRequestDetails) {
+		LibraryManager libraryManager = new LibraryManager(myModelManager);
+		libraryManager.getLibrarySourceLoader()
+				.registerProvider(new JpaLibraryContentProvider(myDaoRegistry, theRequestDetails));
+		try {
+			CqlTranslator translator = Translators.getTranslator(new ByteArrayInputStream(theCql), libraryManager,
+					myModelManager, myCqlTranslatorOptions);
+			if (!translator.getErrors().isEmpty()) {
+				ourLog.debug("Not attaching ELM to a Library with translation errors: {}",
+						Translators.errorsToString(translator.getErrors()));
+				return null;
+			}
+
+			return translator.toXml().getBytes(StandardCharsets.UTF_8);
+		} catch (Exception e) {
+			ourLog.debug("Unable to translate the CQL of a Library, not attaching ELM", e);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package org.opencds.cqf.ruler.cql.interceptor;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.ruler.cql.PatientCompartmentCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * Invalidates the entries of a {@link PatientCompartmentCache} when a resource
+ * in a patient's compartment is created, updated or deleted. Only the entries
+ * of the patients the resource belongs to, for the type of the resource, are
+ * invalidated. They are invalidated both before the write commits and again
+ * after, so that a retrieve running concurrently with the write can not cache
+ * the data it replaced.
+ * <p>
+ * When a ValueSet is written, the entries of the retrieves filtered by it are
+ * invalidated in the same way, as its expansion may have changed.
+ * <p>
+ * This is registered with the JPA interceptor service, which broadcasts the
+ * storage pointcuts, rather than with the RestfulServer.
+ */
+@Interceptor
+public class PatientCompartmentCacheInterceptor {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(PatientCompartmentCacheInterceptor.class);
+
+	private static final String PATIENT = "Patient";
+	private static final String VALUE_SET = "ValueSet";
+
+	private final FhirContext myFhirContext;
+	private final PatientCompartmentCache myCache;
+
+	public PatientCompartmentCacheInterceptor(FhirContext theFhirContext, PatientCompartmentCache theCache) {
+		myFhirContext = theFhirContext;
+		myCache = theCache;
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		invalidate(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		// A resource can move between compartments, e.g. if its subject changes
+		invalidate(theOldResource);
+		invalidate(theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		invalidate(theResource);
+	}
+
+	private void invalidate(IBaseResource theResource) {
+		if (theResource == null) {
+			return;
+		}
+
+		String resourceType = myFhirContext.getResourceType(theResource);
+		if (VALUE_SET.equals(resourceType)) {
+			invalidateValueSet(theResource);
+			return;
+		}
+
+		Set<String> patientIds;
+		try {
+			patientIds = getPatientIds(theResource);
+		} catch (RuntimeException e) {
+			ourLog.warn("Unable to determine the compartment of a {}, invalidating all patients", resourceType, e);
+			invalidateAll();
+			return;
+		}
+
+		if (patientIds.isEmpty()) {
+			return;
+		}
+
+		Runnable invalidation = () -> patientIds.forEach(patientId -> myCache.invalidate(patientId, resourceType));
+		invalidation.run();
+		afterCommit(invalidation);
+	}
+
+	private void invalidateValueSet(IBaseResource theValueSet) {
+		String url = myFhirContext.newTerser().getSinglePrimitiveValueOrNull(theValueSet, "url");
+		if (url == null) {
+			return;
+		}
+
+		Runnable invalidation = () -> myCache.invalidateValueSet(url);
+		invalidation.run();
+		afterCommit(invalidation);
+	}
+
+	private void invalidateAll() {
+		myCache.invalidateAll();
+		afterCommit(myCache::invalidateAll);
+	}
+
+	private static void afterCommit(Runnable theInvalidation) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return;
+		}
+
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+			@Override
+			public void afterCommit() {
+				theInvalidation.run();
+			}
+		});
+	}
+
+	// The patients whose compartment a resource is in, found by following its
+	// compartment search parameters
+	private Set<String> getPatientIds(IBaseResource theResource) {
+		Set<String> patientIds = new HashSet<>();
+		RuntimeResourceDefinition definition = myFhirContext.getResourceDefinition(theResource);
+		if (PATIENT.equals(definition.getName()) && theResource.getIdElement().hasIdPart()) {
+			patientIds.add(theResource.getIdElement().getIdPart());
+		}
+
+		FhirTerser terser = myFhirContext.newTerser();
+		for (RuntimeSearchParam searchParam : definition.getSearchParams()) {
+			Set<String> compartments = searchParam.getProvidesMembershipInCompartments();
+			if (compartments == null || !compartments.contains(PATIENT)) {
+				continue;
+			}
+
+			for (String path : searchParam.getPathsSplit()) {
+				for (IBaseReference reference : terser.getValues(theResource, elementPath(path),
+						IBaseReference.class)) {
+					IIdType id = reference.getReferenceElement();
+					if (id != null && id.hasIdPart() && (!id.hasResourceType() || PATIENT.equals(id.getResourceType()))) {
+						patientIds.add(id.getIdPart());
+					}
+				}
+			}
+		}
+
+		return patientIds;
+	}
+
+	// Removes any FHIRPath function (e.g. where(resolve() is Patient)) from a
+	// search parameter path, leaving the path of the element
+	private static String elementPath(String thePath) {
+		String path = thePath.trim();
+		int function = path.indexOf(".where(");
+		return function < 0 ? path : path.substring(0, function);
+	}
+}
@@ -0,0 +1,32 @@
+package org.opencds.cqf.ruler.cql.interceptor;
+
+import org.opencds.cqf.ruler.cql.CachingRetrieveProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * Logs the hits and misses of the retrieve cache of a request once the request
+ * completes, so that the effect of the cache can be seen per request. Requests
+ * that made no cached retrieves are not logged.
+ */
+@Interceptor
+public class RetrieveCacheReportingInterceptor implements org.opencds.cqf.ruler.api.Interceptor {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(RetrieveCacheReportingInterceptor.class);
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED_NORMALLY)
+	public void processingCompleted(RequestDetails theRequestDetails) {
+		CachingRetrieveProvider.RetrieveCache cache = CachingRetrieveProvider.findCache(theRequestDetails);
+		if (cache == null || cache.getHitCount() + cache.getMissCount() == 0) {
+			return;
+		}
+
+		ourLog.info("Retrieve cache of request {} {}: {} hits, {} misses", theRequestDetails.getRequestId(),
+				theRequestDetails.getCompleteUrl(), cache.getHitCount(), cache.getMissCount());
+	}
+}
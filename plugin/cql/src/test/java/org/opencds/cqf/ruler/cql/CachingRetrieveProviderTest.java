@@ -0,0 +1,198 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.retrieve.RetrieveProvider;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
+
+public class CachingRetrieveProviderTest {
+
+	private static class CountingRetrieveProvider implements RetrieveProvider {
+		private final int myResults;
+		private int myRetrieves;
+		private int myLoaded;
+
+		CountingRetrieveProvider() {
+			this(1);
+		}
+
+		CountingRetrieveProvider(int theResults) {
+			myResults = theResults;
+		}
+
+		// The results are counted as they are loaded
+		@Override
+		public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+				String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+				String dateLowPath, String dateHighPath, Interval dateRange) {
+			myRetrieves++;
+			return () -> new Iterator<Object>() {
+				private int myNext;
+
+				@Override
+				public boolean hasNext() {
+					return myNext < myResults;
+				}
+
+				@Override
+				public Object next() {
+					myLoaded++;
+					return dataType + "/" + contextValue + "/" + myNext++;
+				}
+			};
+		}
+	}
+
+	private Iterable<Object> retrieve(RetrieveProvider theProvider, String thePatient, String theCode) {
+		return theProvider.retrieve("Patient", "subject", thePatient, "Condition", null, "code",
+				Collections.singletonList(new Code().withSystem("http://snomed.info/sct").withCode(theCode)), null, null,
+				null, null, null);
+	}
+
+	private List<Object> list(Iterable<Object> theResults) {
+		List<Object> list = new ArrayList<>();
+		theResults.forEach(list::add);
+		return list;
+	}
+
+	@Test
+	public void testRepeatedRetrieveIsServedFromCache() {
+		CountingRetrieveProvider counting = new CountingRetrieveProvider();
+		CachingRetrieveProvider provider = new CachingRetrieveProvider(counting, null);
+
+		List<Object> first = list(retrieve(provider, "123", "44054006"));
+		List<Object> second = list(retrieve(provider, "123", "44054006"));
+
+		assertEquals(first, second);
+		assertEquals(1, counting.myRetrieves);
+		assertEquals(1, provider.getCache().getHitCount());
+		assertEquals(1, provider.getCache().getMissCount());
+	}
+
+	@Test
+	public void testDifferentArgumentsAreNotShared() {
+		CountingRetrieveProvider counting = new CountingRetrieveProvider();
+		CachingRetrieveProvider provider = new CachingRetrieveProvider(counting, null);
+
+		list(retrieve(provider, "123", "44054006"));
+		list(retrieve(provider, "123", "73211009"));
+		list(retrieve(provider, "456", "44054006"));
+
+		assertEquals(3, counting.myRetrieves);
+		assertEquals(0, provider.getCache().getHitCount());
+	}
+
+	@Test
+	public void testCacheIsSharedWithinARequest() {
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		CountingRetrieveProvider counting = new CountingRetrieveProvider();
+
+		list(retrieve(new CachingRetrieveProvider(counting, requestDetails), "123", "44054006"));
+		list(retrieve(new CachingRetrieveProvider(counting, requestDetails), "123", "44054006"));
+
+		assertEquals(1, counting.myRetrieves);
+		assertEquals(1, CachingRetrieveProvider.getCache(requestDetails).getHitCount());
+	}
+
+	@Test
+	public void testFindCacheReportsTheCountsOfARequest() {
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		assertNull(CachingRetrieveProvider.findCache(requestDetails));
+
+		CachingRetrieveProvider provider = new CachingRetrieveProvider(new CountingRetrieveProvider(), requestDetails);
+		list(retrieve(provider, "123", "44054006"));
+		list(retrieve(provider, "123", "44054006"));
+
+		CachingRetrieveProvider.RetrieveCache cache = CachingRetrieveProvider.findCache(requestDetails);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void testStatisticsAreSharedAcrossRequests() {
+		CachingRetrieveProvider.Statistics statistics = new CachingRetrieveProvider.Statistics();
+		CountingRetrieveProvider counting = new CountingRetrieveProvider();
+
+		for (int i = 0; i < 2; i++) {
+			SystemRequestDetails requestDetails = new SystemRequestDetails();
+			CachingRetrieveProvider provider = new CachingRetrieveProvider(counting, requestDetails,
+					CachingRetrieveProvider.DEFAULT_MAXIMUM_ENTRIES, CachingRetrieveProvider.DEFAULT_MAXIMUM_RESOURCES,
+					statistics);
+			list(retrieve(provider, "123", "44054006"));
+			list(retrieve(provider, "123", "44054006"));
+		}
+
+		assertEquals(2, statistics.getHitCount());
+		assertEquals(2, statistics.getMissCount());
+	}
+
+	@Test
+	public void testOnlyTheCurrentPatientIsCached() {
+		CountingRetrieveProvider counting = new CountingRetrieveProvider();
+		CachingRetrieveProvider provider = new CachingRetrieveProvider(counting, null);
+
+		list(retrieve(provider, "123", "44054006"));
+		list(retrieve(provider, "123", "73211009"));
+		assertEquals(2, provider.getCache().size());
+
+		list(retrieve(provider, "456", "44054006"));
+		assertEquals(1, provider.getCache().size());
+
+		list(retrieve(provider, "123", "44054006"));
+		assertEquals(4, counting.myRetrieves);
+	}
+
+	@Test
+	public void testResultsAreLoadedLazily() {
+		CountingRetrieveProvider counting = new CountingRetrieveProvider(10);
+		CachingRetrieveProvider provider = new CachingRetrieveProvider(counting, null);
+
+		Iterator<Object> iterator = retrieve(provider, "123", "44054006").iterator();
+		iterator.next();
+
+		assertEquals(1, counting.myLoaded);
+		// Results that were not iterated to the end are not cached
+		assertEquals(0, provider.getCache().size());
+	}
+
+	@Test
+	public void testCacheIsBoundedByEntriesAndResources() {
+		CountingRetrieveProvider counting = new CountingRetrieveProvider(3);
+		CachingRetrieveProvider provider = new CachingRetrieveProvider(counting, null, 2, 5);
+
+		for (String code : Arrays.asList("1", "2", "3")) {
+			list(retrieve(provider, "123", code));
+		}
+
+		// Two entries of three resources are more than five resources
+		assertEquals(1, provider.getCache().size());
+		assertEquals(3, provider.getCache().getResourceCount());
+
+		CachingRetrieveProvider small = new CachingRetrieveProvider(counting, null, 2, 2);
+		list(retrieve(small, "123", "1"));
+		assertEquals(0, small.getCache().size());
+	}
+
+	@Test
+	public void testUnfilteredRetrievesAreNotCached() {
+		CountingRetrieveProvider counting = new CountingRetrieveProvider();
+		CachingRetrieveProvider provider = new CachingRetrieveProvider(counting, null);
+
+		list(provider.retrieve("Unfiltered", null, null, "Condition", null, null, null, null, null, null, null, null));
+		list(provider.retrieve("Unfiltered", null, null, "Condition", null, null, null, null, null, null, null, null));
+
+		assertEquals(2, counting.myRetrieves);
+		assertEquals(0, provider.getCache().size());
+	}
+}
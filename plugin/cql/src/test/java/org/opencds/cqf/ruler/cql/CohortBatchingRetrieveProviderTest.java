@@ -0,0 +1,154 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+public class CohortBatchingRetrieveProviderTest {
+
+	private static Observation observation(String id, String patientId) {
+		Observation observation = new Observation();
+		observation.setId("Observation/" + id);
+		observation.getSubject().setReference("Patient/" + patientId);
+		return observation;
+	}
+
+	private static class StubRetrieveProvider extends JpaFhirRetrieveProvider {
+		private final List<Observation> myObservations;
+		private final List<List<String>> myBatches = new ArrayList<>();
+		private final List<String> myDataTypes = new ArrayList<>();
+		private int myRetrieves;
+
+		StubRetrieveProvider(List<Observation> theObservations) {
+			super(null, null);
+			myObservations = theObservations;
+		}
+
+		@Override
+		public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+				String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+				String dateLowPath, String dateHighPath, Interval dateRange) {
+			myRetrieves++;
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Iterable<Object> retrieveForPatients(String context, String contextPath, List<String> patientIds,
+				String dataType, String templateId, String codePath, Iterable<Code> codes, String valueSet,
+				String datePath, String dateLowPath, String dateHighPath, Interval dateRange) {
+			myBatches.add(patientIds);
+			myDataTypes.add(dataType);
+			List<Object> results = new ArrayList<>();
+			for (Observation observation : myObservations) {
+				if (patientIds.contains(observation.getSubject().getReferenceElement().getIdPart())) {
+					results.add(observation);
+				}
+			}
+			return results;
+		}
+	}
+
+	private List<String> ids(Iterable<Object> theResults) {
+		List<String> ids = new ArrayList<>();
+		for (Object result : theResults) {
+			ids.add(((IBaseResource) result).getIdElement().getIdPart());
+		}
+		return ids;
+	}
+
+	private Iterable<Object> retrieve(CohortBatchingRetrieveProvider theProvider, String thePatientId) {
+		return theProvider.retrieve("Patient", "subject", thePatientId, "Observation", null, null, null, null, null,
+				null, null, null);
+	}
+
+	@Test
+	public void testPatientsAreLoadedInBatches() {
+		StubRetrieveProvider stub = new StubRetrieveProvider(Arrays.asList(observation("a", "1"),
+				observation("b", "2"), observation("c", "2"), observation("d", "3")));
+		CohortBatchingRetrieveProvider.Cohort cohort = new CohortBatchingRetrieveProvider.Cohort(
+				Arrays.asList("Patient/1", "Patient/2", "Patient/3", "Patient/4", "Patient/5"));
+		CohortBatchingRetrieveProvider provider = new CohortBatchingRetrieveProvider(stub, new R4FhirModelResolver(),
+				cohort, 2);
+
+		assertEquals(Arrays.asList("a"), ids(retrieve(provider, "1")));
+		assertEquals(Arrays.asList("b", "c"), ids(retrieve(provider, "2")));
+		assertEquals(Arrays.asList("d"), ids(retrieve(provider, "3")));
+		assertEquals(Collections.emptyList(), ids(retrieve(provider, "4")));
+		assertEquals(Collections.emptyList(), ids(retrieve(provider, "5")));
+
+		assertEquals(Arrays.asList(Arrays.asList("1", "2"), Arrays.asList("3", "4"), Arrays.asList("5")),
+				stub.myBatches);
+		assertEquals(3, cohort.getBatchedQueryCount());
+		// The batches after the first are prefetched
+		assertEquals(4, cohort.getHitCount());
+		assertEquals(0, stub.myRetrieves);
+	}
+
+	private Iterable<Object> retrieve(CohortBatchingRetrieveProvider theProvider, String thePatientId,
+			String theDataType) {
+		return theProvider.retrieve("Patient", "subject", thePatientId, theDataType, null, null, null, null, null,
+				null, null, null);
+	}
+
+	@Test
+	public void testDataRequirementsArePrefetched() {
+		StubRetrieveProvider stub = new StubRetrieveProvider(Arrays.asList(observation("a", "1"),
+				observation("b", "3")));
+		CohortBatchingRetrieveProvider.Cohort cohort = new CohortBatchingRetrieveProvider.Cohort(
+				Arrays.asList("1", "2", "3", "4"));
+		CohortBatchingRetrieveProvider provider = new CohortBatchingRetrieveProvider(stub, new R4FhirModelResolver(),
+				cohort, 2);
+
+		retrieve(provider, "1", "Observation");
+		retrieve(provider, "1", "Condition");
+		retrieve(provider, "2", "Observation");
+		retrieve(provider, "2", "Condition");
+		// Only made for one patient, so not a data requirement
+		retrieve(provider, "2", "Procedure");
+
+		assertEquals(Arrays.asList("b"), ids(retrieve(provider, "3", "Condition")));
+		assertEquals(Arrays.asList("Observation", "Condition", "Procedure", "Observation", "Condition"),
+				stub.myDataTypes);
+
+		retrieve(provider, "3", "Observation");
+		assertEquals(5, stub.myBatches.size());
+	}
+
+	@Test
+	public void testOnlyTheRetainedBatchesAreKept() {
+		StubRetrieveProvider stub = new StubRetrieveProvider(Collections.emptyList());
+		CohortBatchingRetrieveProvider.Cohort cohort = new CohortBatchingRetrieveProvider.Cohort(
+				Arrays.asList("1", "2", "3"), 1);
+		CohortBatchingRetrieveProvider provider = new CohortBatchingRetrieveProvider(stub, new R4FhirModelResolver(),
+				cohort, 1);
+
+		retrieve(provider, "1");
+		retrieve(provider, "2");
+		retrieve(provider, "1");
+
+		assertEquals(Arrays.asList(Arrays.asList("1"), Arrays.asList("2"), Arrays.asList("1")), stub.myBatches);
+	}
+
+	@Test
+	public void testPatientsOutsideTheCohortArePassedThrough() {
+		StubRetrieveProvider stub = new StubRetrieveProvider(Collections.emptyList());
+		CohortBatchingRetrieveProvider provider = new CohortBatchingRetrieveProvider(stub, new R4FhirModelResolver(),
+				new CohortBatchingRetrieveProvider.Cohort(Arrays.asList("1", "2")), 2);
+
+		retrieve(provider, "3");
+		provider.retrieve("Unfiltered", null, null, "ValueSet", null, null, null, null, null, null, null, null);
+
+		assertEquals(2, stub.myRetrieves);
+		assertEquals(0, stub.myBatches.size());
+	}
+}
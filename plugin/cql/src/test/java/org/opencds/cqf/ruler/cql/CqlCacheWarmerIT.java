@@ -0,0 +1,110 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.r4.model.ValueSet.ConceptSetComponent;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.ruler.test.DaoIntegrationTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest(classes = { CqlCacheWarmerIT.class }, properties = { "hapi.fhir.fhir_version=r4" })
+public class CqlCacheWarmerIT extends DaoIntegrationTest {
+
+	private static final String VALUE_SET_URL = "http://test.com/ValueSet/warm-up";
+
+	@Autowired
+	private ModelManager modelManager;
+
+	@Autowired
+	private LibraryLoaderFactory libraryLoaderFactory;
+
+	@Autowired
+	private JpaLibraryContentProviderFactory jpaLibraryContentProviderFactory;
+
+	@Autowired
+	private JpaTerminologyProviderFactory jpaTerminologyProviderFactory;
+
+	@Autowired
+	private Map<VersionedIdentifier, org.cqframework.cql.elm.execution.Library> globalLibraryCache;
+
+	@Autowired
+	private Map<VersionedIdentifier, List<Code>> globalCodeCache;
+
+	private static Library library(String theId, String theName, String theCql) {
+		Library library = new Library();
+		library.setId("Library/" + theId);
+		library.setName(theName);
+		library.setVersion("1");
+		library.addContent().setContentType("text/cql").setData(theCql.getBytes(StandardCharsets.UTF_8));
+		return library;
+	}
+
+	private static VersionedIdentifier identifier(String theName) {
+		return new VersionedIdentifier().withId(theName).withVersion("1");
+	}
+
+	private CqlCacheWarmer warmer(List<String> theLibraries) {
+		CqlProperties.WarmUpProperties properties = new CqlProperties.WarmUpProperties();
+		properties.setLibraries(theLibraries);
+		properties.setThreads(2);
+		return new CqlCacheWarmer(getFhirContext(), getDaoRegistry(), modelManager, libraryLoaderFactory,
+				jpaLibraryContentProviderFactory, jpaTerminologyProviderFactory, properties);
+	}
+
+	@BeforeEach
+	public void setup() {
+		ValueSet valueSet = new ValueSet();
+		valueSet.setId("ValueSet/warm-up");
+		valueSet.setUrl(VALUE_SET_URL);
+		ConceptSetComponent include = valueSet.getCompose().addInclude().setSystem("http://test.com");
+		include.addConcept().setCode("ABC").setDisplay("test code");
+		include.addConcept().setCode("DEF").setDisplay("other code");
+		this.update(valueSet);
+
+		this.update(library("warm-one", "WarmOne",
+				"library WarmOne version '1'\nvalueset \"Test\": '" + VALUE_SET_URL + "'\ndefine X: 1"));
+		this.update(library("warm-two", "WarmTwo", "library WarmTwo version '1'\ndefine X: 2"));
+
+		globalLibraryCache.clear();
+		globalCodeCache.clear();
+	}
+
+	@Test
+	public void testWarmUpFillsTheLibraryCache() {
+		warmer(Collections.emptyList()).run(null);
+
+		assertTrue(globalLibraryCache.containsKey(identifier("WarmOne")));
+		assertTrue(globalLibraryCache.containsKey(identifier("WarmTwo")));
+	}
+
+	@Test
+	public void testWarmUpOnlyTranslatesTheConfiguredLibraries() {
+		warmer(Collections.singletonList("WarmTwo")).run(null);
+
+		assertFalse(globalLibraryCache.containsKey(identifier("WarmOne")));
+		assertTrue(globalLibraryCache.containsKey(identifier("WarmTwo")));
+		assertFalse(globalCodeCache.containsKey(new VersionedIdentifier().withId(VALUE_SET_URL)));
+	}
+
+	@Test
+	public void testWarmUpExpandsReferencedValueSets() {
+		warmer(Collections.singletonList("WarmOne")).run(null);
+
+		List<Code> codes = globalCodeCache.get(new VersionedIdentifier().withId(VALUE_SET_URL));
+		assertEquals(2, codes.size());
+	}
+}
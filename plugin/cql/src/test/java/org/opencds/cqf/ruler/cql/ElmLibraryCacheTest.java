@@ -0,0 +1,160 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.jupiter.api.Test;
+
+public class ElmLibraryCacheTest {
+
+	private VersionedIdentifier identifier(String name) {
+		return new VersionedIdentifier().withId(name).withVersion("1.0.0");
+	}
+
+	private Library library(String name) {
+		return new Library().withIdentifier(identifier(name));
+	}
+
+	@Test
+	public void testHitAndMissAreRecorded() {
+		ElmLibraryCache cache = new ElmLibraryCache(0, null);
+
+		assertNull(cache.get(identifier("Test")));
+		cache.put(identifier("Test"), library("Test"));
+		assertNotNull(cache.get(identifier("Test")));
+
+		assertEquals(1, cache.getStats().hitCount());
+		assertEquals(1, cache.getStats().missCount());
+	}
+
+	@Test
+	public void testLoadTimeIsRecorded() {
+		ElmLibraryCache cache = new ElmLibraryCache(0, null);
+
+		cache.recordLoad(1000, true);
+		cache.recordLoad(500, false);
+
+		assertEquals(1, cache.getStats().loadSuccessCount());
+		assertEquals(1, cache.getStats().loadFailureCount());
+		assertEquals(1500, cache.getStats().totalLoadTime());
+	}
+
+	@Test
+	public void testEvictsByWeight() {
+		ElmLibraryCache cache = new ElmLibraryCache(2, null);
+
+		cache.put(identifier("One"), library("One"));
+		cache.put(identifier("Two"), library("Two"));
+		cache.put(identifier("Three"), library("Three"));
+		cache.cleanUp();
+
+		assertTrue(cache.size() <= 2);
+		assertTrue(cache.getStats().evictionCount() >= 1);
+	}
+
+	@Test
+	public void testMapOperations() {
+		ElmLibraryCache cache = new ElmLibraryCache(0, null);
+
+		cache.put(identifier("Test"), library("Test"));
+		assertTrue(cache.containsKey(identifier("Test")));
+		assertEquals(1, cache.size());
+
+		cache.remove(identifier("Test"));
+		assertNull(cache.get(identifier("Test")));
+
+		cache.put(identifier("Test"), library("Test"));
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testInvalidateByResourceIdEvictsTransitiveDependents() {
+		ElmLibraryCache cache = new ElmLibraryCache(0, null);
+
+		Library measure = library("Measure").withIncludes(
+				new Library.Includes().withDef(new IncludeDef().withPath("Helpers").withVersion("1.0.0")));
+		Library report = library("Report").withIncludes(
+				new Library.Includes().withDef(new IncludeDef().withPath("Measure").withVersion("1.0.0")));
+
+		cache.put(identifier("Helpers"), library("Helpers"));
+		cache.put(identifier("Measure"), measure);
+		cache.put(identifier("Report"), report);
+		cache.put(identifier("Unrelated"), library("Unrelated"));
+		cache.getDependencyGraph().addIncludes(identifier("Measure"), measure);
+		cache.getDependencyGraph().addIncludes(identifier("Report"), report);
+		cache.indexResourceId("Library/helpers", identifier("Helpers"));
+
+		Set<VersionedIdentifier> invalidated = cache.invalidateByResourceId("Library/helpers");
+
+		assertEquals(3, invalidated.size());
+		assertNull(cache.get(identifier("Helpers")));
+		assertNull(cache.get(identifier("Measure")));
+		assertNull(cache.get(identifier("Report")));
+		assertNotNull(cache.get(identifier("Unrelated")));
+	}
+
+	@Test
+	public void testInvalidateUnknownResourceIdIsNoOp() {
+		ElmLibraryCache cache = new ElmLibraryCache(0, null);
+
+		cache.put(identifier("Test"), library("Test"));
+
+		assertTrue(cache.invalidateByResourceId("Library/unknown").isEmpty());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testEvictionPrunesTheResourceIdIndex() {
+		ElmLibraryCache cache = new ElmLibraryCache(2, null);
+
+		// Indexed first, as the entries may be evicted as soon as they are added
+		cache.indexResourceId("Library/one", identifier("One"));
+		cache.put(identifier("One"), library("One"));
+		cache.indexResourceId("Library/two", identifier("Two"));
+		cache.put(identifier("Two"), library("Two"));
+		cache.indexResourceId("Library/three", identifier("Three"));
+		cache.put(identifier("Three"), library("Three"));
+		cache.cleanUp();
+
+		assertEquals(cache.size(), cache.getIndexedResourceIdCount());
+	}
+
+	@Test
+	public void testRemoveAndClearPruneTheResourceIdIndex() {
+		ElmLibraryCache cache = new ElmLibraryCache(0, null);
+
+		cache.put(identifier("One"), library("One"));
+		cache.indexResourceId("Library/one", identifier("One"));
+		cache.put(identifier("Two"), library("Two"));
+		cache.indexResourceId("Library/two", identifier("Two"));
+
+		cache.remove(identifier("One"));
+		assertEquals(1, cache.getIndexedResourceIdCount());
+
+		cache.clear();
+		assertEquals(0, cache.getIndexedResourceIdCount());
+	}
+
+	@Test
+	public void testRemovalPrunesTheDependencyGraph() {
+		ElmLibraryCache cache = new ElmLibraryCache(0, null);
+
+		Library measure = library("Measure").withIncludes(
+				new Library.Includes().withDef(new IncludeDef().withPath("Helpers").withVersion("1.0.0")));
+		cache.getDependencyGraph().addIncludes(identifier("Measure"), measure);
+		cache.put(identifier("Measure"), measure);
+		assertEquals(1, cache.getDependencyGraph().getDependents(identifier("Helpers")).size());
+
+		cache.remove(identifier("Measure"));
+
+		assertTrue(cache.getDependencyGraph().getDependents(identifier("Helpers")).isEmpty());
+	}
+}
@@ -0,0 +1,127 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Period;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.DateTime;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class IndexedBundleRetrieveProviderTest {
+
+	private static final String LOINC = "http://loinc.org";
+
+	private static Observation observation(String id, String patientId, String code) {
+		Observation observation = new Observation();
+		observation.setId("Observation/" + id);
+		observation.getSubject().setReference("Patient/" + patientId);
+		observation.getCode().addCoding().setSystem(LOINC).setCode(code);
+		return observation;
+	}
+
+	private static IndexedBundleRetrieveProvider provider(Observation... theObservations) {
+		Bundle bundle = new Bundle();
+		for (Observation observation : theObservations) {
+			bundle.addEntry().setResource(observation);
+		}
+
+		return new IndexedBundleRetrieveProvider(FhirContext.forR4(), new R4FhirModelResolver(), bundle);
+	}
+
+	private static List<String> ids(Iterable<Object> theResults) {
+		List<String> ids = new ArrayList<>();
+		for (Object result : theResults) {
+			ids.add(((IBaseResource) result).getIdElement().getIdPart());
+		}
+		return ids;
+	}
+
+	@Test
+	public void testRetrieveByContext() {
+		IndexedBundleRetrieveProvider provider = provider(observation("a", "1", "1234-5"),
+				observation("b", "2", "1234-5"), observation("c", "1", "6789-0"));
+
+		assertEquals(Arrays.asList("a", "c"), ids(provider.retrieve("Patient", "subject", "Patient/1", "Observation",
+				null, null, null, null, null, null, null, null)));
+		assertEquals(Collections.emptyList(), ids(provider.retrieve("Patient", "subject", "3", "Observation", null,
+				null, null, null, null, null, null, null)));
+		assertEquals(Collections.emptyList(), ids(provider.retrieve("Patient", "subject", "1", "Condition", null,
+				null, null, null, null, null, null, null)));
+	}
+
+	@Test
+	public void testRetrieveByCode() {
+		IndexedBundleRetrieveProvider provider = provider(observation("a", "1", "1234-5"),
+				observation("b", "2", "1234-5"), observation("c", "1", "6789-0"));
+
+		List<Code> codes = Collections.singletonList(new Code().withSystem(LOINC).withCode("1234-5"));
+		assertEquals(Arrays.asList("a", "b"), ids(provider.retrieve(null, null, null, "Observation", null, "code",
+				codes, null, null, null, null, null)));
+		assertEquals(Collections.singletonList("a"), ids(provider.retrieve("Patient", "subject", "1", "Observation",
+				null, "code", codes, null, null, null, null, null)));
+
+		List<Code> otherSystem = Collections.singletonList(new Code().withSystem("http://snomed.info/sct")
+				.withCode("1234-5"));
+		assertEquals(Collections.emptyList(), ids(provider.retrieve(null, null, null, "Observation", null, "code",
+				otherSystem, null, null, null, null, null)));
+	}
+
+	@Test
+	public void testRetrieveByDateExcludesOnlyResourcesKnownToBeOutsideTheRange() {
+		Observation before = observation("before", "1", "1234-5");
+		before.setEffective(new DateTimeType("2010-06-15"));
+		Observation during = observation("during", "1", "1234-5");
+		during.setEffective(new DateTimeType("2020-06-15"));
+		Observation overlapping = observation("overlapping", "1", "1234-5");
+		overlapping.setEffective(new Period().setStartElement(new DateTimeType("2019-06-15")));
+		Observation after = observation("after", "1", "1234-5");
+		after.setEffective(new DateTimeType("2030-06-15"));
+		Observation unknown = observation("unknown", "1", "1234-5");
+
+		IndexedBundleRetrieveProvider provider = provider(before, during, overlapping, after, unknown);
+		Interval range = new Interval(new DateTime("2020-01-01", ZoneOffset.UTC), true,
+				new DateTime("2020-12-31", ZoneOffset.UTC), true);
+
+		assertEquals(Arrays.asList("during", "overlapping", "unknown"), ids(provider.retrieve("Patient", "subject",
+				"1", "Observation", null, null, null, null, "effective", null, null, range)));
+	}
+
+	@Test
+	public void testRetrieveByDateKeepsDatesOnTheBoundaryDayInAnyOffset() {
+		TimeZone timeZone = TimeZone.getDefault();
+		try {
+			// The server is far behind the offset of the range
+			TimeZone.setDefault(TimeZone.getTimeZone("Etc/GMT+12"));
+			Observation before = observation("before", "1", "1234-5");
+			before.setEffective(new DateTimeType("2019-12-28"));
+			Observation boundary = observation("boundary", "1", "1234-5");
+			boundary.setEffective(new DateTimeType("2019-12-31"));
+			Observation after = observation("after", "1", "1234-5");
+			after.setEffective(new DateTimeType("2020-01-02"));
+
+			IndexedBundleRetrieveProvider provider = provider(before, boundary, after);
+			Interval range = new Interval(new DateTime("2019-12-31", ZoneOffset.ofHours(14)), true,
+					new DateTime("2019-12-31", ZoneOffset.ofHours(14)), true);
+
+			assertEquals(Collections.singletonList("boundary"), ids(provider.retrieve("Patient", "subject", "1",
+					"Observation", null, null, null, null, "effective", null, null, range)));
+		} finally {
+			TimeZone.setDefault(timeZone);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
+import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentType;
+
+public class InstrumentedTranslatingLibraryLoaderTest {
+
+	@TempDir
+	Path directory;
+
+	private final VersionedIdentifier identifier = new VersionedIdentifier().withId("Test").withVersion("1.0.0");
+
+	// Serves the CQL of a single library and counts the reads of each content
+	// type
+	private static class CountingProvider implements LibraryContentProvider {
+		private final String myCql;
+		private final Map<LibraryContentType, AtomicInteger> myReads = new ConcurrentHashMap<>();
+
+		CountingProvider(String theCql) {
+			myCql = theCql;
+		}
+
+		@Override
+		public InputStream getLibraryContent(org.hl7.elm.r1.VersionedIdentifier libraryIdentifier,
+				LibraryContentType libraryContentType) {
+			myReads.computeIfAbsent(libraryContentType, x -> new AtomicInteger()).incrementAndGet();
+			if (libraryContentType != LibraryContentType.CQL || !"Test".equals(libraryIdentifier.getId())) {
+				return null;
+			}
+
+			return new ByteArrayInputStream(myCql.getBytes(StandardCharsets.UTF_8));
+		}
+
+		int reads(LibraryContentType theContentType) {
+			AtomicInteger reads = myReads.get(theContentType);
+			return reads == null ? 0 : reads.get();
+		}
+	}
+
+	@Test
+	public void testContentIsReadOncePerLoad() {
+		CountingProvider provider = new CountingProvider("library Test version '1.0.0'\ndefine X: 1 + 2");
+		InstrumentedTranslatingLibraryLoader loader = new InstrumentedTranslatingLibraryLoader(new ModelManager(),
+				Collections.singletonList(provider), CqlTranslatorOptions.defaultOptions(), new ElmLibraryCache(0, null),
+				new PersistentElmStore(directory));
+
+		assertEquals("1.0.0", loader.load(identifier).getIdentifier().getVersion());
+
+		assertEquals(1, provider.reads(LibraryContentType.JSON));
+		assertEquals(1, provider.reads(LibraryContentType.XML));
+		assertEquals(1, provider.reads(LibraryContentType.CQL));
+	}
+}
@@ -95,6 +95,26 @@ public class JpaFhirRetrieveProviderIT extends DaoIntegrationTest {
 		assertEquals(observation().getIdElement().getIdPart(), observation.getIdElement().getIdPart());
 	}
 
+	@Test
+	public void testReadObservationByValueSetPushdown() {
+		this.update(patient());
+		this.update(observation());
+		this.update(valueSet());
+
+		JpaFhirRetrieveProvider jfrp = this.createProvider();
+		jfrp.setValueSetPushdown(true);
+
+		Iterator<Object> result = jfrp
+				.retrieve("Patient", "subject", "ABC", "Observation", null, "code", null, "http://test.com/ValueSet/123",
+						null, null, null, null)
+				.iterator();
+
+		assertTrue(result.hasNext());
+		Observation observation = (Observation) result.next();
+
+		assertEquals(observation().getIdElement().getIdPart(), observation.getIdElement().getIdPart());
+	}
+
 	private Patient patient() {
 		return newResource(Patient.class, "ABC");
 	}
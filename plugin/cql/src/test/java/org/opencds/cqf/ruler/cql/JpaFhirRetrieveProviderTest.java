@@ -0,0 +1,159 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
+
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+public class JpaFhirRetrieveProviderTest {
+
+	private static Observation observation(String id) {
+		Observation observation = new Observation();
+		observation.setId("Observation/" + id);
+		return observation;
+	}
+
+	private static class StubRetrieveProvider extends JpaFhirRetrieveProvider {
+		private final List<List<IBaseResource>> myResults;
+		private final AtomicInteger myInFlight = new AtomicInteger();
+		private final AtomicInteger myMaxInFlight = new AtomicInteger();
+		private final Map<Integer, RequestDetails> myRequestDetails = new ConcurrentHashMap<>();
+
+		StubRetrieveProvider(List<List<IBaseResource>> theResults) {
+			this(theResults, null);
+		}
+
+		StubRetrieveProvider(List<List<IBaseResource>> theResults, RequestDetails theRequestDetails) {
+			super(null, null, theRequestDetails);
+			myResults = theResults;
+		}
+
+		@Override
+		protected List<IBaseResource> executeQuery(String dataType, SearchParameterMap map,
+				RequestDetails requestDetails) {
+			int query = Integer.parseInt(map.keySet().iterator().next());
+			if (requestDetails != null) {
+				myRequestDetails.put(query, requestDetails);
+			}
+			int inFlight = myInFlight.incrementAndGet();
+			myMaxInFlight.accumulateAndGet(inFlight, Math::max);
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			myInFlight.decrementAndGet();
+			return myResults.get(query);
+		}
+	}
+
+	private List<SearchParameterMap> queries(int count) {
+		List<SearchParameterMap> queries = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			SearchParameterMap map = new SearchParameterMap();
+			map.put(String.valueOf(i), new ArrayList<>());
+			queries.add(map);
+		}
+		return queries;
+	}
+
+	private List<String> ids(Iterable<Object> theResults) {
+		List<String> ids = new ArrayList<>();
+		for (Object result : theResults) {
+			ids.add(((IBaseResource) result).getIdElement().getIdPart());
+		}
+		return ids;
+	}
+
+	@Test
+	public void testResultsAreMergedInQueryOrderWithoutDuplicates() {
+		StubRetrieveProvider provider = new StubRetrieveProvider(Arrays.asList(
+				Arrays.asList(observation("1"), observation("2")),
+				Arrays.asList(observation("2"), observation("3")),
+				Arrays.asList(observation("4"))));
+
+		assertEquals(Arrays.asList("1", "2", "3", "4"), ids(provider.executeQueries("Observation", queries(3))));
+	}
+
+	@Test
+	public void testQueriesRunConcurrentlyUpToTheCap() {
+		List<List<IBaseResource>> results = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			results.add(Arrays.asList(observation(String.valueOf(i))));
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			StubRetrieveProvider provider = new StubRetrieveProvider(results);
+			provider.setQueryExecutor(executor);
+			provider.setMaxConcurrentQueries(3);
+
+			assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7"),
+					ids(provider.executeQueries("Observation", queries(8))));
+			assertTrue(provider.myMaxInFlight.get() <= 3);
+			assertTrue(provider.myMaxInFlight.get() > 1);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrentQueriesHaveTheirOwnRequestDetails() {
+		List<List<IBaseResource>> results = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			results.add(Arrays.asList(observation(String.valueOf(i))));
+		}
+
+		SystemRequestDetails requestDetails = new SystemRequestDetails();
+		requestDetails.setTenantId("tenant");
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			StubRetrieveProvider provider = new StubRetrieveProvider(results, requestDetails);
+			provider.setQueryExecutor(executor);
+			provider.setMaxConcurrentQueries(2);
+			provider.executeQueries("Observation", queries(4));
+
+			// Queries 0 and 2 run on the calling thread, 1 and 3 on the executor
+			assertSame(requestDetails, provider.myRequestDetails.get(0));
+			assertSame(requestDetails, provider.myRequestDetails.get(2));
+			assertNotSame(requestDetails, provider.myRequestDetails.get(1));
+			assertSame(provider.myRequestDetails.get(1), provider.myRequestDetails.get(3));
+			assertEquals("tenant", provider.myRequestDetails.get(1).getTenantId());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testSearchParameterMapConversion() {
+		SearchParameterMap map = new SearchParameterMap();
+		List<List<IQueryParameterType>> codes = Collections.singletonList(
+				Arrays.asList(new TokenParam("http://loinc.org", "1234-5"), new TokenParam("http://loinc.org", "6789-0")));
+		map.put("code", codes);
+
+		ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap = JpaFhirRetrieveProvider.toHapiSearchParameterMap(map);
+
+		assertTrue(hapiMap.isLoadSynchronous());
+		assertEquals(codes, hapiMap.get("code"));
+	}
+}
@@ -0,0 +1,104 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+
+public class JpaLibraryContentProviderTest {
+
+	private JpaLibraryContentProvider provider(CqlTranslator.Options... options) {
+		CqlTranslatorOptions translatorOptions = CqlTranslatorOptions.defaultOptions();
+		translatorOptions.getOptions().clear();
+		translatorOptions.getOptions().addAll(Arrays.asList(options));
+		return new JpaLibraryContentProvider(null, null, null, translatorOptions);
+	}
+
+	private byte[] bytes(String content) {
+		return content.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testXmlElmWithMatchingOptions() {
+		byte[] elm = bytes("<library xmlns=\"urn:hl7-org:elm:r1\"><annotation translatorOptions=\"EnableLocators,EnableAnnotations\" xsi:type=\"a:CqlToElmInfo\"/></library>");
+
+		assertTrue(provider(CqlTranslator.Options.EnableAnnotations, CqlTranslator.Options.EnableLocators)
+				.translatorOptionsMatch(elm));
+		assertFalse(provider(CqlTranslator.Options.EnableAnnotations).translatorOptionsMatch(elm));
+	}
+
+	@Test
+	public void testJsonElmWithMatchingOptions() {
+		byte[] elm = bytes("{\"library\":{\"annotation\":[{\"translatorOptions\":\"EnableAnnotations\",\"type\":\"CqlToElmInfo\"}]}}");
+
+		assertTrue(provider(CqlTranslator.Options.EnableAnnotations).translatorOptionsMatch(elm));
+		assertFalse(provider(CqlTranslator.Options.EnableLocators).translatorOptionsMatch(elm));
+	}
+
+	@Test
+	public void testOptionsOutsideTheAnnotationAreIgnored() {
+		byte[] xml = bytes("<library xmlns=\"urn:hl7-org:elm:r1\"><identifier id=\"translatorOptions=&quot;EnableAnnotations&quot;\"/></library>");
+		byte[] json = bytes("{\"library\":{\"identifier\":{\"translatorOptions\":\"EnableAnnotations\"}}}");
+
+		assertFalse(provider(CqlTranslator.Options.EnableAnnotations).translatorOptionsMatch(xml));
+		assertFalse(provider(CqlTranslator.Options.EnableAnnotations).translatorOptionsMatch(json));
+	}
+
+	private Library library(String theCql, String theCqlHash) {
+		Library library = new Library();
+		library.addContent().setContentType("text/cql").setData(bytes(theCql));
+		Attachment elm = library.addContent().setContentType("application/elm+xml").setData(bytes("<library/>"));
+		if (theCqlHash != null) {
+			elm.addExtension(JpaLibraryContentProvider.CQL_HASH_EXTENSION, new StringType(theCqlHash));
+		}
+		return library;
+	}
+
+	@Test
+	public void testElmMatchesTheCqlItWasTranslatedFrom() {
+		String cql = "library Test version '1.0.0'";
+
+		assertTrue(JpaLibraryContentProvider.elmMatchesCql(library(cql, PersistentElmStore.hash(bytes(cql))),
+				"application/elm+xml"));
+		assertFalse(JpaLibraryContentProvider.elmMatchesCql(
+				library(cql, PersistentElmStore.hash(bytes("library Test version '0.9.0'"))), "application/elm+xml"));
+		assertFalse(JpaLibraryContentProvider.elmMatchesCql(library(cql, null), "application/elm+xml"));
+	}
+
+	@Test
+	public void testElmDoesNotMatchCqlEditedWithoutAVersionChange() {
+		byte[] cql = bytes("library Test version '1.0.0'\ndefine X: 1");
+		byte[] edited = bytes("library Test version '1.0.0'\ndefine X: 2");
+		byte[] xml = bytes("<library xmlns=\"urn:hl7-org:elm:r1\"><annotation translatorOptions=\"\"/>"
+				+ "<identifier id=\"Test\" version=\"1.0.0\"/></library>");
+
+		assertTrue(JpaLibraryContentProvider.elmMatchesCql(cql, xml, PersistentElmStore.hash(cql)));
+		assertFalse(JpaLibraryContentProvider.elmMatchesCql(edited, xml, PersistentElmStore.hash(cql)));
+	}
+
+	@Test
+	public void testPublishedElmOnlyMatchesWithoutCql() {
+		byte[] cql = bytes("library Test version '1.0.0'\ndefine X: 1");
+		byte[] xml = bytes("<library xmlns=\"urn:hl7-org:elm:r1\"><annotation translatorOptions=\"\"/>"
+				+ "<identifier id=\"Test\" version=\"1.0.0\"/></library>");
+
+		// The name and version of the ELM match the CQL, but it may be stale
+		assertFalse(JpaLibraryContentProvider.elmMatchesCql(cql, xml, null));
+		assertTrue(JpaLibraryContentProvider.elmMatchesCql(null, xml, null));
+	}
+
+	@Test
+	public void testElmWithoutOptionsDoesNotMatch() {
+		byte[] elm = bytes("{\"library\":{\"identifier\":{\"id\":\"Test\"}}}");
+
+		assertFalse(provider(CqlTranslator.Options.EnableAnnotations).translatorOptionsMatch(elm));
+	}
+}
@@ -0,0 +1,153 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+public class LibraryContentIndexTest {
+
+	private static Library library(String id, String name, String version, String cql) {
+		Library library = new Library();
+		library.setId("Library/" + id);
+		library.setName(name);
+		library.setVersion(version);
+		library.addContent().setContentType("text/cql").setData(cql.getBytes(StandardCharsets.UTF_8));
+		return library;
+	}
+
+	private static class StubLibraryContentIndex extends LibraryContentIndex {
+		private final List<Library> myLibraries = new ArrayList<>();
+		private int mySearches;
+
+		StubLibraryContentIndex() {
+			super(null, 1000000);
+		}
+
+		@Override
+		protected List<IBaseResource> searchByName(String theName, RequestDetails theRequestDetails) {
+			mySearches++;
+			List<IBaseResource> libraries = new ArrayList<>();
+			for (Library library : myLibraries) {
+				if (theName.equals(library.getName())) {
+					libraries.add(library);
+				}
+			}
+			return libraries;
+		}
+	}
+
+	@Test
+	public void testLibrariesAreSearchedForOncePerName() {
+		StubLibraryContentIndex index = new StubLibraryContentIndex();
+		index.myLibraries.add(library("a", "Common", "1.0.0", "library Common version '1.0.0'"));
+		index.myLibraries.add(library("b", "Common", "2.0.0", "library Common version '2.0.0'"));
+
+		assertEquals("Library/a", index.get("Common", "1.0.0", null).getResourceId());
+		assertEquals("Library/b", index.get("Common", "2.0.0", null).getResourceId());
+		assertEquals("Library/b", index.get("Common", null, null).getResourceId());
+		assertEquals("Library/b", index.get("Common", "3.0.0", null).getResourceId());
+		assertNull(index.get("Missing", null, null));
+		assertNull(index.get("Missing", null, null));
+
+		assertEquals(2, index.mySearches);
+	}
+
+	@Test
+	public void testChangedLibrariesAreReloaded() {
+		StubLibraryContentIndex index = new StubLibraryContentIndex();
+		Library library = library("a", "Common", "1.0.0", "library Common version '1.0.0'");
+		index.myLibraries.add(library);
+		String hash = index.get("Common", "1.0.0", null).getContentHash();
+
+		Library updated = library.copy();
+		updated.getContentFirstRep().setData("library Common version '1.0.0' define X: 1"
+				.getBytes(StandardCharsets.UTF_8));
+		index.myLibraries.set(0, updated);
+		index.resourceUpdated(library, updated);
+		assertFalse(index.isIndexed("Common"));
+
+		assertNotEquals(hash, index.get("Common", "1.0.0", null).getContentHash());
+		assertEquals(2, index.mySearches);
+	}
+
+	@Test
+	public void testRenamedLibrariesAreRemovedFromBothNames() {
+		StubLibraryContentIndex index = new StubLibraryContentIndex();
+		Library library = library("a", "Common", "1.0.0", "library Common version '1.0.0'");
+		index.myLibraries.add(library);
+		index.get("Common", null, null);
+		index.get("Helpers", null, null);
+		assertTrue(index.isIndexed("Common"));
+		assertTrue(index.isIndexed("Helpers"));
+
+		Library renamed = library.copy().setName("Helpers");
+		index.myLibraries.set(0, renamed);
+		index.resourceUpdated(library, renamed);
+
+		assertFalse(index.isIndexed("Common"));
+		assertFalse(index.isIndexed("Helpers"));
+		assertEquals("Library/a", index.get("Helpers", null, null).getResourceId());
+	}
+
+	@Test
+	public void testDeletedLibrariesAreRemoved() {
+		StubLibraryContentIndex index = new StubLibraryContentIndex();
+		Library library = library("a", "Common", "1.0.0", "library Common version '1.0.0'");
+		index.myLibraries.add(library);
+		index.get("Common", null, null);
+
+		index.myLibraries.clear();
+		index.resourceDeleted(library);
+
+		assertNull(index.get("Common", null, null));
+	}
+
+	@Test
+	public void testTenantsAreIndexedSeparately() {
+		StubLibraryContentIndex index = new StubLibraryContentIndex();
+		index.myLibraries.add(library("a", "Common", "1.0.0", "library Common version '1.0.0'"));
+		SystemRequestDetails a = new SystemRequestDetails();
+		a.setTenantId("a");
+		SystemRequestDetails b = new SystemRequestDetails();
+		b.setTenantId("b");
+
+		index.get("Common", null, a);
+		index.get("Common", null, b);
+		index.get("Common", null, a);
+
+		assertEquals(2, index.mySearches);
+	}
+
+	@Test
+	public void testElmOfOtherCqlIsNotServed() {
+		StubLibraryContentIndex index = new StubLibraryContentIndex();
+		String cql = "library Common version '1.0.0'";
+		Library library = library("a", "Common", "1.0.0", cql);
+		library.addContent().setContentType("application/elm+xml").setData("<library/>".getBytes())
+				.addExtension(JpaLibraryContentProvider.CQL_HASH_EXTENSION, new StringType("other"));
+		library.addContent().setContentType("application/elm+json").setData("{}".getBytes())
+				.addExtension(JpaLibraryContentProvider.CQL_HASH_EXTENSION,
+						new StringType(PersistentElmStore.hash(cql.getBytes(StandardCharsets.UTF_8))));
+		index.myLibraries.add(library);
+
+		LibraryContentIndex.Entry entry = index.get("Common", null, null);
+
+		assertNull(entry.getContent("application/elm+xml"));
+		assertEquals("{}", new String(entry.getContent("application/elm+json"), StandardCharsets.UTF_8));
+		assertEquals(cql, new String(entry.getContent("text/cql"), StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,65 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.jupiter.api.Test;
+
+public class LibraryDependencyGraphTest {
+
+	private VersionedIdentifier identifier(String name) {
+		return new VersionedIdentifier().withId(name).withVersion("1.0.0");
+	}
+
+	private Library library(String name, String... includes) {
+		Library.Includes includeDefs = new Library.Includes();
+		for (String include : includes) {
+			includeDefs.getDef().add(new IncludeDef().withPath(include).withVersion("1.0.0"));
+		}
+
+		return new Library().withIdentifier(identifier(name)).withIncludes(includeDefs);
+	}
+
+	@Test
+	public void testTransitiveDependents() {
+		LibraryDependencyGraph graph = new LibraryDependencyGraph();
+		graph.addIncludes(identifier("Common"), library("Common", "FHIRHelpers"));
+		graph.addIncludes(identifier("MeasureA"), library("MeasureA", "Common", "FHIRHelpers"));
+		graph.addIncludes(identifier("MeasureB"), library("MeasureB", "Common"));
+		graph.addIncludes(identifier("Other"), library("Other"));
+
+		Set<VersionedIdentifier> dependents = graph.getTransitiveDependents(identifier("FHIRHelpers"));
+
+		assertEquals(3, dependents.size());
+		assertTrue(dependents.contains(identifier("Common")));
+		assertTrue(dependents.contains(identifier("MeasureA")));
+		assertTrue(dependents.contains(identifier("MeasureB")));
+	}
+
+	@Test
+	public void testCyclesTerminate() {
+		LibraryDependencyGraph graph = new LibraryDependencyGraph();
+		graph.addIncludes(identifier("A"), library("A", "B"));
+		graph.addIncludes(identifier("B"), library("B", "A"));
+
+		Set<VersionedIdentifier> dependents = graph.getTransitiveDependents(identifier("A"));
+
+		assertEquals(1, dependents.size());
+		assertTrue(dependents.contains(identifier("B")));
+	}
+
+	@Test
+	public void testRemoveDependent() {
+		LibraryDependencyGraph graph = new LibraryDependencyGraph();
+		graph.addIncludes(identifier("Measure"), library("Measure", "Common"));
+
+		graph.removeDependent(identifier("Measure"));
+
+		assertTrue(graph.getDependents(identifier("Common")).isEmpty());
+	}
+}
@@ -0,0 +1,89 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+public class MappedValueSetExpansionStoreTest {
+
+	@TempDir
+	Path directory;
+
+	private ValueSetExpansion expansion() {
+		ValueSetExpansion.Builder builder = ValueSetExpansion.builder();
+		for (int i = 0; i < 1000; i++) {
+			builder.add(i % 2 == 0 ? "http://snomed.info/sct" : "http://loinc.org", "code-" + i);
+		}
+		return builder.add(null, "no-system").build();
+	}
+
+	@Test
+	public void testStoredExpansionIsServedFromDisk() {
+		MappedValueSetExpansionStore store = new MappedValueSetExpansionStore(directory, 10);
+		VersionedIdentifier identifier = new VersionedIdentifier().withId("http://example.org/ValueSet/test");
+
+		List<Code> stored = store.put(identifier, "1|1000", expansion());
+
+		assertTrue(stored instanceof MappedValueSetExpansionStore.MappedValueSetExpansion);
+		assertEquals(1001, stored.size());
+		assertEquals("code-1", stored.get(1).getCode());
+		assertEquals("http://loinc.org", stored.get(1).getSystem());
+		assertTrue(((ValueSetMembership) stored).contains("http://snomed.info/sct", "code-998"));
+		assertTrue(((ValueSetMembership) stored).contains(null, "no-system"));
+		assertFalse(((ValueSetMembership) stored).contains("http://loinc.org", "code-998"));
+	}
+
+	@Test
+	public void testExpansionSurvivesNewStore() {
+		VersionedIdentifier identifier = new VersionedIdentifier().withId("http://example.org/ValueSet/test");
+		new MappedValueSetExpansionStore(directory, 10).put(identifier, "1|1000", expansion());
+
+		MappedValueSetExpansionStore store = new MappedValueSetExpansionStore(directory, 10);
+
+		assertNotNull(store.get(identifier, "1|1000"));
+		assertNull(store.get(identifier, "2|2000"));
+	}
+
+	@Test
+	public void testRemove() {
+		MappedValueSetExpansionStore store = new MappedValueSetExpansionStore(directory, 10);
+		VersionedIdentifier identifier = new VersionedIdentifier().withId("http://example.org/ValueSet/test");
+		store.put(identifier, "1|1000", expansion());
+
+		store.remove(identifier);
+
+		assertNull(store.get(identifier, "1|1000"));
+	}
+
+	@Test
+	public void testDeleteTemporaryFiles() throws Exception {
+		MappedValueSetExpansionStore store = new MappedValueSetExpansionStore(directory, 10);
+		VersionedIdentifier identifier = new VersionedIdentifier().withId("http://example.org/ValueSet/test");
+		store.put(identifier, "1|1000", expansion());
+		Path temporary = Files.createTempFile(directory, "expansion", ".tmp");
+
+		store.deleteTemporaryFiles();
+
+		assertFalse(Files.exists(temporary));
+		assertNotNull(store.get(identifier, "1|1000"));
+	}
+
+	@Test
+	public void testThreshold() {
+		MappedValueSetExpansionStore store = new MappedValueSetExpansionStore(directory, 10);
+
+		assertFalse(store.shouldStore(9));
+		assertTrue(store.shouldStore(10));
+	}
+}
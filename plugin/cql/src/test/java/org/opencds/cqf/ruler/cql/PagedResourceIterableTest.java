@@ -0,0 +1,112 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+public class PagedResourceIterableTest {
+
+	private static class CountingBundleProvider extends SimpleBundleProvider {
+		private final boolean mySizeKnown;
+		private int myPageLoads;
+
+		CountingBundleProvider(List<IBaseResource> theResources, boolean theSizeKnown) {
+			super(theResources);
+			mySizeKnown = theSizeKnown;
+		}
+
+		@Override
+		public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+			myPageLoads++;
+			return super.getResources(theFromIndex, theToIndex);
+		}
+
+		@Override
+		public Integer size() {
+			return mySizeKnown ? super.size() : null;
+		}
+	}
+
+	private List<IBaseResource> observations(int count) {
+		List<IBaseResource> observations = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			Observation observation = new Observation();
+			observation.setId("Observation/" + i);
+			observations.add(observation);
+		}
+		return observations;
+	}
+
+	private int count(Iterable<IBaseResource> theIterable) {
+		int count = 0;
+		for (IBaseResource resource : theIterable) {
+			count++;
+		}
+		return count;
+	}
+
+	@Test
+	public void testAllResourcesAreIterated() {
+		CountingBundleProvider provider = new CountingBundleProvider(observations(25), true);
+
+		assertEquals(25, count(new PagedResourceIterable(provider, 10)));
+		assertEquals(3, provider.myPageLoads);
+	}
+
+	@Test
+	public void testAllResourcesAreIteratedWhenSizeIsUnknown() {
+		CountingBundleProvider provider = new CountingBundleProvider(observations(20), false);
+
+		assertEquals(20, count(new PagedResourceIterable(provider, 10)));
+		assertEquals(3, provider.myPageLoads);
+	}
+
+	@Test
+	public void testPagesAreLoadedLazily() {
+		CountingBundleProvider provider = new CountingBundleProvider(observations(100), true);
+
+		Iterator<IBaseResource> iterator = new PagedResourceIterable(provider, 10).iterator();
+		assertEquals("0", iterator.next().getIdElement().getIdPart());
+		assertEquals(1, provider.myPageLoads);
+	}
+
+	@Test
+	public void testPagesAreLoadedOncePerIterable() {
+		CountingBundleProvider provider = new CountingBundleProvider(observations(25), true);
+		PagedResourceIterable iterable = new PagedResourceIterable(provider, 10);
+
+		assertEquals(25, count(iterable));
+		assertEquals(25, count(iterable));
+		assertEquals(3, provider.myPageLoads);
+	}
+
+	@Test
+	public void testPagesAreLoadedByOffset() {
+		List<Integer> offsets = new ArrayList<>();
+		List<IBaseResource> observations = observations(15);
+		PagedResourceIterable iterable = new PagedResourceIterable((offset, count) -> {
+			offsets.add(offset);
+			return observations.subList(Math.min(offset, 15), Math.min(offset + count, 15));
+		}, 10);
+
+		assertEquals(15, count(iterable));
+		assertEquals(Arrays.asList(0, 10), offsets);
+	}
+
+	@Test
+	public void testEmptyResults() {
+		CountingBundleProvider provider = new CountingBundleProvider(new ArrayList<>(), true);
+
+		assertFalse(new PagedResourceIterable(provider, 10).iterator().hasNext());
+	}
+}
@@ -0,0 +1,58 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Library;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
+import org.opencds.cqf.ruler.test.DaoIntegrationTest;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
+
+@SpringBootTest(classes = { ParallelLibraryTranslatorIT.class }, properties = { "hapi.fhir.fhir_version=r4" })
+public class ParallelLibraryTranslatorIT extends DaoIntegrationTest {
+
+	private static Library library(String theId, String theName, String theVersion, String theCql) {
+		Library library = new Library();
+		library.setId("Library/" + theId);
+		library.setName(theName);
+		library.setVersion(theVersion);
+		library.addContent().setContentType("text/cql").setData(theCql.getBytes(StandardCharsets.UTF_8));
+		return library;
+	}
+
+	private static VersionedIdentifier identifier(String theId, String theVersion) {
+		return new VersionedIdentifier().withId(theId).withVersion(theVersion);
+	}
+
+	@Test
+	public void testEachVersionOfAnIncludeIsCachedSeparately() {
+		this.update(library("base-1", "Base", "1", "library Base version '1'\ndefine B: 1"));
+		this.update(library("base-2", "Base", "2", "library Base version '2'\ndefine B: 2"));
+		this.update(library("one", "One", "1", "library One version '1'\ninclude Base version '1'\ndefine X: Base.B"));
+		this.update(library("two", "Two", "1", "library Two version '1'\ninclude Base version '2'\ndefine X: Base.B"));
+
+		ModelManager modelManager = new ModelManager();
+		List<LibraryContentProvider> providers = Collections
+				.singletonList(new JpaLibraryContentProvider(getDaoRegistry(), new SystemRequestDetails()));
+		ElmLibraryCache cache = new ElmLibraryCache(0, null);
+		InstrumentedTranslatingLibraryLoader loader = new InstrumentedTranslatingLibraryLoader(modelManager,
+				providers, CqlTranslatorOptions.defaultOptions(), cache, null, new ParallelLibraryTranslator(
+						modelManager, providers, CqlTranslatorOptions.defaultOptions(), ForkJoinPool.commonPool()));
+
+		assertEquals("1", loader.load(identifier("One", "1")).getIncludes().getDef().get(0).getVersion());
+		assertEquals("2", loader.load(identifier("Two", "1")).getIncludes().getDef().get(0).getVersion());
+
+		assertEquals("1", cache.get(identifier("Base", "1")).getIdentifier().getVersion());
+		assertEquals("2", cache.get(identifier("Base", "2")).getIdentifier().getVersion());
+	}
+}
@@ -0,0 +1,174 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.execution.CqlEngine;
+
+public class ParallelLibraryTranslatorTest {
+
+	private static byte[] bytes(String theContent) {
+		return theContent.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static VersionedIdentifier identifier(String theId, String theVersion) {
+		return new VersionedIdentifier().withId(theId).withVersion(theVersion);
+	}
+
+	private static ParallelLibraryTranslator translator() {
+		return new ParallelLibraryTranslator(new ModelManager(), Collections.emptyList(),
+				CqlTranslatorOptions.defaultOptions(), ForkJoinPool.commonPool());
+	}
+
+	@Test
+	public void testParseIncludes() {
+		List<VersionedIdentifier> includes = ParallelLibraryTranslator.parseIncludes(bytes(
+				"library Main version '1.0.0'\n"
+						+ "using FHIR version '4.0.1'\n"
+						+ "include FHIRHelpers version '4.0.1' called FHIRHelpers\n"
+						+ "include \"Common Logic\" called Common\n"
+						+ "include org.example.Helpers version '2'\n"
+						+ "// include Commented version '1'\n"
+						+ "/* include Block */\n"
+						+ "define \"include Not\": 1"));
+
+		assertEquals(3, includes.size());
+		assertEquals(identifier("FHIRHelpers", "4.0.1"), includes.get(0));
+		assertEquals(identifier("Common Logic", null), includes.get(1));
+		assertEquals(identifier("Helpers", "2"), includes.get(2));
+	}
+
+	@Test
+	public void testTranslatesEachLibraryInTheGraphOnce() {
+		Map<String, byte[]> cql = new HashMap<>();
+		cql.put("Main", bytes("library Main version '1'\n"
+				+ "include Left version '1'\n"
+				+ "include Right version '1'\n"
+				+ "define X: Left.L + Right.R"));
+		cql.put("Left", bytes("library Left version '1'\n"
+				+ "include Base version '1'\n"
+				+ "define L: Base.B + 1"));
+		cql.put("Right", bytes("library Right version '1'\n"
+				+ "include Base version '1'\n"
+				+ "define R: Base.B + 2"));
+		cql.put("Base", bytes("library Base version '1'\n"
+				+ "define B: 1"));
+		Map<String, Integer> reads = new HashMap<>();
+
+		Map<VersionedIdentifier, Library> libraries = translator().translate(identifier("Main", "1"), id -> {
+			reads.merge(id.getId(), 1, Integer::sum);
+			return cql.get(id.getId());
+		});
+
+		assertNotNull(libraries);
+		assertEquals(4, libraries.size());
+		assertEquals("Main", libraries.keySet().iterator().next().getId());
+		for (Map.Entry<VersionedIdentifier, Library> entry : libraries.entrySet()) {
+			assertEquals(entry.getKey().getId(), entry.getValue().getIdentifier().getId());
+		}
+		assertEquals(1, (int) reads.get("Base"));
+	}
+
+	@Test
+	public void testTranslatedLibrariesCanBeEvaluated() {
+		Map<String, byte[]> cql = new HashMap<>();
+		cql.put("Main", bytes("library Main version '1'\n"
+				+ "include Left version '1'\n"
+				+ "include Right version '1'\n"
+				+ "define X: Left.L + Right.R"));
+		cql.put("Left", bytes("library Left version '1'\n"
+				+ "include Base version '1'\n"
+				+ "define L: Base.B + 1"));
+		cql.put("Right", bytes("library Right version '1'\n"
+				+ "include Base version '1'\n"
+				+ "define R: Base.B + 2"));
+		cql.put("Base", bytes("library Base version '1'\n"
+				+ "define B: 1"));
+
+		Map<VersionedIdentifier, Library> libraries = translator().translate(identifier("Main", "1"),
+				id -> cql.get(id.getId()));
+
+		assertNotNull(libraries);
+		assertEquals(5, new CqlEngine(libraries::get).evaluate(identifier("Main", "1"), Collections.singleton("X"))
+				.forExpression("X"));
+	}
+
+	@Test
+	public void testLibrariesWithoutIncludesAreNotTranslated() {
+		assertNull(translator().translate(identifier("Main", "1"), id -> bytes("library Main version '1'")));
+	}
+
+	@Test
+	public void testMissingIncludesAreNotTranslated() {
+		assertNull(translator().translate(identifier("Main", "1"),
+				id -> "Main".equals(id.getId()) ? bytes("library Main version '1'\ninclude Missing") : null));
+	}
+
+	@Test
+	public void testCyclicIncludesAreNotTranslated() {
+		Map<String, byte[]> cql = new HashMap<>();
+		cql.put("A", bytes("library A version '1'\ninclude B version '1'"));
+		cql.put("B", bytes("library B version '1'\ninclude A version '1'"));
+
+		assertNull(translator().translate(identifier("A", "1"), id -> cql.get(id.getId())));
+	}
+
+	@Test
+	public void testEachVersionOfAnIncludeIsTranslated() {
+		Map<String, byte[]> cql = new HashMap<>();
+		cql.put("One|1", bytes("library One version '1'\ninclude Base version '1'\ndefine X: Base.B"));
+		cql.put("Two|1", bytes("library Two version '1'\ninclude Base version '2'\ndefine X: Base.B"));
+		cql.put("Base|1", bytes("library Base version '1'\ndefine B: 1"));
+		cql.put("Base|2", bytes("library Base version '2'\ndefine B: 2"));
+		ParallelLibraryTranslator translator = translator();
+
+		Map<VersionedIdentifier, Library> one = translator.translate(identifier("One", "1"),
+				id -> cql.get(id.getId() + "|" + id.getVersion()));
+		Map<VersionedIdentifier, Library> two = translator.translate(identifier("Two", "1"),
+				id -> cql.get(id.getId() + "|" + id.getVersion()));
+
+		assertEquals("1", one.get(identifier("Base", "1")).getIdentifier().getVersion());
+		assertEquals("2", two.get(identifier("Base", "2")).getIdentifier().getVersion());
+		assertFalse(one.containsKey(identifier("Base", "2")));
+	}
+
+	@Test
+	public void testIncludesAreIdentifiedByTheirDeclaredVersion() {
+		Map<String, byte[]> cql = new HashMap<>();
+		cql.put("Main", bytes("library Main version '1'\ninclude Base\ndefine X: Base.B"));
+		cql.put("Base", bytes("library Base version '2'\ndefine B: 2"));
+
+		Map<VersionedIdentifier, Library> libraries = translator().translate(identifier("Main", "1"),
+				id -> cql.get(id.getId()));
+
+		assertEquals("2", libraries.get(identifier("Base", null)).getIdentifier().getVersion());
+		assertEquals("2", libraries.get(identifier("Base", "2")).getIdentifier().getVersion());
+	}
+
+	@Test
+	public void testIncludesOfTwoVersionsOfALibraryAreNotTranslated() {
+		Map<String, byte[]> cql = new HashMap<>();
+		cql.put("Main|1", bytes("library Main version '1'\ninclude Left version '1'\ninclude Right version '1'"));
+		cql.put("Left|1", bytes("library Left version '1'\ninclude Base version '1'"));
+		cql.put("Right|1", bytes("library Right version '1'\ninclude Base version '2'"));
+		cql.put("Base|1", bytes("library Base version '1'"));
+		cql.put("Base|2", bytes("library Base version '2'"));
+
+		assertNull(translator().translate(identifier("Main", "1"),
+				id -> cql.get(id.getId() + "|" + id.getVersion())));
+	}
+}
@@ -0,0 +1,167 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cql.interceptor.PatientCompartmentCacheInterceptor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
+
+public class PatientCompartmentCacheTest {
+
+	private static final List<Object> KEY = Arrays.asList("subject", "code");
+
+	private static List<Object> get(PatientCompartmentCache theCache, String thePatientId, String theResourceType,
+			AtomicInteger theLoads) {
+		return theCache.get(thePatientId, theResourceType, null, KEY, () -> {
+			theLoads.incrementAndGet();
+			return Collections.singletonList(theResourceType + "/" + thePatientId);
+		});
+	}
+
+	@Test
+	public void testRepeatedRetrieveIsServedFromCache() {
+		PatientCompartmentCache cache = new PatientCompartmentCache(1000, Duration.ZERO);
+		AtomicInteger loads = new AtomicInteger();
+
+		get(cache, "1", "Observation", loads);
+		get(cache, "1", "Observation", loads);
+
+		assertEquals(1, loads.get());
+		assertEquals(1, cache.getStats().hitCount());
+		assertEquals(1, cache.getStats().missCount());
+	}
+
+	@Test
+	public void testInvalidationIsLimitedToThePatientAndResourceType() {
+		PatientCompartmentCache cache = new PatientCompartmentCache(1000, Duration.ZERO);
+		AtomicInteger loads = new AtomicInteger();
+
+		get(cache, "1", "Observation", loads);
+		get(cache, "1", "Condition", loads);
+		get(cache, "2", "Observation", loads);
+		cache.invalidate("1", "Observation");
+
+		get(cache, "1", "Observation", loads);
+		get(cache, "1", "Condition", loads);
+		get(cache, "2", "Observation", loads);
+		assertEquals(4, loads.get());
+	}
+
+	@Test
+	public void testResultsLoadedDuringAnInvalidationAreNotCached() {
+		PatientCompartmentCache cache = new PatientCompartmentCache(1000, Duration.ZERO);
+		AtomicInteger loads = new AtomicInteger();
+
+		cache.get("1", "Observation", null, KEY, () -> {
+			loads.incrementAndGet();
+			cache.invalidate("1", "Observation");
+			return Collections.emptyList();
+		});
+
+		get(cache, "1", "Observation", loads);
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testInterceptorInvalidatesTheCompartmentOfAWrittenResource() {
+		PatientCompartmentCache cache = new PatientCompartmentCache(1000, Duration.ZERO);
+		PatientCompartmentCacheInterceptor interceptor = new PatientCompartmentCacheInterceptor(
+				FhirContext.forR4(), cache);
+		AtomicInteger loads = new AtomicInteger();
+
+		get(cache, "1", "Observation", loads);
+		get(cache, "2", "Observation", loads);
+		get(cache, "1", "Patient", loads);
+
+		Observation observation = new Observation();
+		observation.setId("Observation/a");
+		observation.getSubject().setReference("Patient/1");
+		interceptor.resourceCreated(observation);
+
+		get(cache, "1", "Observation", loads);
+		get(cache, "2", "Observation", loads);
+		get(cache, "1", "Patient", loads);
+		assertEquals(4, loads.get());
+
+		Patient patient = new Patient();
+		patient.setId("Patient/1");
+		interceptor.resourceDeleted(patient);
+
+		get(cache, "1", "Patient", loads);
+		assertEquals(5, loads.get());
+	}
+
+	@Test
+	public void testCopiesOfTheCachedResourcesAreReturned() {
+		PatientCompartmentCache cache = new PatientCompartmentCache(1000, Duration.ZERO);
+		Observation observation = new Observation();
+		observation.setId("Observation/a");
+		observation.getSubject().setReference("Patient/1");
+
+		List<Object> first = cache.get("1", "Observation", null, KEY,
+				() -> Collections.singletonList(observation));
+		((Observation) first.get(0)).getSubject().setReference("Patient/2");
+		List<Object> second = cache.get("1", "Observation", null, KEY, Collections::emptyList);
+
+		assertNotSame(observation, first.get(0));
+		assertEquals("Patient/1", ((Observation) second.get(0)).getSubject().getReference());
+		assertThrows(UnsupportedOperationException.class, () -> second.add(observation));
+	}
+
+	@Test
+	public void testInterceptorInvalidatesTheRetrievesOfAWrittenValueSet() {
+		PatientCompartmentCache cache = new PatientCompartmentCache(1000, Duration.ZERO);
+		PatientCompartmentCacheInterceptor interceptor = new PatientCompartmentCacheInterceptor(
+				FhirContext.forR4(), cache);
+		AtomicInteger loads = new AtomicInteger();
+
+		cache.get("1", "Observation", "http://example.org/ValueSet/a|1.0", KEY, () -> {
+			loads.incrementAndGet();
+			return Collections.emptyList();
+		});
+		get(cache, "1", "Observation", loads);
+
+		interceptor.resourceUpdated(null, new ValueSet().setUrl("http://example.org/ValueSet/a"));
+
+		cache.get("1", "Observation", "http://example.org/ValueSet/a|1.0", KEY, () -> {
+			loads.incrementAndGet();
+			return Collections.emptyList();
+		});
+		get(cache, "1", "Observation", loads);
+		assertEquals(3, loads.get());
+	}
+
+	@Test
+	public void testResultsAreNotSharedBetweenTenants() {
+		PatientCompartmentCache cache = new PatientCompartmentCache(1000, Duration.ZERO);
+		AtomicInteger loads = new AtomicInteger();
+		SystemRequestDetails a = new SystemRequestDetails();
+		a.setTenantId("a");
+		SystemRequestDetails b = new SystemRequestDetails();
+		b.setTenantId("b");
+
+		for (SystemRequestDetails requestDetails : Arrays.asList(a, b, a)) {
+			new CompartmentCachingRetrieveProvider((context, contextPath, contextValue, dataType, templateId,
+					codePath, codes, valueSet, datePath, dateLowPath, dateHighPath, dateRange) -> {
+				loads.incrementAndGet();
+				return Collections.emptyList();
+			}, cache, requestDetails).retrieve("Patient", "subject", "Patient/1", "Observation", null, "code", null,
+					null, null, null, null, null);
+		}
+
+		assertEquals(2, loads.get());
+	}
+}
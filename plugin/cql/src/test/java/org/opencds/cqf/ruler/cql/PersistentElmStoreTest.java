@@ -0,0 +1,99 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opencds.cqf.cql.engine.execution.CqlEngine;
+import org.opencds.cqf.cql.engine.execution.CqlLibraryReader;
+import org.opencds.cqf.ruler.cql.utility.Translators;
+
+public class PersistentElmStoreTest {
+
+	@TempDir
+	Path directory;
+
+	private final VersionedIdentifier identifier = new VersionedIdentifier().withId("Test").withVersion("1.0.0");
+	private final VersionedIdentifier helpers = new VersionedIdentifier().withId("Helpers").withVersion("1.0.0");
+
+	private Library library() {
+		return new Library().withIdentifier(identifier)
+				.withIncludes(new Library.Includes().withDef(new IncludeDef().withLocalIdentifier("Helpers")
+						.withPath("Helpers").withVersion("1.0.0")))
+				.withStatements(new Library.Statements().withDef(new ExpressionDef().withName("Test").withContext("Patient")));
+	}
+
+	private byte[] cql(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private Library translate(String theCql) throws Exception {
+		ModelManager modelManager = new ModelManager();
+		CqlTranslator translator = Translators.getTranslator(
+				new ByteArrayInputStream(theCql.getBytes(StandardCharsets.UTF_8)), new LibraryManager(modelManager),
+				modelManager, CqlTranslatorOptions.defaultOptions());
+		return CqlLibraryReader.read(new ByteArrayInputStream(translator.toXml().getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void testStoredLibraryCanBeEvaluated() throws Exception {
+		String text = "library Test version '1.0.0'\ndefine X: 1 + 2";
+		PersistentElmStore store = new PersistentElmStore(directory);
+		String key = PersistentElmStore.keyFor(identifier, cql(text), CqlTranslatorOptions.defaultOptions());
+
+		assertNotNull(store.put(key, translate(text), Collections.emptyMap()));
+
+		Library library = store.get(key, x -> null);
+		assertNotNull(library);
+		assertEquals(3, new CqlEngine(id -> library).evaluate(identifier, Collections.singleton("X"))
+				.forExpression("X"));
+	}
+
+	@Test
+	public void testChangedIncludeIsStale() {
+		PersistentElmStore store = new PersistentElmStore(directory);
+		String key = PersistentElmStore.keyFor(identifier, cql("library Test version '1.0.0'"),
+				CqlTranslatorOptions.defaultOptions());
+
+		store.put(key, library(), Collections.singletonMap(helpers, "abc"));
+
+		assertNull(store.get(key, x -> "def"));
+	}
+
+	@Test
+	public void testKeyDependsOnContentAndOptions() {
+		CqlTranslatorOptions options = CqlTranslatorOptions.defaultOptions();
+		String key = PersistentElmStore.keyFor(identifier, cql("library Test version '1.0.0'"), options);
+
+		assertEquals(key, PersistentElmStore.keyFor(identifier, cql("library Test version '1.0.0'"),
+				CqlTranslatorOptions.defaultOptions()));
+		assertNotEquals(key, PersistentElmStore.keyFor(identifier, cql("library Test version '1.0.0' "), options));
+
+		CqlTranslatorOptions otherOptions = CqlTranslatorOptions.defaultOptions();
+		otherOptions.setCompatibilityLevel("1.3");
+		assertNotEquals(key, PersistentElmStore.keyFor(identifier, cql("library Test version '1.0.0'"), otherOptions));
+	}
+
+	@Test
+	public void testMissingLibraryIsNull() {
+		PersistentElmStore store = new PersistentElmStore(directory);
+
+		assertNull(store.get("missing", x -> null));
+	}
+}
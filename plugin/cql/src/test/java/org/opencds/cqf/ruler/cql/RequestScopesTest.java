@@ -0,0 +1,56 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.util.Collections;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+public class RequestScopesTest {
+
+	@AfterEach
+	public void clearAuthentication() {
+		SecurityContextHolder.clearContext();
+	}
+
+	private static RequestDetails request(String theAuthorization) {
+		return new SystemRequestDetails() {
+			@Override
+			public String getHeader(String theName) {
+				return Constants.HEADER_AUTHORIZATION.equals(theName) ? theAuthorization : null;
+			}
+		};
+	}
+
+	private static void authenticate(String thePrincipal) {
+		SecurityContextHolder.getContext().setAuthentication(
+				new UsernamePasswordAuthenticationToken(thePrincipal, null, Collections.emptyList()));
+	}
+
+	@Test
+	public void testScopeDoesNotDependOnTheCredential() {
+		authenticate("alice");
+		String scope = RequestScopes.scopeOf(request("Bearer first-token"));
+
+		assertEquals(scope, RequestScopes.scopeOf(request("Bearer refreshed-token")));
+		assertFalse(scope.contains("first-token"));
+	}
+
+	@Test
+	public void testScopeDependsOnThePrincipal() {
+		authenticate("alice");
+		String alice = RequestScopes.scopeOf(request("Bearer token"));
+		authenticate("bob");
+
+		assertNotEquals(alice, RequestScopes.scopeOf(request("Bearer token")));
+	}
+}
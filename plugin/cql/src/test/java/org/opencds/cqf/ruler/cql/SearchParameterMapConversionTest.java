@@ -0,0 +1,109 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
+
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+/**
+ * Checks that the conversion from the engine's SearchParameterMap to HAPI's,
+ * using the method handle resolved once by JpaFhirRetrieveProvider, gives the
+ * same map as the previous per-call reflective lookup of put, and measures the
+ * cost of both.
+ */
+public class SearchParameterMapConversionTest {
+
+	private static final int WARM_UP_ITERATIONS = 200_000;
+	private static final int ITERATIONS = 1_000_000;
+
+	private static long ourSink;
+
+	// A typical retrieve: subject plus a chunk of codes
+	private static SearchParameterMap retrieveMap() {
+		SearchParameterMap map = new SearchParameterMap();
+		map.put("subject", Collections.singletonList(Collections.singletonList(new ReferenceParam("Patient/123"))));
+
+		List<IQueryParameterType> codes = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			codes.add(new TokenParam("http://loinc.org", "1234-" + i));
+		}
+		map.put("code", Collections.singletonList(codes));
+		return map;
+	}
+
+	// The conversion as it was done before the put method was resolved once
+	private static ca.uhn.fhir.jpa.searchparam.SearchParameterMap reflective(SearchParameterMap map) {
+		ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap = ca.uhn.fhir.jpa.searchparam.SearchParameterMap
+				.newSynchronous();
+		try {
+			Method[] methods = hapiMap.getClass().getDeclaredMethods();
+			List<Method> methodList = Arrays.asList(methods);
+			List<Method> puts = methodList.stream().filter(x -> x.getName().equals("put")).collect(Collectors.toList());
+			Method method = puts.get(0);
+			method.setAccessible(true);
+
+			for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
+				method.invoke(hapiMap, entry.getKey(), entry.getValue());
+			}
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+
+		return hapiMap;
+	}
+
+	@Test
+	public void testMethodHandleConversionMatchesReflectiveConversion() {
+		SearchParameterMap map = retrieveMap();
+
+		ca.uhn.fhir.jpa.searchparam.SearchParameterMap expected = reflective(map);
+		ca.uhn.fhir.jpa.searchparam.SearchParameterMap actual = JpaFhirRetrieveProvider.toHapiSearchParameterMap(map);
+
+		assertEquals(expected.keySet(), actual.keySet());
+		for (String key : expected.keySet()) {
+			assertEquals(expected.get(key), actual.get(key));
+		}
+		assertEquals(expected.isLoadSynchronous(), actual.isLoadSynchronous());
+	}
+
+	// Consumes each result so the conversion can not be optimized away
+	private static long time(Supplier<ca.uhn.fhir.jpa.searchparam.SearchParameterMap> theConversion) {
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			ourSink += theConversion.get().size();
+		}
+		return System.nanoTime() - start;
+	}
+
+	@Disabled("A microbenchmark, run it on its own to compare the cost of the conversions")
+	@Test
+	public void benchmarkConversion() {
+		SearchParameterMap map = retrieveMap();
+
+		for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+			ourSink += reflective(map).size();
+			ourSink += JpaFhirRetrieveProvider.toHapiSearchParameterMap(map).size();
+		}
+
+		long reflective = time(() -> reflective(map));
+		long handle = time(() -> JpaFhirRetrieveProvider.toHapiSearchParameterMap(map));
+
+		System.out.printf("reflective lookup per call: %.1f ns/op%n", (double) reflective / ITERATIONS);
+		System.out.printf("method handle resolved once: %.1f ns/op%n", (double) handle / ITERATIONS);
+		System.out.println("checksum: " + ourSink);
+	}
+}
@@ -0,0 +1,99 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class SingleFlightTest {
+
+	@Test
+	public void testConcurrentLoadsShareOneComputation() throws Exception {
+		CountDownLatch waiting = new CountDownLatch(7);
+		SingleFlight<String, String> singleFlight = new SingleFlight<String, String>() {
+			@Override
+			protected void onWait(String theKey) {
+				waiting.countDown();
+			}
+		};
+		AtomicInteger invocations = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			results.add(executor.submit(() -> singleFlight.execute("key", () -> {
+				invocations.incrementAndGet();
+				started.countDown();
+				await(release);
+				return "value";
+			})));
+
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			for (int i = 0; i < 7; i++) {
+				results.add(executor.submit(() -> singleFlight.execute("key", () -> {
+					invocations.incrementAndGet();
+					return "other";
+				})));
+			}
+
+			// Release the load once every caller has joined it
+			assertTrue(waiting.await(5, TimeUnit.SECONDS));
+			release.countDown();
+
+			for (Future<String> result : results) {
+				assertEquals("value", result.get(5, TimeUnit.SECONDS));
+			}
+			assertEquals(1, invocations.get());
+			assertEquals(0, singleFlight.inFlightCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testFailureIsPropagatedAndNotRetained() {
+		SingleFlight<String, String> singleFlight = new SingleFlight<>();
+
+		assertThrows(IllegalStateException.class, () -> singleFlight.execute("key", () -> {
+			throw new IllegalStateException();
+		}));
+
+		assertEquals("value", singleFlight.execute("key", () -> "value"));
+	}
+
+	@Test
+	public void testReentrantLoadRunsDirectly() throws Exception {
+		SingleFlight<String, String> singleFlight = new SingleFlight<>();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			// Without reentry detection the nested load would wait for itself
+			Future<String> result = executor.submit(() -> singleFlight.execute("key",
+					() -> singleFlight.execute("key", () -> "inner") + "-outer"));
+
+			assertEquals("inner-outer", result.get(5, TimeUnit.SECONDS));
+			assertEquals(0, singleFlight.inFlightCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void await(CountDownLatch theLatch) {
+		try {
+			theLatch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
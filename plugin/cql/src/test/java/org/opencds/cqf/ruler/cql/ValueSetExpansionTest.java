@@ -0,0 +1,95 @@
+package org.opencds.cqf.ruler.cql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+public class ValueSetExpansionTest {
+
+	@Test
+	public void testContains() {
+		ValueSetExpansion expansion = new ValueSetExpansion(Arrays.asList(
+				new Code().withSystem("http://snomed.info/sct").withCode("44054006"),
+				new Code().withSystem("http://loinc.org").withCode("4548-4")));
+
+		assertTrue(expansion.contains("http://snomed.info/sct", "44054006"));
+		assertTrue(expansion.contains("http://loinc.org", "4548-4"));
+		assertFalse(expansion.contains("http://loinc.org", "44054006"));
+		assertFalse(expansion.contains("http://hl7.org/fhir/sid/icd-10", "E11.9"));
+	}
+
+	@Test
+	public void testPreservesOrder() {
+		ValueSetExpansion expansion = new ValueSetExpansion(Arrays.asList(
+				new Code().withSystem("http://loinc.org").withCode("2"),
+				new Code().withSystem("http://loinc.org").withCode("1")));
+
+		assertEquals(2, expansion.size());
+		assertEquals("2", expansion.get(0).getCode());
+		assertEquals("1", expansion.get(1).getCode());
+	}
+
+	@Test
+	public void testBuilderWithManyCodes() {
+		ValueSetExpansion.Builder builder = ValueSetExpansion.builder();
+		for (int i = 0; i < 10000; i++) {
+			builder.add(i % 2 == 0 ? "http://snomed.info/sct" : "http://loinc.org", Integer.toString(i));
+		}
+		builder.add(null, "no-system");
+		ValueSetExpansion expansion = builder.build();
+
+		assertEquals(10001, expansion.size());
+		assertTrue(expansion.contains("http://snomed.info/sct", "9998"));
+		assertTrue(expansion.contains("http://loinc.org", "9999"));
+		assertFalse(expansion.contains("http://loinc.org", "9998"));
+		assertTrue(expansion.contains(null, "no-system"));
+		assertEquals("http://loinc.org", expansion.get(1).getSystem());
+		assertEquals("1", expansion.get(1).getCode());
+	}
+
+	@Test
+	public void testMemoryReport() {
+		ValueSetExpansion small = ValueSetExpansion.builder().add("http://loinc.org", "1").build();
+		ValueSetExpansion large = ValueSetExpansion.builder().add("http://loinc.org", "1")
+				.add("http://loinc.org", "2").add("http://loinc.org", "3").build();
+
+		Map<VersionedIdentifier, List<Code>> codeCache = new HashMap<>();
+		codeCache.put(new VersionedIdentifier().withId("small"), small);
+		codeCache.put(new VersionedIdentifier().withId("large"), large);
+
+		Map<VersionedIdentifier, Long> report = ValueSetExpansion.memoryReport(codeCache);
+
+		assertEquals(2, report.size());
+		assertEquals("large", report.keySet().iterator().next().getId());
+		assertTrue(report.get(new VersionedIdentifier().withId("large")) > report
+				.get(new VersionedIdentifier().withId("small")));
+	}
+
+	@Test
+	public void testMemoryReportOfTheEndpoint() {
+		ValueSetExpansion small = ValueSetExpansion.builder().add("http://loinc.org", "1").build();
+		ValueSetExpansion large = ValueSetExpansion.builder().add("http://loinc.org", "1")
+				.add("http://loinc.org", "2").add("http://loinc.org", "3").build();
+
+		Map<VersionedIdentifier, List<Code>> codeCache = new HashMap<>();
+		codeCache.put(new VersionedIdentifier().withId("http://example.org/small"), small);
+		codeCache.put(new VersionedIdentifier().withId("http://example.org/large").withVersion("1.0.0"), large);
+
+		Map<String, Long> report = new ValueSetExpansionEndpoint(codeCache).memoryReport();
+
+		assertEquals(Arrays.asList("http://example.org/large|1.0.0", "http://example.org/small"),
+				new ArrayList<>(report.keySet()));
+		assertEquals(small.getEstimatedSizeInBytes() + large.getEstimatedSizeInBytes(),
+				ValueSetExpansion.totalEstimatedSizeInBytes(codeCache));
+	}
+}
@@ -0,0 +1,83 @@
+package org.opencds.cqf.ruler.cql.interceptor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+
+import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cql.JpaLibraryContentProvider;
+import org.opencds.cqf.ruler.cql.PersistentElmStore;
+import org.opencds.cqf.ruler.utility.Libraries;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class ElmAttachmentInterceptorTest {
+
+	private final ElmAttachmentInterceptor myInterceptor = new ElmAttachmentInterceptor(FhirContext.forR4(),
+			null, new ModelManager(), CqlTranslatorOptions.defaultOptions());
+
+	private static final String CQL = "library Test version '1.0.0'\n\ndefine \"One\": 1\n";
+
+	private static Library library(String theCql) {
+		Library library = new Library();
+		library.addContent().setContentType("text/cql").setData(theCql.getBytes(StandardCharsets.UTF_8));
+		return library;
+	}
+
+	private static void addElm(Library theLibrary, String theCqlHash) {
+		Attachment elm = theLibrary.addContent().setContentType("application/elm+xml").setData("<library/>".getBytes());
+		elm.addExtension(JpaLibraryContentProvider.CQL_HASH_EXTENSION, new StringType(theCqlHash));
+	}
+
+	@Test
+	public void testElmIsAttachedWhenALibraryIsCreated() {
+		Library library = library(CQL);
+
+		myInterceptor.resourceCreated(library, null);
+
+		assertNotNull(Libraries.getContent(library, "application/elm+xml"));
+		assertEquals(PersistentElmStore.hash(CQL.getBytes(StandardCharsets.UTF_8)),
+				JpaLibraryContentProvider.getCqlHash(library.getContent().get(1)));
+	}
+
+	@Test
+	public void testElmOfTheSameCqlIsKept() {
+		Library library = library(CQL);
+		addElm(library, PersistentElmStore.hash(CQL.getBytes(StandardCharsets.UTF_8)));
+
+		myInterceptor.resourceUpdated(null, library, null);
+
+		assertEquals(2, library.getContent().size());
+		assertEquals("<library/>", new String(library.getContent().get(1).getData(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testElmOfOtherCqlIsReplaced() {
+		Library library = library(CQL);
+		addElm(library, PersistentElmStore.hash("library Test version '0.9.0'".getBytes(StandardCharsets.UTF_8)));
+
+		myInterceptor.resourceUpdated(null, library, null);
+
+		assertEquals(2, library.getContent().size());
+		assertNotEquals("<library/>", new String(library.getContent().get(1).getData(), StandardCharsets.UTF_8));
+		assertEquals(PersistentElmStore.hash(CQL.getBytes(StandardCharsets.UTF_8)),
+				JpaLibraryContentProvider.getCqlHash(library.getContent().get(1)));
+	}
+
+	@Test
+	public void testLibraryWithTranslationErrorsIsStoredWithoutElm() {
+		Library library = library("library Test version '1.0.0'\n\ndefine \"One\": Undefined\n");
+
+		myInterceptor.resourceCreated(library, null);
+
+		assertNull(Libraries.getContent(library, "application/elm+xml"));
+	}
+}
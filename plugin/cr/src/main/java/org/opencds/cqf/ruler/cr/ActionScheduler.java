@@ -0,0 +1,165 @@
+package org.opencds.cqf.ruler.cr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.IntFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the actions of a definition, such as the top-level actions of a
+ * PlanDefinition, concurrently on an executor. Each action starts once the
+ * actions it depends on have completed, and the results are returned in the
+ * order of the actions, whatever order they completed in.
+ * <p>
+ * Once an action fails, the actions that have not started are not started.
+ * Those still running are left to finish, as their threads are shared workers
+ * that may hold a pooled connection or be loading a cache entry other requests
+ * wait for.
+ */
+public final class ActionScheduler {
+
+	private static final Logger ourLog = LoggerFactory.getLogger(ActionScheduler.class);
+
+	private ActionScheduler() {
+	}
+
+	/**
+	 * Runs a list of actions.
+	 *
+	 * @param <T>              the type of the result of an action
+	 * @param thePredecessors  for each action, by index, the indexes of the actions
+	 *                         that must complete before it starts
+	 * @param theAction        runs the action with an index
+	 * @param theExecutor      the executor the actions are run on
+	 * @return the results of the actions, by index
+	 * @throws RuntimeException the exception thrown by the first action to fail
+	 */
+	public static <T> List<T> run(List<Set<Integer>> thePredecessors, IntFunction<T> theAction,
+			Executor theExecutor) {
+		int count = thePredecessors.size();
+		List<Integer> order = topologicalOrder(thePredecessors);
+		if (order == null) {
+			ourLog.warn("The actions have cyclic dependencies, running them in order");
+			List<T> results = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				results.add(theAction.apply(i));
+			}
+			return results;
+		}
+
+		Cancellation cancellation = new Cancellation();
+		List<CompletableFuture<T>> futures = new ArrayList<>(Collections.nCopies(count, null));
+		for (int index : order) {
+			Set<Integer> predecessors = thePredecessors.get(index);
+			CompletableFuture<?>[] dependencies = new CompletableFuture<?>[predecessors.size()];
+			int i = 0;
+			for (int predecessor : predecessors) {
+				dependencies[i++] = futures.get(predecessor);
+			}
+
+			futures.set(index, CompletableFuture.allOf(dependencies)
+					.thenApplyAsync(ignored -> cancellation.run(index, theAction), theExecutor));
+		}
+
+		// Every future is waited for, so that no action is still running once this
+		// returns or throws
+		List<T> results = new ArrayList<>(count);
+		for (CompletableFuture<T> future : futures) {
+			try {
+				results.add(future.join());
+			} catch (CompletionException | CancellationException e) {
+				results.add(null);
+			}
+		}
+
+		Throwable failure = cancellation.getFailure();
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+		if (failure != null) {
+			throw new CompletionException(failure);
+		}
+
+		return results;
+	}
+
+	// Records the first failure of the actions of a run, after which an action
+	// that has not started is not started
+	private static final class Cancellation {
+		private Throwable myFailure;
+
+		<T> T run(int theIndex, IntFunction<T> theAction) {
+			synchronized (this) {
+				if (myFailure != null) {
+					throw new CancellationException("An action failed");
+				}
+			}
+
+			try {
+				return theAction.apply(theIndex);
+			} catch (Throwable e) {
+				fail(e);
+				throw e;
+			}
+		}
+
+		private synchronized void fail(Throwable theFailure) {
+			if (myFailure == null) {
+				myFailure = theFailure;
+			}
+		}
+
+		synchronized Throwable getFailure() {
+			return myFailure;
+		}
+	}
+
+	// The indexes ordered so that each follows its predecessors, or null if the
+	// dependencies are cyclic
+	private static List<Integer> topologicalOrder(List<Set<Integer>> thePredecessors) {
+		int count = thePredecessors.size();
+		// 0 is unvisited, 1 is being visited and 2 is visited
+		int[] state = new int[count];
+		List<Integer> order = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			if (!visit(i, thePredecessors, state, order)) {
+				return null;
+			}
+		}
+
+		return order;
+	}
+
+	private static boolean visit(int theIndex, List<Set<Integer>> thePredecessors, int[] theState,
+			List<Integer> theOrder) {
+		if (theState[theIndex] == 2) {
+			return true;
+		}
+
+		if (theState[theIndex] == 1) {
+			return false;
+		}
+
+		theState[theIndex] = 1;
+		for (int predecessor : thePredecessors.get(theIndex)) {
+			if (!visit(predecessor, thePredecessors, theState, theOrder)) {
+				return false;
+			}
+		}
+
+		theState[theIndex] = 2;
+		theOrder.add(theIndex);
+		return true;
+	}
+}
@@ -121,4 +121,10 @@ public class CrConfig {
 	public org.opencds.cqf.ruler.cr.r4.provider.CareGapsProvider r4CareGapsProvider() {
 		return new org.opencds.cqf.ruler.cr.r4.provider.CareGapsProvider();
 	}
+
+	@Bean
+	@Conditional(OnR4Condition.class)
+	public org.opencds.cqf.ruler.cr.r4.provider.PopulationApplyProvider r4PopulationApplyProvider() {
+		return new org.opencds.cqf.ruler.cr.r4.provider.PopulationApplyProvider();
+	}
 }
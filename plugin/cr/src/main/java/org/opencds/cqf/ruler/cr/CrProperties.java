@@ -8,6 +8,10 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 public class CrProperties {
 	private boolean enabled = true;
 	private boolean threaded_care_gaps_enabled = true;
+	private boolean threaded_plan_definition_apply_enabled = false;
+	private int population_apply_batch_size = 500;
+	private int population_apply_max_in_flight = 64;
+	private int measure_evaluate_partition_size = 0;
 	private MeasureReportConfiguration measure_report;
 
 	private MeasureEvaluationOptions measure_evaluation = MeasureEvaluationOptions.defaultOptions();
@@ -28,6 +32,38 @@ public class CrProperties {
 		this.threaded_care_gaps_enabled = enabled;
 	}
 
+	public boolean getThreadedPlanDefinitionApplyEnabled() {
+		return threaded_plan_definition_apply_enabled;
+	}
+
+	public void setThreadedPlanDefinitionApplyEnabled(boolean enabled) {
+		this.threaded_plan_definition_apply_enabled = enabled;
+	}
+
+	public int getPopulationApplyBatchSize() {
+		return population_apply_batch_size;
+	}
+
+	public void setPopulationApplyBatchSize(int batchSize) {
+		this.population_apply_batch_size = batchSize;
+	}
+
+	public int getPopulationApplyMaxInFlight() {
+		return population_apply_max_in_flight;
+	}
+
+	public void setPopulationApplyMaxInFlight(int maxInFlight) {
+		this.population_apply_max_in_flight = maxInFlight;
+	}
+
+	public int getMeasureEvaluatePartitionSize() {
+		return measure_evaluate_partition_size;
+	}
+
+	public void setMeasureEvaluatePartitionSize(int partitionSize) {
+		this.measure_evaluate_partition_size = partitionSize;
+	}
+
 	public MeasureReportConfiguration getMeasureReport() {
 		return this.measure_report;
 	}
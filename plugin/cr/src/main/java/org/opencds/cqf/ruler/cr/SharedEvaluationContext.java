@@ -0,0 +1,156 @@
+package org.opencds.cqf.ruler.cr;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.cql.engine.debug.DebugMap;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
+
+/**
+ * A CQL evaluation context shared by all of the expressions evaluated for one
+ * operation, such as a PlanDefinition $apply together with the nested
+ * PlanDefinitions and ActivityDefinitions it applies.
+ * <p>
+ * The terminology provider, data provider and library loader are created once,
+ * and every expression is evaluated in the same engine {@link Context}, entered
+ * through a synthetic session library that includes the compiled library of
+ * each expression. The libraries the expressions include are then loaded once,
+ * and the results of their definitions are cached across expressions, rather
+ * than being evaluated again for each one.
+ * <p>
+ * Like the engine Context it wraps, a SharedEvaluationContext is not thread-safe.
+ */
+public class SharedEvaluationContext {
+
+	private static final String SESSION_LIBRARY = "SharedEvaluationContext";
+	private static final String FHIR_MODEL_URI = "http://hl7.org/fhir";
+
+	private final LibraryLoader myLibraryLoader;
+	private final TerminologyProvider myTerminologyProvider;
+	private final DataProvider myDataProvider;
+	private final String myPatientId;
+	private final DebugMap myDebugMap;
+
+	// The compiled libraries of the expressions, by id, served to the Context
+	// ahead of the library loader
+	private final Map<String, Library> myLibraries = new HashMap<>();
+
+	// The content hashes of the libraries the expressions reference, by reference
+	private final Map<String, String> myContentHashes = new HashMap<>();
+
+	private Library mySessionLibrary;
+	private Context myContext;
+
+	/**
+	 * @param theLibraryLoader       the loader for the libraries included by the
+	 *                               expressions
+	 * @param theTerminologyProvider the terminology provider
+	 * @param theDataProvider        the FHIR data provider
+	 * @param thePatientId           the id of the Patient the expressions are
+	 *                               evaluated for
+	 * @param theDebugMap            the debug settings of the Context
+	 */
+	public SharedEvaluationContext(LibraryLoader theLibraryLoader, TerminologyProvider theTerminologyProvider,
+			DataProvider theDataProvider, String thePatientId, DebugMap theDebugMap) {
+		myLibraryLoader = theLibraryLoader;
+		myTerminologyProvider = theTerminologyProvider;
+		myDataProvider = theDataProvider;
+		myPatientId = thePatientId;
+		myDebugMap = theDebugMap;
+	}
+
+	public String getPatientId() {
+		return myPatientId;
+	}
+
+	/**
+	 * Returns the content hashes of the libraries referenced by the expressions,
+	 * by reference. The hashes are resolved once per operation, so that the
+	 * libraries are not searched for again by each expression when the Library
+	 * content index is disabled.
+	 *
+	 * @return the content hashes, by library reference
+	 */
+	public Map<String, String> getContentHashes() {
+		return myContentHashes;
+	}
+
+	/**
+	 * Evaluates an expression of a compiled library.
+	 *
+	 * @param theLibrary        the compiled library
+	 * @param theExpressionName the name of the expression
+	 * @param theParameters     the values of the parameters of the library, which
+	 *                          replace any set by an earlier evaluation
+	 * @return the result of the expression
+	 */
+	public Object evaluate(Library theLibrary, String theExpressionName, Map<String, Object> theParameters) {
+		Context context = getContext();
+		String libraryId = theLibrary.getIdentifier().getId();
+		if (myLibraries.putIfAbsent(libraryId, theLibrary) == null) {
+			mySessionLibrary.getIncludes().getDef()
+					.add(new IncludeDef().withLocalIdentifier(libraryId).withPath(libraryId));
+		}
+
+		for (Map.Entry<String, Object> parameter : theParameters.entrySet()) {
+			context.setParameter(null, parameter.getKey(), parameter.getValue());
+		}
+
+		boolean enteredLibrary = context.enterLibrary(libraryId);
+		try {
+			// The expression itself is evaluated without caching its result, as it
+			// depends on the parameters, which may differ between evaluations
+			ExpressionDef expressionDef = context.resolveExpressionRef(theExpressionName);
+			boolean enteredContext = expressionDef.getContext() != null;
+			if (enteredContext) {
+				context.enterContext(expressionDef.getContext());
+			}
+			try {
+				return expressionDef.getExpression().evaluate(context);
+			} finally {
+				if (enteredContext) {
+					context.exitContext();
+				}
+			}
+		} catch (RuntimeException e) {
+			// The state of a Context is not reliable after a failed evaluation, so the
+			// next evaluation starts from a new one
+			myContext = null;
+			throw e;
+		} finally {
+			if (myContext != null) {
+				context.exitLibrary(enteredLibrary);
+			}
+		}
+	}
+
+	private Context getContext() {
+		if (myContext == null) {
+			mySessionLibrary = new Library()
+					.withIdentifier(new VersionedIdentifier().withId(SESSION_LIBRARY))
+					.withIncludes(new Library.Includes());
+			myLibraries.clear();
+
+			Context context = new Context(mySessionLibrary);
+			context.setDebugMap(myDebugMap);
+			context.setExpressionCaching(true);
+			context.registerLibraryLoader(libraryIdentifier -> {
+				Library library = myLibraries.get(libraryIdentifier.getId());
+				return library != null ? library : myLibraryLoader.load(libraryIdentifier);
+			});
+			context.setContextValue("Patient", myPatientId);
+			context.registerTerminologyProvider(myTerminologyProvider);
+			context.registerDataProvider(FHIR_MODEL_URI, myDataProvider);
+			myContext = context;
+		}
+
+		return myContext;
+	}
+}
@@ -26,6 +26,7 @@ import org.hl7.fhir.dstu3.model.SupplyRequest;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.opencds.cqf.cql.engine.model.ModelResolver;
 import org.opencds.cqf.ruler.behavior.ResourceCreator;
+import org.opencds.cqf.ruler.cr.SharedEvaluationContext;
 import org.opencds.cqf.ruler.cr.dstu3.ExpressionEvaluation;
 import org.opencds.cqf.ruler.provider.DaoRegistryOperationProvider;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -61,6 +62,18 @@ public class ActivityDefinitionApplyProvider extends DaoRegistryOperationProvide
 			@OperationParam(name = "setting") String setting,
 			@OperationParam(name = "settingContext") String settingContext)
 			throws InternalErrorException, FHIRException, ActivityDefinitionApplyException {
+		return apply(theRequest, theId, patientId, encounterId, practitionerId, organizationId, userType, userLanguage,
+				userTaskContext, setting, settingContext, null);
+	}
+
+	/**
+	 * Applies an ActivityDefinition, evaluating its dynamic values in a context
+	 * shared with the rest of an operation, such as a PlanDefinition $apply.
+	 */
+	public Resource apply(RequestDetails theRequest, IdType theId, String patientId, String encounterId,
+			String practitionerId, String organizationId, String userType, String userLanguage,
+			String userTaskContext, String setting, String settingContext, SharedEvaluationContext sharedContext)
+			throws InternalErrorException, FHIRException, ActivityDefinitionApplyException {
 		ActivityDefinition activityDefinition;
 		try {
 			activityDefinition = this.activityDefinitionDao.read(theId);
@@ -68,12 +81,24 @@ public class ActivityDefinitionApplyProvider extends DaoRegistryOperationProvide
 			return createErrorOutcome("Unable to resolve ActivityDefinition/" + theId.getValueAsString());
 		}
 
-		return resolveActivityDefinition(activityDefinition, patientId, practitionerId, organizationId, theRequest);
+		return resolveActivityDefinition(activityDefinition, patientId, practitionerId, organizationId, theRequest,
+				sharedContext);
 	}
 
 	// For library use
 	public Resource resolveActivityDefinition(ActivityDefinition activityDefinition, String patientId,
 			String practitionerId, String organizationId, RequestDetails theRequest) throws FHIRException {
+		return resolveActivityDefinition(activityDefinition, patientId, practitionerId, organizationId, theRequest,
+				null);
+	}
+
+	/**
+	 * Resolves an ActivityDefinition, evaluating its dynamic values in the shared
+	 * context if there is one, or in a context of their own otherwise.
+	 */
+	public Resource resolveActivityDefinition(ActivityDefinition activityDefinition, String patientId,
+			String practitionerId, String organizationId, RequestDetails theRequest,
+			SharedEvaluationContext sharedContext) throws FHIRException {
 
 		Resource result = newResource(activityDefinition.getKind().toCode());
 		switch (result.fhirType()) {
@@ -129,8 +154,11 @@ public class ActivityDefinitionApplyProvider extends DaoRegistryOperationProvide
 				 * have the libraries, but perhaps the "context" here should be the result
 				 * resource?
 				 */
-				Object value = expressionEvaluation.evaluateInContext(activityDefinition, dynamicValue.getExpression(),
-						aliasedExpression, patientId, theRequest);
+				Object value = sharedContext != null
+						? expressionEvaluation.evaluateInContext(activityDefinition, dynamicValue.getExpression(),
+								aliasedExpression, sharedContext, theRequest)
+						: expressionEvaluation.evaluateInContext(activityDefinition, dynamicValue.getExpression(),
+								aliasedExpression, patientId, theRequest);
 
 				// TODO need to verify type... yay
 				if (value instanceof Boolean) {
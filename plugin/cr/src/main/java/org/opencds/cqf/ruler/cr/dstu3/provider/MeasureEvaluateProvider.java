@@ -1,5 +1,7 @@
 package org.opencds.cqf.ruler.cr.dstu3.provider;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.hl7.fhir.dstu3.model.Bundle;
@@ -8,6 +10,7 @@ import org.hl7.fhir.dstu3.model.Extension;
 import org.hl7.fhir.dstu3.model.IdType;
 import org.hl7.fhir.dstu3.model.Measure;
 import org.hl7.fhir.dstu3.model.MeasureReport;
+import org.hl7.fhir.dstu3.model.Patient;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.fhir.terminology.Dstu3FhirTerminologyProvider;
@@ -17,12 +20,16 @@ import org.opencds.cqf.cql.evaluator.builder.DataProviderFactory;
 import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
 import org.opencds.cqf.cql.evaluator.fhir.dal.FhirDal;
 import org.opencds.cqf.cql.evaluator.measure.MeasureEvaluationOptions;
+import org.opencds.cqf.ruler.cql.CohortBatchingRetrieveProvider;
+import org.opencds.cqf.ruler.cql.CqlProperties;
 import org.opencds.cqf.ruler.cql.JpaDataProviderFactory;
 import org.opencds.cqf.ruler.cql.JpaFhirDalFactory;
 import org.opencds.cqf.ruler.cql.JpaLibraryContentProviderFactory;
 import org.opencds.cqf.ruler.cql.JpaTerminologyProviderFactory;
+import org.opencds.cqf.ruler.cql.PagedResourceIterable;
 import org.opencds.cqf.ruler.provider.DaoRegistryOperationProvider;
 import org.opencds.cqf.ruler.utility.Clients;
+import org.opencds.cqf.ruler.utility.Searches;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import ca.uhn.fhir.model.api.annotation.Description;
@@ -33,6 +40,8 @@ import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 
 public class MeasureEvaluateProvider extends DaoRegistryOperationProvider {
+	private static final int PATIENT_PAGE_SIZE = 1000;
+
 	@Autowired
 	private JpaTerminologyProviderFactory jpaTerminologyProviderFactory;
 
@@ -57,6 +66,9 @@ public class MeasureEvaluateProvider extends DaoRegistryOperationProvider {
 	@Autowired
 	private MeasureEvaluationOptions measureEvaluationOptions;
 
+	@Autowired
+	private CqlProperties cqlProperties;
+
 	/**
 	 * Implements the <a href=
 	 * "https://www.hl7.org/fhir/operation-measure-evaluate-measure.html">$evaluate-measure</a>
@@ -105,6 +117,11 @@ public class MeasureEvaluateProvider extends DaoRegistryOperationProvider {
 			terminologyProvider = this.jpaTerminologyProviderFactory.create(requestDetails);
 		}
 
+		if (cqlProperties.getRetrieve().getCohortBatchSize() > 0 && patient == null) {
+			CohortBatchingRetrieveProvider.setCohort(requestDetails, getPatientIds(requestDetails),
+					cqlProperties.getRetrieve().getCohortRetainedBatches());
+		}
+
 		DataProvider dataProvider = this.jpaDataProviderFactory.create(requestDetails, terminologyProvider);
 		LibraryContentProvider libraryContentProvider = this.libraryContentProviderFactory.create(requestDetails);
 		FhirDal fhirDal = this.fhirDalFactory.create(requestDetails);
@@ -126,4 +143,13 @@ public class MeasureEvaluateProvider extends DaoRegistryOperationProvider {
 		return report;
 	}
 
+	// The patients of a population, in the order they are evaluated. Patients
+	// are loaded a page at a time and only their ids are kept.
+	private List<String> getPatientIds(RequestDetails requestDetails) {
+		List<String> patientIds = new ArrayList<>();
+		PagedResourceIterable.forEachResource(getDaoRegistry().getResourceDao(Patient.class), Searches.all(),
+				requestDetails, PATIENT_PAGE_SIZE, patient -> patientIds.add(patient.getIdElement().getIdPart()));
+		return patientIds;
+	}
+
 }
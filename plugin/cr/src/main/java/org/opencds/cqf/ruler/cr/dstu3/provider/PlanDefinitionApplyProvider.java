@@ -4,8 +4,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 
 import org.hl7.fhir.dstu3.model.ActivityDefinition;
 import org.hl7.fhir.dstu3.model.Base;
@@ -25,6 +31,9 @@ import org.hl7.fhir.exceptions.FHIRException;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.runtime.DateTime;
 import org.opencds.cqf.ruler.api.OperationProvider;
+import org.opencds.cqf.ruler.cr.ActionScheduler;
+import org.opencds.cqf.ruler.cr.CrProperties;
+import org.opencds.cqf.ruler.cr.SharedEvaluationContext;
 import org.opencds.cqf.ruler.cr.dstu3.ExpressionEvaluation;
 import org.opencds.cqf.ruler.cr.dstu3.builder.AttachmentBuilder;
 import org.opencds.cqf.ruler.cr.dstu3.builder.CarePlanActivityBuilder;
@@ -35,6 +44,7 @@ import org.opencds.cqf.ruler.cr.dstu3.builder.RelatedArtifactBuilder;
 import org.opencds.cqf.ruler.cr.dstu3.builder.RequestGroupActionBuilder;
 import org.opencds.cqf.ruler.cr.dstu3.builder.RequestGroupBuilder;
 import org.opencds.cqf.ruler.cr.dstu3.helper.ContainedHelper;
+import org.opencds.cqf.ruler.utility.Requests;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -61,6 +71,11 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 	@Autowired
 	private FhirContext fhirContext;
 
+	@Autowired
+	private CrProperties crProperties;
+	@Autowired
+	private Executor cqlExecutor;
+
 	private static final Logger logger = LoggerFactory.getLogger(PlanDefinitionApplyProvider.class);
 
 	public IFhirResourceDao<PlanDefinition> getDao() { return this.planDefinitionDao; }
@@ -77,6 +92,16 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 			@OperationParam(name = "setting") String setting,
 			@OperationParam(name = "settingContext") String settingContext)
 			throws IOException, FHIRException {
+		return applyPlanDefinition(theRequest, theId, patientId, encounterId, practitionerId, organizationId, userType,
+				userLanguage, userTaskContext, setting, settingContext, null);
+	}
+
+	// The expressions of nested PlanDefinitions are evaluated in the context of the
+	// $apply they are part of
+	private CarePlan applyPlanDefinition(RequestDetails theRequest, IdType theId, String patientId,
+			String encounterId, String practitionerId, String organizationId, String userType, String userLanguage,
+			String userTaskContext, String setting, String settingContext, SharedEvaluationContext sharedContext)
+			throws IOException, FHIRException {
 		PlanDefinition planDefinition = this.planDefinitionDao.read(theId);
 
 		if (planDefinition == null) {
@@ -102,28 +127,74 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 		// Each Group of actions shares a RequestGroup
 		RequestGroupBuilder requestGroupBuilder = new RequestGroupBuilder().buildStatus().buildIntent();
 
+		// Only the actions of the PlanDefinition being applied are resolved
+		// concurrently, those of nested PlanDefinitions are resolved by the action
+		// that references them. Each action is given a copy of the request, so the
+		// request has to be copyable.
+		boolean concurrent = sharedContext == null && crProperties.getThreadedPlanDefinitionApplyEnabled()
+				&& planDefinition.getAction().size() > 1 && Requests.isCopyable(theRequest);
+		if (sharedContext == null && !concurrent) {
+			sharedContext = expressionEvaluation.createSharedContext(patientId, theRequest);
+		}
+
 		Session session = new Session(planDefinition, builder, patientId, encounterId, practitionerId, organizationId,
-				userType, userLanguage, userTaskContext, setting, settingContext, requestGroupBuilder);
+				userType, userLanguage, userTaskContext, setting, settingContext, requestGroupBuilder, sharedContext);
+		if (concurrent) {
+			session.resolveConcurrently(request -> expressionEvaluation.createSharedContext(patientId, request));
+		}
 
 		return (CarePlan) ContainedHelper.liftContainedResourcesToParent(resolveActions(theRequest, session));
 	}
 
 	private CarePlan resolveActions(RequestDetails theRequest, Session session) {
-		for (PlanDefinition.PlanDefinitionActionComponent action : session.getPlanDefinition().getAction()) {
-			// TODO - Apply input/output dataRequirements?
-			if (meetsConditions(theRequest, session, action)) {
-				Resource result = resolveDefinition(theRequest, session, action);
-				RequestGroupActionComponent currentActionTarget = null;
-				if (result != null) {
-					currentActionTarget = new RequestGroupActionBuilder()
-							.buildResource(new Reference("#" + result.getId()))
-							.build();
-					session
-							.getRequestGroupBuilder()
-							.buildContained(result)
-							.addAction(currentActionTarget);
+		List<PlanDefinition.PlanDefinitionActionComponent> actions = session.getPlanDefinition().getAction();
+		List<ResolvedAction> resolvedActions;
+		if (session.isConcurrent()) {
+			// Neither a RequestDetails nor a context is thread-safe, so each action is
+			// resolved with its own, created here on the thread handling the request
+			List<RequestDetails> requests = new ArrayList<>(actions.size());
+			List<SharedEvaluationContext> contexts = new ArrayList<>(actions.size());
+			for (int i = 0; i < actions.size(); i++) {
+				RequestDetails request = Requests.copyOf(theRequest);
+				requests.add(request);
+				contexts.add(session.createContext(request));
+			}
+			resolvedActions = ActionScheduler.run(getPredecessors(actions),
+					i -> resolveAction(requests.get(i), session, contexts.get(i), actions.get(i)), cqlExecutor);
+		} else {
+			resolvedActions = new ArrayList<>();
+			for (PlanDefinition.PlanDefinitionActionComponent action : actions) {
+				resolvedActions.add(resolveAction(theRequest, session, session.getSharedContext(), action));
+			}
+		}
+
+		// The resolved actions are added to the CarePlan in the order of the actions
+		for (ResolvedAction resolvedAction : resolvedActions) {
+			if (resolvedAction == null) {
+				continue;
+			}
+
+			if (resolvedAction.result instanceof CarePlan) {
+				CarePlan plan = (CarePlan) resolvedAction.result;
+				// Add an action to the request group which points to this CarePlan
+				session.getRequestGroupBuilder()
+						.buildContained(plan)
+						.addAction(new RequestGroupActionBuilder()
+								.buildResource(new Reference("#" + plan.getId()))
+								.build());
+
+				for (Reference r : plan.getDefinition()) {
+					session.getCarePlanBuilder().buildDefinition(r);
 				}
-				resolveDynamicActions(theRequest, session, currentActionTarget, action);
+			}
+			if (resolvedAction.actionTarget != null) {
+				session
+						.getRequestGroupBuilder()
+						.buildContained(resolvedAction.result)
+						.addAction(resolvedAction.actionTarget);
+			}
+			if (resolvedAction.replacesCarePlan) {
+				session.setCarePlan(resolvedAction.carePlan);
 			}
 		}
 
@@ -139,8 +210,68 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 		return session.getCarePlan();
 	}
 
+	// Evaluates an action without changing the session, so that actions can be
+	// resolved concurrently. Returns null if the action does not apply.
+	private ResolvedAction resolveAction(RequestDetails theRequest, Session session,
+			SharedEvaluationContext context, PlanDefinition.PlanDefinitionActionComponent action) {
+		// TODO - Apply input/output dataRequirements?
+		if (!meetsConditions(theRequest, session, context, action)) {
+			return null;
+		}
+
+		ResolvedAction resolvedAction = new ResolvedAction();
+		resolvedAction.result = resolveDefinition(theRequest, session, context, action);
+		if (resolvedAction.result != null) {
+			resolvedAction.actionTarget = new RequestGroupActionBuilder()
+					.buildResource(new Reference("#" + resolvedAction.result.getId()))
+					.build();
+		}
+		resolveDynamicActions(theRequest, session, context, resolvedAction, action);
+		return resolvedAction;
+	}
+
+	// The indexes of the actions each action has to follow, from the relatedActions
+	// between actions with ids. Actions related as concurrent are not ordered.
+	static List<Set<Integer>> getPredecessors(List<PlanDefinition.PlanDefinitionActionComponent> actions) {
+		Map<String, Integer> indexes = new HashMap<>();
+		List<Set<Integer>> predecessors = new ArrayList<>(actions.size());
+		for (int i = 0; i < actions.size(); i++) {
+			if (actions.get(i).hasId()) {
+				indexes.put(actions.get(i).getId(), i);
+			}
+			predecessors.add(new LinkedHashSet<>());
+		}
+
+		for (int i = 0; i < actions.size(); i++) {
+			for (PlanDefinition.PlanDefinitionActionRelatedActionComponent relatedAction : actions.get(i)
+					.getRelatedAction()) {
+				Integer related = indexes.get(relatedAction.getActionId());
+				if (related == null || related == i || relatedAction.getRelationship() == null) {
+					continue;
+				}
+
+				switch (relatedAction.getRelationship()) {
+					case BEFORESTART:
+					case BEFORE:
+					case BEFOREEND:
+						predecessors.get(related).add(i);
+						break;
+					case AFTERSTART:
+					case AFTER:
+					case AFTEREND:
+						predecessors.get(i).add(related);
+						break;
+					default:
+						break;
+				}
+			}
+		}
+
+		return predecessors;
+	}
+
 	private Resource resolveDefinition(RequestDetails theRequest, Session session,
-			PlanDefinition.PlanDefinitionActionComponent action) {
+			SharedEvaluationContext context, PlanDefinition.PlanDefinitionActionComponent action) {
 			Resource result = null;
 		if (action.hasDefinition()) {
 			logger.debug("Resolving definition: {}", action.getDefinition().getReference());
@@ -159,22 +290,13 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 							session.getUserLanguage(),
 							session.getUserTaskContext(),
 							session.getSetting(),
-							session.getSettingContext());
+							session.getSettingContext(),
+							context);
 
 					if (plan.getId() == null) {
 						plan.setId(UUID.randomUUID().toString());
 					}
 
-					// Add an action to the request group which points to this CarePlan
-					session.getRequestGroupBuilder()
-							.buildContained(plan)
-							.addAction(new RequestGroupActionBuilder()
-									.buildResource(new Reference("#" + plan.getId()))
-									.build());
-
-					for (Reference r : plan.getDefinition()) {
-						session.getCarePlanBuilder().buildDefinition(r);
-					}
 					result = plan;
 
 				} catch (IOException e) {
@@ -190,14 +312,15 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 								(ActivityDefinition) resolveContained(session.getPlanDefinition(),
 										action.getDefinition().getReferenceElement().getIdPart()),
 								session.getPatientId(), session.getPractitionerId(), session.getOrganizationId(),
-								theRequest);
+								theRequest, context);
 					} else {
 						result = this.activityDefinitionApplyProvider.apply(
 								theRequest,
 								new IdType(action.getDefinition().getReferenceElement().getIdPart()),
 								session.getPatientId(), session.getEncounterId(), session.getPractitionerId(),
 								session.getOrganizationId(), null, session.getUserLanguage(),
-								session.getUserTaskContext(), session.getSetting(), session.getSettingContext());
+								session.getUserTaskContext(), session.getSetting(), session.getSettingContext(),
+								context);
 					}
 
 					if (result.getId() == null) {
@@ -221,7 +344,8 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 	}
 
 	private void resolveDynamicActions(RequestDetails theRequest, Session session,
-	RequestGroupActionComponent currentActionTarget, PlanDefinition.PlanDefinitionActionComponent action) {
+	SharedEvaluationContext context, ResolvedAction resolvedAction, PlanDefinition.PlanDefinitionActionComponent action) {
+		RequestGroupActionComponent currentActionTarget = resolvedAction.actionTarget;
 		for (PlanDefinition.PlanDefinitionActionDynamicValueComponent dynamicValue : action.getDynamicValue()) {
 			logger.info("Resolving dynamic value %s %s", dynamicValue.getPath(), dynamicValue.getExpression());
 			if (dynamicValue.hasExpression()) {
@@ -239,10 +363,11 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 					aliasedExpression = false;
 				}
 				Object result = expressionEvaluation.evaluateInContext(session.getPlanDefinition(),
-						dynamicValue.getExpression(), aliasedExpression, session.getPatientId(), theRequest);
+						dynamicValue.getExpression(), aliasedExpression, context, theRequest);
 
 				if (dynamicValue.hasPath() && dynamicValue.getPath().equals("$this")) {
-					session.setCarePlan((CarePlan) result);
+					resolvedAction.replacesCarePlan = true;
+					resolvedAction.carePlan = (CarePlan) result;
 				}
 
 				else {
@@ -274,7 +399,7 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 	}
 
 	private Boolean meetsConditions(RequestDetails theRequest, Session session,
-			PlanDefinition.PlanDefinitionActionComponent action) {
+			SharedEvaluationContext context, PlanDefinition.PlanDefinitionActionComponent action) {
 		for (PlanDefinition.PlanDefinitionActionConditionComponent condition : action.getCondition()) {
 			// TODO start
 			// TODO stop
@@ -309,7 +434,7 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 				}
 				String cql = condition.getExpression();
 				Object result = expressionEvaluation.evaluateInContext(session.getPlanDefinition(), cql, aliasedExpression,
-						session.getPatientId(), theRequest);
+						context, theRequest);
 
 				if (result == null) {
 					logger.warn("Expression Returned null");
@@ -535,6 +660,15 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 		throw new RuntimeException(
 				String.format("Resource %s does not contain resource with id %s", resource.fhirType(), id));
 	}
+
+	// An applicable action, with the resource its definition resolved to and the
+	// CarePlan its dynamic values replace the CarePlan being built with, if any
+	private static class ResolvedAction {
+		private Resource result;
+		private RequestGroupActionComponent actionTarget;
+		private boolean replacesCarePlan;
+		private CarePlan carePlan;
+	}
 }
 
 class Session {
@@ -550,10 +684,15 @@ class Session {
 	private CarePlanBuilder carePlanBuilder;
 	private String encounterId;
 	private final RequestGroupBuilder requestGroupBuilder;
+	private final SharedEvaluationContext sharedContext;
+	// Creates the context of each action when the actions are resolved
+	// concurrently, as a context is not thread-safe
+	private Function<RequestDetails, SharedEvaluationContext> contextFactory;
 
 	public Session(PlanDefinition planDefinition, CarePlanBuilder builder, String patientId, String encounterId,
 			String practitionerId, String organizationId, String userType, String userLanguage, String userTaskContext,
-			String setting, String settingContext, RequestGroupBuilder requestGroupBuilder) {
+			String setting, String settingContext, RequestGroupBuilder requestGroupBuilder,
+			SharedEvaluationContext sharedContext) {
 		this.patientId = patientId;
 		this.planDefinition = planDefinition;
 		this.carePlanBuilder = builder;
@@ -566,6 +705,7 @@ class Session {
 		this.setting = setting;
 		this.settingContext = settingContext;
 		this.requestGroupBuilder = requestGroupBuilder;
+		this.sharedContext = sharedContext;
 	}
 
 	public PlanDefinition getPlanDefinition() {
@@ -623,4 +763,33 @@ class Session {
 	public RequestGroupBuilder getRequestGroupBuilder() {
 		return requestGroupBuilder;
 	}
+
+	/**
+	 * @return the context the expressions of the $apply, including those of nested
+	 *         PlanDefinitions and ActivityDefinitions, are evaluated in, or null if
+	 *         the actions are resolved concurrently
+	 */
+	public SharedEvaluationContext getSharedContext() {
+		return sharedContext;
+	}
+
+	/**
+	 * Has the actions of the session resolved concurrently, each action evaluating
+	 * expressions in a context of its own created by the factory.
+	 */
+	public void resolveConcurrently(Function<RequestDetails, SharedEvaluationContext> contextFactory) {
+		this.contextFactory = contextFactory;
+	}
+
+	public boolean isConcurrent() {
+		return contextFactory != null;
+	}
+
+	/**
+	 * @param request the copy of the request an action is resolved with
+	 * @return a new context for the action
+	 */
+	public SharedEvaluationContext createContext(RequestDetails request) {
+		return contextFactory.apply(request);
+	}
 }
@@ -1,11 +1,14 @@
 package org.opencds.cqf.ruler.cr.r4;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.ActivityDefinition;
 import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.DomainResource;
@@ -27,16 +30,23 @@ import org.opencds.cqf.ruler.cql.CqlProperties;
 import org.opencds.cqf.ruler.cql.JpaDataProviderFactory;
 import org.opencds.cqf.ruler.cql.JpaFhirDal;
 import org.opencds.cqf.ruler.cql.JpaFhirDalFactory;
+import org.opencds.cqf.ruler.cql.JpaLibraryContentProvider;
 import org.opencds.cqf.ruler.cql.JpaLibraryContentProviderFactory;
 import org.opencds.cqf.ruler.cql.JpaTerminologyProviderFactory;
 import org.opencds.cqf.ruler.cql.LibraryLoaderFactory;
+import org.opencds.cqf.ruler.cql.PersistentElmStore;
+import org.opencds.cqf.ruler.cr.SharedEvaluationContext;
+import org.opencds.cqf.ruler.utility.Libraries;
 import org.opencds.cqf.ruler.utility.Canonicals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 
 public class ExpressionEvaluation {
+	private static final Logger ourLog = LoggerFactory.getLogger(ExpressionEvaluation.class);
 
 	@Autowired
 	private LibraryLoaderFactory libraryLoaderFactory;
@@ -66,20 +76,85 @@ public class ExpressionEvaluation {
 
 	public Object evaluateInContext(DomainResource instance, String cql, String patientId, Boolean aliasedExpression,
 			RequestDetails theRequest) {
-		Context context = setupContext(instance, cql, patientId, aliasedExpression, theRequest);
+		JpaLibraryContentProvider libraryContentProvider = jpaLibraryContentProviderFactory.create(theRequest);
+		List<LibraryContentProvider> contentProviders = new ArrayList<>(Arrays.asList(libraryContentProvider));
+		org.cqframework.cql.elm.execution.Library localLibrary = compile(instance, cql, aliasedExpression,
+				libraryContentProvider, contentProviders, new HashMap<>(), theRequest);
+		LibraryLoader libraryLoader = libraryLoaderFactory.create(contentProviders);
+
+		// resolve execution context
+		Context context = setupContext(instance, patientId, localLibrary, libraryLoader, theRequest);
 		return context.resolveExpressionRef("Expression").evaluate(context);
 	}
 
-	private Context setupContext(DomainResource instance, String cql, String patientId, Boolean aliasedExpression,
+	/**
+	 * Evaluates the given CQL expression in the context of the given resource, in
+	 * a context shared with the other expressions evaluated for the same
+	 * operation.
+	 *
+	 * @see #createSharedContext(String, RequestDetails)
+	 */
+	public Object evaluateInContext(DomainResource instance, String cql, Boolean aliasedExpression,
+			SharedEvaluationContext sharedContext, RequestDetails theRequest) {
+		JpaLibraryContentProvider libraryContentProvider = jpaLibraryContentProviderFactory.create(theRequest);
+		List<LibraryContentProvider> contentProviders = new ArrayList<>(Arrays.asList(libraryContentProvider));
+		org.cqframework.cql.elm.execution.Library localLibrary = compile(instance, cql, aliasedExpression,
+				libraryContentProvider, contentProviders, sharedContext.getContentHashes(), theRequest);
+
+		// Provide the instance as the value of the '%context' parameter, as well as the
+		// value of a parameter named the same as the resource
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put(instance.fhirType(), instance);
+		parameters.put("%context", instance);
+		return sharedContext.evaluate(localLibrary, "Expression", parameters);
+	}
+
+	/**
+	 * Creates a context in which the expressions of one operation for a Patient
+	 * are evaluated, so that the providers, the included libraries and the results
+	 * of their definitions are shared by all of them.
+	 */
+	public SharedEvaluationContext createSharedContext(String patientId, RequestDetails theRequest) {
+		LibraryLoader libraryLoader = libraryLoaderFactory.create(
+				new ArrayList<>(Arrays.asList(jpaLibraryContentProviderFactory.create(theRequest))));
+		TerminologyProvider terminologyProvider = jpaTerminologyProviderFactory.create(theRequest);
+		DataProvider dataProvider = jpaDataProviderFactory.create(theRequest, terminologyProvider);
+		return new SharedEvaluationContext(libraryLoader, terminologyProvider, dataProvider, patientId,
+				getDebugMap());
+	}
+
+	// Returns the library the expression is compiled into, adding the source of the
+	// library to the content providers if it has to be translated. The content
+	// hashes of the referenced libraries are kept in contentHashes, so that they
+	// are only resolved once for the expressions of an operation.
+	private org.cqframework.cql.elm.execution.Library compile(DomainResource instance, String cql,
+			Boolean aliasedExpression, JpaLibraryContentProvider libraryContentProvider,
+			List<LibraryContentProvider> contentProviders, Map<String, String> contentHashes,
 			RequestDetails theRequest) {
-		JpaFhirDal jpaFhirDal = jpaFhirDalFactory.create(theRequest);
 		List<CanonicalType> libraries = getLibraryReferences(instance, theRequest);
 
 		String fhirVersion = this.fhirContext.getVersion().getVersion().getFhirVersionString();
 
-		// Remove LocalLibrary from cache first...
-		VersionedIdentifier localLibraryIdentifier = new VersionedIdentifier().withId("LocalLibrary");
-		globalLibraryCache.remove(localLibraryIdentifier);
+		// The expression is compiled into a library named for everything its source
+		// is built from, so it is only translated the first time it is evaluated
+		// and is then served from the global library cache
+		VersionedIdentifier localLibraryIdentifier = getLocalLibraryIdentifier(instance, cql, aliasedExpression,
+				libraries, fhirVersion, libraryContentProvider, contentHashes, theRequest);
+		org.cqframework.cql.elm.execution.Library localLibrary = globalLibraryCache.get(localLibraryIdentifier);
+		if (localLibrary != null) {
+			return localLibrary;
+		}
+
+		String source = buildSource(instance, cql, aliasedExpression, libraries, fhirVersion,
+				localLibraryIdentifier, theRequest);
+		contentProviders.add(new InMemoryLibraryContentProvider(Arrays.asList(source)));
+		return libraryLoaderFactory.create(contentProviders).load(localLibraryIdentifier);
+	}
+
+	private String buildSource(DomainResource instance, String cql, Boolean aliasedExpression,
+			List<CanonicalType> libraries, String fhirVersion, VersionedIdentifier localLibraryIdentifier,
+			RequestDetails theRequest) {
+		JpaFhirDal jpaFhirDal = jpaFhirDalFactory.create(theRequest);
 
 		// temporary LibraryLoader to resolve library dependencies when building
 		// includes
@@ -112,28 +187,73 @@ public class ExpressionEvaluation {
 				}
 			}
 			source = String.format(
-					"library LocalLibrary using FHIR version '" + fhirVersion + "' include FHIRHelpers version '"
+					"library %s using FHIR version '" + fhirVersion + "' include FHIRHelpers version '"
 							+ fhirVersion
 							+ "' called FHIRHelpers %s parameter %s %s parameter \"%%context\" %s define Expression: %s",
-					buildIncludes(tempLibraryLoader, jpaFhirDal, libraries, theRequest), instance.fhirType(),
-					instance.fhirType(), instance.fhirType(), vi.getId() + ".\"" + cql + "\"");
+					localLibraryIdentifier.getId(), buildIncludes(tempLibraryLoader, jpaFhirDal, libraries, theRequest),
+					instance.fhirType(), instance.fhirType(), instance.fhirType(), vi.getId() + ".\"" + cql + "\"");
 
 		} else {
 			source = String.format(
-					"library LocalLibrary using FHIR version '" + fhirVersion + "' include FHIRHelpers version '"
+					"library %s using FHIR version '" + fhirVersion + "' include FHIRHelpers version '"
 							+ fhirVersion
 							+ "' called FHIRHelpers %s parameter %s %s parameter \"%%context\" %s define Expression: %s",
-					buildIncludes(tempLibraryLoader, jpaFhirDal, libraries, theRequest), instance.fhirType(),
-					instance.fhirType(), instance.fhirType(), cql);
+					localLibraryIdentifier.getId(), buildIncludes(tempLibraryLoader, jpaFhirDal, libraries, theRequest),
+					instance.fhirType(), instance.fhirType(), instance.fhirType(), cql);
 
 		}
-		LibraryLoader libraryLoader = libraryLoaderFactory.create(
-				new ArrayList<LibraryContentProvider>(
-						Arrays.asList(
-								jpaLibraryContentProviderFactory.create(theRequest),
-								new InMemoryLibraryContentProvider(Arrays.asList(source)))));
-		// resolve execution context
-		return setupContext(instance, patientId, libraryLoader, theRequest);
+
+		return source;
+	}
+
+	private VersionedIdentifier getLocalLibraryIdentifier(DomainResource instance, String cql,
+			Boolean aliasedExpression, List<CanonicalType> libraries, String fhirVersion,
+			JpaLibraryContentProvider contentProvider, Map<String, String> contentHashes,
+			RequestDetails theRequest) {
+		StringBuilder key = new StringBuilder();
+		appendKeyPart(key, fhirVersion);
+		appendKeyPart(key, instance.fhirType());
+		appendKeyPart(key, String.valueOf(Boolean.TRUE.equals(aliasedExpression)));
+		for (CanonicalType library : libraries) {
+			appendKeyPart(key, library.getValue());
+			appendKeyPart(key, contentHashes.computeIfAbsent(library.getValue(),
+					x -> getContentHash(contentProvider, getVersionedIdentifierFromCanonical(library),
+							new IdType("Library", Canonicals.getIdPart(library)), theRequest)));
+		}
+		appendKeyPart(key, cql);
+
+		return new VersionedIdentifier()
+				.withId("LocalLibrary_" + PersistentElmStore.hash(key.toString().getBytes(StandardCharsets.UTF_8)));
+	}
+
+	// The hash of the CQL a library reference resolves to. The CQL declares the
+	// version of the library, so a reference without a version compiles into a
+	// new local library when a later version of the library is stored, as does a
+	// reference to a library whose CQL changed. The hash is the one the Library
+	// content index computed, when Libraries are indexed. A library that can not
+	// be resolved by name is read by id, as it is when building the includes.
+	private String getContentHash(JpaLibraryContentProvider contentProvider, VersionedIdentifier vi,
+			IIdType libraryId, RequestDetails theRequest) {
+		try {
+			String hash = contentProvider.getContentHash(
+					new org.hl7.elm.r1.VersionedIdentifier().withId(vi.getId()).withVersion(vi.getVersion()));
+			if (hash != null) {
+				return hash;
+			}
+
+			Library library = (Library) jpaFhirDalFactory.create(theRequest).read(libraryId);
+			byte[] cql = Libraries.getContent(library, "text/cql");
+			return library.getName() + "|" + library.getVersion() + "|"
+					+ (cql == null ? "" : PersistentElmStore.hash(cql));
+		} catch (RuntimeException e) {
+			ourLog.warn("Unable to resolve library {} referenced by the expression", vi.getId(), e);
+			throw e;
+		}
+	}
+
+	private static void appendKeyPart(StringBuilder key, String part) {
+		String value = part == null ? "" : part;
+		key.append(value.length()).append(':').append(value);
 	}
 
 	private List<CanonicalType> getLibraryReferences(DomainResource instance, RequestDetails theRequest) {
@@ -265,12 +385,13 @@ public class ExpressionEvaluation {
 	}
 
 	private Context setupContext(DomainResource instance, String patientId,
-			LibraryLoader libraryLoader, RequestDetails theRequest) {
+			org.cqframework.cql.elm.execution.Library localLibrary, LibraryLoader libraryLoader,
+			RequestDetails theRequest) {
 		// Provide the instance as the value of the '%context' parameter, as well as the
 		// value of a parameter named the same as the resource
 		// This enables expressions to access the resource by root, as well as through
 		// the %context attribute
-		Context context = new Context(libraryLoader.load(new VersionedIdentifier().withId("LocalLibrary")));
+		Context context = new Context(localLibrary);
 		context.setDebugMap(getDebugMap());
 		context.setParameter(null, instance.fhirType(), instance);
 		context.setParameter(null, "%context", instance);
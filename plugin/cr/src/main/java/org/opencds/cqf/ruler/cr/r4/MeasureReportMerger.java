@@ -0,0 +1,263 @@
+package org.opencds.cqf.ruler.cr.r4;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.r4.model.BackboneElement;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Merges the MeasureReports of disjoint partitions of the subjects of a
+ * population into the MeasureReport of the whole population.
+ * <p>
+ * The partial reports are reports of the same Measure and period, so their
+ * groups, populations and stratifiers are matched by position, and the strata
+ * of a stratifier by value. Population counts are summed, subject lists are
+ * concatenated in the order of the partitions, and the measure scores of
+ * proportion and ratio Measures are computed again from the merged counts. The
+ * result depends only on the order of the partial reports, not on the order
+ * they completed in.
+ * <p>
+ * Supplemental data and continuous variable observations can not be merged
+ * from partial reports, so Measures with either should not be partitioned.
+ */
+public final class MeasureReportMerger {
+
+	private static final String NUMERATOR = "numerator";
+	private static final String NUMERATOR_EXCLUSION = "numerator-exclusion";
+	private static final String DENOMINATOR = "denominator";
+	private static final String DENOMINATOR_EXCLUSION = "denominator-exclusion";
+	private static final String DENOMINATOR_EXCEPTION = "denominator-exception";
+
+	private MeasureReportMerger() {
+	}
+
+	/**
+	 * Merges partial MeasureReports.
+	 *
+	 * @param theReports the reports of the partitions, in the order of the
+	 *                   partitions
+	 * @param theScoring the scoring of the Measure, such as "proportion"
+	 * @return the merged report, which is the first report updated in place
+	 */
+	public static MeasureReport merge(List<MeasureReport> theReports, String theScoring) {
+		if (theReports.isEmpty()) {
+			throw new IllegalArgumentException("There are no MeasureReports to merge");
+		}
+
+		MeasureReport merged = theReports.get(0);
+		Set<String> evaluatedResources = new LinkedHashSet<>();
+		merged.getEvaluatedResource().forEach(reference -> evaluatedResources.add(reference.getReference()));
+
+		for (MeasureReport report : theReports.subList(1, theReports.size())) {
+			for (int i = 0; i < report.getGroup().size() && i < merged.getGroup().size(); i++) {
+				mergeGroup(merged, merged.getGroup().get(i), report, report.getGroup().get(i));
+			}
+
+			for (Reference reference : report.getEvaluatedResource()) {
+				if (evaluatedResources.add(reference.getReference())) {
+					merged.addEvaluatedResource(reference);
+				}
+			}
+		}
+
+		if (isScored(theScoring)) {
+			for (MeasureReport.MeasureReportGroupComponent group : merged.getGroup()) {
+				group.setMeasureScore(null);
+				score(group.getPopulation(), group::getMeasureScore);
+				for (MeasureReport.MeasureReportGroupStratifierComponent stratifier : group.getStratifier()) {
+					for (MeasureReport.StratifierGroupComponent stratum : stratifier.getStratum()) {
+						stratum.setMeasureScore(null);
+						score(stratum.getPopulation(), stratum::getMeasureScore);
+					}
+				}
+			}
+		}
+
+		return merged;
+	}
+
+	private static boolean isScored(String theScoring) {
+		return "proportion".equals(theScoring) || "ratio".equals(theScoring);
+	}
+
+	private static void mergeGroup(MeasureReport theMerged, MeasureReport.MeasureReportGroupComponent theMergedGroup,
+			MeasureReport theReport, MeasureReport.MeasureReportGroupComponent theGroup) {
+		List<MeasureReport.MeasureReportGroupPopulationComponent> populations = theGroup.getPopulation();
+		for (int i = 0; i < populations.size() && i < theMergedGroup.getPopulation().size(); i++) {
+			MeasureReport.MeasureReportGroupPopulationComponent merged = theMergedGroup.getPopulation().get(i);
+			MeasureReport.MeasureReportGroupPopulationComponent population = populations.get(i);
+			merged.setCount(merged.getCount() + population.getCount());
+			if (population.hasSubjectResults()) {
+				merged.setSubjectResults(mergeSubjectResults(theMerged, merged.getSubjectResults(), theReport,
+						population.getSubjectResults()));
+			}
+		}
+
+		List<MeasureReport.MeasureReportGroupStratifierComponent> stratifiers = theGroup.getStratifier();
+		for (int i = 0; i < stratifiers.size() && i < theMergedGroup.getStratifier().size(); i++) {
+			mergeStratifier(theMerged, theMergedGroup.getStratifier().get(i), theReport, stratifiers.get(i));
+		}
+	}
+
+	private static void mergeStratifier(MeasureReport theMerged,
+			MeasureReport.MeasureReportGroupStratifierComponent theMergedStratifier, MeasureReport theReport,
+			MeasureReport.MeasureReportGroupStratifierComponent theStratifier) {
+		Map<String, MeasureReport.StratifierGroupComponent> strata = new LinkedHashMap<>();
+		theMergedStratifier.getStratum().forEach(stratum -> strata.put(getKey(stratum), stratum));
+
+		for (MeasureReport.StratifierGroupComponent stratum : theStratifier.getStratum()) {
+			MeasureReport.StratifierGroupComponent merged = strata.get(getKey(stratum));
+			if (merged == null) {
+				// A stratum only found in a later partition is added after the strata of
+				// the earlier ones
+				stratum.getPopulation().forEach(population -> {
+					if (population.hasSubjectResults()) {
+						population.setSubjectResults(
+								mergeSubjectResults(theMerged, null, theReport, population.getSubjectResults()));
+					}
+				});
+				theMergedStratifier.addStratum(stratum);
+				strata.put(getKey(stratum), stratum);
+				continue;
+			}
+
+			for (MeasureReport.StratifierGroupPopulationComponent population : stratum.getPopulation()) {
+				MeasureReport.StratifierGroupPopulationComponent mergedPopulation = getPopulation(merged,
+						population.getCode());
+				if (mergedPopulation == null) {
+					mergedPopulation = merged.addPopulation().setCode(population.getCode()).setCount(0);
+				}
+
+				mergedPopulation.setCount(mergedPopulation.getCount() + population.getCount());
+				if (population.hasSubjectResults()) {
+					mergedPopulation.setSubjectResults(mergeSubjectResults(theMerged,
+							mergedPopulation.hasSubjectResults() ? mergedPopulation.getSubjectResults() : null,
+							theReport, population.getSubjectResults()));
+				}
+			}
+		}
+	}
+
+	private static MeasureReport.StratifierGroupPopulationComponent getPopulation(
+			MeasureReport.StratifierGroupComponent theStratum, CodeableConcept theCode) {
+		String code = getCode(theCode);
+		for (MeasureReport.StratifierGroupPopulationComponent population : theStratum.getPopulation()) {
+			if (code.equals(getCode(population.getCode()))) {
+				return population;
+			}
+		}
+
+		return null;
+	}
+
+	// The value of a stratum, including the values of its components
+	private static String getKey(MeasureReport.StratifierGroupComponent theStratum) {
+		StringBuilder key = new StringBuilder(getValue(theStratum.getValue()));
+		for (MeasureReport.StratifierGroupComponentComponent component : theStratum.getComponent()) {
+			key.append('|').append(getCode(component.getCode())).append('=').append(getValue(component.getValue()));
+		}
+
+		return key.toString();
+	}
+
+	private static String getValue(CodeableConcept theValue) {
+		if (theValue == null) {
+			return "";
+		}
+
+		return theValue.hasText() ? theValue.getText() : getCode(theValue);
+	}
+
+	private static String getCode(CodeableConcept theCode) {
+		if (theCode == null) {
+			return "";
+		}
+
+		StringBuilder code = new StringBuilder();
+		for (Coding coding : theCode.getCoding()) {
+			code.append(coding.getSystem()).append('#').append(coding.getCode()).append(';');
+		}
+
+		return code.toString();
+	}
+
+	// Appends the subjects of the contained List of a partial report to the
+	// contained List of the merged report, creating the latter if there is none
+	private static Reference mergeSubjectResults(MeasureReport theMerged, Reference theMergedResults,
+			MeasureReport theReport, Reference theResults) {
+		ListResource list = getContainedList(theReport, theResults);
+		if (list == null) {
+			return theMergedResults;
+		}
+
+		ListResource mergedList = theMergedResults != null ? getContainedList(theMerged, theMergedResults) : null;
+		if (mergedList == null) {
+			mergedList = list.copy();
+			mergedList.setEntry(null);
+			theMerged.addContained(mergedList);
+			theMergedResults = new Reference("#" + getLocalId(mergedList));
+		}
+
+		for (ListResource.ListEntryComponent entry : list.getEntry()) {
+			mergedList.addEntry(entry.copy());
+		}
+
+		return theMergedResults;
+	}
+
+	private static ListResource getContainedList(MeasureReport theReport, Reference theReference) {
+		String id = theReference.getReference();
+		if (id == null || !id.startsWith("#")) {
+			return null;
+		}
+
+		for (Resource resource : theReport.getContained()) {
+			if (resource instanceof ListResource && id.substring(1).equals(getLocalId(resource))) {
+				return (ListResource) resource;
+			}
+		}
+
+		return null;
+	}
+
+	private static String getLocalId(Resource theResource) {
+		String id = theResource.getIdElement().getIdPart();
+		return id != null && id.startsWith("#") ? id.substring(1) : id;
+	}
+
+	private static void score(List<? extends BackboneElement> thePopulations,
+			Supplier<Quantity> theScore) {
+		Map<String, Integer> counts = new LinkedHashMap<>();
+		for (BackboneElement population : thePopulations) {
+			if (population instanceof MeasureReport.MeasureReportGroupPopulationComponent) {
+				MeasureReport.MeasureReportGroupPopulationComponent groupPopulation =
+						(MeasureReport.MeasureReportGroupPopulationComponent) population;
+				counts.merge(groupPopulation.getCode().getCodingFirstRep().getCode(), groupPopulation.getCount(),
+						Integer::sum);
+			} else if (population instanceof MeasureReport.StratifierGroupPopulationComponent) {
+				MeasureReport.StratifierGroupPopulationComponent stratumPopulation =
+						(MeasureReport.StratifierGroupPopulationComponent) population;
+				counts.merge(stratumPopulation.getCode().getCodingFirstRep().getCode(), stratumPopulation.getCount(),
+						Integer::sum);
+			}
+		}
+
+		int numerator = counts.getOrDefault(NUMERATOR, 0) - counts.getOrDefault(NUMERATOR_EXCLUSION, 0);
+		int denominator = counts.getOrDefault(DENOMINATOR, 0) - counts.getOrDefault(DENOMINATOR_EXCLUSION, 0)
+				- counts.getOrDefault(DENOMINATOR_EXCEPTION, 0);
+		if (denominator > 0) {
+			theScore.get().setValue((double) numerator / denominator);
+		}
+	}
+}
@@ -41,6 +41,8 @@ import org.opencds.cqf.ruler.builder.CompositionBuilder;
 import org.opencds.cqf.ruler.builder.CompositionSectionComponentBuilder;
 import org.opencds.cqf.ruler.builder.DetectedIssueBuilder;
 import org.opencds.cqf.ruler.builder.NarrativeSettings;
+import org.opencds.cqf.ruler.cql.CohortBatchingRetrieveProvider;
+import org.opencds.cqf.ruler.cql.CqlProperties;
 import org.opencds.cqf.ruler.cr.CrProperties;
 import org.opencds.cqf.ruler.provider.DaoRegistryOperationProvider;
 import org.opencds.cqf.ruler.utility.Ids;
@@ -131,6 +133,9 @@ public class CareGapsProvider extends DaoRegistryOperationProvider
 	@Autowired
 	private CrProperties crProperties;
 
+	@Autowired
+	private CqlProperties cqlProperties;
+
 	@Autowired
 	private Executor cqlExecutor;
 
@@ -213,6 +218,13 @@ public class CareGapsProvider extends DaoRegistryOperationProvider
 			throw new NotImplementedException("Non subject parameters have not been implemented.");
 		}
 
+		if (cqlProperties.getRetrieve().getCohortBatchSize() > 0) {
+			List<String> patientIds = new ArrayList<>();
+			patients.forEach(patient -> patientIds.add(patient.getIdElement().getIdPart()));
+			CohortBatchingRetrieveProvider.setCohort(theRequestDetails, patientIds,
+					cqlProperties.getRetrieve().getCohortRetainedBatches());
+		}
+
 		List<CompletableFuture<Parameters.ParametersParameterComponent>> futures = new ArrayList<>();
 
 		Parameters result = initializeResult();
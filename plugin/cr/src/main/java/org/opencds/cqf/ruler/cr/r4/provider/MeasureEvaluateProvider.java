@@ -1,13 +1,22 @@
 package org.opencds.cqf.ruler.cr.r4.provider;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Endpoint;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Group;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Measure;
 import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.StringType;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.fhir.terminology.R4FhirTerminologyProvider;
@@ -17,12 +26,21 @@ import org.opencds.cqf.cql.evaluator.builder.DataProviderFactory;
 import org.opencds.cqf.cql.evaluator.cql2elm.content.LibraryContentProvider;
 import org.opencds.cqf.cql.evaluator.fhir.dal.FhirDal;
 import org.opencds.cqf.cql.evaluator.measure.MeasureEvaluationOptions;
+import org.opencds.cqf.ruler.cql.CohortBatchingRetrieveProvider;
+import org.opencds.cqf.ruler.cql.CqlProperties;
 import org.opencds.cqf.ruler.cql.JpaDataProviderFactory;
 import org.opencds.cqf.ruler.cql.JpaFhirDalFactory;
 import org.opencds.cqf.ruler.cql.JpaLibraryContentProviderFactory;
 import org.opencds.cqf.ruler.cql.JpaTerminologyProviderFactory;
+import org.opencds.cqf.ruler.cql.PagedResourceIterable;
+import org.opencds.cqf.ruler.cr.CrProperties;
+import org.opencds.cqf.ruler.cr.r4.MeasureReportMerger;
 import org.opencds.cqf.ruler.provider.DaoRegistryOperationProvider;
 import org.opencds.cqf.ruler.utility.Clients;
+import org.opencds.cqf.ruler.utility.Requests;
+import org.opencds.cqf.ruler.utility.Searches;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import ca.uhn.fhir.model.api.annotation.Description;
@@ -33,6 +51,10 @@ import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 
 public class MeasureEvaluateProvider extends DaoRegistryOperationProvider {
+	private static final Logger ourLog = LoggerFactory.getLogger(MeasureEvaluateProvider.class);
+
+	private static final int PATIENT_PAGE_SIZE = 1000;
+
 	@Autowired
 	private JpaTerminologyProviderFactory jpaTerminologyProviderFactory;
 
@@ -57,6 +79,15 @@ public class MeasureEvaluateProvider extends DaoRegistryOperationProvider {
 	@Autowired
 	private MeasureEvaluationOptions measureEvaluationOptions;
 
+	@Autowired
+	private CqlProperties cqlProperties;
+
+	@Autowired
+	private CrProperties crProperties;
+
+	@Autowired
+	private Executor cqlExecutor;
+
 	/**
 	 * Implements the <a href=
 	 * "https://www.hl7.org/fhir/operation-measure-evaluate-measure.html">$evaluate-measure</a>
@@ -96,35 +127,172 @@ public class MeasureEvaluateProvider extends DaoRegistryOperationProvider {
 
 		Measure measure = read(theId);
 
-		TerminologyProvider terminologyProvider;
+		List<String> patientIds = null;
+		if (isPopulation(subject) && (cqlProperties.getRetrieve().getCohortBatchSize() > 0
+				|| isPartitioned(measure, reportType, requestDetails))) {
+			patientIds = getPatientIds(subject, requestDetails);
+		}
+
+		MeasureReport report;
+		int partitionSize = crProperties.getMeasureEvaluatePartitionSize();
+		if (patientIds != null && isPartitioned(measure, reportType, requestDetails)
+				&& patientIds.size() > partitionSize) {
+			// Each partition is given a cohort of its own patients
+			report = evaluatePartitions(requestDetails, measure, patientIds, partitionSize, periodStart, periodEnd,
+					reportType, lastReceivedOn, terminologyEndpoint, additionalData);
+		} else {
+			if (patientIds != null) {
+				setCohort(requestDetails, patientIds);
+			}
+			TerminologyProvider terminologyProvider = createTerminologyProvider(terminologyEndpoint, requestDetails);
+			DataProvider dataProvider = this.jpaDataProviderFactory.create(requestDetails, terminologyProvider);
+			report = createMeasureProcessor(terminologyProvider,
+					this.libraryContentProviderFactory.create(requestDetails), dataProvider,
+					this.fhirDalFactory.create(requestDetails))
+					.evaluateMeasure(measure.getUrl(), periodStart, periodEnd, reportType, subject, null, lastReceivedOn,
+							null, null, null, additionalData);
+		}
 
+		if (productLine != null) {
+			Extension ext = new Extension();
+			ext.setUrl("http://hl7.org/fhir/us/cqframework/cqfmeasures/StructureDefinition/cqfm-productLine");
+			ext.setValue(new StringType(productLine));
+			report.addExtension(ext);
+		}
+
+		return report;
+	}
+
+	// The patients a request evaluates, which are retrieved in batches if cohort
+	// batching is enabled
+	private void setCohort(RequestDetails requestDetails, List<String> patientIds) {
+		if (cqlProperties.getRetrieve().getCohortBatchSize() > 0) {
+			CohortBatchingRetrieveProvider.setCohort(requestDetails, patientIds,
+					cqlProperties.getRetrieve().getCohortRetainedBatches());
+		}
+	}
+
+	private TerminologyProvider createTerminologyProvider(Endpoint terminologyEndpoint,
+			RequestDetails requestDetails) {
 		if (terminologyEndpoint != null) {
 			IGenericClient client = Clients.forEndpoint(getFhirContext(), terminologyEndpoint);
-			terminologyProvider = new R4FhirTerminologyProvider(client);
-		} else {
-			terminologyProvider = this.jpaTerminologyProviderFactory.create(requestDetails);
+			return new R4FhirTerminologyProvider(client);
 		}
 
-		DataProvider dataProvider = this.jpaDataProviderFactory.create(requestDetails, terminologyProvider);
-		LibraryContentProvider libraryContentProvider = this.libraryContentProviderFactory.create(requestDetails);
-		FhirDal fhirDal = this.fhirDalFactory.create(requestDetails);
+		return this.jpaTerminologyProviderFactory.create(requestDetails);
+	}
 
-		org.opencds.cqf.cql.evaluator.measure.r4.R4MeasureProcessor measureProcessor = new org.opencds.cqf.cql.evaluator.measure.r4.R4MeasureProcessor(
+	private org.opencds.cqf.cql.evaluator.measure.r4.R4MeasureProcessor createMeasureProcessor(
+			TerminologyProvider terminologyProvider, LibraryContentProvider libraryContentProvider,
+			DataProvider dataProvider, FhirDal fhirDal) {
+		return new org.opencds.cqf.cql.evaluator.measure.r4.R4MeasureProcessor(
 				null, this.dataProviderFactory, null, null, null, terminologyProvider, libraryContentProvider, dataProvider,
 				fhirDal, measureEvaluationOptions, cqlOptions,
 				this.globalLibraryCache);
+	}
 
-		MeasureReport report = measureProcessor.evaluateMeasure(measure.getUrl(), periodStart, periodEnd, reportType,
-				subject, null, lastReceivedOn, null, null, null, additionalData);
+	// Evaluates the partitions of a population concurrently and merges their
+	// reports in the order of the partitions. Each partition has a copy of the
+	// request, made here on the thread handling the request, and its own
+	// providers and measure processor, while the global library cache is shared.
+	@SuppressWarnings("squid:S00107") // warning for greater than 7 parameters
+	private MeasureReport evaluatePartitions(RequestDetails requestDetails, Measure measure, List<String> patientIds,
+			int partitionSize, String periodStart, String periodEnd, String reportType, String lastReceivedOn,
+			Endpoint terminologyEndpoint, Bundle additionalData) {
+		ourLog.info("Evaluating Measure {} for {} patients in partitions of {}", measure.getUrl(), patientIds.size(),
+				partitionSize);
 
-		if (productLine != null) {
-			Extension ext = new Extension();
-			ext.setUrl("http://hl7.org/fhir/us/cqframework/cqfmeasures/StructureDefinition/cqfm-productLine");
-			ext.setValue(new StringType(productLine));
-			report.addExtension(ext);
+		// The subjects of a partition are given explicitly, so the type of report
+		// is given too rather than inferred from them
+		String partitionReportType = reportType != null ? reportType : "population";
+		List<CompletableFuture<MeasureReport>> futures = new ArrayList<>();
+		for (int start = 0; start < patientIds.size(); start += partitionSize) {
+			List<String> partitionIds = patientIds.subList(start, Math.min(start + partitionSize, patientIds.size()));
+			List<String> subjectIds = new ArrayList<>();
+			for (String patientId : partitionIds) {
+				subjectIds.add("Patient/" + patientId);
+			}
+
+			// The partitions run concurrently, so they do not share a cohort, which
+			// would evict the batches of one partition while another uses them
+			RequestDetails partitionRequest = Requests.copyOf(requestDetails);
+			setCohort(partitionRequest, partitionIds);
+			futures.add(CompletableFuture.supplyAsync(() -> {
+				TerminologyProvider terminologyProvider = createTerminologyProvider(terminologyEndpoint,
+						partitionRequest);
+				DataProvider dataProvider = this.jpaDataProviderFactory.create(partitionRequest, terminologyProvider);
+				return createMeasureProcessor(terminologyProvider,
+						this.libraryContentProviderFactory.create(partitionRequest), dataProvider,
+						this.fhirDalFactory.create(partitionRequest))
+						.evaluateMeasure(measure.getUrl(), periodStart, periodEnd, partitionReportType, subjectIds,
+								lastReceivedOn, null, null, null, additionalData);
+			}, cqlExecutor));
 		}
 
-		return report;
+		List<MeasureReport> reports = new ArrayList<>(futures.size());
+		futures.forEach(future -> reports.add(future.join()));
+
+		return MeasureReportMerger.merge(reports, getScoring(measure));
+	}
+
+	// Whether the population of a Measure is evaluated in partitions, which is
+	// only possible when the partial reports can be merged and the request can be
+	// copied for each partition
+	private boolean isPartitioned(Measure measure, String reportType, RequestDetails requestDetails) {
+		if (crProperties.getMeasureEvaluatePartitionSize() <= 0 || measure.hasSupplementalData()
+				|| !Requests.isCopyable(requestDetails)) {
+			return false;
+		}
+
+		if (reportType != null && !"population".equals(reportType) && !"summary".equals(reportType)
+				&& !"subject-list".equals(reportType)) {
+			return false;
+		}
+
+		String scoring = getScoring(measure);
+		return "proportion".equals(scoring) || "ratio".equals(scoring) || "cohort".equals(scoring);
+	}
+
+	private static String getScoring(Measure measure) {
+		return measure.hasScoring() ? measure.getScoring().getCodingFirstRep().getCode() : null;
+	}
+
+	private static boolean isPopulation(String subject) {
+		return subject == null || subject.startsWith("Group/");
+	}
+
+	// The patients of a population, in the order they are evaluated. Patients
+	// are loaded a page at a time and only their ids are kept.
+	private List<String> getPatientIds(String subject, RequestDetails requestDetails) {
+		List<String> patientIds = new ArrayList<>();
+		if (subject == null) {
+			PagedResourceIterable.forEachResource(getDaoRegistry().getResourceDao(Patient.class), Searches.all(),
+					requestDetails, PATIENT_PAGE_SIZE, patient -> patientIds.add(patient.getIdElement().getIdPart()));
+		} else {
+			addGroupMembers(subject, patientIds, new HashSet<>(), requestDetails);
+		}
+
+		return patientIds;
+	}
+
+	// Groups may be nested, and a Group that includes itself (directly or through
+	// another Group) is only expanded once
+	private void addGroupMembers(String groupId, List<String> patientIds, Set<String> visitedGroupIds,
+			RequestDetails requestDetails) {
+		IdType id = new IdType(groupId);
+		if (!visitedGroupIds.add(id.getIdPart())) {
+			return;
+		}
+
+		Group group = read(id, requestDetails);
+		for (Group.GroupMemberComponent member : group.getMember()) {
+			IIdType reference = member.getEntity().getReferenceElement();
+			if ("Patient".equals(reference.getResourceType())) {
+				patientIds.add(reference.getIdPart());
+			} else if ("Group".equals(reference.getResourceType())) {
+				addGroupMembers(reference.getValue(), patientIds, visitedGroupIds, requestDetails);
+			}
+		}
 	}
 
 }
@@ -4,8 +4,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r4.model.ActivityDefinition;
@@ -26,6 +32,9 @@ import org.hl7.fhir.r4.model.StringType;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.runtime.DateTime;
 import org.opencds.cqf.ruler.api.OperationProvider;
+import org.opencds.cqf.ruler.cr.ActionScheduler;
+import org.opencds.cqf.ruler.cr.CrProperties;
+import org.opencds.cqf.ruler.cr.SharedEvaluationContext;
 import org.opencds.cqf.ruler.cr.r4.ExpressionEvaluation;
 import org.opencds.cqf.ruler.cr.r4.builder.AttachmentBuilder;
 import org.opencds.cqf.ruler.cr.r4.builder.CarePlanActivityBuilder;
@@ -37,6 +46,7 @@ import org.opencds.cqf.ruler.cr.r4.builder.RequestGroupActionBuilder;
 import org.opencds.cqf.ruler.cr.r4.builder.RequestGroupBuilder;
 import org.opencds.cqf.ruler.cr.r4.helper.ContainedHelper;
 import org.opencds.cqf.ruler.utility.Canonicals;
+import org.opencds.cqf.ruler.utility.Requests;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -64,6 +74,11 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 	@Autowired
 	private FhirContext fhirContext;
 
+	@Autowired
+	private CrProperties crProperties;
+	@Autowired
+	private Executor cqlExecutor;
+
 	private static final Logger logger = LoggerFactory.getLogger(PlanDefinitionApplyProvider.class);
 
 	public IFhirResourceDao<PlanDefinition> getDao() {
@@ -82,13 +97,42 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 			@OperationParam(name = "setting") String setting,
 			@OperationParam(name = "settingContext") String settingContext)
 			throws IOException, FHIRException {
+		return applyPlanDefinition(theRequest, theId, patientId, encounterId, practitionerId, organizationId, userType,
+				userLanguage, userTaskContext, setting, settingContext, null);
+	}
+
+	// The expressions of nested PlanDefinitions are evaluated in the context of the
+	// $apply they are part of
+	private CarePlan applyPlanDefinition(RequestDetails theRequest, IdType theId, String patientId,
+			String encounterId, String practitionerId, String organizationId, String userType, String userLanguage,
+			String userTaskContext, String setting, String settingContext, SharedEvaluationContext sharedContext)
+			throws IOException, FHIRException {
 		PlanDefinition planDefinition = this.planDefinitionDao.read(theId);
 
 		if (planDefinition == null) {
 			throw new IllegalArgumentException("Couldn't find PlanDefinition " + theId);
 		}
 
-		logger.info("Performing $apply operation on PlanDefinition/{}", theId);
+		return applyPlanDefinition(theRequest, planDefinition, patientId, encounterId, practitionerId, organizationId,
+				userType, userLanguage, userTaskContext, setting, settingContext, sharedContext);
+	}
+
+	// For library use. Applies a PlanDefinition that has already been read, such as
+	// once for each patient of a population, resolving its actions on the calling
+	// thread.
+	public CarePlan applyPlanDefinition(RequestDetails theRequest, PlanDefinition planDefinition, String patientId,
+			String encounterId, String practitionerId, String organizationId, String userType, String userLanguage,
+			String userTaskContext, String setting, String settingContext) throws IOException, FHIRException {
+		return applyPlanDefinition(theRequest, planDefinition, patientId, encounterId, practitionerId, organizationId,
+				userType, userLanguage, userTaskContext, setting, settingContext,
+				expressionEvaluation.createSharedContext(patientId, theRequest));
+	}
+
+	private CarePlan applyPlanDefinition(RequestDetails theRequest, PlanDefinition planDefinition, String patientId,
+			String encounterId, String practitionerId, String organizationId, String userType, String userLanguage,
+			String userTaskContext, String setting, String settingContext, SharedEvaluationContext sharedContext)
+			throws IOException, FHIRException {
+		logger.info("Performing $apply operation on PlanDefinition/{}", planDefinition.getIdElement().getIdPart());
 
 		CarePlanBuilder builder = new CarePlanBuilder();
 
@@ -107,8 +151,21 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 		// Each Group of actions shares a RequestGroup
 		RequestGroupBuilder requestGroupBuilder = new RequestGroupBuilder().buildStatus().buildIntent();
 
+		// Only the actions of the PlanDefinition being applied are resolved
+		// concurrently, those of nested PlanDefinitions are resolved by the action
+		// that references them. Each action is given a copy of the request, so the
+		// request has to be copyable.
+		boolean concurrent = sharedContext == null && crProperties.getThreadedPlanDefinitionApplyEnabled()
+				&& planDefinition.getAction().size() > 1 && Requests.isCopyable(theRequest);
+		if (sharedContext == null && !concurrent) {
+			sharedContext = expressionEvaluation.createSharedContext(patientId, theRequest);
+		}
+
 		Session session = new Session(planDefinition, builder, patientId, encounterId, practitionerId, organizationId,
-				userType, userLanguage, userTaskContext, setting, settingContext, requestGroupBuilder);
+				userType, userLanguage, userTaskContext, setting, settingContext, requestGroupBuilder, sharedContext);
+		if (concurrent) {
+			session.resolveConcurrently(request -> expressionEvaluation.createSharedContext(patientId, request));
+		}
 
 		return (CarePlan) ContainedHelper.liftContainedResourcesToParent(resolveActions(session, theRequest));
 	}
@@ -116,21 +173,46 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 	private CarePlan resolveActions(Session session, RequestDetails theRequest) {
 
 		RequestGroup theRequestGroup = session.getRequestGroupBuilder().build();
-		for (PlanDefinition.PlanDefinitionActionComponent action : session.getPlanDefinition().getAction()) {
-			// TODO - Apply input/output dataRequirements?
-			if (meetsConditions(session, action, theRequest)) {
-				Resource result = resolveDefinition(session, action, theRequest);
-				RequestGroupActionComponent currentActionTarget = null;
-				if (result != null) {
-					currentActionTarget = new RequestGroupActionBuilder()
-							.buildResource(new Reference("#" + result.getId()))
-							.build();
-					session
-							.getRequestGroupBuilder()
-							.buildContained(result)
-							.addAction(currentActionTarget);
+		List<PlanDefinition.PlanDefinitionActionComponent> actions = session.getPlanDefinition().getAction();
+		List<ResolvedAction> resolvedActions;
+		if (session.isConcurrent()) {
+			// Neither a RequestDetails nor a context is thread-safe, so each action is
+			// resolved with its own, created here on the thread handling the request
+			List<RequestDetails> requests = new ArrayList<>(actions.size());
+			List<SharedEvaluationContext> contexts = new ArrayList<>(actions.size());
+			for (int i = 0; i < actions.size(); i++) {
+				RequestDetails request = Requests.copyOf(theRequest);
+				requests.add(request);
+				contexts.add(session.createContext(request));
+			}
+			resolvedActions = ActionScheduler.run(getPredecessors(actions),
+					i -> resolveAction(session, actions.get(i), contexts.get(i), requests.get(i)), cqlExecutor);
+		} else {
+			resolvedActions = new ArrayList<>();
+			for (PlanDefinition.PlanDefinitionActionComponent action : actions) {
+				resolvedActions.add(resolveAction(session, action, session.getSharedContext(), theRequest));
+			}
+		}
+
+		// The resolved actions are added to the CarePlan in the order of the actions
+		for (ResolvedAction resolvedAction : resolvedActions) {
+			if (resolvedAction == null) {
+				continue;
+			}
+
+			if (resolvedAction.result instanceof CarePlan) {
+				for (CanonicalType c : ((CarePlan) resolvedAction.result).getInstantiatesCanonical()) {
+					session.getCarePlanBuilder().buildInstantiatesCanonical(c.getValueAsString());
 				}
-				resolveDynamicActions(session, action, currentActionTarget, theRequest);
+			}
+			if (resolvedAction.actionTarget != null) {
+				session
+						.getRequestGroupBuilder()
+						.buildContained(resolvedAction.result)
+						.addAction(resolvedAction.actionTarget);
+			}
+			if (resolvedAction.replacesCarePlan) {
+				session.setCarePlan(resolvedAction.carePlan);
 			}
 		}
 
@@ -144,8 +226,68 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 		return session.getCarePlan();
 	}
 
+	// Evaluates an action without changing the session, so that actions can be
+	// resolved concurrently. Returns null if the action does not apply.
+	private ResolvedAction resolveAction(Session session, PlanDefinition.PlanDefinitionActionComponent action,
+			SharedEvaluationContext context, RequestDetails theRequest) {
+		// TODO - Apply input/output dataRequirements?
+		if (!meetsConditions(session, action, context, theRequest)) {
+			return null;
+		}
+
+		ResolvedAction resolvedAction = new ResolvedAction();
+		resolvedAction.result = resolveDefinition(session, action, context, theRequest);
+		if (resolvedAction.result != null) {
+			resolvedAction.actionTarget = new RequestGroupActionBuilder()
+					.buildResource(new Reference("#" + resolvedAction.result.getId()))
+					.build();
+		}
+		resolveDynamicActions(session, action, resolvedAction, context, theRequest);
+		return resolvedAction;
+	}
+
+	// The indexes of the actions each action has to follow, from the relatedActions
+	// between actions with ids. Actions related as concurrent are not ordered.
+	static List<Set<Integer>> getPredecessors(List<PlanDefinition.PlanDefinitionActionComponent> actions) {
+		Map<String, Integer> indexes = new HashMap<>();
+		List<Set<Integer>> predecessors = new ArrayList<>(actions.size());
+		for (int i = 0; i < actions.size(); i++) {
+			if (actions.get(i).hasId()) {
+				indexes.put(actions.get(i).getId(), i);
+			}
+			predecessors.add(new LinkedHashSet<>());
+		}
+
+		for (int i = 0; i < actions.size(); i++) {
+			for (PlanDefinition.PlanDefinitionActionRelatedActionComponent relatedAction : actions.get(i)
+					.getRelatedAction()) {
+				Integer related = indexes.get(relatedAction.getActionId());
+				if (related == null || related == i || relatedAction.getRelationship() == null) {
+					continue;
+				}
+
+				switch (relatedAction.getRelationship()) {
+					case BEFORESTART:
+					case BEFORE:
+					case BEFOREEND:
+						predecessors.get(related).add(i);
+						break;
+					case AFTERSTART:
+					case AFTER:
+					case AFTEREND:
+						predecessors.get(i).add(related);
+						break;
+					default:
+						break;
+				}
+			}
+		}
+
+		return predecessors;
+	}
+
 	private Resource resolveDefinition(Session session, PlanDefinition.PlanDefinitionActionComponent action,
-			RequestDetails theRequest) {
+			SharedEvaluationContext context, RequestDetails theRequest) {
 		Resource result = null;
 		if (action.hasDefinition()) {
 			logger.debug("Resolving definition: {}", action.getDefinitionCanonicalType().getValue());
@@ -164,15 +306,13 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 							session.getUserLanguage(),
 							session.getUserTaskContext(),
 							session.getSetting(),
-							session.getSettingContext());
+							session.getSettingContext(),
+							context);
 
 					if (plan.getId() == null) {
 						plan.setId(UUID.randomUUID().toString());
 					}
 
-					for (CanonicalType c : plan.getInstantiatesCanonical()) {
-						session.getCarePlanBuilder().buildInstantiatesCanonical(c.getValueAsString());
-					}
 					result = plan;
 
 				} catch (IOException e) {
@@ -187,13 +327,15 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 						result = this.activityDefinitionApplyProvider.resolveActivityDefinition(
 								(ActivityDefinition) resolveContained(session.getPlanDefinition(),
 										action.getDefinitionCanonicalType().getValue()),
-								session.getPatientId(), session.getPractitionerId(), session.getOrganizationId(), theRequest);
+								session.getPatientId(), session.getPractitionerId(), session.getOrganizationId(), theRequest,
+								context);
 					} else {
 						result = this.activityDefinitionApplyProvider.apply(
 								theRequest, new IdType(Canonicals.getIdPart(action.getDefinitionCanonicalType())),
 								session.getPatientId(), session.getEncounterId(), session.getPractitionerId(),
 								session.getOrganizationId(), null, session.getUserLanguage(),
-								session.getUserTaskContext(), session.getSetting(), session.getSettingContext());
+								session.getUserTaskContext(), session.getSetting(), session.getSettingContext(),
+								context);
 					}
 
 					if (result.getId() == null) {
@@ -212,7 +354,8 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 	}
 
 	private void resolveDynamicActions(Session session, PlanDefinition.PlanDefinitionActionComponent action,
-			RequestGroupActionComponent currentActionTarget, RequestDetails theRequest) {
+			ResolvedAction resolvedAction, SharedEvaluationContext context, RequestDetails theRequest) {
+		RequestGroupActionComponent currentActionTarget = resolvedAction.actionTarget;
 		for (PlanDefinition.PlanDefinitionActionDynamicValueComponent dynamicValue : action.getDynamicValue()) {
 			logger.info("Resolving dynamic value {} {}", dynamicValue.getPath(), dynamicValue.getExpression());
 			Object result = null;
@@ -221,16 +364,17 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 				if (language.equals("text/cql.identifier") || language.equals("text/cql-identifier")
 						|| language.equals("text/cql.name") || language.equals("text/cql-name")) {
 					result = expressionEvaluation.evaluateInContext(session.getPlanDefinition(),
-							dynamicValue.getExpression().getExpression(), session.getPatientId(), true, theRequest);
+							dynamicValue.getExpression().getExpression(), true, context, theRequest);
 
 				} else {
 
 					result = expressionEvaluation.evaluateInContext(session.getPlanDefinition(),
-							dynamicValue.getExpression().getExpression(), session.getPatientId(), theRequest);
+							dynamicValue.getExpression().getExpression(), false, context, theRequest);
 				}
 
 				if (dynamicValue.hasPath() && dynamicValue.getPath().equals("$this")) {
-					session.setCarePlan((CarePlan) result);
+					resolvedAction.replacesCarePlan = true;
+					resolvedAction.carePlan = (CarePlan) result;
 				}
 
 				else {
@@ -262,10 +406,10 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 	}
 
 	private Boolean meetsConditions(Session session, PlanDefinition.PlanDefinitionActionComponent action,
-			RequestDetails theRequest) {
+			SharedEvaluationContext context, RequestDetails theRequest) {
 		if (action.hasAction()) {
 			for (PlanDefinition.PlanDefinitionActionComponent containedAction : action.getAction()) {
-				meetsConditions(session, containedAction, theRequest);
+				meetsConditions(session, containedAction, context, theRequest);
 			}
 		}
 		for (PlanDefinition.PlanDefinitionActionConditionComponent condition : action.getCondition()) {
@@ -297,11 +441,11 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 				Object result;
 				if (language.equals("text/cql.identifier") || language.equals("text/cql-identifier")
 						|| language.equals("text/cql.name") || language.equals("text/cql-name")) {
-					result = expressionEvaluation.evaluateInContext(session.getPlanDefinition(), cql, session.getPatientId(),
-							true, theRequest);
+					result = expressionEvaluation.evaluateInContext(session.getPlanDefinition(), cql, true,
+							context, theRequest);
 				} else {
-					result = expressionEvaluation.evaluateInContext(session.getPlanDefinition(), cql, session.getPatientId(),
-							theRequest);
+					result = expressionEvaluation.evaluateInContext(session.getPlanDefinition(), cql, false,
+							context, theRequest);
 				}
 
 				if (result == null) {
@@ -508,6 +652,15 @@ public class PlanDefinitionApplyProvider implements OperationProvider {
 		throw new RuntimeException(
 				String.format("Resource %s does not contain resource with id %s", resource.fhirType(), id));
 	}
+
+	// An applicable action, with the resource its definition resolved to and the
+	// CarePlan its dynamic values replace the CarePlan being built with, if any
+	private static class ResolvedAction {
+		private Resource result;
+		private RequestGroupActionComponent actionTarget;
+		private boolean replacesCarePlan;
+		private CarePlan carePlan;
+	}
 }
 
 class Session {
@@ -523,10 +676,15 @@ class Session {
 	private CarePlanBuilder carePlanBuilder;
 	private final String encounterId;
 	private final RequestGroupBuilder requestGroupBuilder;
+	private final SharedEvaluationContext sharedContext;
+	// Creates the context of each action when the actions are resolved
+	// concurrently, as a context is not thread-safe
+	private Function<RequestDetails, SharedEvaluationContext> contextFactory;
 
 	public Session(PlanDefinition planDefinition, CarePlanBuilder builder, String patientId, String encounterId,
 			String practitionerId, String organizationId, String userType, String userLanguage, String userTaskContext,
-			String setting, String settingContext, RequestGroupBuilder requestGroupBuilder) {
+			String setting, String settingContext, RequestGroupBuilder requestGroupBuilder,
+			SharedEvaluationContext sharedContext) {
 		this.patientId = patientId;
 		this.planDefinition = planDefinition;
 		this.carePlanBuilder = builder;
@@ -539,6 +697,7 @@ class Session {
 		this.setting = setting;
 		this.settingContext = settingContext;
 		this.requestGroupBuilder = requestGroupBuilder;
+		this.sharedContext = sharedContext;
 	}
 
 	public PlanDefinition getPlanDefinition() {
@@ -596,4 +755,33 @@ class Session {
 	public RequestGroupBuilder getRequestGroupBuilder() {
 		return requestGroupBuilder;
 	}
+
+	/**
+	 * @return the context the expressions of the $apply, including those of nested
+	 *         PlanDefinitions and ActivityDefinitions, are evaluated in, or null if
+	 *         the actions are resolved concurrently
+	 */
+	public SharedEvaluationContext getSharedContext() {
+		return sharedContext;
+	}
+
+	/**
+	 * Has the actions of the session resolved concurrently, each action evaluating
+	 * expressions in a context of its own created by the factory.
+	 */
+	public void resolveConcurrently(Function<RequestDetails, SharedEvaluationContext> contextFactory) {
+		this.contextFactory = contextFactory;
+	}
+
+	public boolean isConcurrent() {
+		return contextFactory != null;
+	}
+
+	/**
+	 * @param request the copy of the request an action is resolved with
+	 * @return a new context for the action
+	 */
+	public SharedEvaluationContext createContext(RequestDetails request) {
+		return contextFactory.apply(request);
+	}
 }
@@ -0,0 +1,323 @@
+package org.opencds.cqf.ruler.cr.r4.provider;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.hl7.fhir.r4.model.ActivityDefinition;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.ruler.behavior.r4.ParameterUser;
+import org.opencds.cqf.ruler.cql.CohortBatchingRetrieveProvider;
+import org.opencds.cqf.ruler.cql.CqlProperties;
+import org.opencds.cqf.ruler.cr.CrProperties;
+import org.opencds.cqf.ruler.cr.r4.ExpressionEvaluation;
+import org.opencds.cqf.ruler.provider.DaoRegistryOperationProvider;
+import org.opencds.cqf.ruler.utility.Operations;
+import org.opencds.cqf.ruler.utility.Requests;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * Applies a PlanDefinition or an ActivityDefinition to every patient of a
+ * population, given as any number of Patient and Group subjects, in a single
+ * request.
+ * <p>
+ * The definition is read once and applied to the patients concurrently on the
+ * cqlExecutor, with the retrieves of the patients batched as a cohort. At most
+ * {@link CrProperties#getPopulationApplyMaxInFlight()} patients are evaluated
+ * ahead of the results that have been written. The results are written in the
+ * order of the patients as they complete, either to a collection Bundle, to
+ * NDJSON Binaries of {@link CrProperties#getPopulationApplyBatchSize()}
+ * resources, or persisted in transactions of that many resources. A patient the
+ * definition can not be applied to is reported with an OperationOutcome rather
+ * than failing the population.
+ */
+public class PopulationApplyProvider extends DaoRegistryOperationProvider implements ParameterUser {
+
+	public static final String NDJSON_FORMAT = "application/fhir+ndjson";
+
+	private static final Logger ourLog = LoggerFactory.getLogger(PopulationApplyProvider.class);
+
+	@Autowired
+	private PlanDefinitionApplyProvider planDefinitionApplyProvider;
+	@Autowired
+	private ActivityDefinitionApplyProvider activityDefinitionApplyProvider;
+	@Autowired
+	private ExpressionEvaluation expressionEvaluation;
+	@Autowired
+	private CrProperties crProperties;
+	@Autowired
+	private CqlProperties cqlProperties;
+	@Autowired
+	private Executor cqlExecutor;
+
+	@FunctionalInterface
+	interface PatientApplication {
+		Resource apply(String patientId, RequestDetails theRequest) throws Exception;
+	}
+
+	/**
+	 * Applies a PlanDefinition to each patient of a population.
+	 *
+	 * @param theRequest   the details of the request
+	 * @param theId        the id of the PlanDefinition
+	 * @param subject      the Patients and Groups of Patients to apply the
+	 *                     PlanDefinition to
+	 * @param persist      whether the CarePlans are persisted rather than returned
+	 * @param outputFormat {@value #NDJSON_FORMAT} to write the CarePlans to NDJSON
+	 *                     Binaries
+	 * @return the CarePlans, in the order of the patients, or Parameters with an
+	 *         output reference to each NDJSON Binary
+	 */
+	@Operation(name = "$apply-population", type = PlanDefinition.class)
+	public Resource applyPlanDefinition(RequestDetails theRequest, @IdParam IdType theId,
+			@OperationParam(name = "subject", min = 1) List<String> subject,
+			@OperationParam(name = "practitioner") String practitionerId,
+			@OperationParam(name = "organization") String organizationId,
+			@OperationParam(name = "userType") String userType,
+			@OperationParam(name = "userLanguage") String userLanguage,
+			@OperationParam(name = "userTaskContext") String userTaskContext,
+			@OperationParam(name = "setting") String setting,
+			@OperationParam(name = "settingContext") String settingContext,
+			@OperationParam(name = "persist") BooleanType persist,
+			@OperationParam(name = "_outputFormat") String outputFormat) {
+		validateParameters(theRequest);
+		PlanDefinition planDefinition = read(theId, theRequest);
+
+		return applyToPopulation(theRequest, subject, persist, outputFormat,
+				(patientId, request) -> planDefinitionApplyProvider.applyPlanDefinition(request, planDefinition, patientId,
+						null,
+						practitionerId, organizationId, userType, userLanguage, userTaskContext, setting,
+						settingContext));
+	}
+
+	/**
+	 * Applies an ActivityDefinition to each patient of a population.
+	 *
+	 * @param theRequest   the details of the request
+	 * @param theId        the id of the ActivityDefinition
+	 * @param subject      the Patients and Groups of Patients to apply the
+	 *                     ActivityDefinition to
+	 * @param persist      whether the resources are persisted rather than returned
+	 * @param outputFormat {@value #NDJSON_FORMAT} to write the resources to NDJSON
+	 *                     Binaries
+	 * @return the resources, in the order of the patients, or Parameters with an
+	 *         output reference to each NDJSON Binary
+	 */
+	@Operation(name = "$apply-population", type = ActivityDefinition.class)
+	public Resource applyActivityDefinition(RequestDetails theRequest, @IdParam IdType theId,
+			@OperationParam(name = "subject", min = 1) List<String> subject,
+			@OperationParam(name = "practitioner") String practitionerId,
+			@OperationParam(name = "organization") String organizationId,
+			@OperationParam(name = "persist") BooleanType persist,
+			@OperationParam(name = "_outputFormat") String outputFormat) {
+		validateParameters(theRequest);
+		ActivityDefinition activityDefinition = read(theId, theRequest);
+
+		return applyToPopulation(theRequest, subject, persist, outputFormat,
+				(patientId, request) -> activityDefinitionApplyProvider.resolveActivityDefinition(activityDefinition,
+						patientId, practitionerId, organizationId, request,
+						expressionEvaluation.createSharedContext(patientId, request)));
+	}
+
+	@Override
+	public void validateParameters(RequestDetails theRequestDetails) {
+		String[] subjects = theRequestDetails.getParameters().get("subject");
+		if (subjects != null) {
+			validateSubjects(Arrays.asList(subjects));
+		}
+	}
+
+	private static void validateSubjects(List<String> theSubjects) {
+		for (String subject : theSubjects) {
+			Operations.validatePattern("subject", subject, Operations.PATIENT_OR_GROUP_REFERENCE);
+		}
+	}
+
+	private Resource applyToPopulation(RequestDetails theRequest, List<String> theSubjects, BooleanType thePersist,
+			String theOutputFormat, PatientApplication theApplication) {
+		validateSubjects(theSubjects);
+		List<String> patientIds = getPatientIds(theSubjects);
+		if (cqlProperties.getRetrieve().getCohortBatchSize() > 0) {
+			CohortBatchingRetrieveProvider.setCohort(theRequest, patientIds,
+					cqlProperties.getRetrieve().getCohortRetainedBatches());
+		}
+		ourLog.info("Applying to a population of {} patients", patientIds.size());
+
+		if (thePersist != null && thePersist.booleanValue()) {
+			return persist(theRequest, patientIds, theApplication);
+		}
+
+		if (NDJSON_FORMAT.equals(theOutputFormat) || "ndjson".equals(theOutputFormat)) {
+			return writeNdjson(theRequest, patientIds, theApplication);
+		}
+
+		Bundle bundle = new Bundle().setType(Bundle.BundleType.COLLECTION);
+		applyInOrder(theRequest, patientIds, theApplication, result -> bundle.addEntry().setResource(result));
+
+		return bundle;
+	}
+
+	// Applies to the patients concurrently and passes the results to the consumer
+	// in the order of the patients as they complete. At most maxInFlight patients
+	// are submitted ahead of the result being consumed, so a slow consumer holds
+	// back the evaluation rather than the results piling up.
+	private void applyInOrder(RequestDetails theRequest, List<String> thePatientIds,
+			PatientApplication theApplication, Consumer<Resource> theConsumer) {
+		// A RequestDetails is not thread-safe, so each patient is applied with a copy.
+		// A request that can not be copied is applied to the patients one at a time.
+		boolean copyable = Requests.isCopyable(theRequest);
+		Executor executor = copyable ? cqlExecutor : Runnable::run;
+		int maxInFlight = Math.max(1, crProperties.getPopulationApplyMaxInFlight());
+
+		Deque<CompletableFuture<Resource>> inFlight = new ArrayDeque<>(maxInFlight);
+		Iterator<String> patientIds = thePatientIds.iterator();
+		try {
+			while (patientIds.hasNext() || !inFlight.isEmpty()) {
+				while (patientIds.hasNext() && inFlight.size() < maxInFlight) {
+					String patientId = patientIds.next();
+					RequestDetails request = copyable ? Requests.copyOf(theRequest) : theRequest;
+					inFlight.add(CompletableFuture.supplyAsync(
+							() -> applyToPatient(patientId, request, theApplication), executor));
+				}
+
+				theConsumer.accept(inFlight.poll().join());
+			}
+		} finally {
+			// The patients not yet started are not applied if the consumer failed
+			inFlight.forEach(future -> future.cancel(false));
+		}
+	}
+
+	// The ids of the patients of the subjects, in order and without duplicates
+	private List<String> getPatientIds(List<String> theSubjects) {
+		Map<String, String> patientIds = new LinkedHashMap<>();
+		for (String subject : theSubjects) {
+			for (Patient patient : getPatientListFromSubject(subject)) {
+				String patientId = patient.getIdElement().getIdPart();
+				patientIds.putIfAbsent(patientId, patientId);
+			}
+		}
+
+		return new ArrayList<>(patientIds.keySet());
+	}
+
+	private Resource applyToPatient(String thePatientId, RequestDetails theRequest,
+			PatientApplication theApplication) {
+		try {
+			Resource result = theApplication.apply(thePatientId, theRequest);
+			if (result.getId() == null) {
+				result.setId(UUID.randomUUID().toString());
+			}
+			return result;
+		} catch (Exception e) {
+			ourLog.error("Unable to apply to Patient/{}", thePatientId, e);
+			return createErrorOutcome(
+					String.format("Unable to apply to Patient/%s: %s", thePatientId, e.getMessage()));
+		}
+	}
+
+	// Persists the results in transactions as they complete, in order, so that
+	// the earlier transactions overlap with the evaluation of later patients
+	private Bundle persist(RequestDetails theRequest, List<String> thePatientIds,
+			PatientApplication theApplication) {
+		int batchSize = Math.max(1, crProperties.getPopulationApplyBatchSize());
+		Bundle response = new Bundle().setType(Bundle.BundleType.TRANSACTIONRESPONSE);
+		AtomicReference<Bundle> transaction = new AtomicReference<>(newTransaction());
+		applyInOrder(theRequest, thePatientIds, theApplication, result -> {
+			if (result instanceof OperationOutcome) {
+				response.addEntry().getResponse().setStatus("500 Internal Server Error").setOutcome(result);
+				return;
+			}
+
+			transaction.get().addEntry()
+					.setFullUrl("urn:uuid:" + UUID.randomUUID())
+					.setResource(result)
+					.getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl(result.fhirType());
+			if (transaction.get().getEntry().size() >= batchSize) {
+				response.getEntry().addAll(transaction(transaction.get(), theRequest).getEntry());
+				transaction.set(newTransaction());
+			}
+		});
+
+		if (!transaction.get().getEntry().isEmpty()) {
+			response.getEntry().addAll(transaction(transaction.get(), theRequest).getEntry());
+		}
+
+		return response;
+	}
+
+	// Writes the results as NDJSON to Binaries of batchSize resources each, as they
+	// complete, so that only one Binary is held in memory
+	private Parameters writeNdjson(RequestDetails theRequest, List<String> thePatientIds,
+			PatientApplication theApplication) {
+		int batchSize = Math.max(1, crProperties.getPopulationApplyBatchSize());
+		IParser parser = getFhirContext().newJsonParser().setPrettyPrint(false);
+		Parameters output = new Parameters();
+		StringBuilder ndjson = new StringBuilder();
+		AtomicInteger count = new AtomicInteger();
+		applyInOrder(theRequest, thePatientIds, theApplication, result -> {
+			ndjson.append(parser.encodeResourceToString(result)).append('\n');
+			if (count.incrementAndGet() >= batchSize) {
+				output.addParameter().setName("output").setValue(createBinary(ndjson, theRequest));
+				ndjson.setLength(0);
+				count.set(0);
+			}
+		});
+
+		if (count.get() > 0) {
+			output.addParameter().setName("output").setValue(createBinary(ndjson, theRequest));
+		}
+
+		return output;
+	}
+
+	private Reference createBinary(StringBuilder theNdjson, RequestDetails theRequest) {
+		Binary binary = new Binary().setContentType(NDJSON_FORMAT);
+		binary.setData(theNdjson.toString().getBytes(StandardCharsets.UTF_8));
+		return new Reference(create(binary, theRequest).getId().toUnqualifiedVersionless());
+	}
+
+	private static Bundle newTransaction() {
+		return new Bundle().setType(Bundle.BundleType.TRANSACTION);
+	}
+
+	private static OperationOutcome createErrorOutcome(String display) {
+		Coding code = new Coding().setDisplay(display);
+		return new OperationOutcome().addIssue(
+				new OperationOutcome.OperationOutcomeIssueComponent()
+						.setSeverity(OperationOutcome.IssueSeverity.ERROR)
+						.setCode(OperationOutcome.IssueType.PROCESSING)
+						.setDetails(new CodeableConcept().addCoding(code)));
+	}
+}
@@ -0,0 +1,161 @@
+package org.opencds.cqf.ruler.cr;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class ActionSchedulerTest {
+
+	private final ExecutorService myExecutor = Executors.newFixedThreadPool(4);
+
+	@AfterEach
+	public void shutdown() {
+		myExecutor.shutdownNow();
+	}
+
+	private static List<Set<Integer>> predecessors(int theCount) {
+		List<Set<Integer>> predecessors = new ArrayList<>();
+		for (int i = 0; i < theCount; i++) {
+			predecessors.add(new HashSet<>());
+		}
+		return predecessors;
+	}
+
+	private static void await(CountDownLatch theLatch) {
+		try {
+			if (!theLatch.await(10, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("Timed out");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted", e);
+		}
+	}
+
+	@Test
+	public void testResultsAreInTheOrderOfTheActions() {
+		// Each action waits for the next one to complete, so later actions complete
+		// first. There are as many actions as threads.
+		CountDownLatch[] done = new CountDownLatch[4];
+		for (int i = 0; i < done.length; i++) {
+			done[i] = new CountDownLatch(1);
+		}
+		List<Integer> completed = Collections.synchronizedList(new ArrayList<>());
+
+		List<Integer> results = ActionScheduler.run(predecessors(4), i -> {
+			if (i < 3) {
+				await(done[i + 1]);
+			}
+			completed.add(i);
+			done[i].countDown();
+			return i * 10;
+		}, myExecutor);
+
+		assertEquals(Arrays.asList(3, 2, 1, 0), completed);
+		assertEquals(Arrays.asList(0, 10, 20, 30), results);
+	}
+
+	@Test
+	public void testActionsStartAfterTheirPredecessors() {
+		List<Set<Integer>> predecessors = predecessors(3);
+		// 0 follows 2, which follows 1
+		predecessors.get(0).add(2);
+		predecessors.get(2).add(1);
+		List<Integer> completed = Collections.synchronizedList(new ArrayList<>());
+
+		ActionScheduler.run(predecessors, i -> {
+			completed.add(i);
+			return i;
+		}, myExecutor);
+
+		assertEquals(Arrays.asList(1, 2, 0), completed);
+	}
+
+	@Test
+	public void testCyclicActionsRunInOrderOnTheCallingThread() {
+		List<Set<Integer>> predecessors = predecessors(2);
+		predecessors.get(0).add(1);
+		predecessors.get(1).add(0);
+		Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+		List<Integer> results = ActionScheduler.run(predecessors, i -> {
+			threads.add(Thread.currentThread());
+			return i;
+		}, myExecutor);
+
+		assertEquals(Arrays.asList(0, 1), results);
+		assertTrue(threads.contains(Thread.currentThread()));
+	}
+
+	@Test
+	public void testTheFailureIsThrown() {
+		IllegalStateException e = assertThrows(IllegalStateException.class,
+				() -> ActionScheduler.run(predecessors(3), i -> {
+					if (i == 1) {
+						throw new IllegalStateException("action 1");
+					}
+					return i;
+				}, myExecutor));
+
+		assertEquals("action 1", e.getMessage());
+	}
+
+	@Test
+	public void testRunningActionsFinishAfterAFailure() {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch failed = new CountDownLatch(1);
+		AtomicBoolean finished = new AtomicBoolean();
+
+		IllegalStateException e = assertThrows(IllegalStateException.class,
+				() -> ActionScheduler.run(predecessors(2), i -> {
+					if (i == 0) {
+						started.countDown();
+						await(failed);
+						finished.set(!Thread.currentThread().isInterrupted());
+						return i;
+					}
+					await(started);
+					failed.countDown();
+					throw new IllegalStateException("action 1");
+				}, myExecutor));
+
+		assertEquals("action 1", e.getMessage());
+		assertTrue(finished.get());
+	}
+
+	@Test
+	public void testActionsDoNotStartAfterAFailure() {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		List<Integer> started = Collections.synchronizedList(new ArrayList<>());
+		try {
+			// On a single thread, action 1 is only taken once action 0 has failed
+			assertThrows(IllegalStateException.class, () -> ActionScheduler.run(predecessors(2), i -> {
+				started.add(i);
+				if (i == 0) {
+					throw new IllegalStateException("action 0");
+				}
+				return i;
+			}, executor));
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(Arrays.asList(0), started);
+	}
+}
@@ -1,15 +1,26 @@
 package org.opencds.cqf.ruler.cr.r4;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Attachment;
 import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Library;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.opencds.cqf.ruler.cql.CqlConfig;
 import org.opencds.cqf.ruler.cr.CrConfig;
+import org.opencds.cqf.ruler.cr.SharedEvaluationContext;
 import org.opencds.cqf.ruler.test.RestIntegrationTest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -25,6 +36,9 @@ public class ExpressionEvaluationIT extends RestIntegrationTest {
 	@Autowired
 	private ExpressionEvaluation expressionEvaluation;
 
+	@Autowired
+	private Map<VersionedIdentifier, org.cqframework.cql.elm.execution.Library> globalLibraryCache;
+
 	private Map<String, IBaseResource> measures;
 	private Map<String, IBaseResource> planDefinitions;
 
@@ -75,4 +89,75 @@ public class ExpressionEvaluationIT extends RestIntegrationTest {
 		assertTrue(isCurrentSmoker instanceof Boolean);
 		assertTrue((!(Boolean) isCurrentSmoker));
 	}
+
+	@Test
+	public void testExpressionEvaluationInSharedContext() throws Exception {
+		DomainResource planDefinition = (DomainResource) planDefinitions.get("lcs-cds-patient-view");
+		// Patient First
+		uploadTests("test/plandefinition/LungCancerScreening/Former-Smoker/Patient");
+		Map<String, IBaseResource> resources = uploadTests("test/plandefinition/LungCancerScreening/Former-Smoker");
+		IBaseResource patient = resources.get("Former-Smoker");
+		SharedEvaluationContext sharedContext = expressionEvaluation
+				.createSharedContext(patient.getIdElement().getIdPart(), new SystemRequestDetails());
+
+		Object isFormerSmoker = expressionEvaluation.evaluateInContext(planDefinition,
+				"Is former smoker who quit within past 15 years", true, sharedContext, new SystemRequestDetails());
+		assertTrue(isFormerSmoker instanceof Boolean);
+		assertTrue(((Boolean) isFormerSmoker).booleanValue());
+
+		Object isCurrentSmoker = expressionEvaluation.evaluateInContext(planDefinition, "Is current smoker", true,
+				sharedContext, new SystemRequestDetails());
+		assertTrue(isCurrentSmoker instanceof Boolean);
+		assertTrue((!(Boolean) isCurrentSmoker));
+
+		Object formerSmokerAgain = expressionEvaluation.evaluateInContext(planDefinition,
+				"Is former smoker who quit within past 15 years", true, sharedContext, new SystemRequestDetails());
+		assertEquals(isFormerSmoker, formerSmokerAgain);
+
+		// The library the expressions reference is only resolved once
+		assertEquals(1, sharedContext.getContentHashes().size());
+	}
+
+	@Test
+	public void testExpressionEvaluationReusesLocalLibrary() throws Exception {
+		DomainResource planDefinition = (DomainResource) planDefinitions.get("lcs-cds-patient-view");
+		// Patient First
+		uploadTests("test/plandefinition/LungCancerScreening/Former-Smoker/Patient");
+		Map<String, IBaseResource> resources = uploadTests("test/plandefinition/LungCancerScreening/Former-Smoker");
+		String patientId = resources.get("Former-Smoker").getIdElement().getIdPart();
+
+		Object first = expressionEvaluation.evaluateInContext(planDefinition, "Is current smoker", patientId, true,
+				new SystemRequestDetails());
+		Map<VersionedIdentifier, org.cqframework.cql.elm.execution.Library> localLibraries = getLocalLibraries();
+
+		// The second evaluation is served the library the first one translated
+		Object second = expressionEvaluation.evaluateInContext(planDefinition, "Is current smoker", patientId, true,
+				new SystemRequestDetails());
+		assertEquals(first, second);
+		Map<VersionedIdentifier, org.cqframework.cql.elm.execution.Library> secondLocalLibraries = getLocalLibraries();
+		assertEquals(localLibraries.keySet(), secondLocalLibraries.keySet());
+		localLibraries.forEach((id, localLibrary) -> assertSame(localLibrary, secondLocalLibraries.get(id)));
+
+		// A change to the CQL of a referenced library compiles a new local library
+		Library library = read(new IdType("Library", "LungCancerScreening"));
+		for (Attachment content : library.getContent()) {
+			if ("text/cql".equals(content.getContentType())) {
+				content.setData((new String(content.getData(), StandardCharsets.UTF_8) + "\n// changed")
+						.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		update(library);
+
+		Object changed = expressionEvaluation.evaluateInContext(planDefinition, "Is current smoker", patientId, true,
+				new SystemRequestDetails());
+		assertEquals(first, changed);
+		Set<VersionedIdentifier> changedLocalLibraries = new HashSet<>(getLocalLibraries().keySet());
+		changedLocalLibraries.removeAll(localLibraries.keySet());
+		assertEquals(1, changedLocalLibraries.size());
+	}
+
+	private Map<VersionedIdentifier, org.cqframework.cql.elm.execution.Library> getLocalLibraries() {
+		return globalLibraryCache.entrySet().stream().filter(x -> x.getKey().getId().startsWith("LocalLibrary_"))
+				.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+	}
 }
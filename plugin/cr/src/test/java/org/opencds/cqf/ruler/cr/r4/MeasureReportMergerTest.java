@@ -0,0 +1,101 @@
+package org.opencds.cqf.ruler.cr.r4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+
+public class MeasureReportMergerTest {
+
+	private static final String POPULATION_SYSTEM = "http://terminology.hl7.org/CodeSystem/measure-population";
+
+	private static CodeableConcept populationCode(String theCode) {
+		return new CodeableConcept().addCoding(new Coding().setSystem(POPULATION_SYSTEM).setCode(theCode));
+	}
+
+	// A subject-list report with the subjects in the numerator and denominator
+	// populations, stratified by gender
+	private static MeasureReport report(String theListId, List<String> theNumerator, List<String> theDenominator,
+			String theGender) {
+		MeasureReport report = new MeasureReport();
+		MeasureReport.MeasureReportGroupComponent group = report.addGroup();
+		group.addPopulation().setCode(populationCode("numerator")).setCount(theNumerator.size())
+				.setSubjectResults(new Reference("#" + theListId));
+		group.addPopulation().setCode(populationCode("denominator")).setCount(theDenominator.size());
+
+		ListResource list = new ListResource();
+		list.setId(theListId);
+		theNumerator.forEach(subject -> list.addEntry().setItem(new Reference(subject)));
+		report.addContained(list);
+
+		MeasureReport.StratifierGroupComponent stratum = group.addStratifier().addStratum()
+				.setValue(new CodeableConcept().setText(theGender));
+		stratum.addPopulation().setCode(populationCode("numerator")).setCount(theNumerator.size());
+		stratum.addPopulation().setCode(populationCode("denominator")).setCount(theDenominator.size());
+
+		return report;
+	}
+
+	@Test
+	public void testCountsAreSummedAndScoresComputedAgain() {
+		MeasureReport merged = MeasureReportMerger.merge(Arrays.asList(
+				report("a", Arrays.asList("Patient/1"), Arrays.asList("Patient/1", "Patient/2"), "female"),
+				report("b", Arrays.asList("Patient/3", "Patient/4"), Arrays.asList("Patient/3", "Patient/4"), "female")),
+				"proportion");
+
+		MeasureReport.MeasureReportGroupComponent group = merged.getGroupFirstRep();
+		assertEquals(3, group.getPopulation().get(0).getCount());
+		assertEquals(4, group.getPopulation().get(1).getCount());
+		assertEquals(0.75, group.getMeasureScore().getValue().doubleValue(), 0.0001);
+
+		MeasureReport.StratifierGroupComponent stratum = group.getStratifierFirstRep().getStratumFirstRep();
+		assertEquals(1, group.getStratifierFirstRep().getStratum().size());
+		assertEquals(3, stratum.getPopulation().get(0).getCount());
+		assertEquals(0.75, stratum.getMeasureScore().getValue().doubleValue(), 0.0001);
+	}
+
+	@Test
+	public void testSubjectListsAreConcatenatedInOrder() {
+		MeasureReport merged = MeasureReportMerger.merge(Arrays.asList(
+				report("a", Arrays.asList("Patient/1"), Arrays.asList("Patient/1"), "female"),
+				report("b", Arrays.asList("Patient/2", "Patient/3"), Arrays.asList("Patient/2", "Patient/3"), "female")),
+				"proportion");
+
+		ListResource list = (ListResource) merged.getContained().get(0);
+		assertEquals(Arrays.asList("Patient/1", "Patient/2", "Patient/3"),
+				list.getEntry().stream().map(entry -> entry.getItem().getReference()).collect(Collectors.toList()));
+	}
+
+	@Test
+	public void testStrataOfLaterPartitionsAreAdded() {
+		MeasureReport merged = MeasureReportMerger.merge(Arrays.asList(
+				report("a", Arrays.asList("Patient/1"), Arrays.asList("Patient/1"), "female"),
+				report("b", Arrays.asList(), Arrays.asList("Patient/2"), "male")),
+				"proportion");
+
+		List<MeasureReport.StratifierGroupComponent> strata = merged.getGroupFirstRep().getStratifierFirstRep()
+				.getStratum();
+		assertEquals(Arrays.asList("female", "male"),
+				strata.stream().map(stratum -> stratum.getValue().getText()).collect(Collectors.toList()));
+		assertEquals(0.0, strata.get(1).getMeasureScore().getValue().doubleValue(), 0.0001);
+	}
+
+	@Test
+	public void testCohortReportsAreNotScored() {
+		MeasureReport merged = MeasureReportMerger.merge(Arrays.asList(
+				report("a", Arrays.asList("Patient/1"), Arrays.asList("Patient/1"), "female"),
+				report("b", Arrays.asList("Patient/2"), Arrays.asList("Patient/2"), "female")),
+				"cohort");
+
+		assertFalse(merged.getGroupFirstRep().hasMeasureScore());
+	}
+}
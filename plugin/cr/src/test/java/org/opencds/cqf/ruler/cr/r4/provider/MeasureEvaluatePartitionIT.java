@@ -0,0 +1,204 @@
+package org.opencds.cqf.ruler.cr.r4.provider;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cql.CqlConfig;
+import org.opencds.cqf.ruler.cql.CqlProperties;
+import org.opencds.cqf.ruler.cr.CrConfig;
+import org.opencds.cqf.ruler.cr.CrProperties;
+import org.opencds.cqf.ruler.test.RestIntegrationTest;
+import org.opencds.cqf.ruler.utility.Searches;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		MeasureEvaluatePartitionIT.class,
+		CrConfig.class, CqlConfig.class }, properties = {
+				"hapi.fhir.fhir_version=r4",
+		})
+public class MeasureEvaluatePartitionIT extends RestIntegrationTest {
+
+	private static final IdType MEASURE_ID = new IdType("Measure", "measure-EXM104-8.2.000");
+
+	@Autowired
+	private MeasureEvaluateProvider measureEvaluateProvider;
+
+	@Autowired
+	private CrProperties crProperties;
+
+	@Autowired
+	private CqlProperties cqlProperties;
+
+	@Autowired
+	private IInterceptorService interceptorService;
+
+	@BeforeEach
+	public void setup() {
+		loadTransaction("Exm104FhirR4MeasureBundle.json");
+	}
+
+	@AfterEach
+	public void resetProperties() {
+		crProperties.setMeasureEvaluatePartitionSize(0);
+		cqlProperties.getRetrieve().setCohortBatchSize(0);
+	}
+
+	// Counts the searches of the JPA server
+	public static class SearchCounter {
+		private final AtomicInteger mySearches = new AtomicInteger();
+
+		@Hook(Pointcut.STORAGE_PRESEARCH_REGISTERED)
+		public void searchRegistered() {
+			mySearches.incrementAndGet();
+		}
+
+		int getSearches() {
+			return mySearches.get();
+		}
+	}
+
+	private int countSearches(Runnable theEvaluation) {
+		SearchCounter counter = new SearchCounter();
+		interceptorService.registerInterceptor(counter);
+		try {
+			theEvaluation.run();
+		} finally {
+			interceptorService.unregisterInterceptor(counter);
+		}
+		return counter.getSearches();
+	}
+
+	// Only Measures without supplemental data are evaluated in partitions
+	private void setScoring(String theScoring) {
+		Measure measure = read(MEASURE_ID);
+		measure.setSupplementalData(new ArrayList<>());
+		measure.setScoring(new CodeableConcept().addCoding(
+				new Coding().setSystem("http://terminology.hl7.org/CodeSystem/measure-scoring").setCode(theScoring)));
+		update(measure);
+	}
+
+	private MeasureReport evaluate(int thePartitionSize, String theReportType) {
+		return evaluate(thePartitionSize, theReportType, null);
+	}
+
+	private MeasureReport evaluate(int thePartitionSize, String theReportType, String theSubject) {
+		crProperties.setMeasureEvaluatePartitionSize(thePartitionSize);
+		return measureEvaluateProvider.evaluateMeasure(new SystemRequestDetails(), MEASURE_ID, "2019-01-01",
+				"2020-01-01", theReportType, theSubject, null, "2019-12-12", null, null, null);
+	}
+
+	// The counts and scores of the report, and its subject lists, which do not
+	// depend on the order the subjects were evaluated in
+	private static List<String> summarize(MeasureReport theReport) {
+		List<String> summary = new ArrayList<>();
+		for (MeasureReport.MeasureReportGroupComponent group : theReport.getGroup()) {
+			for (MeasureReport.MeasureReportGroupPopulationComponent population : group.getPopulation()) {
+				summary.add(population.getCode().getCodingFirstRep().getCode() + "=" + population.getCount());
+			}
+			if (group.hasMeasureScore()) {
+				summary.add("score=" + group.getMeasureScore().getValue().setScale(4, RoundingMode.HALF_UP));
+			}
+		}
+
+		List<String> subjectLists = new ArrayList<>();
+		for (Resource contained : theReport.getContained()) {
+			if (contained instanceof ListResource) {
+				subjectLists.add(((ListResource) contained).getEntry().stream()
+						.map(entry -> entry.getItem().getReference()).sorted().collect(Collectors.joining(",")));
+			}
+		}
+		Collections.sort(subjectLists);
+		summary.addAll(subjectLists);
+
+		return summary;
+	}
+
+	private void assertPartitionedMatchesSingleThreaded(String theScoring) {
+		setScoring(theScoring);
+		for (String reportType : new String[] { "population", "subject-list" }) {
+			List<String> expected = summarize(evaluate(0, reportType));
+			// One patient per partition
+			List<String> partitioned = summarize(evaluate(1, reportType));
+
+			assertEquals(expected, partitioned, theScoring + " " + reportType);
+		}
+	}
+
+	@Test
+	public void testPartitionedProportionMatchesSingleThreaded() {
+		assertPartitionedMatchesSingleThreaded("proportion");
+	}
+
+	@Test
+	public void testPartitionedRatioMatchesSingleThreaded() {
+		assertPartitionedMatchesSingleThreaded("ratio");
+	}
+
+	@Test
+	public void testPartitionedCohortMatchesSingleThreaded() {
+		assertPartitionedMatchesSingleThreaded("cohort");
+	}
+
+	@Test
+	public void testPartitionedGroupsThatIncludeEachOther() {
+		setScoring("proportion");
+		Group group = new Group();
+		group.setId("group-a");
+		for (Patient patient : search(Patient.class, Searches.all()).getAllResourcesTyped()) {
+			group.addMember().setEntity(new Reference("Patient/" + patient.getIdElement().getIdPart()));
+		}
+		group.addMember().setEntity(new Reference("Group/group-b"));
+		update(group);
+
+		Group nested = new Group();
+		nested.setId("group-b");
+		nested.addMember().setEntity(new Reference("Group/group-a"));
+		update(nested);
+
+		List<String> expected = summarize(evaluate(0, "population"));
+		List<String> partitioned = summarize(evaluate(1, "population", "Group/group-a"));
+
+		assertEquals(expected, partitioned);
+	}
+
+	@Test
+	public void testPartitionedCohortBatchesDoNotAddSearches() {
+		setScoring("proportion");
+		List<String> expected = summarize(evaluate(0, "population"));
+
+		int unbatched = countSearches(() -> evaluate(0, "population"));
+
+		cqlProperties.getRetrieve().setCohortBatchSize(2);
+		List<String> partitioned = new ArrayList<>();
+		int batched = countSearches(() -> partitioned.addAll(summarize(evaluate(2, "population"))));
+
+		assertEquals(expected, partitioned);
+		assertTrue(batched <= unbatched, batched + " searches with cohort batches, " + unbatched + " without");
+	}
+}
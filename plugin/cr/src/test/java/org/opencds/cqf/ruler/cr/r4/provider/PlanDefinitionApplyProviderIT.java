@@ -1,16 +1,26 @@
 package org.opencds.cqf.ruler.cr.r4.provider;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.CarePlan;
 import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.RequestGroup;
+import org.hl7.fhir.r4.model.Resource;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.opencds.cqf.ruler.cql.CqlConfig;
 import org.opencds.cqf.ruler.cr.CrConfig;
+import org.opencds.cqf.ruler.cr.CrProperties;
 import org.opencds.cqf.ruler.test.RestIntegrationTest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
@@ -27,6 +37,9 @@ public class PlanDefinitionApplyProviderIT extends RestIntegrationTest {
 	@Autowired
 	private PlanDefinitionApplyProvider planDefinitionApplyProvider;
 
+	@Autowired
+	private CrProperties crProperties;
+
 	private Map<String, IBaseResource> planDefinitions;
 
 	@BeforeEach
@@ -48,4 +61,48 @@ public class PlanDefinitionApplyProviderIT extends RestIntegrationTest {
 				null);
 		assertTrue(isFormerSmoker instanceof CarePlan);
 	}
+
+	// The types of the resources in the CarePlan, and the titles of the actions of
+	// its RequestGroups, which do not depend on the generated ids
+	private static List<String> summarize(CarePlan theCarePlan) {
+		List<String> summary = new ArrayList<>();
+		for (Resource resource : theCarePlan.getContained()) {
+			summary.add(resource.fhirType());
+			if (resource instanceof RequestGroup) {
+				summary.addAll(((RequestGroup) resource).getAction().stream()
+						.map(RequestGroup.RequestGroupActionComponent::getTitle).collect(Collectors.toList()));
+			}
+		}
+		return summary;
+	}
+
+	@Test
+	public void testConcurrentApplyMatchesSequentialApply() throws Exception {
+		DomainResource plandefinition = (DomainResource) planDefinitions.get("lcs-cds-patient-view");
+		uploadTests("test/plandefinition/LungCancerScreening/Former-Smoker/Patient");
+		Map<String, IBaseResource> resources = uploadTests("test/plandefinition/LungCancerScreening/Former-Smoker");
+		String patientId = resources.get("Former-Smoker").getIdElement().getIdPart();
+
+		CarePlan sequential = (CarePlan) planDefinitionApplyProvider.applyPlanDefinition(new SystemRequestDetails(),
+				plandefinition.getIdElement(), patientId, null, null, null, null, null, null, null, null);
+
+		// Several $apply run at once, each resolving its actions concurrently
+		crProperties.setThreadedPlanDefinitionApplyEnabled(true);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<CarePlan>> futures = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				futures.add(executor.submit(() -> (CarePlan) planDefinitionApplyProvider.applyPlanDefinition(
+						new SystemRequestDetails(), plandefinition.getIdElement(), patientId, null, null, null, null,
+						null, null, null, null)));
+			}
+
+			for (Future<CarePlan> future : futures) {
+				assertEquals(summarize(sequential), summarize(future.get()));
+			}
+		} finally {
+			executor.shutdownNow();
+			crProperties.setThreadedPlanDefinitionApplyEnabled(false);
+		}
+	}
 }
@@ -0,0 +1,90 @@
+package org.opencds.cqf.ruler.cr.r4.provider;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.hl7.fhir.r4.model.PlanDefinition.ActionRelationshipType;
+import org.hl7.fhir.r4.model.PlanDefinition.PlanDefinitionActionComponent;
+import org.junit.jupiter.api.Test;
+
+public class PlanDefinitionApplyProviderTest {
+
+	private static PlanDefinitionActionComponent action(String theId) {
+		PlanDefinitionActionComponent action = new PlanDefinition().addAction();
+		if (theId != null) {
+			action.setId(theId);
+		}
+		return action;
+	}
+
+	private static void relate(PlanDefinitionActionComponent theAction, String theActionId,
+			ActionRelationshipType theRelationship) {
+		theAction.addRelatedAction().setActionId(theActionId).setRelationship(theRelationship);
+	}
+
+	private static Set<Integer> set(Integer... theIndexes) {
+		return new HashSet<>(Arrays.asList(theIndexes));
+	}
+
+	@Test
+	public void testUnrelatedActionsHaveNoPredecessors() {
+		List<Set<Integer>> predecessors = PlanDefinitionApplyProvider
+				.getPredecessors(Arrays.asList(action("a"), action("b"), action(null)));
+
+		assertEquals(Arrays.asList(set(), set(), set()), predecessors);
+	}
+
+	@Test
+	public void testAnActionFollowsTheActionItIsAfter() {
+		PlanDefinitionActionComponent first = action("a");
+		PlanDefinitionActionComponent second = action("b");
+		relate(second, "a", ActionRelationshipType.AFTER);
+		PlanDefinitionActionComponent third = action("c");
+		relate(third, "b", ActionRelationshipType.AFTEREND);
+
+		List<Set<Integer>> predecessors = PlanDefinitionApplyProvider
+				.getPredecessors(Arrays.asList(first, second, third));
+
+		assertEquals(Arrays.asList(set(), set(0), set(1)), predecessors);
+	}
+
+	@Test
+	public void testAnActionPrecedesTheActionItIsBefore() {
+		PlanDefinitionActionComponent first = action("a");
+		relate(first, "b", ActionRelationshipType.BEFORESTART);
+		PlanDefinitionActionComponent second = action("b");
+		PlanDefinitionActionComponent third = action("c");
+		relate(third, "a", ActionRelationshipType.BEFORE);
+
+		List<Set<Integer>> predecessors = PlanDefinitionApplyProvider
+				.getPredecessors(Arrays.asList(first, second, third));
+
+		assertEquals(Arrays.asList(set(2), set(0), set()), predecessors);
+	}
+
+	@Test
+	public void testConcurrentUnknownAndSelfRelationsAreIgnored() {
+		PlanDefinitionActionComponent first = action("a");
+		relate(first, "b", ActionRelationshipType.CONCURRENT);
+		relate(first, "a", ActionRelationshipType.AFTER);
+		relate(first, "unknown", ActionRelationshipType.AFTER);
+		PlanDefinitionActionComponent second = action("b");
+		relate(second, "a", null);
+
+		List<Set<Integer>> predecessors = PlanDefinitionApplyProvider.getPredecessors(Arrays.asList(first, second));
+
+		assertEquals(Arrays.asList(set(), set()), predecessors);
+	}
+
+	@Test
+	public void testNoActionsHaveNoPredecessors() {
+		assertEquals(Collections.emptyList(), PlanDefinitionApplyProvider.getPredecessors(new ArrayList<>()));
+	}
+}
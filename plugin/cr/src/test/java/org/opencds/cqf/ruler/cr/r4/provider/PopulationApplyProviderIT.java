@@ -0,0 +1,126 @@
+package org.opencds.cqf.ruler.cr.r4.provider;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CarePlan;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.ruler.cql.CqlConfig;
+import org.opencds.cqf.ruler.cr.CrConfig;
+import org.opencds.cqf.ruler.cr.CrProperties;
+import org.opencds.cqf.ruler.test.RestIntegrationTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import ca.uhn.fhir.jpa.partition.SystemRequestDetails;
+
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, classes = {
+		PopulationApplyProviderIT.class,
+		CrConfig.class, CqlConfig.class }, properties = {
+				"hapi.fhir.fhir_version=r4",
+		})
+public class PopulationApplyProviderIT extends RestIntegrationTest {
+
+	@Autowired
+	private PopulationApplyProvider populationApplyProvider;
+
+	@Autowired
+	private CrProperties crProperties;
+
+	private Map<String, IBaseResource> planDefinitions;
+
+	@BeforeEach
+	public void setup() throws Exception {
+		uploadTests("valueset");
+		uploadTests("library");
+		planDefinitions = uploadTests("plandefinition");
+		uploadTests("test/plandefinition/LungCancerScreening/Former-Smoker/Patient");
+		uploadTests("test/plandefinition/LungCancerScreening/Former-Smoker");
+	}
+
+	@AfterEach
+	public void resetProperties() {
+		crProperties.setPopulationApplyBatchSize(500);
+		crProperties.setPopulationApplyMaxInFlight(64);
+	}
+
+	private IdType getPlanDefinitionId() {
+		DomainResource planDefinition = (DomainResource) planDefinitions.get("lcs-cds-patient-view");
+		return (IdType) planDefinition.getIdElement();
+	}
+
+	@Test
+	public void testPlanDefinitionApplyPopulation() {
+		Resource result = populationApplyProvider.applyPlanDefinition(new SystemRequestDetails(),
+				getPlanDefinitionId(), Arrays.asList("Patient/Former-Smoker", "Patient/Former-Smoker"), null, null, null,
+				null, null, null, null, null, null);
+
+		assertTrue(result instanceof Bundle);
+		Bundle bundle = (Bundle) result;
+		// The duplicate subject is applied once
+		assertEquals(1, bundle.getEntry().size());
+		assertTrue(bundle.getEntryFirstRep().getResource() instanceof CarePlan);
+	}
+
+	@Test
+	public void testPlanDefinitionApplyPopulationWithOneInFlight() {
+		update(new Patient().setId("Other"));
+		crProperties.setPopulationApplyMaxInFlight(1);
+
+		Resource result = populationApplyProvider.applyPlanDefinition(new SystemRequestDetails(),
+				getPlanDefinitionId(), Arrays.asList("Patient/Former-Smoker", "Patient/Other"), null, null, null, null,
+				null, null, null, null, null);
+
+		// The results are still in the order of the patients
+		Bundle bundle = (Bundle) result;
+		assertEquals(2, bundle.getEntry().size());
+		assertEquals("Former-Smoker", ((CarePlan) bundle.getEntry().get(0).getResource()).getSubject().getReference());
+		assertEquals("Other", ((CarePlan) bundle.getEntry().get(1).getResource()).getSubject().getReference());
+	}
+
+	@Test
+	public void testPlanDefinitionApplyPopulationNdjsonIsChunked() {
+		update(new Patient().setId("Other"));
+		crProperties.setPopulationApplyBatchSize(1);
+
+		Parameters parameters = (Parameters) populationApplyProvider.applyPlanDefinition(new SystemRequestDetails(),
+				getPlanDefinitionId(), Arrays.asList("Patient/Former-Smoker", "Patient/Other"), null, null, null, null,
+				null, null, null, null, PopulationApplyProvider.NDJSON_FORMAT);
+
+		assertEquals(2, parameters.getParameter().size());
+		for (Parameters.ParametersParameterComponent output : parameters.getParameter()) {
+			Binary binary = read(((Reference) output.getValue()).getReferenceElement());
+			assertEquals(1, new String(binary.getData()).split("\n").length);
+		}
+	}
+
+	@Test
+	public void testPlanDefinitionApplyPopulationNdjson() {
+		Resource result = populationApplyProvider.applyPlanDefinition(new SystemRequestDetails(),
+				getPlanDefinitionId(), Arrays.asList("Patient/Former-Smoker"), null, null, null, null, null, null, null,
+				null, PopulationApplyProvider.NDJSON_FORMAT);
+
+		assertTrue(result instanceof Parameters);
+		Parameters parameters = (Parameters) result;
+		assertEquals(1, parameters.getParameter().size());
+		assertEquals("output", parameters.getParameterFirstRep().getName());
+
+		Binary binary = read(((Reference) parameters.getParameterFirstRep().getValue()).getReferenceElement());
+		assertEquals(PopulationApplyProvider.NDJSON_FORMAT, binary.getContentType());
+		assertEquals(1, new String(binary.getData()).split("\n").length);
+	}
+}